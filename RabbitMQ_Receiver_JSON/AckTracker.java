@@ -0,0 +1,80 @@
+//We need to import some classes
+import java.io.IOException;
+import java.util.TreeSet;
+
+import com.rabbitmq.client.Channel;
+
+//AckTracker acks deliveries in batches with multiple=true. Workers finish deliveries out of order, so it
+//keeps a ring of done flags, one per delivery the prefetch lets the broker send, and only acks up to the
+//highest tag below which every delivery is done. It acks once batchSize more deliveries are done, and
+//flush() acks whatever is left, so a quiet stream is not left unacked. A batchSize of Integer.MAX_VALUE
+//leaves every ack to flush(upTo), for when something must happen first, like committing the stored samples.
+//A delivery that could not be processed is nacked on its own with failed(), and counts as done for the window.
+//Channels must not be acked from two threads at once, so all acks go through here under one lock.
+public class AckTracker
+{
+    private final Channel channel;
+    private final int batchSize;
+    private final boolean[] done;
+//nacked deliveries not yet passed by an ack, a multiple ack must not name one of them
+    private final TreeSet<Long> nacked = new TreeSet<>();
+//every delivery up to contiguous is done, every one up to acked has been acked
+    private long contiguous;
+    private long acked;
+    private long ackCalls;
+
+//window must be at least the channel's prefetch count, the most deliveries that can be unacked at once
+    public AckTracker(Channel channel, int window, int batchSize) {
+        this.channel = channel;
+        this.batchSize = batchSize;
+        done = new boolean[window];
+    }
+
+    public synchronized void done(long deliveryTag) throws IOException {
+        done[(int) (deliveryTag % done.length)] = true;
+        while (done[(int) ((contiguous + 1) % done.length)]) {
+            done[(int) ((contiguous + 1) % done.length)] = false;
+            contiguous++;
+        }
+        if (contiguous - acked >= batchSize) {
+            flush(contiguous);
+        }
+    }
+
+//nack a delivery that could not be processed, requeue to have the broker deliver it again
+    public synchronized void failed(long deliveryTag, boolean requeue) throws IOException {
+        channel.basicNack(deliveryTag, false, requeue);
+        nacked.add(deliveryTag);
+        done(deliveryTag);
+    }
+
+    public synchronized void flush() throws IOException {
+        flush(contiguous);
+    }
+
+//ack no further than upTo, a tag from contiguous() taken before whatever had to happen before the ack
+    public synchronized void flush(long upTo) throws IOException {
+        long tag = Math.min(upTo, contiguous);
+        while (tag > acked && nacked.contains(tag)) {
+            tag--;
+        }
+        if (tag > acked) {
+            channel.basicAck(tag, true);
+            acked = tag;
+            ackCalls++;
+            nacked.headSet(tag, true).clear();
+        }
+    }
+
+    public synchronized long contiguous() {
+        return contiguous;
+    }
+
+    public synchronized long ackCalls() {
+        return ackCalls;
+    }
+
+    public synchronized long acked() {
+        return acked;
+    }
+}
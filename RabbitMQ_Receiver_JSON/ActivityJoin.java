@@ -0,0 +1,224 @@
+//We need to import some classes
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+//ActivityJoin labels the EEG ("black") samples with the activity ("white") the phone recognised at the time,
+//as they arrive, so the receiver writes out an activity labelled dataset instead of two streams to line up later.
+//Each activity update is a segment in an interval index keyed by its capture time; it is the active label from
+//then until the next update, or for at most maxSegmentMs if no update follows. Looking a sample up is a floor
+//lookup in the TreeMap, O(log n). Both streams carry the phone's own clock (capture_ts and the sample
+//timestamps) so no clock offset is needed.
+//Labels can arrive after the samples they cover, so samples wait until the label watermark, the latest
+//activity time seen minus labelLatenessMs, has passed them, or until they have waited maxWaitMs here, then they
+//are joined with the best label known and handed to the sink in order. Waiting samples are kept as primitive
+//columns in a SampleBatch per session, the sink gets the batch and the index of the sample. An activity update
+//older than samples that already went out is still indexed, for backfill, and counted as late. Thread safe,
+//every call takes the one lock and the sink is called under it, so it sees each session's samples in order.
+//The activity messages carry no session, so with several phones each needs its own receiver.
+public class ActivityJoin
+{
+    public final static String UNLABELLED = "unlabelled";
+
+    public interface Sink {
+//sample i of samples, from this session, and the update active at its time, null if none is
+        void joined(String session, SampleBatch samples, int i, Segment segment);
+    }
+
+//one activity update, the most probable activity and the confidence of every activity in it
+    static class Segment {
+        final long start;
+        final Map<String, Integer> confidences = new LinkedHashMap<>();
+        String label;
+        int confidence = -1;
+
+        Segment(long start) {
+            this.start = start;
+        }
+
+        void add(String activity, int activityConfidence) {
+            confidences.put(activity, activityConfidence);
+            if (activityConfidence > confidence) {
+                label = activity;
+                confidence = activityConfidence;
+            }
+        }
+    }
+
+//the samples of a session waiting for their label, from head to the end of samples, and when each arrived
+    private static class Pending {
+        final SampleBatch samples = new SampleBatch(256);
+        long[] arrived = new long[256];
+        int head;
+
+        int size() {
+            return samples.size - head;
+        }
+
+        void add(SampleBatch from, int i, long now) {
+//make room at the end by dropping the samples already taken off the front
+            if (head > 0 && samples.size == samples.timestamps.length) {
+                samples.removeFirst(head);
+                System.arraycopy(arrived, head, arrived, 0, samples.size);
+                head = 0;
+            }
+            samples.add(from, i);
+            if (arrived.length < samples.timestamps.length) {
+                arrived = Arrays.copyOf(arrived, samples.timestamps.length);
+            }
+            arrived[samples.size - 1] = now;
+        }
+
+        void removeFirst() {
+            if (++head == samples.size) {
+                samples.clear();
+                head = 0;
+            }
+        }
+    }
+
+    private final Sink sink;
+    private final long maxSegmentMs;
+    private final long labelLatenessMs;
+    private final long maxWaitMs;
+    private final long retentionMs;
+    private final int maxPending;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final Map<String, Long> labelCounts = new TreeMap<>();
+//latest activity capture time seen, and latest sample time joined, both in the phone's clock
+    private long latestLabel = Long.MIN_VALUE;
+    private long latestJoined = Long.MIN_VALUE;
+
+    long joined;
+    long waitedOut;
+    long lateLabels;
+
+    public ActivityJoin(Sink sink, long maxSegmentMs, long labelLatenessMs, long maxWaitMs, long retentionMs,
+            int maxPending) {
+        this.sink = sink;
+        this.maxSegmentMs = maxSegmentMs;
+        this.labelLatenessMs = labelLatenessMs;
+        this.maxWaitMs = maxWaitMs;
+        this.retentionMs = retentionMs;
+        this.maxPending = maxPending;
+    }
+
+//an activity message from the "white" routing key, {"Still ":80,"UnixTS":...,"TS":"..."} with capture_ts in its
+//headers, older apps send no headers and the update time is UnixTS
+    public void addActivityMessage(Map<String, Object> headers, String body, long now) throws ParseException {
+        JSONObject message = (JSONObject) new JSONParser().parse(body);
+        Object capture = headers == null ? null : headers.get("capture_ts");
+        long captureTs = capture instanceof Number
+                ? ((Number) capture).longValue()
+                : ((Number) message.get("UnixTS")).longValue() * 1000L;
+        for (Object key : message.keySet()) {
+            Object value = message.get(key);
+            if (!"UnixTS".equals(key) && !"TS".equals(key) && value instanceof Number) {
+                addActivity(captureTs, key.toString().trim(), ((Number) value).intValue(), now);
+            }
+        }
+    }
+
+//one activity of an update, the phone sends an update as one message per probable activity with the same capture time
+    public synchronized void addActivity(long captureTs, String activity, int confidence, long now) {
+        if (captureTs <= latestJoined) {
+            lateLabels++;
+        }
+        segments.computeIfAbsent(captureTs, Segment::new).add(activity, confidence);
+        if (captureTs > latestLabel) {
+            latestLabel = captureTs;
+//keep retentionMs of labels for backfill, and the segment the oldest kept time falls in
+            Long keep = segments.floorKey(latestLabel - retentionMs);
+            if (keep != null) {
+                segments.headMap(keep).clear();
+            }
+        }
+        drain(now);
+    }
+
+//a batch of samples of a session, each joined now if its label is settled or later from drain()
+    public synchronized void addSamples(String session, SampleBatch samples, long now) {
+        Pending queue = pending.computeIfAbsent(session, key -> new Pending());
+        long settled = settled();
+        for (int i = 0; i < samples.size; i++) {
+            if (queue.size() == 0 && samples.timestamps[i] < settled) {
+                emit(session, samples, i);
+                continue;
+            }
+            queue.add(samples, i, now);
+            if (queue.size() > maxPending) {
+                waitedOut++;
+                emit(session, queue.samples, queue.head);
+                queue.removeFirst();
+            }
+        }
+    }
+
+//join every sample whose label is settled or that has waited maxWaitMs, now is this machine's clock
+    public synchronized void drain(long now) {
+        long settled = settled();
+        for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+            Pending queue = entry.getValue();
+            while (queue.size() > 0) {
+                int next = queue.head;
+                if (queue.samples.timestamps[next] >= settled) {
+                    if (now - queue.arrived[next] < maxWaitMs) {
+                        break;
+                    }
+                    waitedOut++;
+                }
+                emit(entry.getKey(), queue.samples, next);
+                queue.removeFirst();
+            }
+        }
+    }
+
+//the segment active at this time, or null if no update covers it
+    synchronized Segment lookup(long timestamp) {
+        Map.Entry<Long, Segment> floor = segments.floorEntry(timestamp);
+        if (floor == null || timestamp - floor.getKey() >= maxSegmentMs) {
+            return null;
+        }
+        return floor.getValue();
+    }
+
+//every update in the index, oldest first
+    synchronized List<Segment> segments() {
+        return new ArrayList<>(segments.values());
+    }
+
+    public synchronized int pending() {
+        int total = 0;
+        for (Pending queue : pending.values()) {
+            total += queue.size();
+        }
+        return total;
+    }
+
+    public synchronized Map<String, Long> labelCounts() {
+        return new TreeMap<>(labelCounts);
+    }
+
+//samples before this time can no longer get a different label, short of a late one
+    private long settled() {
+        return latestLabel == Long.MIN_VALUE ? Long.MIN_VALUE : latestLabel - labelLatenessMs;
+    }
+
+    private void emit(String session, SampleBatch samples, int i) {
+        long timestamp = samples.timestamps[i];
+        Segment segment = lookup(timestamp);
+        labelCounts.merge(segment == null ? UNLABELLED : segment.label, 1L, Long::sum);
+        latestJoined = Math.max(latestJoined, timestamp);
+        joined++;
+        sink.joined(session, samples, i, segment);
+    }
+}
@@ -0,0 +1,59 @@
+//We need to import some classes
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.json.simple.JSONObject;
+
+//Decodes the band power feature messages (content-type application/x-bci-bandpower) the App publishes on
+//the "features" routing key into one JSON object with the band powers in uV^2 for every channel.
+//Layout: 24 byte header (magic 'B' 'P', version, channels, bands, reserved, window samples,
+//int64 sample index and int64 unix ms timestamp of the newest sample) then float32 powers, channel by channel.
+//The band names come from the "bands" header, e.g. "delta:1.0-4.0,theta:4.0-8.0,..."
+public class BandPowerDecoder
+{
+    public final static String CONTENT_TYPE = "application/x-bci-bandpower";
+    private final static int VERSION = 1;
+
+    private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    public static boolean isBandPower(String contentType) {
+        return CONTENT_TYPE.equals(contentType);
+    }
+
+//decode one message body, bands is the "bands" header (may be null), throws IllegalArgumentException if the
+//header is not one we know
+    @SuppressWarnings("unchecked")
+    public JSONObject decode(byte[] body, Object bands) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        if (buffer.remaining() < 24 || buffer.get() != 'B' || buffer.get() != 'P') {
+            throw new IllegalArgumentException("not a band power message");
+        }
+        int version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported band power schema version " + version);
+        }
+        int channels = buffer.get();
+        int bandCount = buffer.get();
+        buffer.get(); //reserved
+        int windowSamples = buffer.getShort() & 0xFFFF;
+        long sampleIndex = buffer.getLong();
+        long timestamp = buffer.getLong();
+
+        String[] names = bands == null ? new String[0] : bands.toString().split(",");
+        JSONObject features = new JSONObject();
+        features.put("sample_index", sampleIndex);
+        features.put("window", windowSamples);
+        for (int ch = 1; ch <= channels; ch++) {
+            JSONObject powers = new JSONObject();
+            for (int b = 0; b < bandCount; b++) {
+                String name = b < names.length ? names[b].split(":")[0] : "band" + b;
+                powers.put(name, buffer.getFloat());
+            }
+            features.put("ch" + ch, powers);
+        }
+        features.put("UnixTS", timestamp / 1000L);
+        features.put("TS", simpleDateFormat.format(new Date(timestamp)));
+        return features;
+    }
+}
@@ -0,0 +1,56 @@
+//We need to import some classes
+import java.nio.ByteBuffer;
+
+//Decodes the compact binary EEG batches (content-type application/x-bci-eeg) published by the App
+//into a SampleBatch, the samples of the JSON messages go into one the same way.
+//Layout: 8 byte header (magic 'E' 'G', version, format, channels, reserved, sample count) then per sample
+//u8 sample number, int64 unix ms timestamp and 8 channels as 24-bit counts (format 0) or float32 uV (format 1)
+public class BinarySampleDecoder
+{
+    public final static String CONTENT_TYPE = "application/x-bci-eeg";
+    private final static int VERSION = 1;
+    private final static int FORMAT_RAW_COUNTS = 0;
+    private final static int FORMAT_MICRO_VOLTS = 1;
+
+//same scale factor the App uses to convert ADS1299 counts into micro volts: 4.5V / 24 gain / (2^23 - 1)
+    private final static float SCALE_UV_PER_COUNT = 4.5f / ((float)(Math.pow(2,23)-1)) / 24  * 1000000.f;
+
+    public static boolean isBinary(String contentType) {
+        return CONTENT_TYPE.equals(contentType);
+    }
+
+//decode one message body onto the end of out, throws IllegalArgumentException if the header is not one we know
+    public void decode(byte[] body, SampleBatch out) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        if (buffer.remaining() < 8 || buffer.get() != 'E' || buffer.get() != 'G') {
+            throw new IllegalArgumentException("not a binary EEG batch");
+        }
+        int version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported binary EEG schema version " + version);
+        }
+        int format = buffer.get();
+        int channels = buffer.get();
+        buffer.get(); //reserved
+        int count = buffer.getShort() & 0xFFFF;
+
+        for (int i = 0; i < count; i++) {
+            int sampleNumber = buffer.get() & 0xFF;
+            int offset = out.add(sampleNumber, buffer.getLong());
+            for (int ch = 0; ch < channels; ch++) {
+                float microVolts;
+                if (format == FORMAT_RAW_COUNTS) {
+                    int counts = ((buffer.get() << 16) | ((buffer.get() & 0xFF) << 8) | (buffer.get() & 0xFF));
+                    microVolts = SCALE_UV_PER_COUNT * counts;
+                } else if (format == FORMAT_MICRO_VOLTS) {
+                    microVolts = buffer.getFloat();
+                } else {
+                    throw new IllegalArgumentException("unknown binary EEG channel format " + format);
+                }
+                if (ch < SampleBatch.CHANNELS) {
+                    out.microVolts[offset + ch] = microVolts;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+//We need to import some classes
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.ParseException;
+
+//DatasetExport turns the sessions Recv kept with store=<dir> into NumPy arrays for model training. It cuts every
+//session into epochs, either fixed length windows every strideMs or one window locked to each activity update,
+//labels them from the activity updates the store kept, and writes them in chunks of up to chunk epochs:
+//epochs-00000.npy float32 [epoch, channel, time] micro volts, labels-00000.npy int32 label numbers and
+//times-00000.npy int64 unix ms of each epoch's first sample, or the three in one chunk-00000.npz. labels.json
+//lists the label names by number, 0 is "unlabelled".
+//Sessions and the chunks of each session are fork-join tasks, so the export uses every core. Each chunk reads
+//its epochs straight from the mapped segments and holds only its own array, so memory is bounded by the pool's
+//parallelism times the chunk size whatever the size of the sessions. Epochs with samples missing are skipped.
+//
+//Options, as name=value arguments:
+//  store=<dir>      the store Recv wrote (required)
+//  out=<dir>        where to write the arrays (required), a directory per session
+//  mode=fixed       fixed, or activity for one epoch per activity update
+//  epochMs=2000     length of an epoch
+//  strideMs=2000    start of one fixed epoch to the next
+//  offsetMs=0       start of an activity locked epoch from its update, may be negative
+//  channels=1-8     channels to export, e.g. 1-4 or 1,3,5
+//  rate=250         sample rate of the board
+//  chunk=256        epochs per file
+//  format=npy       npy, or npz for one file per chunk
+//  minConfidence=0  activity updates less confident than this leave their epochs unlabelled
+//  maxSegmentMs=30000  longest an activity update labels samples if no other follows
+//  threads=<cores>
+public class DatasetExport
+{
+    private static SessionStore store;
+    private static File out;
+    private static boolean activityLocked;
+    private static long epochMs;
+    private static long strideMs;
+    private static long offsetMs;
+    private static int[] channels;
+    private static int samplesPerEpoch;
+    private static double periodMs;
+    private static int chunkSize;
+    private static boolean npz;
+    private static int minConfidence;
+    private static ActivityJoin activities;
+    private static final List<String> labels = new ArrayList<>();
+    private static final Map<String, Integer> labelNumbers = new HashMap<>();
+    private static final AtomicLong epochs = new AtomicLong();
+    private static final AtomicLong skipped = new AtomicLong();
+    private static final AtomicLong chunks = new AtomicLong();
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : argv) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                options.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        }
+        if (!options.containsKey("store") || !options.containsKey("out")) {
+            System.out.println("Usage: java DatasetExport store=<dir> out=<dir> [mode=fixed|activity epochMs=2000"
+                    + " strideMs=2000 offsetMs=0 channels=1-8 rate=250 chunk=256 format=npy|npz minConfidence=0"
+                    + " maxSegmentMs=30000 threads=<cores>]");
+            return;
+        }
+        store = new SessionStore(new File(options.get("store")), 0, false);
+        out = new File(options.get("out"));
+        activityLocked = "activity".equals(options.getOrDefault("mode", "fixed"));
+        epochMs = Long.parseLong(options.getOrDefault("epochMs", "2000"));
+        strideMs = Long.parseLong(options.getOrDefault("strideMs", String.valueOf(epochMs)));
+        offsetMs = Long.parseLong(options.getOrDefault("offsetMs", "0"));
+        channels = channels(options.getOrDefault("channels", "1-" + SessionStore.CHANNELS));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "250"));
+        periodMs = 1000.0 / rate;
+        samplesPerEpoch = (int) (epochMs * rate / 1000);
+        chunkSize = Integer.parseInt(options.getOrDefault("chunk", "256"));
+        npz = "npz".equals(options.getOrDefault("format", "npy"));
+        minConfidence = Integer.parseInt(options.getOrDefault("minConfidence", "0"));
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(cores)));
+        if (samplesPerEpoch < 1 || strideMs < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Need epochMs of at least one sample, strideMs >= 1 and chunk >= 1");
+        }
+
+//the activity updates as an interval index, the labels numbered in name order after "unlabelled"
+        long maxSegmentMs = Long.parseLong(options.getOrDefault("maxSegmentMs", "30000"));
+        activities = new ActivityJoin((session, samples, i, segment) -> { }, maxSegmentMs, 0, 0, Long.MAX_VALUE / 4, 0);
+        TreeSet<String> names = new TreeSet<>();
+        for (String[] activity : store.activities()) {
+            Map<String, Object> headers = new HashMap<>();
+            if (activity[0] != null) {
+                headers.put("capture_ts", Long.parseLong(activity[0]));
+            }
+            try {
+                activities.addActivityMessage(headers, activity[1], 0);
+            } catch (ParseException | RuntimeException e) {
+                System.out.println(" [!] Skipping activity update '" + activity[1] + "': " + e);
+            }
+        }
+        for (ActivityJoin.Segment segment : activities.segments()) {
+            names.add(segment.label);
+        }
+        labels.add(ActivityJoin.UNLABELLED);
+        labels.addAll(names);
+        for (int i = 0; i < labels.size(); i++) {
+            labelNumbers.put(labels.get(i), i);
+        }
+        if (!out.isDirectory() && !out.mkdirs()) {
+            throw new IOException("Could not create " + out);
+        }
+        writeLabels();
+
+        long started = System.currentTimeMillis();
+        List<SessionTask> tasks = new ArrayList<>();
+        for (String session : store.sessions()) {
+            tasks.add(new SessionTask(session));
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> ForkJoinTask.invokeAll(tasks)).get();
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.currentTimeMillis() - started) / 1000.0;
+        System.out.println(String.format(Locale.ROOT,
+                " [*] %d sessions, %d epochs in %d chunks, %d skipped with samples missing, %.1fs on %d threads,"
+                        + " %.0f epochs/s",
+                tasks.size(), epochs.get(), chunks.get(), skipped.get(), seconds, threads,
+                epochs.get() / Math.max(seconds, 0.001)));
+    }
+
+//one session: work out where its epochs start, then export them a chunk per task
+    static class SessionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String session;
+
+        SessionTask(String session) {
+            this.session = session;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                long[] range = store.timeRange(session);
+                if (range == null) {
+                    return;
+                }
+                List<Long> starts = new ArrayList<>();
+                if (activityLocked) {
+                    for (ActivityJoin.Segment segment : activities.segments()) {
+                        long start = segment.start + offsetMs;
+                        if (start >= range[0] && start + epochMs <= range[1] + periodMs) {
+                            starts.add(start);
+                        }
+                    }
+                } else {
+                    for (long start = range[0]; start + epochMs <= range[1] + periodMs; start += strideMs) {
+                        starts.add(start);
+                    }
+                }
+                File directory = new File(out, session);
+                if (!starts.isEmpty() && !directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Could not create " + directory);
+                }
+                List<ChunkTask> chunkTasks = new ArrayList<>();
+                for (int from = 0, n = 0; from < starts.size(); from += chunkSize, n++) {
+                    List<Long> chunk = starts.subList(from, Math.min(starts.size(), from + chunkSize));
+                    chunkTasks.add(new ChunkTask(session, directory, n, chunk));
+                }
+                invokeAll(chunkTasks);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+//one chunk of a session's epochs, read from the store and written out as one set of files
+    static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String session;
+        private final File directory;
+        private final int number;
+        private final List<Long> starts;
+
+        ChunkTask(String session, File directory, int number, List<Long> starts) {
+            this.session = session;
+            this.directory = directory;
+            this.number = number;
+            this.starts = starts;
+        }
+
+        @Override
+        protected void compute() {
+            int epochSize = channels.length * samplesPerEpoch;
+            float[] data = new float[starts.size() * epochSize];
+            int[] epochLabels = new int[starts.size()];
+            long[] times = new long[starts.size()];
+            int count = 0;
+            try {
+                for (long start : starts) {
+//half a sample either side, so sample clock jitter does not lose the first or last sample
+                    List<SessionStore.Slice> slices = store.query(session, Math.round(start - periodMs / 2),
+                            Math.round(start + epochMs - periodMs / 2), channels);
+                    int samples = 0;
+                    for (SessionStore.Slice slice : slices) {
+                        samples += slice.timestamps.remaining();
+                    }
+                    if (samples != samplesPerEpoch) {
+                        skipped.incrementAndGet();
+                        continue;
+                    }
+                    int offset = 0;
+                    for (SessionStore.Slice slice : slices) {
+                        int length = slice.timestamps.remaining();
+                        for (int ch = 0; ch < channels.length; ch++) {
+                            FloatBuffer column = slice.channels[ch];
+                            column.get(data, count * epochSize + ch * samplesPerEpoch + offset, length);
+                        }
+                        offset += length;
+                    }
+                    times[count] = slices.get(0).timestamps.get(0);
+                    epochLabels[count] = label(start);
+                    count++;
+                }
+                if (count > 0) {
+                    write(data, epochLabels, times, count);
+                    epochs.addAndGet(count);
+                    chunks.incrementAndGet();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void write(float[] data, int[] epochLabels, long[] times, int count) throws IOException {
+            String suffix = String.format("-%05d", number);
+            int values = count * channels.length * samplesPerEpoch;
+            if (npz) {
+                try (ZipOutputStream zip = new ZipOutputStream(create("chunk" + suffix + ".npz"))) {
+                    zip.putNextEntry(new ZipEntry("epochs.npy"));
+                    NpyWriter.writeFloats(zip, data, values, count, channels.length, samplesPerEpoch);
+                    zip.putNextEntry(new ZipEntry("labels.npy"));
+                    NpyWriter.writeInts(zip, epochLabels, count);
+                    zip.putNextEntry(new ZipEntry("times.npy"));
+                    NpyWriter.writeLongs(zip, times, count);
+                }
+                return;
+            }
+            try (OutputStream file = create("epochs" + suffix + ".npy")) {
+                NpyWriter.writeFloats(file, data, values, count, channels.length, samplesPerEpoch);
+            }
+            try (OutputStream file = create("labels" + suffix + ".npy")) {
+                NpyWriter.writeInts(file, epochLabels, count);
+            }
+            try (OutputStream file = create("times" + suffix + ".npy")) {
+                NpyWriter.writeLongs(file, times, count);
+            }
+        }
+
+        private OutputStream create(String name) throws IOException {
+            return new BufferedOutputStream(new FileOutputStream(new File(directory, name)));
+        }
+    }
+
+//an activity locked epoch takes its update's label, a fixed one the label in force half way through it
+    private static int label(long start) {
+        long at = activityLocked ? start - offsetMs : start + epochMs / 2;
+        ActivityJoin.Segment segment = activities.lookup(at);
+        if (segment == null || segment.confidence < minConfidence) {
+            return 0;
+        }
+        return labelNumbers.get(segment.label);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeLabels() throws IOException {
+        JSONArray names = new JSONArray();
+        names.addAll(labels);
+        try (OutputStream file = new FileOutputStream(new File(out, "labels.json"))) {
+            file.write(names.toJSONString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+//"1-4", "1,3,5" or a mix, channels numbered from 1
+    private static int[] channels(String list) {
+        List<Integer> numbers = new ArrayList<>();
+        for (String part : list.split(",")) {
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt(part.substring(0, dash < 0 ? part.length() : dash).trim());
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1).trim());
+            for (int ch = from; ch <= to; ch++) {
+                numbers.add(ch);
+            }
+        }
+        Collections.sort(numbers);
+        int[] result = new int[numbers.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = numbers.get(i);
+        }
+        return result;
+    }
+}
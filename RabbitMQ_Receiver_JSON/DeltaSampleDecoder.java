@@ -0,0 +1,83 @@
+//We need to import some classes
+import java.nio.ByteBuffer;
+
+//Decodes the lossless compressed EEG batches (content-type application/x-bci-eeg-delta) published by the App
+//into a SampleBatch, the samples of the JSON messages go into one the same way.
+//Layout: 8 byte header (magic 'E' 'D', version, predictor, channels, reserved, sample count). The first sample
+//is u8 sample number, int64 unix ms timestamp and a varint per channel of the zig-zag 24-bit count. Every other
+//sample is u8 sample number, varint zig-zag timestamp difference and a varint per channel of the zig-zag error
+//of predicting the count from the previous sample (predictor 0) or the previous two (predictor 1).
+public class DeltaSampleDecoder
+{
+    public final static String CONTENT_TYPE = "application/x-bci-eeg-delta";
+    private final static int VERSION = 1;
+    private final static int PREDICTOR_DELTA = 0;
+    private final static int PREDICTOR_LINEAR = 1;
+
+//same scale factor the App uses to convert ADS1299 counts into micro volts: 4.5V / 24 gain / (2^23 - 1)
+    private final static float SCALE_UV_PER_COUNT = 4.5f / ((float)(Math.pow(2,23)-1)) / 24  * 1000000.f;
+
+    public static boolean isDelta(String contentType) {
+        return CONTENT_TYPE.equals(contentType);
+    }
+
+//decode one message body onto the end of out, throws IllegalArgumentException if the header is not one we know
+    public void decode(byte[] body, SampleBatch out) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        if (buffer.remaining() < 8 || buffer.get() != 'E' || buffer.get() != 'D') {
+            throw new IllegalArgumentException("not a delta EEG batch");
+        }
+        int version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported delta EEG schema version " + version);
+        }
+        int predictor = buffer.get();
+        if (predictor != PREDICTOR_DELTA && predictor != PREDICTOR_LINEAR) {
+            throw new IllegalArgumentException("unknown delta EEG predictor " + predictor);
+        }
+        int channels = buffer.get();
+        buffer.get(); //reserved
+        int count = buffer.getShort() & 0xFFFF;
+
+        long[] previous = new long[channels];
+        long[] before = new long[channels];
+        long timestamp = 0;
+        for (int i = 0; i < count; i++) {
+            int sampleNumber = buffer.get() & 0xFF;
+            timestamp = i == 0 ? buffer.getLong() : timestamp + unZigZag(readVarint(buffer));
+            int offset = out.add(sampleNumber, timestamp);
+            for (int ch = 0; ch < channels; ch++) {
+                long counts;
+                if (i == 0) {
+                    counts = unZigZag(readVarint(buffer));
+                } else if (predictor == PREDICTOR_LINEAR && i > 1) {
+                    counts = 2 * previous[ch] - before[ch] + unZigZag(readVarint(buffer));
+                } else {
+                    counts = previous[ch] + unZigZag(readVarint(buffer));
+                }
+                before[ch] = previous[ch];
+                previous[ch] = counts;
+                if (ch < SampleBatch.CHANNELS) {
+                    out.microVolts[offset + ch] = SCALE_UV_PER_COUNT * (int) counts;
+                }
+            }
+        }
+    }
+
+//unsigned LEB128 varint, 7 bits per byte with the low bits first
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint longer than 64 bits");
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,262 @@
+//We need to import some classes
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+//EdfWriter streams one session to a BDF+ or EDF+ file for MNE, EEGLAB and the like, one data record at a time,
+//so a session of any length takes one record of memory. BDF+ stores the 24-bit ADS1299 counts the Cyton sends,
+//the micro volts turned back into counts with the same scale factor the App uses, so nothing is lost. EDF+ stores
+//16-bit values over +/- edfRangeUv. Records are one second long; the last signal is the annotations signal,
+//where every record starts with its time keeping TAL and then any activity changes annotate(..) queued.
+//The file is EDF+D/BDF+D: every record carries its own start time. Lost samples are written as zeros up to
+//the end of their record and annotated "Data missing", and if more are missing the next record starts when the
+//samples do again.
+//Samples from before the last one written (late backfill) cannot go in a streamed file and are counted in dropped.
+//The header says -1 records until sync() or close() write the count.
+public class EdfWriter
+{
+//same scale factor the App uses to convert ADS1299 counts into micro volts: 4.5V / 24 gain / (2^23 - 1)
+    private final static double SCALE_UV_PER_COUNT = 4.5 / (Math.pow(2, 23) - 1) / 24 * 1000000.0;
+    private final static int BDF_DIGITAL_MAX = 8388607;
+    private final static int EDF_DIGITAL_MAX = 32767;
+    private final static int ANNOTATION_BYTES = 120;
+    private final static int RECORD_COUNT_OFFSET = 236;
+
+    private final File file;
+    private final boolean bdf;
+    private final int channels;
+    private final int sampleRate;
+    private final String session;
+    private final double physicalMax;
+    private final int digitalMax;
+    private final int bytesPerValue;
+    private final byte[] record;
+//annotations not written yet as {unix ms, duration ms} and their text
+    private final ArrayDeque<long[]> annotationTimes = new ArrayDeque<>();
+    private final ArrayDeque<String> annotationTexts = new ArrayDeque<>();
+    private RandomAccessFile out;
+//unix ms of the start of the file, a whole second, and of the sample at index 0 of the current record
+    private long startMillis;
+    private double recordStartMillis;
+    private int index;
+    private long records;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    long dropped;
+    long missing;
+
+    public EdfWriter(File file, boolean bdf, int channels, int sampleRate, String session, double edfRangeUv) {
+        this.file = file;
+        this.bdf = bdf;
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.session = session;
+        bytesPerValue = bdf ? 3 : 2;
+        digitalMax = bdf ? BDF_DIGITAL_MAX : EDF_DIGITAL_MAX;
+        physicalMax = bdf ? BDF_DIGITAL_MAX * SCALE_UV_PER_COUNT : edfRangeUv;
+        record = new byte[channels * sampleRate * bytesPerValue + ANNOTATION_BYTES];
+    }
+
+//one sample, unix ms and micro volts, NaN is written as 0
+    public void write(long timestamp, float[] microVolts) throws IOException {
+        write(timestamp, microVolts, 0);
+    }
+
+//one sample with its channels values from offset in microVolts, as a SampleBatch keeps them
+    public void write(long timestamp, float[] microVolts, int offset) throws IOException {
+        if (out == null) {
+            open(timestamp);
+        } else if (timestamp <= lastTimestamp) {
+            dropped++;
+            return;
+        }
+        double period = 1000.0 / sampleRate;
+        long gap = Math.round((timestamp - (recordStartMillis + index * period)) / period);
+        if (gap > 0) {
+            annotate(timestamp - Math.round(gap * period), "Data missing", Math.round(gap * period));
+            missing += gap;
+//fill what is left of this record, the next one starts with this sample
+            while (gap > 0 && index > 0) {
+                put(null, 0);
+                gap--;
+            }
+            if (index == 0) {
+                recordStartMillis = timestamp;
+            }
+        }
+        put(microVolts, offset);
+        lastTimestamp = timestamp;
+    }
+
+//an annotation at this unix ms time, it goes in the next record written that has room for it
+    public void annotate(long timestamp, String text) {
+        annotate(timestamp, text, 0);
+    }
+
+    private void annotate(long timestamp, String text, long durationMillis) {
+        annotationTimes.addLast(new long[]{timestamp, durationMillis});
+        annotationTexts.addLast(ascii(text, 60));
+    }
+
+//write the record count into the header so far, so a crash leaves a readable file
+    public void sync() throws IOException {
+        if (out != null) {
+            out.seek(RECORD_COUNT_OFFSET);
+            out.write(field(String.valueOf(records), 8).getBytes(StandardCharsets.US_ASCII));
+            out.seek(out.length());
+            out.getFD().sync();
+        }
+    }
+
+//write the last record, zero filled, and the record count
+    public void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+        while (index > 0) {
+            put(null, 0);
+        }
+        sync();
+        out.close();
+        out = null;
+    }
+
+    public long records() {
+        return records;
+    }
+
+    private void put(float[] microVolts, int from) throws IOException {
+        for (int ch = 0; ch < channels; ch++) {
+            float uv = microVolts == null || from + ch >= microVolts.length ? 0 : microVolts[from + ch];
+            long value = Float.isNaN(uv) ? 0 : Math.round(uv * digitalMax / physicalMax);
+            int digital = (int) Math.max(-digitalMax, Math.min(digitalMax, value));
+            int offset = (ch * sampleRate + index) * bytesPerValue;
+            record[offset] = (byte) digital;
+            record[offset + 1] = (byte) (digital >> 8);
+            if (bdf) {
+                record[offset + 2] = (byte) (digital >> 16);
+            }
+        }
+        if (++index == sampleRate) {
+            writeRecord();
+        }
+    }
+
+    private void writeRecord() throws IOException {
+        int offset = channels * sampleRate * bytesPerValue;
+        int end = record.length;
+        String recordOnset = onset(Math.round(recordStartMillis));
+        byte[] timeKeeping = (recordOnset + "\u0014\u0014\u0000").getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(timeKeeping, 0, record, offset, timeKeeping.length);
+        offset += timeKeeping.length;
+        while (!annotationTimes.isEmpty()) {
+            long[] time = annotationTimes.peekFirst();
+            String tal = onset(time[0]) + (time[1] > 0 ? "\u0015" + seconds(time[1] / 1000.0) : "")
+                    + "\u0014" + annotationTexts.peekFirst() + "\u0014\u0000";
+            if (offset + tal.length() > end) {
+                break;
+            }
+            System.arraycopy(tal.getBytes(StandardCharsets.US_ASCII), 0, record, offset, tal.length());
+            offset += tal.length();
+            annotationTimes.removeFirst();
+            annotationTexts.removeFirst();
+        }
+        Arrays.fill(record, offset, end, (byte) 0);
+        out.write(record);
+        records++;
+        index = 0;
+        recordStartMillis += 1000.0;
+    }
+
+    private void open(long timestamp) throws IOException {
+        startMillis = Math.floorDiv(timestamp, 1000L) * 1000L;
+        recordStartMillis = timestamp;
+        out = new RandomAccessFile(file, "rw");
+        out.setLength(0);
+        out.write(header(new Date(startMillis)));
+    }
+
+    private byte[] header(Date start) {
+        int signals = channels + 1;
+        StringBuilder text = new StringBuilder();
+        text.append(field(bdf ? "BIOSEMI" : "0", 8));
+        text.append(field("X X X X", 80));
+        String startDate = new SimpleDateFormat("dd-MMM-yyyy", Locale.ROOT).format(start).toUpperCase(Locale.ROOT);
+        String recording = "Startdate " + startDate + " " + ascii(session, 40).replace(' ', '_') + " X OpenBCI_Cyton";
+        text.append(field(recording, 80));
+        text.append(field(new SimpleDateFormat("dd.MM.yy", Locale.ROOT).format(start), 8));
+        text.append(field(new SimpleDateFormat("HH.mm.ss", Locale.ROOT).format(start), 8));
+        text.append(field(String.valueOf(256 * (signals + 1)), 8));
+        text.append(field(bdf ? "BDF+D" : "EDF+D", 44));
+        text.append(field("-1", 8));
+        text.append(field("1", 8));
+        text.append(field(String.valueOf(signals), 4));
+        signalField(text, null, bdf ? "BDF Annotations" : "EDF Annotations", 16);
+        signalField(text, "AgAgCl electrode", "", 80);
+        signalField(text, "uV", "", 8);
+        signalField(text, number(-physicalMax), "-1", 8);
+        signalField(text, number(physicalMax), "1", 8);
+        signalField(text, String.valueOf(-digitalMax), String.valueOf(-digitalMax - 1), 8);
+        signalField(text, String.valueOf(digitalMax), String.valueOf(digitalMax), 8);
+        signalField(text, "", "", 80);
+        signalField(text, String.valueOf(sampleRate), String.valueOf(ANNOTATION_BYTES / bytesPerValue), 8);
+        signalField(text, "", "", 32);
+        byte[] header = text.toString().getBytes(StandardCharsets.US_ASCII);
+//BDF marks its version with a 0xFF byte in front of "BIOSEMI"
+        if (bdf) {
+            System.arraycopy(header, 0, header, 1, 7);
+            header[0] = (byte) 0xFF;
+        }
+        return header;
+    }
+
+//seconds since the start of the file, as a TAL onset
+    private String onset(long timestamp) {
+        return "+" + seconds((timestamp - startMillis) / 1000.0);
+    }
+
+    private static String seconds(double seconds) {
+        String text = String.format(Locale.ROOT, "%.3f", seconds);
+        text = text.replaceAll("0+$", "");
+        return text.endsWith(".") ? text.substring(0, text.length() - 1) : text;
+    }
+
+//physical minimum and maximum have 8 characters, as many decimals as fit
+    private static String number(double value) {
+        String text = String.format(Locale.ROOT, "%.3f", value);
+        return text.length() > 8 ? text.substring(0, 8).replaceAll("\\.$", "") : text;
+    }
+
+//one header field for every signal, the EEG channels then the annotations, a null value labels the channels
+    private void signalField(StringBuilder text, String channelValue, String annotationsValue, int width) {
+        for (int ch = 1; ch <= channels; ch++) {
+            text.append(field(channelValue == null ? "EEG " + ch : channelValue, width));
+        }
+        text.append(field(annotationsValue, width));
+    }
+
+    private static String field(String value, int width) {
+        StringBuilder text = new StringBuilder(width);
+        text.append(value.length() > width ? value.substring(0, width) : value);
+        while (text.length() < width) {
+            text.append(' ');
+        }
+        return text.toString();
+    }
+
+//printable US-ASCII only, as EDF+ asks, at most max characters
+    private static String ascii(String value, int max) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < value.length() && text.length() < max; i++) {
+            char c = value.charAt(i);
+            text.append(c >= 32 && c < 127 ? c : '_');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,325 @@
+//We need to import some classes
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+//LatencyMonitor measures how long messages take from capture on the board to delivery here, per routing key.
+//The app stamps every message with seq, capture_ts and publish_ts headers in the phone's clock. To compare
+//those with this machine's clock it pings the phone through the broker every few seconds, NTP style, and
+//takes the clock offset from the recent pings with the shortest round trip. Each stream reports the total,
+//on-phone (capture to publish) and transport (publish to delivery) latency as a rolling histogram of the
+//last minute, its RFC 3550 interarrival jitter, and the messages that came out of order, twice or never.
+public class LatencyMonitor
+{
+    private final static String EXCHANGE_NAME = "exchange_1";
+    private final static String PING_ROUTING_KEY = "ping";
+    private final static long PING_INTERVAL_MS = 2000;
+    private final static long REPORT_INTERVAL_MS = 10_000;
+//pings older than this are dropped by the broker rather than answered late
+    private final static String PING_EXPIRATION_MS = "5000";
+//the offset comes from the shortest round trip among the last PING_WINDOW pongs
+    private final static int PING_WINDOW = 16;
+//rolling window of ROLLING_SLOTS report intervals
+    private final static int ROLLING_SLOTS = 6;
+
+//log buckets in milliseconds, 16 linear buckets per power of two, up to about 4.6 hours
+    private final static int SUB_BUCKET_BITS = 4;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int BUCKETS = (24 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final Map<String, StreamStats> streams = new TreeMap<>();
+//recent pongs as {round trip, offset} in milliseconds, phone clock minus this clock
+    private final ArrayDeque<long[]> pongs = new ArrayDeque<>();
+    private final Map<String, Long> pingsInFlight = new HashMap<>();
+    private boolean haveOffset;
+    private long offsetMillis;
+    private long roundTripMillis;
+    private ScheduledExecutorService timer;
+
+//start pinging the phone on its own channel and printing a report every REPORT_INTERVAL_MS
+    public void start(Connection connection) throws IOException {
+        Channel channel = connection.createChannel();
+        String pongQueue = channel.queueDeclare().getQueue();
+        channel.basicConsume(pongQueue, true,
+                (consumerTag, pong) -> onPong(pong.getProperties(), System.currentTimeMillis()), consumerTag -> { });
+        timer = Executors.newSingleThreadScheduledExecutor();
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                ping(channel, pongQueue);
+            } catch (IOException e) {
+                System.out.println(" [!] Could not send clock ping: " + e);
+            }
+        }, 0, PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(() -> System.out.print(report()),
+                REPORT_INTERVAL_MS, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void ping(Channel channel, String pongQueue) throws IOException {
+        String id = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+        Map<String, Object> headers = new HashMap<>();
+        headers.put("ping_ts", now);
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .replyTo(pongQueue)
+                .correlationId(id)
+                .expiration(PING_EXPIRATION_MS)
+                .headers(headers)
+                .build();
+        synchronized (this) {
+            pingsInFlight.put(id, now);
+//forget pings that were never answered
+            pingsInFlight.values().removeIf(sent -> now - sent > 10 * PING_INTERVAL_MS);
+        }
+        channel.basicPublish(EXCHANGE_NAME, PING_ROUTING_KEY, properties, new byte[0]);
+    }
+
+//t1 ping sent and t4 pong received in this clock, t2 ping received and t3 pong sent in the phone's
+    synchronized void onPong(AMQP.BasicProperties properties, long t4) {
+        Map<String, Object> headers = properties.getHeaders();
+        if (headers == null || pingsInFlight.remove(properties.getCorrelationId()) == null) {
+            return;
+        }
+        Long t1 = number(headers.get("ping_ts"));
+        Long t2 = number(headers.get("received_ts"));
+        Long t3 = number(headers.get("sent_ts"));
+        if (t1 == null || t2 == null || t3 == null) {
+            return;
+        }
+        addPong(t1, t2, t3, t4);
+    }
+
+    synchronized void addPong(long t1, long t2, long t3, long t4) {
+        long roundTrip = (t4 - t1) - (t3 - t2);
+        long offset = ((t2 - t1) + (t3 - t4)) / 2;
+        pongs.addLast(new long[]{roundTrip, offset});
+        if (pongs.size() > PING_WINDOW) {
+            pongs.removeFirst();
+        }
+//the shortest round trip was queued least, so its offset is the least skewed by asymmetric delays
+        long[] best = null;
+        for (long[] pong : pongs) {
+            if (best == null || pong[0] < best[0]) {
+                best = pong;
+            }
+        }
+        roundTripMillis = best[0];
+        offsetMillis = best[1];
+        haveOffset = true;
+    }
+
+    synchronized long offsetMillis() {
+        return offsetMillis;
+    }
+
+    synchronized StreamStats stream(String routingKey) {
+        return streams.get(routingKey);
+    }
+
+//record one delivery, received is this machine's clock when it arrived
+    public synchronized void onDelivery(String routingKey, Map<String, Object> headers, long received) {
+        if (headers == null) {
+            return;
+        }
+        Long capture = number(headers.get("capture_ts"));
+        if (capture == null) {
+            return;
+        }
+        StreamStats stream = streams.computeIfAbsent(routingKey, key -> new StreamStats());
+//replayed batches are late on purpose, count them but leave them out of the latency and ordering
+        if (Boolean.TRUE.equals(headers.get("backfill"))) {
+            stream.backfill++;
+            return;
+        }
+        Object session = headers.get("session_id");
+        String sessionId = session == null ? null : session.toString();
+        if (sessionId != null && !sessionId.equals(stream.sessionId)) {
+            stream.sessionId = sessionId;
+            stream.lastSeq = 0;
+        }
+        stream.messages++;
+        Long seq = number(headers.get("seq"));
+        if (seq != null) {
+            if (stream.lastSeq == 0 || seq == stream.lastSeq + 1) {
+                stream.lastSeq = seq;
+            } else if (seq > stream.lastSeq) {
+                stream.missing += seq - stream.lastSeq - 1;
+                stream.lastSeq = seq;
+            } else if (seq == stream.lastSeq) {
+                stream.duplicates++;
+            } else {
+//an earlier one arriving late, it was counted as missing when the gap opened
+                stream.outOfOrder++;
+                if (stream.missing > 0) {
+                    stream.missing--;
+                }
+            }
+        }
+//no latency until the first pong gives the clock offset
+        if (!haveOffset) {
+            return;
+        }
+//phone clock to this clock
+        long total = received - (capture - offsetMillis);
+        stream.total.record(total);
+        Long published = number(headers.get("publish_ts"));
+        if (published != null) {
+            stream.phone.record(published - capture);
+            stream.transport.record(received - (published - offsetMillis));
+        }
+//RFC 3550 interarrival jitter, smoothed over 16 messages
+        if (stream.haveTransit) {
+            long d = Math.abs(total - stream.lastTransit);
+            stream.jitter += (d - stream.jitter) / 16.0;
+        }
+        stream.lastTransit = total;
+        stream.haveTransit = true;
+    }
+
+//one report for every stream, then the rolling histograms move on one interval
+    public synchronized String report() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, " [latency] clock offset %s, round trip %dms%n",
+                haveOffset ? offsetMillis + "ms" : "unknown", roundTripMillis));
+        for (Map.Entry<String, StreamStats> entry : streams.entrySet()) {
+            StreamStats stream = entry.getValue();
+            text.append(String.format(Locale.ROOT,
+                    " [latency] %-12s msgs=%d total %s | phone %s | transport %s | jitter=%.1fms"
+                            + " out_of_order=%d missing=%d duplicates=%d backfill=%d%n",
+                    entry.getKey(), stream.messages,
+                    stream.total.summary(), stream.phone.summary(), stream.transport.summary(),
+                    stream.jitter, stream.outOfOrder, stream.missing, stream.duplicates, stream.backfill));
+            stream.total.rotate();
+            stream.phone.rotate();
+            stream.transport.rotate();
+        }
+        return text.toString();
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    private static Long number(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return null;
+    }
+
+//per routing key counters
+    static class StreamStats {
+        final RollingHistogram total = new RollingHistogram();
+        final RollingHistogram phone = new RollingHistogram();
+        final RollingHistogram transport = new RollingHistogram();
+        String sessionId;
+        long messages;
+        long lastSeq;
+        long outOfOrder;
+        long missing;
+        long duplicates;
+        long backfill;
+        double jitter;
+        long lastTransit;
+        boolean haveTransit;
+    }
+
+//log bucketed latency counts for the last ROLLING_SLOTS intervals, percentiles over all of them
+    static class RollingHistogram {
+        private final long[][] slots = new long[ROLLING_SLOTS][BUCKETS];
+        private final long[] max = new long[ROLLING_SLOTS];
+        private final long[] count = new long[ROLLING_SLOTS];
+        private int current;
+//clock offset errors can make a latency come out below zero, those count as 0
+        long negative;
+
+        void record(long millis) {
+            if (millis < 0) {
+                negative++;
+                millis = 0;
+            }
+            slots[current][bucket(millis)]++;
+            count[current]++;
+            max[current] = Math.max(max[current], millis);
+        }
+
+        long count() {
+            long total = 0;
+            for (long c : count) {
+                total += c;
+            }
+            return total;
+        }
+
+        long max() {
+            long result = 0;
+            for (long m : max) {
+                result = Math.max(result, m);
+            }
+            return result;
+        }
+
+//upper edge of the bucket holding the given fraction of the window's values
+        long percentile(double fraction) {
+            long total = count();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                for (int s = 0; s < ROLLING_SLOTS; s++) {
+                    seen += slots[s][b];
+                }
+                if (seen >= rank) {
+                    return Math.min(highestValue(b), max());
+                }
+            }
+            return max();
+        }
+
+        String summary() {
+            return String.format(Locale.ROOT, "p50=%d p90=%d p99=%d max=%dms",
+                    percentile(0.5), percentile(0.9), percentile(0.99), max());
+        }
+
+//start a new interval, dropping the oldest
+        void rotate() {
+            current = (current + 1) % ROLLING_SLOTS;
+            Arrays.fill(slots[current], 0);
+            count[current] = 0;
+            max[current] = 0;
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int bucket = ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        static long highestValue(int bucket) {
+            if (bucket + 1 < SUB_BUCKETS) {
+                return bucket;
+            }
+            int next = bucket + 1;
+            int shift = (next >>> SUB_BUCKET_BITS) - 1;
+            return ((long) (SUB_BUCKETS + (next & (SUB_BUCKETS - 1))) << shift) - 1;
+        }
+    }
+}
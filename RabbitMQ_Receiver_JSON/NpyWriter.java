@@ -0,0 +1,69 @@
+//We need to import some classes
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+//Writes arrays in the NumPy .npy format version 1.0, which numpy.load reads straight into an array: the magic
+//"\x93NUMPY", the version, a little endian u16 header length, then a Python dict literal with the dtype, order
+//and shape, padded with spaces and a newline so the data starts on a 64 byte boundary, then the C order data.
+//An .npz is a zip of .npy files, so these go into a ZipOutputStream entry the same way.
+public class NpyWriter
+{
+    public static void writeFloats(OutputStream out, float[] data, int length, int... shape) throws IOException {
+        out.write(header("<f4", shape));
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < length; i++) {
+            if (!buffer.hasRemaining()) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putFloat(data[i]);
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    public static void writeInts(OutputStream out, int[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < length; i++) {
+            buffer.putInt(data[i]);
+        }
+        out.write(header("<i4", length));
+        out.write(buffer.array());
+    }
+
+    public static void writeLongs(OutputStream out, long[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < length; i++) {
+            buffer.putLong(data[i]);
+        }
+        out.write(header("<i8", length));
+        out.write(buffer.array());
+    }
+
+    static byte[] header(String dtype, int... shape) {
+        StringBuilder dict = new StringBuilder("{'descr': '").append(dtype)
+                .append("', 'fortran_order': False, 'shape': (");
+        for (int dimension : shape) {
+            dict.append(dimension).append(", ");
+        }
+        if (shape.length > 1) {
+            dict.setLength(dict.length() - 2);
+        } else {
+            dict.setLength(dict.length() - 1);
+        }
+        dict.append("), }");
+//magic, version and length are 10 bytes, the dict ends with a newline
+        int total = (10 + dict.length() + 1 + 63) / 64 * 64;
+        while (10 + dict.length() + 1 < total) {
+            dict.append(' ');
+        }
+        dict.append('\n');
+        byte[] text = dict.toString().getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer header = ByteBuffer.allocate(10 + text.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII)).put((byte) 1).put((byte) 0);
+        header.putShort((short) text.length).put(text);
+        return header.array();
+    }
+}
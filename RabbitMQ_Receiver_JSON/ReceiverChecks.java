@@ -0,0 +1,487 @@
+//We need to import some classes
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.rabbitmq.client.Channel;
+
+//ReceiverChecks runs the receiver classes through their behaviour without a broker: the latency monitor,
+//the ack window, the reorder buffer, the decoders, the activity join, the session store, and the BDF+/EDF+
+//and NumPy writers.
+//It prints every failed check and exits with 1 if there were any, so it can be run after each build:
+//  java -cp ".;amqp-client-5.8.0.jar;json-simple-1.1.1.jar" ReceiverChecks
+public class ReceiverChecks
+{
+    private static int checks;
+    private static int failed;
+    private static String section;
+
+    public static void main(String[] argv) throws Exception {
+        File directory = Files.createTempDirectory("receiver-checks").toFile();
+        try {
+            latencyMonitor();
+            ackTracker();
+            reorderBuffer();
+            decoders();
+            activityJoin();
+            sessionSegment(new File(directory, "segment.col"));
+            sessionStore(new File(directory, "store"));
+            edfWriter(new File(directory, "session.edf"));
+            npyWriter();
+        } finally {
+            delete(directory);
+        }
+        System.out.println(" [*] " + (checks - failed) + " of " + checks + " checks passed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        checks++;
+        if (!ok) {
+            failed++;
+            System.out.println(" [!] " + section + ": " + what);
+        }
+    }
+
+    private static void equal(Object expected, Object actual, String what) {
+        boolean ok = expected == null ? actual == null : expected.equals(actual);
+        check(ok, what + ", expected " + expected + " but was " + actual);
+    }
+
+    private static void latencyMonitor() {
+        section = "LatencyMonitor";
+        LatencyMonitor monitor = new LatencyMonitor();
+//t1 and t4 in this clock, t2 and t3 in the phone's: 210ms round trip, phone 495ms ahead
+        monitor.addPong(1000, 1600, 1610, 1220);
+        equal(495L, monitor.offsetMillis(), "offset of a single pong");
+//a shorter round trip wins, a longer one later does not replace it
+        monitor.addPong(2000, 2550, 2555, 2100);
+        equal(502L, monitor.offsetMillis(), "offset of the shortest round trip");
+        monitor.addPong(3000, 3800, 3805, 3400);
+        equal(502L, monitor.offsetMillis(), "longer round trip ignored");
+//until it drops out of the window of the last 16 pongs
+        for (int i = 0; i < 16; i++) {
+            long t1 = 10_000 + 1000 * i;
+            monitor.addPong(t1, t1 + 600, t1 + 600, t1 + 300);
+        }
+        equal(450L, monitor.offsetMillis(), "shortest round trip left the window");
+
+//phone 100ms ahead with no round trip
+        monitor = new LatencyMonitor();
+        monitor.addPong(0, 100, 100, 0);
+        deliveries(monitor, "eeg", new long[]{1, 2, 4, 4, 3, 7}, "a");
+        LatencyMonitor.StreamStats stream = monitor.stream("eeg");
+        equal(6L, stream.messages, "messages");
+        equal(1L, stream.duplicates, "duplicates");
+        equal(1L, stream.outOfOrder, "late message counted out of order");
+        equal(2L, stream.missing, "late message no longer missing, 5 and 6 are");
+//transit 10ms then 26ms, then 26ms from then on
+        equal(Math.pow(15 / 16.0, 4), stream.jitter, "interarrival jitter");
+        equal(26L, stream.total.max(), "total latency");
+        equal(5L, stream.phone.max(), "capture to publish");
+
+//a new session starts counting from its own first message
+        deliveries(monitor, "eeg", new long[]{1, 2}, "b");
+        equal(2L, stream.missing, "no gap across sessions");
+        equal(8L, stream.messages, "messages of both sessions");
+        Map<String, Object> backfill = new HashMap<>();
+        backfill.put("capture_ts", 1L);
+        backfill.put("seq", 90L);
+        backfill.put("backfill", true);
+        monitor.onDelivery("eeg", backfill, 100_000);
+        equal(1L, stream.backfill, "backfill counted");
+        equal(8L, stream.messages, "backfill left out of the stream");
+        equal(2L, stream.missing, "backfill left out of the ordering");
+        monitor.onDelivery("eeg", new HashMap<>(), 100_000);
+        equal(8L, stream.messages, "message without capture_ts ignored");
+    }
+
+//deliver messages with these seq headers, 10ms after capture for the first and 26ms for the others
+    private static void deliveries(LatencyMonitor monitor, String routingKey, long[] seqs, String session) {
+        for (int i = 0; i < seqs.length; i++) {
+            long received = 50_000 + 1000 * i;
+            long capture = received + 100 - (i == 0 ? 10 : 26);
+            Map<String, Object> headers = new HashMap<>();
+            headers.put("seq", seqs[i]);
+            headers.put("capture_ts", capture);
+            headers.put("publish_ts", capture + 5);
+            headers.put("session_id", session);
+            monitor.onDelivery(routingKey, headers, received);
+        }
+    }
+
+//a Channel that only records the acks and nacks it is asked for
+    private static Channel recordingChannel(List<String> calls) {
+        return (Channel) Proxy.newProxyInstance(ReceiverChecks.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("basicAck") || method.getName().equals("basicNack")) {
+                        calls.add(method.getName() + " " + Arrays.toString(args));
+                    }
+                    return null;
+                });
+    }
+
+    private static void ackTracker() throws IOException {
+        section = "AckTracker";
+        List<String> calls = new ArrayList<>();
+        AckTracker acks = new AckTracker(recordingChannel(calls), 4, 2);
+//out of order, nothing is acked past a delivery that is not done
+        acks.done(2);
+        equal(0L, acks.contiguous(), "contiguous with delivery 1 outstanding");
+        acks.done(1);
+        equal(Arrays.asList("basicAck [2, true]"), calls, "ack once a batch is contiguous");
+//tags 5 to 9 use the same slots of the ring as 1 to 4
+        acks.done(4);
+        acks.done(5);
+        acks.done(3);
+        acks.done(7);
+        acks.done(8);
+        acks.done(6);
+        acks.done(9);
+        equal(9L, acks.contiguous(), "contiguous after the ring wraps around");
+        equal(Arrays.asList("basicAck [2, true]", "basicAck [5, true]", "basicAck [8, true]"), calls,
+                "batched acks across the wrap");
+        acks.flush();
+        equal(9L, acks.acked(), "flush acks the rest");
+
+//with the acks held back for a store commit, flush(upTo) acks no further than the tag taken before it
+        calls.clear();
+        acks = new AckTracker(recordingChannel(calls), 8, Integer.MAX_VALUE);
+        acks.done(1);
+        acks.done(2);
+        long stored = acks.contiguous();
+        acks.done(3);
+        equal(0, calls.size(), "nothing acked before the commit");
+        acks.flush(stored);
+        equal(Arrays.asList("basicAck [2, true]"), calls, "ack up to what was committed");
+
+//a failed delivery is nacked on its own and never named by a multiple ack
+        calls.clear();
+        acks.failed(4, true);
+        acks.flush();
+        equal(Arrays.asList("basicNack [4, false, true]", "basicAck [3, true]"), calls, "nack then ack around it");
+        acks.done(5);
+        acks.flush();
+        equal("basicAck [5, true]", calls.get(calls.size() - 1), "ack past the nacked delivery");
+    }
+
+    private static void reorderBuffer() {
+        section = "ReorderBuffer";
+        ReorderBuffer<Long> buffer = new ReorderBuffer<>(2, 500);
+        List<Long> out = new ArrayList<>();
+        buffer.offer(1, 1L, 0, out);
+        buffer.offer(3, 3L, 0, out);
+        equal(Arrays.asList(1L), out, "3 waits for 2");
+        equal(1, buffer.held(), "held");
+        buffer.offer(2, 2L, 10, out);
+        equal(Arrays.asList(1L, 2L, 3L), out, "gap filled");
+
+//a gap nothing fills is given up after maxWaitMs
+        out.clear();
+        buffer.offer(5, 5L, 100, out);
+        buffer.expire(599, out);
+        equal(0, out.size(), "not given up before maxWaitMs");
+        buffer.expire(600, out);
+        equal(Arrays.asList(5L), out, "given up after maxWaitMs");
+        equal(1L, buffer.gaps, "gaps");
+        equal(1L, buffer.missing, "missing");
+
+//the missing message turning up later is passed through, not dropped
+        out.clear();
+        buffer.offer(4, 4L, 700, out);
+        equal(Arrays.asList(4L), out, "late message passed through");
+        equal(1L, buffer.late, "late");
+
+//or when more than maxHeld are held
+        out.clear();
+        buffer.offer(8, 8L, 700, out);
+        buffer.offer(9, 9L, 700, out);
+        equal(0, out.size(), "two held");
+        buffer.offer(10, 10L, 700, out);
+        equal(Arrays.asList(8L, 9L, 10L), out, "given up at maxHeld");
+        equal(3L, buffer.missing, "missing 6 and 7 as well");
+
+        out.clear();
+        buffer.offer(12, 12L, 800, out);
+        buffer.offer(12, 12L, 800, out);
+        equal(Arrays.asList(12L), out, "duplicate of a held message passed through");
+        equal(1L, buffer.duplicates, "duplicates");
+    }
+
+    private static void decoders() {
+        section = "Decoders";
+        ByteBuffer binary = ByteBuffer.allocate(8 + 2 * (1 + 8 + 4 * 8));
+        binary.put((byte) 'E').put((byte) 'G').put((byte) 1).put((byte) 1).put((byte) 8).put((byte) 0)
+                .putShort((short) 2);
+        for (int i = 0; i < 2; i++) {
+            binary.put((byte) (200 + i)).putLong(1_600_000_000_000L + 4 * i);
+            for (int ch = 0; ch < 8; ch++) {
+                binary.putFloat(i * 10 + ch);
+            }
+        }
+        SampleBatch samples = new SampleBatch(1);
+        samples.add(0, 0);
+        new BinarySampleDecoder().decode(binary.array(), samples);
+        equal(3, samples.size(), "binary samples appended");
+        equal(201, samples.sampleNumbers[2], "sample number");
+        equal(1_600_000_000_004L, samples.timestamps[2], "timestamp");
+        equal(17f, samples.microVolts[2 * SampleBatch.CHANNELS + 7], "micro volts");
+
+//one channel, predictor 0: counts 100, zig-zag 200 as a two byte varint, then +5 4ms later
+        ByteBuffer delta = ByteBuffer.allocate(64);
+        delta.put((byte) 'E').put((byte) 'D').put((byte) 1).put((byte) 0).put((byte) 1).put((byte) 0)
+                .putShort((short) 2);
+        delta.put((byte) 7).putLong(1_600_000_000_000L).put((byte) 0xC8).put((byte) 0x01);
+        delta.put((byte) 8).put((byte) 8).put((byte) 10);
+        samples.clear();
+        new DeltaSampleDecoder().decode(Arrays.copyOf(delta.array(), delta.position()), samples);
+        equal(2, samples.size(), "delta samples");
+        equal(1_600_000_000_004L, samples.timestamps[1], "delta timestamp");
+        float scale = 4.5f / ((float) (Math.pow(2, 23) - 1)) / 24 * 1000000.f;
+        equal(scale * 105, samples.microVolts[SampleBatch.CHANNELS], "delta counts");
+        check(Float.isNaN(samples.microVolts[SampleBatch.CHANNELS + 1]), "channel the message does not carry is NaN");
+    }
+
+    private static void activityJoin() {
+        section = "ActivityJoin";
+        List<String> joined = new ArrayList<>();
+        ActivityJoin join = new ActivityJoin((session, samples, i, segment) ->
+                joined.add(session + " " + samples.timestamps[i]
+                        + " " + (segment == null ? ActivityJoin.UNLABELLED : segment.label)
+                        + " " + samples.microVolts[i * SampleBatch.CHANNELS]),
+                30_000, 100, 1000, 600_000, 4);
+        SampleBatch samples = new SampleBatch(2);
+        for (int i = 0; i < 3; i++) {
+            int offset = samples.add(i, 10_000 + 4 * i);
+            samples.microVolts[offset] = i;
+        }
+//nothing is known about their activity yet, they wait
+        join.addSamples("a", samples, 0);
+        equal(3, join.pending(), "samples wait for a label");
+        join.addActivity(10_000, "Still", 80, 1);
+        equal(3, join.pending(), "label watermark not past the samples yet");
+//the next update moves the watermark past them, they go out labelled with the update before them
+        join.addActivity(10_200, "Walking", 60, 2);
+        equal(Arrays.asList("a 10000 Still 0.0", "a 10004 Still 1.0", "a 10008 Still 2.0"), joined,
+                "joined at the watermark");
+        equal(0, join.pending(), "none waiting");
+
+//an update from before samples that went out already is late, but kept for backfill
+        join.addActivity(9_000, "Running", 90, 3);
+        equal(1L, join.lateLabels, "late label counted");
+        equal("Running", join.lookup(9_500).label, "late label indexed");
+
+//samples after the watermark wait maxWaitMs, then go out with the best label known
+        joined.clear();
+        samples.clear();
+        samples.add(0, 10_500);
+        join.addSamples("a", samples, 100);
+        join.drain(1099);
+        equal(0, joined.size(), "waiting for a label");
+        join.drain(1100);
+        equal(Arrays.asList("a 10500 Walking NaN"), joined, "waited out");
+        equal(1L, join.waitedOut, "waited out counted");
+
+//an update labels at most maxSegmentMs, and no more than maxPending samples wait
+        joined.clear();
+        samples.clear();
+        for (int i = 0; i < 6; i++) {
+            samples.add(i, 50_000 + i);
+        }
+        join.addSamples("b", samples, 2000);
+        equal(4, join.pending(), "maxPending");
+        equal(Arrays.asList("b 50000 unlabelled NaN", "b 50001 unlabelled NaN"), joined,
+                "oldest pushed out unlabelled");
+        equal(Long.valueOf(2), join.labelCounts().get(ActivityJoin.UNLABELLED), "label counts");
+    }
+
+    private static void sessionSegment(File file) throws IOException {
+        section = "SessionSegment";
+        SessionSegment segment = SessionSegment.create(file, 2, 512, 0);
+        float[] microVolts = new float[2];
+        for (int i = 0; i < 300; i++) {
+            microVolts[0] = i;
+            microVolts[1] = -i;
+            segment.append(1000 + 4 * i, microVolts, 0);
+        }
+        equal(0, SessionSegment.open(file, false).committed(), "nothing counts before the commit");
+        segment.commit(false);
+        for (int i = 300; i < 310; i++) {
+            segment.append(1000 + 4 * i, microVolts, 0);
+        }
+        check(segment.contains(1000 + 4 * 305), "appended sample found before its commit");
+
+//another reader, or the receiver after a crash, sees the samples of the last commit only
+        SessionSegment reader = SessionSegment.open(file, false);
+        equal(300, reader.committed(), "committed samples");
+        equal(1000L + 4 * 299, reader.lastTimestamp(), "last committed timestamp");
+        check(!reader.contains(1000 + 4 * 305), "uncommitted sample not found after a crash");
+        equal(0, reader.lowerBound(0), "lowerBound before the first sample");
+        equal(1, reader.lowerBound(1001), "lowerBound between samples");
+        equal(256, reader.lowerBound(1000 + 4 * 256), "lowerBound on an index stride");
+        equal(257, reader.lowerBound(1000 + 4 * 256 + 1), "lowerBound just after an index stride");
+        equal(300, reader.lowerBound(1_000_000), "lowerBound after the last sample");
+        equal(1000L + 4 * 42, reader.timestamps(42, 43).get(0), "timestamp column");
+        equal(-42f, reader.channel(2, 42, 43).get(0), "channel column");
+
+        SessionSegment reopened = SessionSegment.open(file, true);
+        check(reopened.accepts(1000 + 4 * 300), "carries on after the last commit");
+        check(!reopened.accepts(999), "no timestamps going backwards");
+    }
+
+    private static void sessionStore(File root) throws IOException {
+        section = "SessionStore";
+        SessionStore store = new SessionStore(root, 256, false);
+        SampleBatch samples = new SampleBatch(600);
+        for (int i = 0; i < 600; i++) {
+            int offset = samples.add(i & 0xFF, 100_000 + 4 * i);
+            samples.microVolts[offset] = i;
+        }
+        store.append("s", samples);
+        equal(600, samples.size(), "all new");
+        int count = 0;
+        for (SessionStore.Slice slice : store.query("s", 0, Long.MAX_VALUE, 1)) {
+            count += slice.timestamps.remaining();
+        }
+        equal(512, count, "only the segments filled before the commit count");
+        store.commit();
+        count = 0;
+        for (SessionStore.Slice slice : store.query("s", 100_000 + 4 * 100, 100_000 + 4 * 500, 1)) {
+            count += slice.timestamps.remaining();
+        }
+        equal(400, count, "samples in a time range across segments");
+        SessionStore.Slice first = store.querySamples("s", 300, 301, 1).get(0);
+        equal(300L, first.firstSampleIndex, "sample index");
+        equal(300f, first.channels[0].get(0), "sample by index");
+
+//a redelivered batch, and one straddling the end of the last one, only add what is new
+        SampleBatch again = new SampleBatch(4);
+        again.add(0, 100_000 + 4 * 599);
+        again.add(0, 100_000 + 4 * 600);
+        store.append("s", again);
+        equal(1, again.size(), "stored sample taken out of the batch");
+        equal(100_000L + 4 * 600, again.timestamps[0], "new sample kept");
+        store.commit();
+
+//the same after a restart, and backfill from before the last sample goes into a segment of its own
+        store = new SessionStore(root, 256, false);
+        again.clear();
+        again.add(0, 100_000 + 4 * 10);
+        again.add(0, 90_000);
+        store.append("s", again);
+        equal(1, again.size(), "stored sample skipped after a restart");
+        store.commit();
+        long[] range = store.timeRange("s");
+        equal(90_000L, range[0], "backfill extends the time range");
+        equal(100_000L + 4 * 600, range[1], "time range end");
+    }
+
+    private static void edfWriter(File file) throws IOException {
+        section = "EdfWriter";
+//2 channels at 4Hz, 250ms a sample, so one second records of 4 samples
+        EdfWriter writer = new EdfWriter(file, false, 2, 4, "session", 3276.7);
+        writer.write(10_000, new float[]{1, -1});
+        writer.write(10_250, new float[]{2, -2});
+//10_500 is missing
+        writer.write(10_750, new float[]{4, -4});
+        writer.annotate(11_000, "Still 80%");
+        for (int i = 0; i < 4; i++) {
+            writer.write(11_000 + 250 * i, new float[]{5, -5});
+        }
+        writer.write(11_500, new float[]{9, 9});
+//two seconds missing, the next record starts with the samples again
+        writer.write(14_000, new float[]{6, -6});
+        writer.close();
+        equal(3L, writer.records(), "records");
+        equal(1L, writer.dropped, "sample from the past dropped");
+        equal(9L, writer.missing, "missing samples");
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        String header = new String(bytes, 0, 256, StandardCharsets.US_ASCII);
+        equal("EDF+D", header.substring(192, 197), "reserved field");
+        equal("3", header.substring(236, 244).trim(), "record count in the header");
+        int headerSize = Integer.parseInt(header.substring(184, 192).trim());
+        equal(256 * 4, headerSize, "header size");
+        int recordSize = 2 * 4 * 2 + 120;
+        equal(headerSize + 3 * recordSize, bytes.length, "file size");
+
+        equal(10, value(bytes, headerSize, 0, 0), "first sample, 1uV in 0.1uV steps");
+        equal(-20, value(bytes, headerSize, 1, 1), "second channel");
+        equal(0, value(bytes, headerSize, 0, 2), "missing sample zero filled");
+        equal(40, value(bytes, headerSize, 0, 3), "sample after the gap");
+        equal("+0\u0014\u0014\u0000+0.5\u00150.25\u0014Data missing\u0014\u0000", tal(bytes, headerSize),
+                "first record TAL");
+        equal("+1\u0014\u0014\u0000+1\u0014Still 80%\u0014\u0000", tal(bytes, headerSize + recordSize),
+                "second record TAL");
+        equal("+4\u0014\u0014\u0000+2\u00152\u0014Data missing\u0014\u0000", tal(bytes, headerSize + 2 * recordSize),
+                "record after a long gap");
+        equal(60, value(bytes, headerSize + 2 * recordSize, 0, 0), "record after a long gap starts with the sample");
+        equal(0, value(bytes, headerSize + 2 * recordSize, 0, 1), "last record zero filled");
+    }
+
+//16-bit little endian value of a channel's sample in a record
+    private static int value(byte[] bytes, int record, int channel, int sample) {
+        int offset = record + (channel * 4 + sample) * 2;
+        return (short) ((bytes[offset] & 0xFF) | (bytes[offset + 1] << 8));
+    }
+
+//the annotations of a record up to the zero padding
+    private static String tal(byte[] bytes, int record) {
+        int start = record + 2 * 4 * 2;
+        int end = start + 120;
+        while (end > start && bytes[end - 1] == 0) {
+            end--;
+        }
+        return new String(bytes, start, end - start + 1, StandardCharsets.US_ASCII);
+    }
+
+    private static void npyWriter() throws IOException {
+        section = "NpyWriter";
+        for (int[] shape : new int[][]{{3}, {2, 5}, {1000, 8, 500}}) {
+            byte[] header = NpyWriter.header("<f4", shape);
+            equal(0, header.length % 64, "data aligned to 64 bytes for " + Arrays.toString(shape));
+            String magic = new String(header, 1, 5, StandardCharsets.US_ASCII);
+            check(header[0] == (byte) 0x93 && magic.equals("NUMPY"), "magic");
+            check(header[6] == 1 && header[7] == 0, "version 1.0");
+            int headerLength = ByteBuffer.wrap(header, 8, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
+            equal(header.length - 10, headerLength, "header length");
+            equal((byte) '\n', header[header.length - 1], "header ends with a newline");
+            String dict = new String(header, 10, header.length - 10, StandardCharsets.US_ASCII);
+            String expected = shape.length == 1
+                    ? "(" + shape[0] + ",)"
+                    : Arrays.toString(shape).replace('[', '(').replace(']', ')');
+            check(dict.startsWith("{'descr': '<f4', 'fortran_order': False, 'shape': " + expected + ", }"),
+                    "dict " + dict.trim());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NpyWriter.writeFloats(out, new float[]{1.5f, -2f, 99f}, 2, 2);
+        byte[] npy = out.toByteArray();
+        equal(NpyWriter.header("<f4", 2).length + 8, npy.length, "only length values written");
+        float last = ByteBuffer.wrap(npy, npy.length - 4, 4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+        equal(-2f, last, "little endian data");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
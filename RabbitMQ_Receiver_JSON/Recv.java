@@ -1,37 +1,529 @@
-//We need to import some classes
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.DeliverCallback;
-
-//Set up the class and name the queue
-public class Recv 
-{
-    private final static String QUEUE_NAME = "json-example";
-
-//then we can create a connection to the server
-    public static void main(String[] argv) throws Exception {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost("YOUR AWS EC2 IP ADDRESS"); 
-        factory.setUsername("YOUR AWS EC2 RABBITMQ USERNAME");
-        factory.setPassword("YOUR AWS EC2 RABBITMQ PASSWORD");
-        factory.setVirtualHost("/");
-        factory.setPort(5672);
-        Connection connection = factory.newConnection();
-
-//we open a channel, and declare the queue from which we're going to consume        
-	Channel channel = connection.createChannel();
-        channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-        System.out.println(" [*] Waiting for messages. To exit press CTRL+C");
-
-//tell server to deliver messages from queue async and provide callback to buffer messages 
-        DeliverCallback deliverCallback = (consumerTag, delivery) -> {
-            String message = new String(delivery.getBody(), "UTF-8");
-            System.out.println(" [x] Received '" + message + "'");
-        };
-        channel.basicConsume(QUEUE_NAME, true, deliverCallback, consumerTag -> { });
-    }
-}
\ No newline at end of file
+//We need to import some classes
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+
+//Recv consumes the EEG queue fast enough for several phones at once. The AMQP connection thread only
+//stamps each delivery and hands it to a worker; the workers decode the samples into a SampleBatch of primitive
+//columns, no JSONObject per sample unless they are printed or written out as JSON, process them, and ack them
+//in batches with multiple=true once everything before them is done. A message that fails to store is nacked
+//and requeued, one that fails to decode too, but only once, so a malformed message is not redelivered forever.
+//The prefetch caps how many unacked messages the broker sends ahead. All the messages of one session go to the
+//same worker, which puts each stream back in seq order with a ReorderBuffer, so a session is always processed in
+//order. Every 10 seconds it prints the messages/s and samples/s it sustained, and the LatencyMonitor prints the
+//delivery latency.
+//The activity updates are consumed too, on a queue of their own bound to "white", and ActivityJoin labels every
+//EEG sample with the activity at the time, optionally writing the labelled samples out as JSON lines.
+//With store=<dir> every session is also kept in a SessionStore, committed before the messages are acked.
+//With bdf=<dir> or edf=<dir> every session is streamed to a BDF+ or EDF+ file, with the activity changes as
+//annotations when the samples are labelled.
+//
+//Options, all optional, as name=value arguments:
+//  queue=bci_data   queue to consume
+//  prefetch=1000    unacked messages the broker may send ahead
+//  workers=<cores>  decoding and processing threads
+//  ack=100          ack once this many more messages are done (and at least every 100ms)
+//  reorderMs=500    longest a message waits for an earlier missing one
+//  print=false      print every sample, as the old single-threaded receiver did
+//  join=true        label the samples with the activity updates
+//  labelled=<file>  append the labelled samples to this file, one JSON object a line
+//  labelWaitMs=20000      longest a sample waits for the activity update after it
+//  labelLatenessMs=2000   how late an activity update may be and still label samples
+//  maxSegmentMs=30000     longest an activity update labels samples if no other follows
+//  store=<dir>      keep the samples of every session in columnar segment files under this directory
+//  storeSync=false  force every store commit to disk, so it survives the machine crashing too
+//  bdf=<dir>        write every session to <dir>/<session>.bdf, 24-bit BDF+
+//  edf=<dir>        or to <dir>/<session>.edf, 16-bit EDF+ over +/- edfRangeUv
+//  edfRangeUv=3276.7
+//  rate=250         sample rate of the board, for BDF+/EDF+
+public class Recv
+{
+    private final static long REPORT_INTERVAL_MS = 10_000;
+    private final static long FLUSH_INTERVAL_MS = 100;
+    private final static String EXCHANGE_NAME = "exchange_1";
+    private final static String ACTIVITY_ROUTING_KEY = "white";
+
+    private static Map<String, String> options = new HashMap<>();
+    private static boolean print;
+    private static long reorderMs;
+    private static Worker[] workers;
+    private static AckTracker acks;
+    private static ActivityJoin join;
+    private static BufferedWriter labelled;
+//for the labelled samples, only used under the join's lock
+    private final static SimpleDateFormat labelledFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private static SessionStore store;
+    private static File exportDirectory;
+    private static boolean exportBdf;
+    private static double edfRangeUv;
+    private static int sampleRate;
+    private final static Map<String, EdfWriter> exports = new HashMap<>();
+    private final static Map<String, String> exportActivities = new HashMap<>();
+    private final static LatencyMonitor latency = new LatencyMonitor();
+    private final static AtomicLong messages = new AtomicLong();
+    private final static AtomicLong samples = new AtomicLong();
+    private final static AtomicLong failures = new AtomicLong();
+
+//then we can create a connection to the server
+    public static void main(String[] argv) throws Exception {
+        for (String arg : argv) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                options.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        }
+        String queueName = option("queue", "bci_data");
+        int prefetch = Integer.parseInt(option("prefetch", "1000"));
+        int cores = Runtime.getRuntime().availableProcessors();
+        int workerCount = Integer.parseInt(option("workers", String.valueOf(cores)));
+        int ackBatch = Integer.parseInt(option("ack", "100"));
+        reorderMs = Long.parseLong(option("reorderMs", "500"));
+        print = Boolean.parseBoolean(option("print", "false"));
+        boolean joinActivity = Boolean.parseBoolean(option("join", "true"));
+        if (prefetch < 1 || workerCount < 1 || ackBatch < 1 || ackBatch > prefetch) {
+            throw new IllegalArgumentException("Need prefetch >= ack >= 1 and workers >= 1");
+        }
+
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost("YOUR AWS EC2 IP ADDRESS");
+        factory.setUsername("YOUR AWS EC2 RABBITMQ USERNAME");
+        factory.setPassword("YOUR AWS EC2 RABBITMQ PASSWORD");
+        factory.setVirtualHost("/");
+        factory.setPort(5672);
+        Connection connection = factory.newConnection();
+
+//we open a channel, and declare the queue from which we're going to consume
+        Channel channel = connection.createChannel();
+        channel.queueDeclare(queueName, false, false, false, null);
+//at most prefetch unacked messages on this channel
+        channel.basicQos(prefetch);
+        String storeDirectory = options.get("store");
+        if (storeDirectory != null) {
+            boolean storeSync = Boolean.parseBoolean(option("storeSync", "false"));
+            store = new SessionStore(new File(storeDirectory), 256 * 256, storeSync);
+        }
+        String exportTo = options.containsKey("bdf") ? options.get("bdf") : options.get("edf");
+        if (exportTo != null) {
+            exportDirectory = new File(exportTo);
+            exportBdf = options.containsKey("bdf");
+            edfRangeUv = Double.parseDouble(option("edfRangeUv", "3276.7"));
+            sampleRate = Integer.parseInt(option("rate", "250"));
+            if (!exportDirectory.isDirectory() && !exportDirectory.mkdirs()) {
+                throw new IOException("Could not create " + exportDirectory);
+            }
+        }
+//with a store, nothing is acked before the commit that stores it
+        acks = new AckTracker(channel, prefetch, store == null ? ackBatch : Integer.MAX_VALUE);
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker("worker-" + i);
+        }
+        if (joinActivity) {
+            String labelledFile = options.get("labelled");
+            if (labelledFile != null) {
+                labelled = new BufferedWriter(new FileWriter(labelledFile, true));
+            }
+            join = new ActivityJoin(Recv::joined, Long.parseLong(option("maxSegmentMs", "30000")),
+                    Long.parseLong(option("labelLatenessMs", "2000")), Long.parseLong(option("labelWaitMs", "20000")),
+                    10 * 60 * 1000, 250 * 60);
+        }
+//a queue of our own for the activity updates, so Recv2 still gets all of them from "activity",
+//the store keeps them too so DatasetExport can label the stored sessions
+        if (join != null || store != null) {
+            Channel activityChannel = connection.createChannel();
+            String activityQueue = activityChannel.queueDeclare().getQueue();
+            activityChannel.queueBind(activityQueue, EXCHANGE_NAME, ACTIVITY_ROUTING_KEY);
+            activityChannel.basicConsume(activityQueue, true, (consumerTag, delivery) -> {
+                Map<String, Object> headers = delivery.getProperties().getHeaders();
+                String body = new String(delivery.getBody(), StandardCharsets.UTF_8);
+                try {
+                    if (store != null) {
+                        store.logActivity(headers == null ? null : headers.get("capture_ts"), body);
+                    }
+                    if (join != null) {
+                        join.addActivityMessage(headers, body, System.currentTimeMillis());
+                    }
+                } catch (IOException | ParseException | RuntimeException e) {
+                    System.out.println(" [!] Could not read activity update: " + e);
+                }
+            }, consumerTag -> { });
+        }
+        System.out.println(" [*] Waiting for messages on " + queueName + " with prefetch " + prefetch + ", "
+                + workerCount + " workers, acks every " + ackBatch + ". To exit press CTRL+C");
+//ping the phone for its clock offset and report delivery latency per routing key every 10 seconds
+        latency.start(connection);
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+//ack what a quiet stream has finished, and give up gaps nothing is coming to fill
+        timer.scheduleAtFixedRate(() -> {
+            for (Worker worker : workers) {
+                worker.expire();
+            }
+            if (join != null) {
+                join.drain(System.currentTimeMillis());
+            }
+            try {
+                if (store != null) {
+                    long stored = acks.contiguous();
+                    store.commit();
+                    acks.flush(stored);
+                } else {
+                    acks.flush();
+                }
+            } catch (IOException e) {
+                System.out.println(" [!] Could not ack: " + e);
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        long started = System.currentTimeMillis();
+        long[] last = {started, 0, 0};
+        timer.scheduleAtFixedRate(() -> {
+            long now = System.currentTimeMillis();
+            long messageCount = messages.get();
+            long sampleCount = samples.get();
+            double seconds = (now - last[0]) / 1000.0;
+            double total = (now - started) / 1000.0;
+            long held = 0, gaps = 0, missing = 0, late = 0;
+            for (Worker worker : workers) {
+                held += worker.held;
+                gaps += worker.gaps;
+                missing += worker.missing;
+                late += worker.late;
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    " [rate] %.0f msgs/s %.0f samples/s (since start %.0f msgs/s %.0f samples/s) failed=%d acks=%d"
+                            + " | reorder held=%d gaps=%d missing=%d late=%d",
+                    (messageCount - last[1]) / seconds, (sampleCount - last[2]) / seconds,
+                    messageCount / total, sampleCount / total, failures.get(), acks.ackCalls(),
+                    held, gaps, missing, late));
+            if (join != null) {
+                System.out.println(" [join] labelled " + join.labelCounts() + " waiting=" + join.pending()
+                        + " waited_out=" + join.waitedOut + " late_labels=" + join.lateLabels);
+                flushLabelled();
+            }
+            syncExports(false);
+            last[0] = now;
+            last[1] = messageCount;
+            last[2] = sampleCount;
+        }, REPORT_INTERVAL_MS, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+//CTRL+C, commit the store and finish the BDF+/EDF+ files so their headers have the record count
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (store != null) {
+                store.commit();
+            }
+            if (join != null) {
+                flushLabelled();
+            }
+            syncExports(true);
+        }));
+
+//the connection thread only stamps the delivery and passes it on, the session picks the worker
+        DeliverCallback deliverCallback = (consumerTag, delivery) -> {
+            Message message = new Message(delivery, System.currentTimeMillis());
+            workers[Math.floorMod(message.session.hashCode(), workers.length)].submit(message);
+        };
+        channel.basicConsume(queueName, false, deliverCallback, consumerTag -> { });
+    }
+
+//a labelled sample from the join, called with the join's lock held
+    @SuppressWarnings("unchecked")
+    private static void joined(String session, SampleBatch samples, int i, ActivityJoin.Segment segment) {
+        String activity = segment == null ? ActivityJoin.UNLABELLED : segment.label;
+        if (exportDirectory != null) {
+            export(session, samples, i, activity, segment == null ? null : segment.confidence);
+        }
+        if (!print && labelled == null) {
+            return;
+        }
+        JSONObject record = samples.toJson(i, labelledFormat);
+        record.put("session_id", session);
+        record.put("timestamp_ms", samples.timestamps[i]);
+        record.put("activity", activity);
+        if (segment != null) {
+            record.put("confidence", segment.confidence);
+            record.put("activity_ts", segment.start);
+            record.put("confidences", new JSONObject(segment.confidences));
+        }
+        if (print) {
+            System.out.println(" [x] Labelled '" + record.toJSONString() + "'");
+        }
+        if (labelled != null) {
+            try {
+                labelled.write(record.toJSONString());
+                labelled.newLine();
+            } catch (IOException e) {
+                System.out.println(" [!] Could not write labelled sample: " + e);
+            }
+        }
+    }
+
+//stream sample i of samples to its session's BDF+/EDF+ file, annotating each change of activity
+    private static void export(String session, SampleBatch samples, int i, String activity, Object confidence) {
+        synchronized (exports) {
+            try {
+                EdfWriter writer = exports.get(session);
+                if (writer == null) {
+                    String name = session.isEmpty() ? "unknown" : session.replaceAll("[^A-Za-z0-9._-]", "_");
+                    String extension = exportBdf ? ".bdf" : ".edf";
+                    File file = new File(exportDirectory, name + extension);
+//a receiver restarted mid-session starts a second file rather than overwriting the first
+                    for (int n = 1; file.exists(); n++) {
+                        file = new File(exportDirectory, name + "-" + n + extension);
+                    }
+                    writer = new EdfWriter(file, exportBdf, SampleBatch.CHANNELS, sampleRate, session, edfRangeUv);
+                    exports.put(session, writer);
+                }
+                long timestamp = samples.timestamps[i];
+                if (activity != null && !activity.equals(exportActivities.put(session, activity))) {
+                    writer.annotate(timestamp, confidence == null ? activity : activity + " " + confidence + "%");
+                }
+                writer.write(timestamp, samples.microVolts, i * SampleBatch.CHANNELS);
+            } catch (IOException e) {
+                System.out.println(" [!] Could not export session " + session + ": " + e);
+            }
+        }
+    }
+
+//write the record counts into the headers, and close the files when the receiver stops
+    private static void syncExports(boolean close) {
+        synchronized (exports) {
+            for (Map.Entry<String, EdfWriter> entry : exports.entrySet()) {
+                try {
+                    if (close) {
+                        entry.getValue().close();
+                    } else {
+                        entry.getValue().sync();
+                    }
+                } catch (IOException e) {
+                    System.out.println(" [!] Could not write the header of session " + entry.getKey() + ": " + e);
+                }
+            }
+        }
+    }
+
+    private static void flushLabelled() {
+        if (labelled != null) {
+            try {
+                synchronized (join) {
+                    labelled.flush();
+                }
+            } catch (IOException e) {
+                System.out.println(" [!] Could not write labelled samples: " + e);
+            }
+        }
+    }
+
+    private static String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+//one delivery and when it arrived
+    static class Message {
+        final Delivery delivery;
+        final long received;
+        final Map<String, Object> headers;
+        final String session;
+        final String stream;
+
+        Message(Delivery delivery, long received) {
+            this.delivery = delivery;
+            this.received = received;
+            Map<String, Object> h = delivery.getProperties().getHeaders();
+            headers = h == null ? Collections.emptyMap() : h;
+            Object sessionId = headers.get("session_id");
+            session = sessionId == null ? "" : sessionId.toString();
+            stream = session + "/" + delivery.getEnvelope().getRoutingKey();
+        }
+
+        Long seq() {
+            Object seq = headers.get("seq");
+            return seq instanceof Number ? ((Number) seq).longValue() : null;
+        }
+    }
+
+//a single thread with its own decoders, SimpleDateFormat is not thread safe, and the reorder buffers of its sessions
+    static class Worker {
+        private final ExecutorService executor;
+        private final BinarySampleDecoder binaryDecoder = new BinarySampleDecoder();
+        private final BandPowerDecoder bandPowerDecoder = new BandPowerDecoder();
+        private final DeltaSampleDecoder deltaDecoder = new DeltaSampleDecoder();
+        private final JSONParser parser = new JSONParser();
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+//the samples of the message being processed, reused for every message
+        private final SampleBatch batch = new SampleBatch(256);
+        private final Map<String, ReorderBuffer<Message>> streams = new HashMap<>();
+        private final List<Message> ready = new ArrayList<>();
+//reorder totals over this worker's streams, refreshed by expire() for the rate report
+        volatile long held;
+        volatile long gaps;
+        volatile long missing;
+        volatile long late;
+
+        Worker(String name) {
+            executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name));
+        }
+
+        void submit(Message message) {
+            executor.execute(() -> {
+                Long seq = message.seq();
+//backfill and messages from older apps have no seq, nothing to put in order
+                if (seq == null) {
+                    process(message);
+                    return;
+                }
+                ReorderBuffer<Message> stream = streams.computeIfAbsent(message.stream,
+                        key -> new ReorderBuffer<>(256, reorderMs));
+                stream.offer(seq, message, System.currentTimeMillis(), ready);
+                processReady();
+            });
+        }
+
+        void expire() {
+            executor.execute(() -> {
+                long now = System.currentTimeMillis();
+                long heldNow = 0, gapsNow = 0, missingNow = 0, lateNow = 0;
+                for (ReorderBuffer<Message> stream : streams.values()) {
+                    stream.expire(now, ready);
+                    heldNow += stream.held();
+                    gapsNow += stream.gaps;
+                    missingNow += stream.missing;
+                    lateNow += stream.late + stream.duplicates;
+                }
+                processReady();
+                held = heldNow;
+                gaps = gapsNow;
+                missing = missingNow;
+                late = lateNow;
+            });
+        }
+
+        private void processReady() {
+            for (Message message : ready) {
+                process(message);
+            }
+            ready.clear();
+        }
+
+        private void process(Message message) {
+            long deliveryTag = message.delivery.getEnvelope().getDeliveryTag();
+            boolean requeue;
+            try {
+                latency.onDelivery(message.delivery.getEnvelope().getRoutingKey(), message.headers, message.received);
+                samples.addAndGet(decode(message));
+                messages.incrementAndGet();
+                acks.done(deliveryTag);
+                return;
+            } catch (UncheckedIOException e) {
+//the store could not take it, have it delivered again, the samples it did store are skipped then
+                requeue = true;
+                System.out.println(" [!] Could not store message from session " + message.session + ": "
+                        + e.getCause());
+            } catch (IOException e) {
+                System.out.println(" [!] Could not ack: " + e);
+                return;
+            } catch (RuntimeException e) {
+                requeue = !message.delivery.getEnvelope().isRedeliver();
+                System.out.println(" [!] Could not process message from session " + message.session + ": " + e
+                        + (requeue ? ", requeued" : ", dropped"));
+            }
+            failures.incrementAndGet();
+            try {
+                acks.failed(deliveryTag, requeue);
+            } catch (IOException e) {
+                System.out.println(" [!] Could not nack: " + e);
+            }
+        }
+
+//decode the message and hand its samples on, returns the number of samples in it
+        private int decode(Message message) {
+            String contentType = message.delivery.getProperties().getContentType();
+            byte[] body = message.delivery.getBody();
+            batch.clear();
+//binary batches say so in their content-type, decode them into the same columns as the JSON samples
+            if (BinarySampleDecoder.isBinary(contentType)) {
+                binaryDecoder.decode(body, batch);
+                return handle(message);
+            }
+//compressed batches likewise, their content-type says which predictor decodes them
+            if (DeltaSampleDecoder.isDelta(contentType)) {
+                deltaDecoder.decode(body, batch);
+                return handle(message);
+            }
+//band power features from the "features" routing key
+            if (BandPowerDecoder.isBandPower(contentType)) {
+                JSONObject features = bandPowerDecoder.decode(body, message.headers.get("bands"));
+                if (print) {
+                    System.out.println(" [x] Received features '" + features.toJSONString() + "'");
+                }
+                return 0;
+            }
+            String text = new String(body, StandardCharsets.UTF_8);
+//batched messages carry a sample_count header and a JSON array of samples, unpack them one sample at a time
+            if (message.headers.containsKey("sample_count")) {
+                try {
+                    for (Object sample : (JSONArray) parser.parse(text)) {
+                        batch.add((JSONObject) sample);
+                    }
+                    return handle(message);
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException("Could not unpack batch: " + e);
+                }
+            }
+            if (print) {
+                System.out.println(" [x] Received '" + text + "'");
+            }
+            return 1;
+        }
+
+//where the samples of a session arrive, in order, in batch
+        private int handle(Message message) {
+            if (store != null) {
+                try {
+                    store.append(message.session, batch);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            if (join != null) {
+                join.addSamples(message.session, batch, System.currentTimeMillis());
+            } else if (exportDirectory != null) {
+                for (int i = 0; i < batch.size; i++) {
+                    export(message.session, batch, i, null, null);
+                }
+            }
+            if (print) {
+                for (int i = 0; i < batch.size; i++) {
+                    System.out.println(" [x] Received '" + batch.toJson(i, dateFormat).toJSONString() + "'");
+                }
+            }
+            return batch.size;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+//We need to import some classes
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//ReorderBuffer puts the messages of one stream back in seq order before they are processed. A message that
+//arrives ahead of a gap is held until the gap is filled, or until it has waited maxWaitMs or maxHeld messages
+//are held, then the gap is given up as lost so a missing message (e.g. one the phone journaled and will
+//replay as backfill) never holds up the stream, or the acks behind it, for long. Nothing offered is ever
+//dropped: late messages and duplicates are passed straight through and counted. Not thread safe, each
+//stream belongs to one worker.
+public class ReorderBuffer<T>
+{
+    private final int maxHeld;
+    private final long maxWaitMs;
+//seq expected next, 0 until the first message
+    private long next;
+    private final TreeMap<Long, Held<T>> held = new TreeMap<>();
+
+    long gaps;
+    long missing;
+    long late;
+    long duplicates;
+
+    private static class Held<T> {
+        final T item;
+        final long arrived;
+
+        Held(T item, long arrived) {
+            this.item = item;
+            this.arrived = arrived;
+        }
+    }
+
+    public ReorderBuffer(int maxHeld, long maxWaitMs) {
+        this.maxHeld = maxHeld;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+//add the message with this seq, arrived at now, and append everything that can go now to out in order
+    public void offer(long seq, T item, long now, List<T> out) {
+        if (next == 0 || seq == next) {
+            out.add(item);
+            next = seq + 1;
+            release(out);
+        } else if (seq < next) {
+//its gap was given up already, or it came twice - process it anyway rather than lose it
+            late++;
+            out.add(item);
+        } else if (held.containsKey(seq)) {
+            duplicates++;
+            out.add(item);
+        } else {
+            held.put(seq, new Held<>(item, now));
+        }
+        expire(now, out);
+    }
+
+//give up gaps that have held messages for too long, appending what that frees to out
+    public void expire(long now, List<T> out) {
+        while (!held.isEmpty()
+                && (held.size() > maxHeld || now - held.firstEntry().getValue().arrived >= maxWaitMs)) {
+            long first = held.firstKey();
+            gaps++;
+            missing += first - next;
+            next = first;
+            release(out);
+        }
+    }
+
+    public int held() {
+        return held.size();
+    }
+
+    private void release(List<T> out) {
+        Map.Entry<Long, Held<T>> entry;
+        while ((entry = held.firstEntry()) != null && entry.getKey() == next) {
+            held.pollFirstEntry();
+            out.add(entry.getValue().item);
+            next++;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+//We need to import some classes
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.json.simple.JSONObject;
+
+//SampleBatch holds decoded EEG samples as primitive columns: the sample numbers, the phone's unix ms
+//timestamps and CHANNELS micro volts per sample, one sample after another. The decoders fill one per worker
+//and it is reused for every message, so the samples go to the store, the join and the exports without a
+//JSONObject, a boxed number and a formatted date per sample. The arrays grow as needed. toJson() builds the
+//SN / ch1-ch8 / UnixTS / TS shape of the JSON messages, only for printing and the labelled file.
+//Not thread safe.
+public class SampleBatch
+{
+    public final static int CHANNELS = 8;
+
+    int size;
+    int[] sampleNumbers;
+    long[] timestamps;
+//CHANNELS values per sample, NaN for a channel the message did not carry
+    float[] microVolts;
+
+    public SampleBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        sampleNumbers = new int[capacity];
+        timestamps = new long[capacity];
+        microVolts = new float[capacity * CHANNELS];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+//add a sample with every channel NaN, returns the offset of its channels in microVolts to fill them in
+    public int add(int sampleNumber, long timestamp) {
+        if (size == timestamps.length) {
+            int capacity = 2 * size;
+            sampleNumbers = Arrays.copyOf(sampleNumbers, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            microVolts = Arrays.copyOf(microVolts, capacity * CHANNELS);
+        }
+        sampleNumbers[size] = sampleNumber;
+        timestamps[size] = timestamp;
+        int offset = size * CHANNELS;
+        Arrays.fill(microVolts, offset, offset + CHANNELS, Float.NaN);
+        size++;
+        return offset;
+    }
+
+//copy sample i of another batch onto the end of this one
+    public void add(SampleBatch from, int i) {
+        int offset = add(from.sampleNumbers[i], from.timestamps[i]);
+        System.arraycopy(from.microVolts, i * CHANNELS, microVolts, offset, CHANNELS);
+    }
+
+//add a sample of a JSON batch, SN, ch1 to ch8, UnixTS and TS
+    public void add(JSONObject sample) {
+        Object sn = sample.get("SN");
+        int offset = add(sn instanceof Number ? ((Number) sn).intValue() : 0, millis(sample));
+        for (int ch = 0; ch < CHANNELS; ch++) {
+            Object value = sample.get("ch" + (ch + 1));
+            if (value instanceof Number) {
+                microVolts[offset + ch] = ((Number) value).floatValue();
+            }
+        }
+    }
+
+//overwrite sample to with sample from, for taking samples out of the batch in place
+    void move(int from, int to) {
+        sampleNumbers[to] = sampleNumbers[from];
+        timestamps[to] = timestamps[from];
+        System.arraycopy(microVolts, from * CHANNELS, microVolts, to * CHANNELS, CHANNELS);
+    }
+
+//drop the first count samples
+    public void removeFirst(int count) {
+        size -= count;
+        System.arraycopy(sampleNumbers, count, sampleNumbers, 0, size);
+        System.arraycopy(timestamps, count, timestamps, 0, size);
+        System.arraycopy(microVolts, count * CHANNELS, microVolts, 0, size * CHANNELS);
+    }
+
+//sample i in the JSON shape, TS in this machine's time zone
+    @SuppressWarnings("unchecked")
+    public JSONObject toJson(int i, SimpleDateFormat dateFormat) {
+        JSONObject sample = new JSONObject();
+        sample.put("SN", sampleNumbers[i]);
+        for (int ch = 0; ch < CHANNELS; ch++) {
+            float value = microVolts[i * CHANNELS + ch];
+            if (!Float.isNaN(value)) {
+                sample.put("ch" + (ch + 1), value);
+            }
+        }
+        sample.put("UnixTS", timestamps[i] / 1000L);
+        sample.put("TS", dateFormat.format(new Date(timestamps[i])));
+        return sample;
+    }
+
+//milliseconds from UnixTS in seconds and the milliseconds at the end of TS, "yyyy-MM-dd HH:mm:ss.SSS",
+//whatever the time zone of TS
+    static long millis(JSONObject sample) {
+        long seconds = ((Number) sample.get("UnixTS")).longValue();
+        String ts = (String) sample.get("TS");
+        int millis = ts == null || ts.length() < 3 ? 0 : Integer.parseInt(ts.substring(ts.length() - 3));
+        return seconds * 1000L + millis;
+    }
+}
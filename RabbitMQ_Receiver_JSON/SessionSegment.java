@@ -0,0 +1,240 @@
+//We need to import some classes
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//One segment file of a SessionStore session, a fixed capacity of samples stored as columns in one memory mapped
+//file: a 64 byte header, a sparse index with the first timestamp of every INDEX_STRIDE samples, the int64 unix ms
+//timestamps, then one float32 micro volt column per channel, each starting on its own page, all little endian.
+//Header: magic 'B' 'C' 'I' 'S', u8 version, u8 channels, u16 reserved, i32 capacity, i32 committed sample count,
+//i64 session sample index of the first sample, i64 first timestamp, i64 last committed timestamp, i32 index stride.
+//Samples are written straight into the mapping and only count once commit() writes the new count into the
+//header, after the columns are forced to disk if the store is synced, so a crash at any point leaves the samples
+//of the last commit. Timestamps never go backwards within a segment, the store starts a new one if they would,
+//so a time range is a binary search of the sparse index then of one stride of timestamps at each end.
+public class SessionSegment
+{
+    public final static int INDEX_STRIDE = 256;
+    private final static int HEADER_SIZE = 64;
+    private final static int PAGE_SIZE = 4096;
+    private final static int VERSION = 1;
+    private final static int COUNT_OFFSET = 12;
+    private final static int LAST_TS_OFFSET = 32;
+
+    final File file;
+    final int channels;
+    final int capacity;
+    final long firstSampleIndex;
+    private final MappedByteBuffer map;
+    private final int indexOffset;
+    private final int timestampOffset;
+    private final int[] channelOffsets;
+    private int count;
+    private int committed;
+    private long firstTimestamp;
+    private long lastTimestamp;
+
+    private SessionSegment(File file, MappedByteBuffer map, int channels, int capacity, long firstSampleIndex) {
+        this.file = file;
+        this.map = map;
+        this.channels = channels;
+        this.capacity = capacity;
+        this.firstSampleIndex = firstSampleIndex;
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        indexOffset = HEADER_SIZE;
+        timestampOffset = pageAlign(indexOffset + 8 * (capacity / INDEX_STRIDE));
+        channelOffsets = new int[channels];
+        int offset = pageAlign(timestampOffset + 8 * capacity);
+        for (int ch = 0; ch < channels; ch++) {
+            channelOffsets[ch] = offset;
+            offset = pageAlign(offset + 4 * capacity);
+        }
+    }
+
+    private static int pageAlign(int offset) {
+        return (offset + PAGE_SIZE - 1) & -PAGE_SIZE;
+    }
+
+    private static long fileSize(int channels, int capacity) {
+        int timestampsEnd = pageAlign(pageAlign(HEADER_SIZE + 8 * (capacity / INDEX_STRIDE)) + 8 * capacity);
+        return timestampsEnd + (long) channels * pageAlign(4 * capacity);
+    }
+
+//a new empty segment, capacity must be a multiple of INDEX_STRIDE
+    static SessionSegment create(File file, int channels, int capacity, long firstSampleIndex) throws IOException {
+        if (capacity % INDEX_STRIDE != 0) {
+            throw new IllegalArgumentException("segment capacity must be a multiple of " + INDEX_STRIDE);
+        }
+        MappedByteBuffer map = map(file, FileChannel.MapMode.READ_WRITE, fileSize(channels, capacity));
+        SessionSegment segment = new SessionSegment(file, map, channels, capacity, firstSampleIndex);
+        ByteBuffer header = segment.map;
+        header.put(0, (byte) 'B').put(1, (byte) 'C').put(2, (byte) 'I').put(3, (byte) 'S');
+        header.put(4, (byte) VERSION).put(5, (byte) channels);
+        header.putInt(8, capacity);
+        header.putInt(COUNT_OFFSET, 0);
+        header.putLong(16, firstSampleIndex);
+        header.putInt(40, INDEX_STRIDE);
+        return segment;
+    }
+
+//an existing segment with its committed samples, read only or to append to
+    static SessionSegment open(File file, boolean writable) throws IOException {
+        MappedByteBuffer map = map(file, writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, -1);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        if (map.limit() < HEADER_SIZE
+                || map.get(0) != 'B' || map.get(1) != 'C' || map.get(2) != 'I' || map.get(3) != 'S') {
+            throw new IOException("not a session segment: " + file);
+        }
+        if (map.get(4) != VERSION || map.getInt(40) != INDEX_STRIDE) {
+            throw new IOException("unsupported session segment version " + map.get(4) + ": " + file);
+        }
+        SessionSegment segment = new SessionSegment(file, map, map.get(5) & 0xFF, map.getInt(8), map.getLong(16));
+        if (map.limit() < fileSize(segment.channels, segment.capacity)) {
+            throw new IOException("truncated session segment: " + file);
+        }
+        segment.refresh();
+        segment.count = segment.committed;
+        return segment;
+    }
+
+//read the committed count from the header again, for a read only segment another SessionStore is appending to
+    void refresh() {
+        committed = Math.min(map.getInt(COUNT_OFFSET), capacity);
+        firstTimestamp = map.getLong(24);
+        lastTimestamp = map.getLong(LAST_TS_OFFSET);
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+             FileChannel channel = raf.getChannel()) {
+            if (size >= 0) {
+                raf.setLength(size);
+            }
+//the mapping stays valid after the channel is closed
+            return channel.map(mode, 0, size >= 0 ? size : channel.size());
+        }
+    }
+
+//whether a sample at this time can go in without the timestamps going backwards
+    boolean accepts(long timestamp) {
+        return count < capacity && (count == 0 || timestamp >= lastTimestamp);
+    }
+
+//write one sample, channels values from offset in microVolts, into the columns, it counts from the next commit()
+    void append(long timestamp, float[] microVolts, int offset) {
+        int i = count;
+        if (i == 0) {
+            firstTimestamp = timestamp;
+            map.putLong(24, timestamp);
+        }
+        if (i % INDEX_STRIDE == 0) {
+            map.putLong(indexOffset + 8 * (i / INDEX_STRIDE), timestamp);
+        }
+        map.putLong(timestampOffset + 8 * i, timestamp);
+        for (int ch = 0; ch < channels; ch++) {
+            map.putFloat(channelOffsets[ch] + 4 * i, microVolts[offset + ch]);
+        }
+        lastTimestamp = timestamp;
+        count = i + 1;
+    }
+
+//make the appended samples count, forcing them to disk before the header that counts them if sync
+    void commit(boolean sync) {
+        if (count == committed) {
+            return;
+        }
+        if (sync) {
+            map.force();
+        }
+        map.putLong(LAST_TS_OFFSET, lastTimestamp);
+        map.putInt(COUNT_OFFSET, count);
+        if (sync) {
+            map.force();
+        }
+        committed = count;
+    }
+
+    int committed() {
+        return committed;
+    }
+
+    long firstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+//whether a sample with exactly this time is in the segment, committed or only appended so far
+    boolean contains(long timestamp) {
+        int n = Math.max(count, committed);
+        if (n == 0 || timestamp < firstTimestamp || timestamp > lastTimestamp) {
+            return false;
+        }
+        int i = lowerBound(timestamp, n);
+        return i < n && map.getLong(timestampOffset + 8 * i) == timestamp;
+    }
+
+//first committed sample at or after this time, committed() if there is none
+    int lowerBound(long timestamp) {
+        return lowerBound(timestamp, committed);
+    }
+
+    private int lowerBound(long timestamp, int n) {
+        if (n == 0 || timestamp <= firstTimestamp) {
+            return 0;
+        }
+        if (timestamp > lastTimestamp) {
+            return n;
+        }
+//the last stride starting before the time, from the index page only
+        int lo = 0;
+        int hi = (n - 1) / INDEX_STRIDE;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (map.getLong(indexOffset + 8 * mid) < timestamp) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+//then within that stride, which is at most two pages of timestamps
+        int from = lo * INDEX_STRIDE;
+        int to = Math.min(n, from + INDEX_STRIDE);
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (map.getLong(timestampOffset + 8 * mid) < timestamp) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+//the timestamps of samples [from, to) as a view of the mapping, nothing is copied
+    LongBuffer timestamps(int from, int to) {
+        return view(timestampOffset + 8 * from, 8 * (to - from)).asLongBuffer();
+    }
+
+//one channel, 1 to channels, of samples [from, to) as a view of the mapping
+    FloatBuffer channel(int channel, int from, int to) {
+        if (channel < 1 || channel > channels) {
+            throw new IllegalArgumentException("no channel " + channel + " in " + file);
+        }
+        return view(channelOffsets[channel - 1] + 4 * from, 4 * (to - from)).asFloatBuffer();
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer view = map.duplicate();
+        view.position(offset).limit(offset + length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,321 @@
+//We need to import some classes
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//SessionStore keeps the received EEG for dataset generation, one directory per session under root holding
+//SessionSegment files seg-000000.col, seg-000001.col ... of segmentSamples samples each, with int64 timestamps
+//and a float32 micro volt column per channel. The workers append batches straight into the mapped segments and
+//commit() makes them count, so Recv commits before it acks and a crash loses nothing that was acked.
+//A sample is identified by its timestamp, the phone's sample clock gives every sample of a session its own, so
+//samples the session already has are skipped: a message redelivered after a crash between the commit and the
+//ack, or a batch the phone journaled and replayed after its confirm was lost, is only stored once.
+//Reading a time or sample range only maps and touches the pages that range needs and hands back views of the
+//mapping, no copies. A receiver restarted mid-session carries on appending to the session's last segment.
+//The activity updates, which belong to no session, are kept in ACTIVITY_LOG under root as capture_ts, a tab and
+//the message body, a line each.
+public class SessionStore
+{
+    public final static int CHANNELS = SampleBatch.CHANNELS;
+    public final static String ACTIVITY_LOG = "activity.log";
+
+    private final File root;
+    private final int segmentSamples;
+    private final boolean sync;
+    private final Map<String, Writer> writers = new HashMap<>();
+    private BufferedWriter activityLog;
+//segments mapped read only for queries, kept mapped so a query only maps a segment the first time
+    private final Map<File, SessionSegment> readers = new ConcurrentHashMap<>();
+
+//samples of one segment in a range, every buffer a read only view of the mapped file
+    public static class Slice {
+        public final long firstSampleIndex;
+        public final LongBuffer timestamps;
+        public final FloatBuffer[] channels;
+
+        Slice(long firstSampleIndex, LongBuffer timestamps, FloatBuffer[] channels) {
+            this.firstSampleIndex = firstSampleIndex;
+            this.timestamps = timestamps;
+            this.channels = channels;
+        }
+    }
+
+//the segment a session is appending to
+    private static class Writer {
+        final File directory;
+        SessionSegment segment;
+        int nextSegment;
+//latest timestamp in any segment of the session, samples after it are new without a search
+        long latest = Long.MIN_VALUE;
+
+        Writer(File directory) {
+            this.directory = directory;
+        }
+    }
+
+//sync forces every commit to disk, otherwise a commit survives the receiver crashing but not the machine
+    public SessionStore(File root, int segmentSamples, boolean sync) {
+        this.root = root;
+        this.segmentSamples = segmentSamples;
+        this.sync = sync;
+    }
+
+//append a batch of decoded samples to a session, they count from the next commit(). Samples the session has
+//already are taken out of the batch, so what is left is what was new
+    public void append(String session, SampleBatch samples) throws IOException {
+        Writer writer = writer(session);
+        synchronized (writer) {
+            int kept = 0;
+            for (int i = 0; i < samples.size; i++) {
+                long timestamp = samples.timestamps[i];
+                if (timestamp <= writer.latest && stored(writer, timestamp)) {
+                    continue;
+                }
+//a full segment, or backfill from before the last sample, goes into a new segment
+                if (writer.segment == null || !writer.segment.accepts(timestamp)) {
+                    nextSegment(writer);
+                }
+                writer.segment.append(timestamp, samples.microVolts, i * SampleBatch.CHANNELS);
+                writer.latest = Math.max(writer.latest, timestamp);
+                if (kept != i) {
+                    samples.move(i, kept);
+                }
+                kept++;
+            }
+            samples.size = kept;
+        }
+    }
+
+//whether a session already has a sample at this time, in the segment being appended to or an earlier one
+    private boolean stored(Writer writer, long timestamp) throws IOException {
+        if (writer.segment != null && writer.segment.contains(timestamp)) {
+            return true;
+        }
+        for (File file : segmentFiles(writer.directory)) {
+            if (writer.segment != null && file.equals(writer.segment.file)) {
+                continue;
+            }
+            SessionSegment segment = reader(file);
+            synchronized (segment) {
+                segment.refresh();
+                if (segment.contains(timestamp)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+//make everything appended so far count
+    public void commit() {
+        List<Writer> all;
+        synchronized (writers) {
+            all = new ArrayList<>(writers.values());
+        }
+        for (Writer writer : all) {
+            synchronized (writer) {
+                if (writer.segment != null) {
+                    writer.segment.commit(sync);
+                }
+            }
+        }
+    }
+
+//keep an activity message, captureTs is its capture_ts header, null from older apps
+    public synchronized void logActivity(Object captureTs, String body) throws IOException {
+        if (activityLog == null) {
+            if (!root.isDirectory() && !root.mkdirs()) {
+                throw new IOException("Could not create " + root);
+            }
+            FileOutputStream file = new FileOutputStream(new File(root, ACTIVITY_LOG), true);
+            activityLog = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+        }
+        activityLog.write((captureTs == null ? "" : captureTs.toString()) + "\t" + body.replace('\n', ' '));
+        activityLog.newLine();
+        activityLog.flush();
+    }
+
+//every activity message kept under root, as its capture_ts header (null if it had none) and its body
+    public List<String[]> activities() throws IOException {
+        List<String[]> activities = new ArrayList<>();
+        File log = new File(root, ACTIVITY_LOG);
+        if (!log.isFile()) {
+            return activities;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(log), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab >= 0) {
+                    activities.add(new String[]{tab == 0 ? null : line.substring(0, tab), line.substring(tab + 1)});
+                }
+            }
+        }
+        return activities;
+    }
+
+//the sessions kept under root
+    public List<String> sessions() {
+        List<String> sessions = new ArrayList<>();
+        File[] directories = root.listFiles(File::isDirectory);
+        if (directories != null) {
+            for (File directory : directories) {
+                sessions.add(directory.getName());
+            }
+        }
+        sessions.sort(null);
+        return sessions;
+    }
+
+//first and last committed timestamp of a session, null if it has no samples
+    public long[] timeRange(String session) throws IOException {
+        long[] range = null;
+        for (File file : segmentFiles(sessionDirectory(session))) {
+            SessionSegment segment = reader(file);
+            synchronized (segment) {
+                segment.refresh();
+                if (segment.committed() == 0) {
+                    continue;
+                }
+                if (range == null) {
+                    range = new long[]{segment.firstTimestamp(), segment.lastTimestamp()};
+                } else {
+                    range[0] = Math.min(range[0], segment.firstTimestamp());
+                    range[1] = Math.max(range[1], segment.lastTimestamp());
+                }
+            }
+        }
+        return range;
+    }
+
+    private Writer writer(String session) throws IOException {
+        synchronized (writers) {
+            Writer writer = writers.get(session);
+            if (writer == null) {
+                writer = new Writer(sessionDirectory(session));
+                if (!writer.directory.isDirectory() && !writer.directory.mkdirs()) {
+                    throw new IOException("Could not create " + writer.directory);
+                }
+                File[] existing = segmentFiles(writer.directory);
+                if (existing.length > 0) {
+                    writer.segment = SessionSegment.open(existing[existing.length - 1], true);
+                    writer.nextSegment = existing.length;
+                }
+                for (File file : existing) {
+                    SessionSegment segment = reader(file);
+                    synchronized (segment) {
+                        segment.refresh();
+                        if (segment.committed() > 0) {
+                            writer.latest = Math.max(writer.latest, segment.lastTimestamp());
+                        }
+                    }
+                }
+                writers.put(session, writer);
+            }
+            return writer;
+        }
+    }
+
+    private void nextSegment(Writer writer) throws IOException {
+        long firstSampleIndex = 0;
+        if (writer.segment != null) {
+            writer.segment.commit(sync);
+            firstSampleIndex = writer.segment.firstSampleIndex + writer.segment.committed();
+        }
+        File file = new File(writer.directory, String.format("seg-%06d.col", writer.nextSegment++));
+        writer.segment = SessionSegment.create(file, CHANNELS, segmentSamples, firstSampleIndex);
+    }
+
+//committed samples of a session from fromMs up to but not including toMs, channels numbered from 1
+    public List<Slice> query(String session, long fromMs, long toMs, int... channels) throws IOException {
+        List<Slice> slices = new ArrayList<>();
+        for (File file : segmentFiles(sessionDirectory(session))) {
+            SessionSegment segment = reader(file);
+            synchronized (segment) {
+                segment.refresh();
+                if (segment.committed() == 0
+                        || segment.firstTimestamp() >= toMs || segment.lastTimestamp() < fromMs) {
+                    continue;
+                }
+                addSlice(slices, segment, segment.lowerBound(fromMs), segment.lowerBound(toMs), channels);
+            }
+        }
+        return slices;
+    }
+
+//committed samples of a session by their index in the session, [fromIndex, toIndex)
+    public List<Slice> querySamples(String session, long fromIndex, long toIndex, int... channels) throws IOException {
+        List<Slice> slices = new ArrayList<>();
+        for (File file : segmentFiles(sessionDirectory(session))) {
+            SessionSegment segment = reader(file);
+            synchronized (segment) {
+                segment.refresh();
+                addSamples(slices, segment, fromIndex, toIndex, channels);
+            }
+        }
+        return slices;
+    }
+
+    private static void addSamples(List<Slice> slices, SessionSegment segment, long fromIndex, long toIndex,
+            int[] channels) {
+        long first = segment.firstSampleIndex;
+        long end = first + segment.committed();
+        if (first < toIndex && end > fromIndex) {
+            int from = (int) (Math.max(fromIndex, first) - first);
+            addSlice(slices, segment, from, (int) (Math.min(toIndex, end) - first), channels);
+        }
+    }
+
+    private SessionSegment reader(File file) throws IOException {
+        SessionSegment segment = readers.get(file);
+        if (segment == null) {
+            segment = SessionSegment.open(file, false);
+            SessionSegment raced = readers.putIfAbsent(file, segment);
+            if (raced != null) {
+                segment = raced;
+            }
+        }
+        return segment;
+    }
+
+    private static void addSlice(List<Slice> slices, SessionSegment segment, int from, int to, int[] channels) {
+        if (from >= to) {
+            return;
+        }
+        FloatBuffer[] columns = new FloatBuffer[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            columns[i] = segment.channel(channels[i], from, to);
+        }
+        slices.add(new Slice(segment.firstSampleIndex + from, segment.timestamps(from, to), columns));
+    }
+
+//session ids are UUIDs, anything else is kept to characters safe in a file name
+    private File sessionDirectory(String session) {
+        String name = session.isEmpty() ? "unknown" : session.replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(root, name);
+    }
+
+    private static File[] segmentFiles(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("seg-") && name.endsWith(".col"));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,139 @@
+package com.michael.bci;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Michael McMahon
+ * ActivityPublisher publishes the activity messages on a channel in confirm mode. A message waits in the
+ * outbox until basicPublish has taken it, and goes back in when the broker nacks it or the channel closes
+ * before it is confirmed, so a broker that is unreachable or slow to confirm only delays activity updates.
+ * What is left in the outbox goes out first on the next flush(), in order. When the outbox is full the
+ * oldest message is dropped, the newest activity is the one that matters.
+ */
+final class ActivityPublisher {
+
+    /* The open activity channel, opened with confirmSelect(..) if there is none */
+    interface ChannelSource {
+        Channel get() throws IOException, TimeoutException;
+    }
+
+    /* An activity message and its latency headers, which stay the same when it is published again */
+    static final class ActivityMessage {
+        final byte[] body;
+        final long sequence;
+        final long captureTs;
+
+        ActivityMessage(byte[] body, long sequence, long captureTs) {
+            this.body = body;
+            this.sequence = sequence;
+            this.captureTs = captureTs;
+        }
+    }
+
+    private final String exchangeName;
+    private final String routingKey;
+    private final long confirmTimeoutMs;
+    private final BlockingQueue<ActivityMessage> outbox;
+    private final ConfirmTracker<ActivityMessage> confirms;
+    private final AtomicLong dropped = new AtomicLong();
+
+    ActivityPublisher(String exchangeName, String routingKey, int maxInFlight, long confirmTimeoutMs, int outboxCapacity) {
+        this.exchangeName = exchangeName;
+        this.routingKey = routingKey;
+        this.confirmTimeoutMs = confirmTimeoutMs;
+        outbox = new ArrayBlockingQueue<>(outboxCapacity);
+        confirms = new ConfirmTracker<>(maxInFlight, new ConfirmTracker.Listener<ActivityMessage>() {
+            @Override
+            public void acked(ActivityMessage message) {
+            }
+
+            @Override
+            public void nacked(ActivityMessage message) {
+                queue(message);
+            }
+        });
+    }
+
+    /* Put a newly opened channel in confirm mode and follow its confirms */
+    void confirmSelect(Channel channel) throws IOException {
+        channel.confirmSelect();
+        channel.addConfirmListener(confirms);
+        channel.addShutdownListener(cause -> confirms.failAll());
+    }
+
+    /* The channel is gone, whatever it had in flight goes back in the outbox */
+    void channelClosed() {
+        confirms.failAll();
+    }
+
+    /* Add a message behind the ones still waiting */
+    void queue(ActivityMessage message) {
+        while (!outbox.offer(message)) {
+            if (outbox.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /* Publish every message waiting in the outbox. One only leaves it once basicPublish has taken it, so a
+     * channel that cannot be opened or a full confirm window leaves it there for the next flush */
+    synchronized void flush(ChannelSource channels) throws IOException, TimeoutException, InterruptedException {
+        for (int count = outbox.size(); count > 0; count--) {
+            ActivityMessage message = outbox.peek();
+            if (message == null) {
+                return;
+            }
+            Channel channel = channels.get();
+            if (!confirms.awaitCapacity(confirmTimeoutMs)) {
+                throw new IOException("RMQ: No confirms from the broker for " + confirmTimeoutMs + "ms, " + confirms);
+            }
+            long deliveryTag = channel.getNextPublishSeqNo();
+            confirms.add(deliveryTag, message);
+            /* The same latency headers as the EEG batches, see BatchPublisher */
+            Map<String, Object> headers = new HashMap<>();
+            headers.put(BatchPublisher.HEADER_SEQ, message.sequence);
+            headers.put(BatchPublisher.HEADER_CAPTURE_TS, message.captureTs);
+            headers.put(BatchPublisher.HEADER_PUBLISH_TS, System.currentTimeMillis());
+            AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                    .headers(headers)
+                    .build();
+            try {
+                channel.basicPublish(exchangeName, routingKey, properties, message.body);
+            } catch (IOException | ShutdownSignalException e) {
+                confirms.cancel(deliveryTag);
+                throw e;
+            }
+            /* A nack can have put it back behind the others already, only take out this one */
+            outbox.remove(message);
+        }
+    }
+
+    /* Messages waiting to be published */
+    int pending() {
+        return outbox.size();
+    }
+
+    int inFlight() {
+        return confirms.inFlight();
+    }
+
+    /* Messages dropped because the outbox was full */
+    long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "activity pending=" + outbox.size() + " dropped=" + dropped + " " + confirms;
+    }
+}
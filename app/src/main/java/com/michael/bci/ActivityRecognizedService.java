@@ -7,8 +7,6 @@ import android.util.Log;
 import com.google.android.gms.location.ActivityRecognitionResult;
 import com.google.android.gms.location.DetectedActivity;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
 
 import org.json.simple.JSONObject;
 
@@ -33,12 +31,25 @@ REFERENCE
 https://code.tutsplus.com/tutorials/how-to-recognize-user-activity-with-activity-recognition--cms-25851
  */
 public class ActivityRecognizedService extends IntentService {
-    private Connection connection;
-    private Channel channel_2;
-    private static final String EXCHANGE_NAME = "exchange_1"; //RabbitMQ Exchange Name
+    /* Static so the channel outlives each IntentService instance */
+    private static Channel channel_2;
+    private static final String EXCHANGE_NAME = RabbitmqConnection.EXCHANGE_NAME; //RabbitMQ Exchange Name
     private static final String QUEUE_NAME = "activity"; //RabbitMQ Queue Name
+    private static final String ROUTING_KEY = "white";
     public final static String TAG = "ActivityRec";
 
+    /* The activity channel is in confirm mode too. Messages that could not be published, that the broker
+     * nacks, or that were unconfirmed when the channel closed, are published again with the next activity
+     * update. Static, as the IntentService instance can be gone by the time the confirms come back */
+    private static final int MAX_IN_FLIGHT = 16;
+    private static final long CONFIRM_TIMEOUT_MS = 2000;
+    private static final int OUTBOX_CAPACITY = 64;
+    private static final ActivityPublisher publisher =
+            new ActivityPublisher(EXCHANGE_NAME, ROUTING_KEY, MAX_IN_FLIGHT, CONFIRM_TIMEOUT_MS, OUTBOX_CAPACITY);
+
+    /* seq header of the last activity message */
+    private static long sequence;
+
 
     public ActivityRecognizedService() {
         super("ActivityRecognizedService");
@@ -58,7 +69,7 @@ public class ActivityRecognizedService extends IntentService {
         if(ActivityRecognitionResult.hasResult(intent)) {
             ActivityRecognitionResult result = ActivityRecognitionResult.extractResult(intent);
             DetectedActivity mostProbableActivity = result.getMostProbableActivity();
-            handleDetectedActivities( result.getProbableActivities() );
+            handleDetectedActivities( result.getProbableActivities(), result.getTime() );
 
             // Get the type of activity
             int activityType = mostProbableActivity.getType();
@@ -78,7 +89,7 @@ public class ActivityRecognizedService extends IntentService {
     data of each activity that has been detected and how confident Google Play Services is that the user is
     performing that activity by calling getConfidence() on a DetectedActivity instance.
      */
-    private void handleDetectedActivities(List<DetectedActivity> probableActivities) {
+    private void handleDetectedActivities(List<DetectedActivity> probableActivities, long detectedTime) {
 
         try {
 
@@ -87,9 +98,6 @@ public class ActivityRecognizedService extends IntentService {
             long unixTime = System.currentTimeMillis() / 1000L; //Unix Timestamp
 
             for (DetectedActivity activity : probableActivities) {
-                Channel channel = getChannel();
-                Log.d(TAG, "RMQ: Connection/Channel 2 for EEG" +channel);
-
                 /*Encode a JSON object using Map so order of the object entries is preserved*/
                 Map obj=new HashMap();
                 //LinkedHashMap<String, java.io.Serializable> obj = new LinkedHashMap<>();
@@ -143,92 +151,48 @@ public class ActivityRecognizedService extends IntentService {
                 obj.put("UnixTS", unixTime); // Create a Unix Timestamp
                 obj.put("TS", dateString); // Create a Formatted Timestamp
 
-                channel.basicPublish(EXCHANGE_NAME, "white",null, JSONValue.toJSONString(obj).getBytes(StandardCharsets.UTF_8));
+                publisher.queue(new ActivityPublisher.ActivityMessage(
+                        JSONValue.toJSONString(obj).getBytes(StandardCharsets.UTF_8), ++sequence, detectedTime));
 
                 /* For now lets just close connection every time */
                 //RabbitmqConnection.CloseConnection();
                 //CloseChannel();
             }
+            /* Behind anything the broker did not take last time, so it stays in order */
+            publisher.flush(ActivityRecognizedService::getChannel);
         } catch (Exception e) {
             e.printStackTrace();
             // If we hit any issues, close the RabbitMQ channel, so that it is re-created on the next read.
-            try {
-                CloseChannel();
-                Log.d(TAG, "RMQ: Close Loop Channel for Activity");
-            } catch (IOException | TimeoutException ioException) {
-                ioException.printStackTrace();
-            }
+            CloseChannel();
+            Log.d(TAG, "RMQ: Close Loop Channel for Activity, " + publisher);
         }
     }
 
-    /* Create RabbitMQ Connection to the Broker */
-    private Connection getConnection() throws IOException, TimeoutException {
-        // Only create the connection if it doesn't already exist
-        if (connection == null)
-        {
-            try
-            {
-                ConnectionFactory factory = RabbitmqConnection.getConnectionFactory();
-                connection =  factory.newConnection();
-            }
-            catch(Exception e)
-            {
-                // Clean up
-                if (connection != null)
-                {
-                    connection.close();
-                    connection = null;
-                }
-                throw e;
-            }
-        }
-        return connection;
-    }
-
-
-    /* Create RabbitMQ Channel on Broker */
-    private Channel getChannel() throws IOException, TimeoutException {
+    /* Open the activity channel on the shared RabbitMQ connection, separate from the EEG channel */
+    private static Channel getChannel() throws IOException, TimeoutException {
         // Only create the channel if it doesn't already exist
         if (channel_2 == null)
         {
-            try
-            {
-                //channel_2 = RabbitmqConnection.getConnection().createChannel();
-                channel_2 = getConnection().createChannel();
-                channel_2.exchangeDeclare(EXCHANGE_NAME, "direct", true);
-                channel_2.queueDeclare(QUEUE_NAME, false, false, false, null);
-                channel_2.queueBind(QUEUE_NAME, EXCHANGE_NAME, "white");
-            }
-            catch(Exception e)
-            {
-                // Clean up
-                if (channel_2 != null)
-                {
-                    channel_2.close();
-                    channel_2 = null;
-                }
-
+            channel_2 = RabbitmqConnection.openChannel(QUEUE_NAME, ROUTING_KEY);
+            try {
+                publisher.confirmSelect(channel_2);
+            } catch (IOException e) {
+                CloseChannel();
                 throw e;
             }
         }
-        Log.d(TAG, "RMQ: Open Channel 2 for Activity" + channel_2);
         return channel_2;
     }
 
-    // Cleanup the channel and leave it in an uninitialized state
-    private void CloseChannel() throws IOException, TimeoutException {
+    // Drop the activity channel so it is re-opened on the next update, the shared connection recovers by itself
+    private static void CloseChannel() {
         if (channel_2 != null)
         {
-            channel_2.close();
+            Channel channel = channel_2;
             channel_2 = null;
+            RabbitmqConnection.closeChannel(channel);
             Log.d(TAG, "RMQ: Close Channel 2 for Activity");
         }
-
-        if (connection != null)
-        {
-            connection.close();
-            connection = null;
-            Log.d(TAG, "RMQ: Close Connection for Activity");
-        }
+        publisher.channelClosed();
     }
 }
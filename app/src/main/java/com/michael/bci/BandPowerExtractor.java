@@ -0,0 +1,228 @@
+package com.michael.bci;
+
+/*
+ * Michael McMahon
+ * BandPowerExtractor turns the EEG into a much smaller stream of band powers for consumers that only
+ * want features, e.g. the alpha/mu (8-13Hz) and beta power over the motor cortex. Every channel keeps a
+ * circular window of the last windowSamples values. Once the window is full, every hopSamples samples
+ * the window is mean-removed, Hann windowed, zero padded to a power of two and run through a radix-2
+ * FFT. The one-sided power spectrum is then summed over each band, giving the band power in uV^2.
+ * The FFT buffers, twiddle and bit reversal tables and the Hann window are worked out once in the
+ * constructor, so add() and compute() never allocate. Not thread safe, the publisher thread owns it.
+ *
+ * encode() writes the result as one compact big-endian message:
+ *   0-1   magic 'B' 'P'
+ *   2     schema version (1)
+ *   3     channels
+ *   4     bands
+ *   5     reserved (0)
+ *   6-7   window length in samples
+ *   8-15  sample index of the newest sample in the window
+ *   16-23 unix timestamp in milliseconds of the newest sample
+ *   then float32 band power in uV^2 for every channel, bands in order
+ */
+final class BandPowerExtractor {
+
+    static final String CONTENT_TYPE = "application/x-bci-bandpower";
+    static final byte MAGIC_0 = 'B';
+    static final byte MAGIC_1 = 'P';
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 24;
+
+    /* Alpha is the mu rhythm when it comes from the sensorimotor cortex (C3, C4) */
+    static final String[] DEFAULT_BAND_NAMES = {"delta", "theta", "alpha", "beta", "gamma"};
+    static final double[] DEFAULT_BAND_EDGES = {1, 4, 4, 8, 8, 13, 13, 30, 30, 45};
+
+    private final int channels;
+    private final int windowSamples;
+    private final double hopSamples;
+    private final String[] bandNames;
+    private final double[] bandEdges;
+
+    /* Last windowSamples values, laid out like SampleBlock.microVolts */
+    private final float[] window;
+    private int windowPosition;
+    private long samplesAdded;
+    private double nextHop;
+    private long newestIndex;
+    private long newestTimestamp;
+
+    private final int fftSize;
+    private final double[] hann;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] bitReversed;
+    private final double[] re;
+    private final double[] im;
+    /* FFT bins [firstBin[b], endBin[b]) are summed into band b */
+    private final int[] firstBin;
+    private final int[] endBin;
+    /* Converts |X[k]|^2 into uV^2 in the bin, one-sided and corrected for the Hann window */
+    private final double powerScale;
+
+    /* Band power for every channel, bands in order, filled in by compute() */
+    final float[] powers;
+
+    /* bandEdges holds a low and high frequency for each name in bandNames */
+    BandPowerExtractor(double sampleRate, int channels, int windowSamples, double hopSamples,
+                       String[] bandNames, double[] bandEdges) {
+        if (windowSamples < 2 || windowSamples > 0xFFFF || hopSamples < 1 || bandEdges.length != bandNames.length * 2) {
+            throw new IllegalArgumentException("Bad band power window " + windowSamples + "/" + hopSamples
+                    + " or " + bandNames.length + " bands with " + bandEdges.length + " edges");
+        }
+        this.channels = channels;
+        this.windowSamples = windowSamples;
+        this.hopSamples = hopSamples;
+        this.bandNames = bandNames.clone();
+        this.bandEdges = bandEdges.clone();
+        window = new float[windowSamples * SampleBlock.CHANNELS];
+        nextHop = windowSamples;
+
+        int size = 1;
+        while (size < windowSamples) {
+            size <<= 1;
+        }
+        fftSize = size;
+        re = new double[fftSize];
+        im = new double[fftSize];
+        cos = new double[fftSize / 2];
+        sin = new double[fftSize / 2];
+        for (int k = 0; k < fftSize / 2; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / fftSize);
+            sin[k] = -Math.sin(2 * Math.PI * k / fftSize);
+        }
+        bitReversed = new int[fftSize];
+        int bits = Integer.numberOfTrailingZeros(fftSize);
+        for (int i = 0; i < fftSize; i++) {
+            bitReversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+
+        hann = new double[windowSamples];
+        double sumOfSquares = 0;
+        for (int i = 0; i < windowSamples; i++) {
+            hann[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (windowSamples - 1));
+            sumOfSquares += hann[i] * hann[i];
+        }
+        powerScale = 2 / (fftSize * sumOfSquares);
+
+        double binHz = sampleRate / fftSize;
+        firstBin = new int[bandNames.length];
+        endBin = new int[bandNames.length];
+        for (int b = 0; b < bandNames.length; b++) {
+            /* Never DC, never past Nyquist */
+            firstBin[b] = Math.max(1, (int) Math.ceil(bandEdges[2 * b] / binHz));
+            endBin[b] = Math.min(fftSize / 2, (int) Math.ceil(bandEdges[2 * b + 1] / binHz));
+        }
+        powers = new float[channels * bandNames.length];
+    }
+
+    /* Window and hop given in milliseconds */
+    static BandPowerExtractor eeg(double sampleRate, long windowMs, long hopMs) {
+        return new BandPowerExtractor(sampleRate, SampleBlock.CHANNELS, (int) Math.round(sampleRate * windowMs / 1000.0),
+                sampleRate * hopMs / 1000.0, DEFAULT_BAND_NAMES, DEFAULT_BAND_EDGES);
+    }
+
+    /* Unix timestamp in milliseconds of the newest sample in the window */
+    long newestTimestamp() {
+        return newestTimestamp;
+    }
+
+    int bands() {
+        return bandNames.length;
+    }
+
+    /* Add the sample in slot to the window. True when the window is full and a hop has passed, time for compute() */
+    boolean add(SampleBlock samples, int slot) {
+        System.arraycopy(samples.microVolts, SampleBlock.offset(slot), window,
+                SampleBlock.offset(windowPosition), SampleBlock.CHANNELS);
+        windowPosition = windowPosition + 1 == windowSamples ? 0 : windowPosition + 1;
+        newestIndex = samples.sampleIndex[slot];
+        newestTimestamp = samples.timestamp[slot];
+        samplesAdded++;
+        if (samplesAdded < nextHop) {
+            return false;
+        }
+        /* A fractional hop, e.g. 62.5 samples, averages out to the right rate */
+        nextHop += hopSamples;
+        return true;
+    }
+
+    /* Work out the band powers of the current window into powers */
+    void compute() {
+        for (int ch = 0; ch < channels; ch++) {
+            /* Oldest sample first, windowPosition is where the next one goes */
+            double mean = 0;
+            for (int i = 0; i < windowSamples; i++) {
+                mean += window[SampleBlock.offset(i) + ch];
+            }
+            mean /= windowSamples;
+            for (int i = 0; i < windowSamples; i++) {
+                int age = windowPosition + i < windowSamples ? windowPosition + i : windowPosition + i - windowSamples;
+                int j = bitReversed[i];
+                re[j] = (window[SampleBlock.offset(age) + ch] - mean) * hann[i];
+                im[j] = 0;
+            }
+            for (int i = windowSamples; i < fftSize; i++) {
+                re[bitReversed[i]] = 0;
+                im[bitReversed[i]] = 0;
+            }
+            fft();
+            for (int b = 0; b < bandNames.length; b++) {
+                double power = 0;
+                for (int k = firstBin[b]; k < endBin[b]; k++) {
+                    power += re[k] * re[k] + im[k] * im[k];
+                }
+                powers[ch * bandNames.length + b] = (float) (power * powerScale);
+            }
+        }
+    }
+
+    /* In place radix-2 decimation in time FFT of re/im, which are already in bit reversed order */
+    private void fft() {
+        for (int half = 1; half < fftSize; half <<= 1) {
+            int step = fftSize / (half << 1);
+            for (int start = 0; start < fftSize; start += half << 1) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = sin[k * step];
+                    int even = start + k;
+                    int odd = even + half;
+                    double tr = re[odd] * wr - im[odd] * wi;
+                    double ti = re[odd] * wi + im[odd] * wr;
+                    re[odd] = re[even] - tr;
+                    im[odd] = im[even] - ti;
+                    re[even] += tr;
+                    im[even] += ti;
+                }
+            }
+        }
+    }
+
+    /* Write the last compute() result as a band power message */
+    void encode(MessageBuffer out) {
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(VERSION);
+        out.put((byte) channels);
+        out.put((byte) bandNames.length);
+        out.put((byte) 0);
+        out.putShort(windowSamples);
+        out.putLong(newestIndex);
+        out.putLong(newestTimestamp);
+        for (float power : powers) {
+            out.putFloat(power);
+        }
+    }
+
+    /* Band names and edges for a message header, e.g. "delta:1.0-4.0,theta:4.0-8.0" */
+    String describeBands() {
+        StringBuilder text = new StringBuilder();
+        for (int b = 0; b < bandNames.length; b++) {
+            if (b > 0) {
+                text.append(',');
+            }
+            text.append(bandNames[b]).append(':').append(bandEdges[2 * b]).append('-').append(bandEdges[2 * b + 1]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,215 @@
+package com.michael.bci;
+
+import android.util.Log;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Michael McMahon
+ * BatchPublisher groups consecutive EEG samples into one AMQP message instead of publishing every
+ * sample on its own, which over 4G means 250 small frames a second each paying AMQP framing and
+ * broker overhead. A batch is encoded by the configured SampleCodec and sent as soon as it reaches
+ * maxSamples, maxBytes or has been open for maxLingerMs, whichever comes first. Each message carries
+ * first_sn, sample_count and session_id headers so consumers can unpack and order batches, and seq,
+ * capture_ts and publish_ts headers so they can measure delivery latency and spot lost or reordered
+ * batches. seq counts the live batches of the stream, so a batch that had to be journaled shows as a gap.
+ * A batch that fails to publish is written to the SampleJournal, and journaled samples are replayed
+ * later through publishBackfill() with backfill and journal_seq headers added.
+ */
+final class BatchPublisher {
+
+    public final static String TAG = "BCI_BATCH";
+
+    /* AMQP header names */
+    static final String HEADER_FIRST_SN = "first_sn";
+    static final String HEADER_SAMPLE_COUNT = "sample_count";
+    static final String HEADER_SESSION_ID = "session_id";
+    static final String HEADER_BACKFILL = "backfill";
+    static final String HEADER_JOURNAL_SEQ = "journal_seq";
+    static final String HEADER_FILTER = "filter";
+    static final String HEADER_DECIMATION = "decimation";
+    static final String HEADER_SAMPLE_RATE = "sample_rate";
+    /* Delivery latency headers: message sequence of the stream, unix ms the oldest sample was captured and the message published */
+    static final String HEADER_SEQ = "seq";
+    static final String HEADER_CAPTURE_TS = "capture_ts";
+    static final String HEADER_PUBLISH_TS = "publish_ts";
+
+    /* Does the actual basicPublish of a finished batch. samples holds the batch until send returns,
+     * journalSequence is the journal sequence of its first sample, or 0 for live data */
+    interface Sender {
+        void send(AMQP.BasicProperties properties, byte[] body, SampleBlock samples, long journalSequence) throws IOException;
+    }
+
+    private final Sender sender;
+    private final SampleCodec codec;
+    private final String sessionId;
+    private final SampleJournal journal;
+    private final int maxBytes;
+    private final long maxLingerNanos;
+
+    /* Samples in the open batch and their encoded message body */
+    private final SampleBlock batch;
+    private final MessageBuffer body;
+    private long openedNanos;
+    /* Separate body for replayed samples, so a replay never disturbs the open batch */
+    private final MessageBuffer backfillBody;
+    /* Headers sent on every batch of this stream, e.g. the filter chain */
+    private final Map<String, Object> streamHeaders = new HashMap<>();
+    /* Encode and publish timings, null when this stream is not timed */
+    private PipelineMetrics metrics;
+    /* seq of the last live batch */
+    private long sequence;
+
+    /* maxSamples is capped at 65535, the most a binary batch header can count. journal may be null */
+    BatchPublisher(Sender sender, SampleCodec codec, String sessionId, SampleJournal journal,
+                   int maxSamples, int maxBytes, long maxLingerMs) {
+        this.sender = sender;
+        this.codec = codec;
+        this.sessionId = sessionId;
+        this.journal = journal;
+        this.maxBytes = maxBytes;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMs);
+        batch = new SampleBlock(Math.min(maxSamples, 0xFFFF));
+        body = new MessageBuffer(maxBytes);
+        backfillBody = new MessageBuffer(maxBytes);
+    }
+
+    /* Add the sample in slot to the open batch, publishing the batch when one of the limits is reached */
+    void add(SampleBlock samples, int slot) throws IOException {
+        if (batch.size == 0) {
+            openedNanos = System.nanoTime();
+            codec.begin(body);
+        }
+        int mark = body.length();
+        /* Codecs are given the batch itself, so they can refer back to the samples before this one */
+        batch.set(batch.size, samples, slot);
+        long encodeStart = PipelineMetrics.ENABLED && metrics != null ? System.nanoTime() : 0;
+        codec.append(body, batch, batch.size, batch.size);
+        if (PipelineMetrics.ENABLED && metrics != null) {
+            metrics.encode.record(System.nanoTime() - encodeStart);
+        }
+
+        /* If this sample took the open batch over maxBytes publish the batch without it and start a new one */
+        if (batch.size > 0 && body.length() > maxBytes) {
+            body.truncate(mark);
+            try {
+                flush();
+            } finally {
+                /* Even if that publish failed this sample opens the next batch, so it is not lost */
+                openedNanos = System.nanoTime();
+                codec.begin(body);
+                batch.set(0, samples, slot);
+                codec.append(body, batch, 0, 0);
+                batch.size = 1;
+            }
+        } else {
+            batch.size++;
+        }
+
+        if (batch.isFull() || body.length() >= maxBytes) {
+            flush();
+        }
+    }
+
+    /* True when the open batch has waited maxLingerMs and should be published even though it is not full */
+    boolean isDue() {
+        return batch.size > 0 && System.nanoTime() - openedNanos >= maxLingerNanos;
+    }
+
+    /* How long the publisher thread can wait for more samples before the open batch is due */
+    long nanosUntilDue(long maxNanos) {
+        if (batch.size == 0) {
+            return maxNanos;
+        }
+        return Math.max(0, Math.min(maxNanos, openedNanos + maxLingerNanos - System.nanoTime()));
+    }
+
+    /* Send header with every following batch, for details that hold for the whole stream */
+    void setStreamHeader(String name, Object value) {
+        streamHeaders.put(name, value);
+    }
+
+    /* Record the encode and publish times of this stream in metrics */
+    void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    int size() {
+        return batch.size;
+    }
+
+    /* Publish the open batch, if any. If publishing fails the batch goes to the journal */
+    void flush() throws IOException {
+        if (batch.size == 0) {
+            return;
+        }
+        try {
+            send(batch, body, sessionId, 0);
+        } catch (IOException e) {
+            if (journal != null) {
+                journal.append(batch);
+                Log.w(TAG, "RMQ: Journaled batch of " + batch.size + " samples after publish failed");
+            }
+            throw e;
+        } finally {
+            batch.clear();
+            body.clear();
+        }
+    }
+
+    /* Journal the open batch without trying to publish it, e.g. while the broker is known to be down */
+    void journalOpenBatch() {
+        if (journal != null) {
+            journal.append(batch);
+        }
+        batch.clear();
+        body.clear();
+    }
+
+    /* Publish every sample in block as one message straight away, used to replay journaled samples */
+    void publishBackfill(SampleBlock block, String sessionId, long firstJournalSequence) throws IOException {
+        backfillBody.clear();
+        codec.begin(backfillBody);
+        for (int slot = 0; slot < block.size; slot++) {
+            codec.append(backfillBody, block, slot, slot);
+        }
+        send(block, backfillBody, sessionId, firstJournalSequence);
+    }
+
+    /* Finish the body and publish it with the batch headers, journalSequence is 0 for live data */
+    private void send(SampleBlock samples, MessageBuffer out, String sessionId, long journalSequence) throws IOException {
+        codec.end(out, samples.size);
+        Map<String, Object> headers = new HashMap<>(streamHeaders);
+        headers.put(HEADER_FIRST_SN, samples.sampleNumber[0]);
+        headers.put(HEADER_SAMPLE_COUNT, samples.size);
+        headers.put(HEADER_SESSION_ID, sessionId);
+        headers.put(HEADER_CAPTURE_TS, samples.timestamp[0]);
+        if (journalSequence > 0) {
+            headers.put(HEADER_BACKFILL, true);
+            headers.put(HEADER_JOURNAL_SEQ, journalSequence);
+        } else {
+            headers.put(HEADER_SEQ, ++sequence);
+        }
+        headers.put(HEADER_PUBLISH_TS, System.currentTimeMillis());
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .contentType(codec.contentType())
+                .headers(headers)
+                .build();
+        if (Trace.VERBOSE) {
+            Log.d(TAG, "RMQ: Publish batch of " + samples.size + " samples, " + out.length() + " bytes " + codec.contentType());
+        }
+        byte[] message = out.toByteArray();
+        if (PipelineMetrics.ENABLED && metrics != null) {
+            long publishStart = System.nanoTime();
+            sender.send(properties, message, samples, journalSequence);
+            metrics.publish.record(System.nanoTime() - publishStart);
+        } else {
+            sender.send(properties, message, samples, journalSequence);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package com.michael.bci;
+
+import android.util.Log;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeoutException;
+
+/* BciPublisher class is the publisher stage of the EEG pipeline. It runs on its own thread, takes
+ * decoded samples from the SampleRing filled by the BciReceiver thread and publishes them to the
+ * RabbitMQ broker in batches, so a broker or 4G stall never holds up draining the FTDI Rx buffer.
+ * While the broker is unreachable samples go to the SampleJournal instead, and once it is back the
+ * journaled samples are replayed at a limited rate alongside the live data.
+ * With publisherConfirms on, the channel is put in confirm mode and a batch only counts as delivered
+ * once the broker acks it; a nacked batch, or one still unconfirmed when the channel closes, is
+ * journaled again so the replay retries it. Confirms arrive on the connection thread, which hands the
+ * batches over so the journal's disk writes are done on the publisher thread.
+ * Every healthIntervalMs it also publishes the StreamHealth loss counters on the "health" routing key.
+ * Every message carries seq, capture_ts and publish_ts headers, so the consumer can measure end-to-end
+ * delivery latency.
+ * In StreamMode.FILTERED the main stream is run through the BiquadFilterBank and published on the
+ * "filtered" routing key instead. The best effort streams next to the main one are PublisherStages the
+ * loop runs in turn: the FilteredStream in StreamMode.BOTH, the FeatureStream band powers, a
+ * DecimatedStream per decimationFactors entry and the MetricsStream latency histograms. With
+ * answerClockPings on, the loop also polls the ClockPong that answers a consumer's clock pings. */
+public class BciPublisher {
+
+    /* RAW publishes the decoded samples on "black". FILTERED publishes filtered samples on "filtered"
+     * instead, with the journal and confirms. BOTH publishes the raw samples as usual plus a best effort
+     * "filtered" stream through a StreamPublisher. Samples the ring spills straight to the journal skip the
+     * publisher thread, so in FILTERED mode those are replayed unfiltered */
+    public enum StreamMode { RAW, FILTERED, BOTH }
+
+    public final static String TAG = "BCI_PUBLISHER";
+    /* Samples taken from the ring per publishing pass */
+    private static final int DRAIN_SIZE = 64;
+    /* How long the publisher parks when the ring is empty before checking the service is still running */
+    private static final long AWAIT_NANOS = 50_000_000L;
+    /* After a failed publish, samples go straight to the journal for this long before the broker is tried again */
+    private static final long RETRY_NANOS = 5_000_000_000L;
+
+    private final SampleRing ring;
+    private final SampleBlock samples = new SampleBlock(DRAIN_SIZE);
+    private BatchPublisher batchPublisher;
+
+    /* Filter chain of the main stream, null unless it publishes filtered samples */
+    private BiquadFilterBank filterBank;
+    private final SampleBlock filtered = new SampleBlock(DRAIN_SIZE);
+
+    /* Every best effort stream next to the main one */
+    private final ArrayList<PublisherStage> stages = new ArrayList<>();
+    /* Answers consumer clock pings, null unless answerClockPings is on */
+    private ClockPong clockPong;
+
+    private SampleJournal journal;
+    private SampleBlock backfill;
+    private long retryNanos;
+    /* Token bucket limiting the journal replay to backfillSamplesPerSecond */
+    private long backfillSamplesPerSecond;
+    private double backfillTokens;
+    private long backfillRefillNanos;
+
+    /* A published batch waiting for its confirm. Live batches keep a copy of their samples so a nack
+     * can journal them, replayed batches only need their journal sequences */
+    private static final class InFlightBatch {
+        final SampleBlock samples;
+        long firstSequence;
+        long lastSequence;
+        /* When the batch was handed to basicPublish, for the confirm latency */
+        long publishedNanos;
+        boolean acked;
+
+        InFlightBatch(int capacity) {
+            samples = new SampleBlock(capacity);
+        }
+    }
+
+    private ConfirmTracker<InFlightBatch> confirms;
+    private int maxInFlight;
+    private long confirmTimeoutMs;
+    /* One InFlightBatch per slot in the confirm window, reused so publishing does not allocate */
+    private final ArrayDeque<InFlightBatch> freeBatches = new ArrayDeque<>();
+    /* Batches the broker has acked or nacked, waiting for the publisher thread to update the journal */
+    private final ArrayDeque<InFlightBatch> confirmedBatches = new ArrayDeque<>();
+
+    private Channel channel_1;
+    /* Health messages are best effort, on their own channel without confirms */
+    private Channel healthChannel;
+    private static final String HEALTH_QUEUE_NAME = "bci_health";
+    private static final String HEALTH_ROUTING_KEY = "health";
+    private StreamHealth health;
+    private FlightRecorder flightRecorder;
+    /* A broker in trouble can nack every batch */
+    private final Trace.Limiter nackLog = new Trace.Limiter(10_000);
+    private String sessionId;
+    private long healthIntervalNanos;
+    private long nextHealthNanos;
+    private PipelineMetrics metrics;
+    private static final String EXCHANGE_NAME = RabbitmqConnection.EXCHANGE_NAME; //RabbitMQ Exchange Name
+    private static final String QUEUE_NAME = "bci_data"; //RabbitMQ Queue Name
+    private static final String ROUTING_KEY = "black";
+    /* Where the main, confirmed EEG stream goes */
+    private String queueName = QUEUE_NAME;
+    private String routingKey = ROUTING_KEY;
+
+    BciPublisher(SampleRing ring) {
+        this.ring = ring;
+    }
+
+    /* Method to create thread which will publish the samples queued by the receiver thread */
+    void startPublisherThread(BciService bciService) {
+        journal = bciService.journal;
+        health = bciService.health;
+        flightRecorder = bciService.flightRecorder;
+        metrics = bciService.metrics;
+        sessionId = bciService.sessionId;
+        healthIntervalNanos = bciService.healthIntervalMs * 1_000_000L;
+        nextHealthNanos = System.nanoTime() + healthIntervalNanos;
+        backfill = new SampleBlock(bciService.batchMaxSamples);
+        backfillSamplesPerSecond = bciService.backfillSamplesPerSecond;
+        backfillRefillNanos = System.nanoTime();
+        if (bciService.publisherConfirms) {
+            maxInFlight = bciService.maxInFlightBatches;
+            confirmTimeoutMs = bciService.confirmTimeoutMs;
+            for (int i = 0; i < bciService.maxInFlightBatches; i++) {
+                freeBatches.add(new InFlightBatch(bciService.batchMaxSamples));
+            }
+            confirms = new ConfirmTracker<>(bciService.maxInFlightBatches, new ConfirmTracker.Listener<InFlightBatch>() {
+                @Override
+                public void acked(InFlightBatch batch) {
+                    if (PipelineMetrics.ENABLED) {
+                        metrics.confirm.record(System.nanoTime() - batch.publishedNanos);
+                    }
+                    batch.acked = true;
+                    confirmBatch(batch);
+                }
+
+                @Override
+                public void nacked(InFlightBatch batch) {
+                    batch.acked = false;
+                    confirmBatch(batch);
+                }
+            });
+        }
+        batchPublisher = new BatchPublisher(this::SendBatch, bciService.publishCodec, bciService.sessionId, journal,
+                bciService.batchMaxSamples, bciService.batchMaxBytes, bciService.batchMaxLingerMs);
+        if (PipelineMetrics.ENABLED) {
+            batchPublisher.setMetrics(metrics);
+        }
+        if (bciService.streamMode == StreamMode.FILTERED) {
+            filterBank = BiquadFilterBank.eeg(OpenBci.SAMPLE_RATE, bciService.notchHz, bciService.highPassHz, bciService.lowPassHz);
+            queueName = FilteredStream.QUEUE_NAME;
+            routingKey = FilteredStream.ROUTING_KEY;
+            batchPublisher.setStreamHeader(BatchPublisher.HEADER_FILTER, filterBank.describe());
+        }
+        if (bciService.publishFeatures) {
+            stages.add(new FeatureStream(bciService));
+        }
+        if (bciService.streamMode == StreamMode.BOTH) {
+            stages.add(new FilteredStream(bciService, BiquadFilterBank.eeg(OpenBci.SAMPLE_RATE,
+                    bciService.notchHz, bciService.highPassHz, bciService.lowPassHz), DRAIN_SIZE));
+        }
+        for (int factor : bciService.decimationFactors) {
+            stages.add(new DecimatedStream(bciService, factor, filterBank == null ? null : filterBank.describe(), DRAIN_SIZE));
+        }
+        if (PipelineMetrics.ENABLED) {
+            stages.add(new MetricsStream(bciService));
+        }
+        if (bciService.answerClockPings) {
+            clockPong = new ClockPong();
+        }
+
+        Thread publisherThread = new Thread("publisher") {
+            public void run() {
+                /* Keep going until the service stops, then publish whatever is still queued */
+                while (bciService.receiverThreadRunning || ring.size() > 0) {
+                    samples.clear();
+                    if (ring.drainTo(samples) > 0) {
+                        SampleBlock published = FilterSamples(samples);
+                        for (int i = 0; i < stages.size(); i++) {
+                            stages.get(i).process(samples, published);
+                        }
+                        PublishSamples(published);
+                    } else {
+                        /* Wake up in time to send a partly filled batch once it has lingered long enough */
+                        long awaitNanos = batchPublisher.nanosUntilDue(AWAIT_NANOS);
+                        for (int i = 0; i < stages.size(); i++) {
+                            awaitNanos = stages.get(i).nanosUntilDue(awaitNanos);
+                        }
+                        ring.awaitSamples(awaitNanos);
+                        if (batchPublisher.isDue()) {
+                            PublishSamples(null);
+                        }
+                    }
+                    for (int i = 0; i < stages.size(); i++) {
+                        stages.get(i).poll();
+                    }
+                    if (clockPong != null) {
+                        clockPong.poll();
+                    }
+                    ProcessConfirms();
+                    ReplayJournal();
+                    PublishHealth();
+                }
+                PublishSamples(null);
+                for (int i = 0; i < stages.size(); i++) {
+                    stages.get(i).close();
+                }
+                if (clockPong != null) {
+                    clockPong.close();
+                }
+                try {
+                    if (confirms != null && !confirms.awaitDrained(confirmTimeoutMs)) {
+                        Log.w(TAG, "RMQ: Stopping with unconfirmed batches, " + confirms);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                CloseChannel();
+                /* Journal whatever the broker did not confirm before the service closes the journal */
+                ProcessConfirms();
+                Log.d(TAG, "publisher thread stopped.");
+            }
+        };
+        flightRecorder.watch(publisherThread);
+        bciService.publisherThread = publisherThread;
+        publisherThread.start();
+    }
+
+    /* FilterSamples Method runs the samples through the filter chain and returns the block the main stream publishes */
+    private SampleBlock FilterSamples(SampleBlock samples) {
+        if (filterBank == null) {
+            return samples;
+        }
+        filtered.clear();
+        filterBank.process(samples, filtered);
+        return filtered;
+    }
+
+    /* PublishSamples Method adds the samples to the open batch, or just publishes the open batch when samples is null */
+    void PublishSamples(SampleBlock samples) {
+        int slot = 0;
+        try {
+            if (isBrokerDown()) {
+                /* Don't wait on a broker we know is unreachable, keep the samples in the journal */
+                batchPublisher.journalOpenBatch();
+                if (samples != null) {
+                    journal.append(samples);
+                }
+                return;
+            }
+            if (samples == null) {
+                batchPublisher.flush();
+                return;
+            }
+            for (; slot < samples.size; slot++) {
+                batchPublisher.add(samples, slot);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            health.publishFailures++;
+            flightRecorder.recordEvent(FlightRecorder.PUBLISH_FAILED, samples == null ? 0 : samples.size, health.publishFailures);
+            if (!(e instanceof IOException)) {
+                /* Not the broker going away, something is wrong on the phone */
+                flightRecorder.requestDump("publish_exception", false);
+            }
+            retryNanos = System.nanoTime() + RETRY_NANOS;
+            /* The failed batch is already journaled, journal the rest of this block as well */
+            if (journal != null && samples != null) {
+                for (slot++; slot < samples.size; slot++) {
+                    journal.append(samples, slot);
+                }
+            }
+            // If we hit any issues, close the RabbitMQ channel, so that it is re-created on the next read.
+            CloseChannel();
+            Log.d(TAG, "RMQ: Close Loop Channel for EEG");
+        }
+    }
+
+    /* ProcessConfirms Method updates the journal for the batches the broker has acked or nacked since the last pass */
+    private void ProcessConfirms() {
+        while (true) {
+            InFlightBatch batch;
+            synchronized (confirmedBatches) {
+                batch = confirmedBatches.poll();
+            }
+            if (batch == null) {
+                return;
+            }
+            if (batch.acked) {
+                if (batch.firstSequence > 0) {
+                    journal.confirm(batch.firstSequence, batch.lastSequence);
+                }
+            } else {
+                if (batch.firstSequence > 0) {
+                    /* Still in the journal, replay just this batch again */
+                    journal.retry(batch.firstSequence, batch.lastSequence);
+                } else if (journal != null) {
+                    journal.append(batch.samples);
+                }
+                flightRecorder.recordEvent(FlightRecorder.BATCH_NACKED, batch.samples.size, batch.firstSequence);
+                if (nackLog.allow()) {
+                    Log.w(TAG, "RMQ: Batch of " + batch.samples.size + " samples not confirmed by the broker, "
+                            + nackLog.takeSuppressed() + " more since the last warning");
+                }
+            }
+            releaseBatch(batch);
+        }
+    }
+
+    /* ReplayJournal Method publishes one batch of journaled samples when the rate limit allows it */
+    private void ReplayJournal() {
+        if (journal == null || isBrokerDown() || journal.pending() == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        backfillTokens = Math.min(backfill.capacity,
+                backfillTokens + (now - backfillRefillNanos) * backfillSamplesPerSecond / 1e9);
+        backfillRefillNanos = now;
+        if (backfillTokens < backfill.capacity) {
+            return;
+        }
+        /* Leave at least half of the confirm window to the live data */
+        if (confirms != null && confirms.inFlight() * 2 >= maxInFlight) {
+            return;
+        }
+
+        backfill.clear();
+        String sessionId = journal.read(backfill);
+        if (sessionId == null) {
+            return;
+        }
+        long firstSequence = journal.firstReadSequence();
+        try {
+            batchPublisher.publishBackfill(backfill, sessionId, firstSequence);
+            if (confirms == null) {
+                journal.confirm(firstSequence, firstSequence + backfill.size - 1);
+            }
+            backfillTokens -= backfill.size;
+        } catch (IOException e) {
+            e.printStackTrace();
+            health.publishFailures++;
+            journal.retry(firstSequence, firstSequence + backfill.size - 1);
+            retryNanos = System.nanoTime() + RETRY_NANOS;
+            CloseChannel();
+        }
+    }
+
+    /* PublishHealth Method sends the loss counters once every healthIntervalMs */
+    private void PublishHealth() {
+        long now = System.nanoTime();
+        if (now - nextHealthNanos < 0) {
+            return;
+        }
+        nextHealthNanos = now + healthIntervalNanos;
+        if (isBrokerDown()) {
+            return;
+        }
+        try {
+            if (healthChannel == null) {
+                healthChannel = RabbitmqConnection.openChannel(HEALTH_QUEUE_NAME, HEALTH_ROUTING_KEY);
+            }
+            AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                    .contentType(JsonSampleCodec.CONTENT_TYPE)
+                    .build();
+            healthChannel.basicPublish(EXCHANGE_NAME, HEALTH_ROUTING_KEY, properties,
+                    health.toJson(sessionId, ring, journal, confirms));
+        } catch (IOException | TimeoutException | ShutdownSignalException e) {
+            e.printStackTrace();
+            RabbitmqConnection.closeChannel(healthChannel);
+            healthChannel = null;
+        }
+    }
+
+    /* True while a recent publish failed and there is a journal to hold samples until the retry time */
+    private boolean isBrokerDown() {
+        return journal != null && retryNanos != 0 && System.nanoTime() - retryNanos < 0;
+    }
+
+    /* SendBatch Method connects to the RabbitMQ broker and publishes one finished batch */
+    private void SendBatch(AMQP.BasicProperties properties, byte[] body, SampleBlock samples, long journalSequence) throws IOException {
+        try {
+            Channel channel = getChannel();
+            if (confirms == null) {
+                channel.basicPublish(EXCHANGE_NAME, routingKey, properties, body);
+                health.batchesPublished++;
+                return;
+            }
+
+            /* Backpressure - wait for the broker to confirm earlier batches before sending more */
+            if (!confirms.awaitCapacity(confirmTimeoutMs)) {
+                throw new IOException("RMQ: No confirms from the broker for " + confirmTimeoutMs + "ms, " + confirms);
+            }
+            InFlightBatch batch = acquireBatch();
+            batch.firstSequence = journalSequence;
+            batch.lastSequence = journalSequence + samples.size - 1;
+            batch.samples.clear();
+            if (journalSequence == 0) {
+                for (int slot = 0; slot < samples.size; slot++) {
+                    batch.samples.set(slot, samples, slot);
+                }
+            }
+            batch.samples.size = samples.size;
+
+            long deliveryTag = channel.getNextPublishSeqNo();
+            batch.publishedNanos = System.nanoTime();
+            confirms.add(deliveryTag, batch);
+            try {
+                channel.basicPublish(EXCHANGE_NAME, routingKey, properties, body);
+                health.batchesPublished++;
+            } catch (IOException | ShutdownSignalException e) {
+                /* The caller journals this batch itself */
+                confirms.cancel(deliveryTag);
+                releaseBatch(batch);
+                throw e;
+            }
+        } catch (ShutdownSignalException e) {
+            /* The channel or the shared connection is closed, possibly while it recovers */
+            throw new IOException(e);
+        } catch (TimeoutException e) {
+            throw new IOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private InFlightBatch acquireBatch() {
+        synchronized (freeBatches) {
+            InFlightBatch batch = freeBatches.poll();
+            return batch != null ? batch : new InFlightBatch(backfill.capacity);
+        }
+    }
+
+    /* Called on the connection thread once the broker acks or nacks the batch, the journal is left to the publisher thread */
+    private void confirmBatch(InFlightBatch batch) {
+        synchronized (confirmedBatches) {
+            confirmedBatches.add(batch);
+        }
+    }
+
+    private void releaseBatch(InFlightBatch batch) {
+        synchronized (freeBatches) {
+            freeBatches.add(batch);
+        }
+    }
+
+    /* Open the EEG channel on the shared RabbitMQ connection */
+    private Channel getChannel() throws IOException, TimeoutException {
+        // Only create the channel if it doesn't already exist
+        if (channel_1 == null)
+        {
+            channel_1 = RabbitmqConnection.openChannel(queueName, routingKey);
+            if (confirms != null) {
+                try {
+                    channel_1.confirmSelect();
+                } catch (IOException e) {
+                    CloseChannel();
+                    throw e;
+                }
+                channel_1.addConfirmListener(confirms);
+                /* Confirms outstanding when the channel goes will never come, journal those batches again */
+                channel_1.addShutdownListener(cause -> confirms.failAll());
+            }
+        }
+        return channel_1;
+    }
+
+    // Drop the EEG channel so it is re-opened on the next publish, the shared connection recovers by itself
+    private void CloseChannel() {
+        RabbitmqConnection.closeChannel(healthChannel);
+        healthChannel = null;
+        if (channel_1 != null)
+        {
+            Channel channel = channel_1;
+            channel_1 = null;
+            RabbitmqConnection.closeChannel(channel);
+            Log.d(TAG, "RMQ: Close Channel 1 for EEG");
+        }
+        if (confirms != null) {
+            confirms.failAll();
+        }
+    }
+}
@@ -2,25 +2,11 @@ package com.michael.bci;
 
 import android.util.Log;
 
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-
-import java.io.IOException;
-import java.io.Serializable;
-import java.nio.charset.StandardCharsets;
-import java.util.LinkedHashMap;
-
-import org.json.simple.JSONValue;
-
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.concurrent.TimeoutException;
-
 
 /* BciReceiver class groups methods for receiving data from the OpenBCI Board
- * The EEG data streams back from the Board to the App continuously (once started).*/
+ * The EEG data streams back from the Board to the App continuously (once started).
+ * The receiver thread only drains the FTDI queue and decodes packets - decoded samples are handed
+ * to the BciPublisher thread through a SampleRing, so publishing never blocks USB reads.*/
 public class BciReceiver {
 
     public final static String TAG = "BCI_RECEIVER";
@@ -29,293 +15,154 @@ public class BciReceiver {
     /* One byte header 0x41 then 31 bytes of data followed by where X is 0-F in hex */
     public static final byte readData_SIZE = (byte)33;
     /* Header and Footer Bytes for each packet */
-    final static byte START_BYTE = (byte)0xA0;
-    final static byte END_BYTE = (byte)0xC0;
-
-    public byte[] remainingBytes;
-
-    /* Ensure startReceiverThread block is synchronized on "private final" field */
-    private final Object lockObj = new Object();
-    private Connection connection;
-    private Channel channel_1;
-    private static final String EXCHANGE_NAME = "exchange_1"; //RabbitMQ Exchange Name
-    private static final String QUEUE_NAME = "bci_data"; //RabbitMQ Queue Name
+    final static byte START_BYTE = CytonFrameDecoder.START_BYTE;
+    final static byte END_BYTE = CytonFrameDecoder.END_BYTE;
+
+    /* Streaming packet decoder - keeps partial packets between reads in its ring buffer */
+    private final CytonFrameDecoder decoder = new CytonFrameDecoder();
+    /* Timestamps samples from the board sample counter rather than the bursty USB read time */
+    private final SampleClock sampleClock = new SampleClock(OpenBci.SAMPLE_RATE);
+    /* Reused for every read, large enough for all packets in one TRANSFER_SIZE read */
+    private final SampleBlock samples = new SampleBlock(TRANSFER_SIZE / readData_SIZE);
+    /* Ring of preallocated sample slots between the receiver and publisher threads, 4096 = ~16s at 250Hz */
+    public static final int RING_CAPACITY = 4096;
+    /* How often the receiver logs the read strategy CPU and latency figures */
+    private static final long STATS_INTERVAL_MS = 10_000L;
+    private SampleRing ring;
+    /* Keeps the raw reads and events for a dump, logging per read is left to Trace.VERBOSE builds */
+    private FlightRecorder flightRecorder;
+    /* Warnings that could otherwise fire on every read */
+    private static final long WARNING_INTERVAL_MS = 10_000L;
+    private final Trace.Limiter ringFullLog = new Trace.Limiter(WARNING_INTERVAL_MS);
+    private final Trace.Limiter noSyncLog = new Trace.Limiter(WARNING_INTERVAL_MS);
 
     /* Method to create thread which will receive and process data from the OpenBCI Cyton Board */
     void startReceiverThread(BciService bciService) {
 
         bciService.receiverThreadRunning = true;
+        SampleRing.OverflowPolicy overflowPolicy = bciService.overflowPolicy;
+        if (overflowPolicy == SampleRing.OverflowPolicy.SPILL && bciService.overflowSpill == null) {
+            Log.w(TAG, "No spill handler, dropping the oldest samples on overflow instead");
+            overflowPolicy = SampleRing.OverflowPolicy.DROP_OLDEST;
+        }
+        ring = new SampleRing(RING_CAPACITY, overflowPolicy, bciService.overflowSpill);
+        flightRecorder = bciService.flightRecorder;
+
+        /* Start the publisher thread which takes the decoded samples off the ring */
+        new BciPublisher(ring).startPublisherThread(bciService);
 
         //CONSIDER Runnable runnable = new Runnable()
-        new Thread("receiver") {
+        Thread receiverThread = new Thread("receiver") {
             public void run() {
-                //Create BCIReceiver Object Instance
-                BciReceiver BciReceiverMain = new BciReceiver();
-
                 byte[] readData = new byte[TRANSFER_SIZE];
+                ReadStrategy readStrategy = bciService.readStrategy;
+                StreamHealth health = bciService.health;
+                PipelineMetrics metrics = bciService.metrics;
+                long statsTime = System.currentTimeMillis();
 
                 while (bciService.receiverThreadRunning) {
-
-                    synchronized (lockObj) {
-                        /* Retrieves the number of bytes available to read from the FT_Device driver Rx buffer */
-                        int bytesAvailable = bciService.ftDevice.getQueueStatus();
-                        //Log.d(TAG, "bytesAvailable 1 " + bytesAvailable);
-
-                        /* If bytes available then pass the bytes available info to the ReadQueue Method */
-                        if (bytesAvailable > 0) {
-                            BciReceiverMain.ReadQueue(readData, bytesAvailable, bciService);
+                    /* Wait for the FTDI driver or simulator Rx buffer using the configured strategy instead of spinning */
+                    long readStart = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+                    int bytesRead = readStrategy.read(bciService.byteSource, readData, TRANSFER_SIZE);
+
+                    if (bytesRead < 0) {
+                        flightRecorder.recordEvent(FlightRecorder.READ_ERROR, bytesRead, 0);
+                        /* The dongle was unplugged or a replay has run out, stop and let the publisher drain */
+                        if (!bciService.byteSource.isOpen()) {
+                            Log.w(TAG, "USB: Byte source closed, stopping the receiver");
+                            bciService.receiverThreadRunning = false;
+                            break;
+                        }
+                    }
+                    /* If bytes were read then pass them to the ReadQueue Method */
+                    if (bytesRead > 0) {
+                        long decodeStart = 0;
+                        if (PipelineMetrics.ENABLED) {
+                            decodeStart = System.nanoTime();
+                            metrics.usbRead.record(decodeStart - readStart);
+                        }
+                        health.usbReads++;
+                        health.usbBytes += bytesRead;
+                        if (bciService.byteSource.readBufferFull()) {
+                            health.usbRxFull++;
+                        }
+                        long syncLosses = decoder.syncLosses();
+                        long samplesLost = sampleClock.lostSamples();
+                        ReadQueue(readData, bytesRead, bciService);
+                        health.updateParsing(decoder, sampleClock);
+                        if (sampleClock.lostSamples() != samplesLost) {
+                            flightRecorder.recordEvent(FlightRecorder.SAMPLES_LOST, sampleClock.lostSamples() - samplesLost, sampleClock.lostSamples());
+                        }
+                        if (decoder.syncLosses() != syncLosses) {
+                            flightRecorder.recordEvent(FlightRecorder.SYNC_LOST, decoder.syncLosses(), decoder.resyncBytes());
+                            flightRecorder.requestDump("sync_loss", false);
+                        }
+                        if (PipelineMetrics.ENABLED) {
+                            metrics.decode.record(System.nanoTime() - decodeStart);
                         }
                     }
+
+                    if (System.currentTimeMillis() - statsTime >= STATS_INTERVAL_MS) {
+                        Log.i(TAG, "USB: " + readStrategy);
+                        Log.i(TAG, "USB: " + sampleClock);
+                        readStrategy.resetStats();
+                        statsTime = System.currentTimeMillis();
+                    }
                 }
 
+                ring.close();
                 Log.d(TAG, "receiver thread stopped.");
             }
-        }.start();
+        };
+        flightRecorder.watch(receiverThread);
+        receiverThread.start();
     }
 
-    /* Create RabbitMQ Connection to the Broker */
-    private Connection getConnection() throws IOException, TimeoutException {
-        // Only create the connection if it doesn't already exist
-        if (connection == null)
+    /* ReadQueue Method takes the bytes read from the ftDevice device queue
+     * decodes the packets and queues the samples for the publisher thread */
+    public void ReadQueue(byte[] readData, int bytesRead, BciService bciService) {
+        if (bytesRead > 0)
         {
-            try
-            {
-                ConnectionFactory factory = RabbitmqConnection.getConnectionFactory();
-                connection =  factory.newConnection();
-            }
-            catch(Exception e)
-            {
-                // Clean up
-                if (connection != null)
-                {
-                    connection.close();
-                    connection = null;
+            /* The raw bytes go to the flight recorder rather than the log */
+            flightRecorder.recordRead(readData, bytesRead);
+            if (Trace.VERBOSE) {
+                if (bytesRead % readData_SIZE == 0 && readData[0] == START_BYTE) {
+                    Log.d(TAG, "received data " + bytesRead + " bytes " + ((float)bytesRead/ readData_SIZE));
+                } else {
+                    Log.d(TAG, "received data " + bytesRead + " bytes ("+((float)bytesRead / readData_SIZE)+"), but readData size/start byte (" + readData[0] + ") is incorrect");
                 }
-                throw e;
             }
-        }
-        return connection;
-    }
-
-    /* Create RabbitMQ Channel on Broker */
-    private Channel getChannel() throws IOException, TimeoutException {
-        // Only create the channel if it doesn't already exist
-        if (channel_1 == null)
-        {
-            try
-            {
-                //channel_1 = RabbitmqConnection.getConnection().createChannel();
-                channel_1 = getConnection().createChannel();
-                channel_1.exchangeDeclare(EXCHANGE_NAME, "direct", true);
-                channel_1.queueDeclare(QUEUE_NAME, false, false, false, null);
-                channel_1.queueBind(QUEUE_NAME, EXCHANGE_NAME, "black");
-            }
-            catch(Exception e)
-            {
-                // Clean up
-                if (channel_1 != null)
-                {
-                    channel_1.close();
-                    channel_1 = null;
-                }
 
-                throw e;
-            }
-        }
-        Log.d(TAG, "RMQ: Open Channel 1 for EEG" +channel_1);
-        return channel_1;
-    }
-
-    // Cleanup the channel and leave it in an uninitialized state
-    private void CloseChannel() throws IOException, TimeoutException {
-        if (channel_1 != null)
-        {
-            channel_1.close();
-            channel_1 = null;
-            Log.d(TAG, "RMQ: Close Channel 1 for EEG");
-        }
-
-        if (connection != null)
-        {
-            connection.close();
-            connection = null;
-        }
-    }
-
-    /* ReadQueue Method reads data from the ftDevice device queue
-     * Connects to the RabbitMQ broker and loops through the data */
-    public void ReadQueue(byte[] readData, int bytesAvailable, BciService bciService) {
-        /* Ensure bytes available are not greater than TRANSFER_SIZE */
-        if (bytesAvailable > 0)
-        //Log.d(TAG, "bytesAvailable 2 " + bytesAvailable);
-        {
-            if (bytesAvailable > TRANSFER_SIZE) {
-                bytesAvailable = TRANSFER_SIZE;
-            }
-            Log.d(TAG, "PROCESS_DATA 1a - queStatus: " + bytesAvailable);
-
-            /*
-            Read bytes from device.
-            A call to read(byte[] data, int length) requesting up to available bytes will return with
-            the data immediately (negative number for error)
-            @param readData = Bytes array to store read bytes
-            @param length = Amount of bytes to read
-             */
-            bciService.ftDevice.read(readData, bytesAvailable);
-            Log.d(TAG, "readData_SIZE " + readData_SIZE);
-
-            Log.w(TAG, "PROCESS_DATA 1d - Broadcast Intent:" + Arrays.toString(readData));
-            if (bytesAvailable % readData_SIZE == 0 && readData[0] == START_BYTE) {
-                Log.d(TAG, "received data " + bytesAvailable + " bytes " + ((float)bytesAvailable/ readData_SIZE));
-            } else {
-                Log.d(TAG, "received data " + bytesAvailable + " bytes ("+((float)bytesAvailable / readData_SIZE)+"), but readData size/start byte (" + readData[0] + ") is incorrect");
-            }
-
-            //Work we want completed
-            try {
-                Log.w(TAG, "PROCESS_DATA 1e - Broadcast Intent:" + Arrays.toString(readData));
-
-                Channel channel = getChannel();
-                Log.d(TAG, "RMQ: Connection/Channel 1 for EEG" +channel);
-
-
-                if (readData[0] != START_BYTE) {
-                    if (remainingBytes != null) {
-                        byte[] dataTmp = new byte[remainingBytes.length + (readData.length - 1)];
-                        System.arraycopy(remainingBytes, 0, dataTmp, 0, remainingBytes.length);
-                        System.arraycopy(readData, 0, dataTmp, remainingBytes.length, readData.length -1);
-                        remainingBytes = null;
-                        readData = dataTmp;
-                    }
-                }
-
-                /* Synchronise - Add a pre-loop to scan data stream based on START_BYTE locations */
-                int iStart = 0;
-                boolean found_start_byte = false;
-                for (; iStart < readData.length -1; iStart++) {
-                    if (readData[iStart] == START_BYTE && readData[iStart + 33] == START_BYTE && readData[iStart + 66] == START_BYTE) {
-                        found_start_byte = true;
-                        break;
+            /* Add the new bytes to the decoder ring, any partial packet from the last read is still in there */
+            decoder.feed(readData, 0, bytesRead);
+            long readTime = System.currentTimeMillis();
+
+            /* Decode every complete packet, stamp it from the sample clock and queue it for the publisher thread */
+            samples.clear();
+            int notQueued = 0;
+            while (decoder.decode(samples, readTime) > 0) {
+                sampleClock.stamp(samples);
+                bciService.health.samplesDecoded += samples.size;
+                for (int slot = 0; slot < samples.size; slot++) {
+                    if (!ring.offer(samples, slot)) {
+                        notQueued++;
                     }
                 }
+                samples.clear();
+            }
 
-                if (iStart > (readData.length - 1))
-                {
-                    Log.w(TAG, "Error - we couldn't find a START_BYTE sync");
-                    return; // Error - we couldn't find a sync
-                }
-
-
-                Log.w(TAG, "Start Byte" + found_start_byte );
-                if (found_start_byte) {
-                    for (int i = 0; i < readData.length - 1; i++) {
-                        if (readData.length -1 > i + 32 && readData[i + 33] == START_BYTE && readData[i + 32] == END_BYTE) {
-                            Log.w(TAG, "PROCESS_DATA 5:" + readData.length + "|" + i);
-
-
-                            /*Encode a JSON object using LinkedHashMap so order of the entries is preserved
-                            and moved JSON construction is in its own object */
-                            LinkedHashMap<String, Serializable> obj = BciReceiver.jsonBciConstructor(readData, i);
-
-
-                            i = i + 32;
-
-                            //Log.w(TAG, "PROCESS_DATA 7: " + SampleNumber + ", " + ch1 + ", " + ch2 + "," + ch3 + ", " + ch4 + "," + ch5 + "," + ch6 + "," + ch7 +"," + ch8);
-                            //Log.w(TAG, "PROCESS_DATA 8 - DATA: Loop" + i );
-
-                            channel.basicPublish(EXCHANGE_NAME, "black", null, JSONValue.toJSONString(obj).getBytes(StandardCharsets.UTF_8));
-                            Log.w(TAG, "PROCESS_DATA_JSON: Loop" + JSONValue.toJSONString(obj) );
-                            Log.d(TAG, "USB: Bytes available to read from the Rx driver buffer: " + bciService.ftDevice.getQueueStatus()); //Retrieves the number of bytes available to read from the Rx driver buffer.
-                            Log.d(TAG, "USB: buffer is full -> Rx pending until read: " + bciService.ftDevice.readBufferFull());
-                        } else {
-                            if (readData.length - 1 < TRANSFER_SIZE) {
-                                if (readData.length -1 % readData_SIZE != 0) {
-                                    remainingBytes = Arrays.copyOfRange(readData, i, (readData.length - 1));
-                                    //Log.w(TAG, "PROCESS_DATA 9: " + Arrays.toString(remainingBytes));
-                                    //Log.w(TAG, "PROCESS_DATA 10: " + Arrays.toString(remainingBytes));
-                                }
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                // If we hit any issues, close the RabbitMQ channel, so that it is re-created on the next read.
-                try {
-                    //RabbitmqConnection.CloseConnection();
-                    CloseChannel();
-                    Log.d(TAG, "RMQ: Close Loop Channel for EEG");
-                } catch (IOException | TimeoutException ioException) {
-                    ioException.printStackTrace();
+            if (notQueued > 0) {
+                flightRecorder.recordEvent(FlightRecorder.RING_FULL, notQueued, ring.size());
+                if (ringFullLog.allow()) {
+                    Log.w(TAG, notQueued + " samples not queued, publisher is behind, "
+                            + ringFullLog.takeSuppressed() + " more reads like this since the last warning");
                 }
             }
+            if (!decoder.isSynced() && noSyncLog.allow()) {
+                Log.w(TAG, "Error - we couldn't find a START_BYTE sync, " + noSyncLog.takeSuppressed() + " more reads without sync since the last warning");
+            }
 
             //END LOOP HERE
         }
     }
-
-    /* BCI EEG Data JSON construction */
-    private static LinkedHashMap<String, Serializable> jsonBciConstructor(byte[] readData, int i)
-    {
-        LinkedHashMap<String, java.io.Serializable> obj = new LinkedHashMap<>();
-
-        Calendar calendar = Calendar.getInstance(); //Get calendar using current time zone and locale of the system.
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS"); //format and parse date-time
-        String dateString = simpleDateFormat.format(calendar.getTime()); //Create a new String using the date-time format
-        long unixTime = System.currentTimeMillis() / 1000L;
-
-        /* Check header file */
-        //obj.put("Byte1", readData[i] & 0xFF); //Header
-        obj.put("SN", readData[i + 1] & 0xFF); //SampleNumber
-        //Bytes 3-5: Data value for EEG channel 1 and convert Byte To MicroVolts
-        //float ch1 = OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 2, i + 5));
-        obj.put("ch1", OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 2, i + 5)));
-        //Bytes 6-8: Data value for EEG channel 2 and convert Byte To MicroVolts
-        //float ch2 = OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 5, i + 8));
-        obj.put("ch2", OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 5, i + 8)));
-        //Bytes 9-11: Data value for EEG channel 3 and convert Byte To MicroVolts
-        //float ch3 = OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 8, i + 11));
-        obj.put("ch3", OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 8, i + 11)));
-        //Bytes 12-14: Data value for EEG channel 4 and convert Byte To MicroVolts
-        //float ch4 = OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 11, i + 14));
-        obj.put("ch4", OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 11, i + 14)));
-        //Bytes 15-17: Data value for EEG channel 5 and convert Byte To MicroVolts
-        //float ch5 = OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 14, i + 17));
-        obj.put("ch5", OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 14, i + 17)));
-        //Bytes 18-20: Data value for EEG channel 6 and convert Byte To MicroVolts
-        //float ch6 = OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 17, i + 20));
-        obj.put("ch6", OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 17, i + 20)));
-        //Bytes 21-23: Data value for EEG channel 7 and convert Byte To MicroVolts
-        //float ch7 = OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 20, i + 23));
-        obj.put("ch7", OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 20, i + 23)));
-        //Bytes 24-26: Data value for EEG channel 8 and convert Byte To MicroVolts
-        //float ch8 = OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 23, i + 26));
-        obj.put("ch8", OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(readData, i + 23, i + 26)));
-        //Bytes 27-28: Data value for accelerometer channel X AY1-AY0
-        //float accelX = OpenBci.interpret16bitAsInt32(Arrays.copyOfRange(readData, i + 26, i + 28));
-        //obj.put("accelX", 0.0);
-        //Bytes 29-30: Data value for accelerometer channel Y AY1-AY0
-        //float accelY = OpenBci.interpret16bitAsInt32(Arrays.copyOfRange(readData, i + 28, i + 30));
-       // obj.put("accelY", 0.0);
-        //Bytes 31-32: Data value for accelerometer channel Z AZ1-AZ0
-        //float accelZ = OpenBci.interpret16bitAsInt32(Arrays.copyOfRange(readData, i + 30, i + 32));
-       // obj.put("accelZ", 0.0);
-        /* Confirm footer */
-        /*Start fields needed for OpenBCI GUI - just using 0.0*/
-        //obj.put("other1", 0.0);
-        //obj.put("other2", 0.0);
-        //obj.put("other3", 0.0);
-        //obj.put("other4", 0.0);
-        //obj.put("other5", 0.0);
-        //obj.put("other6", 0.0);
-        //obj.put("other7", 0.0);
-        //obj.put("analog1", 0.0);
-        //obj.put("analog2", 0.0);
-       // obj.put("analog3", 0.0);
-        obj.put("UnixTS", unixTime); // Create a Unix Timestamp
-        /*End fields needed for OpenBCI GUI - just using 0.0*/
-        obj.put("TS", dateString); // Create a Formatted Timestamp
-        //obj.put("Footer", readData[i + 32] & 0xFF); // Create a Timestamp
-        return obj;
-    }
 }
@@ -6,8 +6,6 @@ import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
-import com.ftdi.j2xx.D2xxManager;
-
 import java.util.Arrays;
 
 public class BciSender {
@@ -33,11 +31,13 @@ public class BciSender {
             Looper.prepare();
             mHandler = new Handler() {
                 public void handleMessage(Message msg) {
-                    Log.i(TAG, "USB handleMessage() 10 or not?" + msg.what);
+                    if (Trace.VERBOSE) {
+                        Log.d(TAG, "USB handleMessage() 10 or not?" + msg.what);
+                    }
                     if (msg.what == 10) {
                         final String writeData = (String) msg.obj;
                         new BciSender().SendMessage(writeData, bciService);
-                        Log.d(TAG, "USB calling bulkTransfer() out: "+writeData);
+                        Log.i(TAG, "USB: Sent command " + writeData);
                     } else if (msg.what != 10) {
                         Looper.myLooper().quit();
                     }
@@ -49,18 +49,22 @@ public class BciSender {
     }
 
 
-    /* Send the actual OpenBCI command via FTDI to USB Dongle */
+    /* Send the actual OpenBCI command via FTDI to USB Dongle, or to the simulator */
     void SendMessage(String writeData, BciService bciService) {
         /* The default FTDI latency is too large for EEG apps, making the incoming signal "choppy", Change from 16ms to 1ms */
-        bciService.ftDevice.setLatencyTimer((byte) 16);
-        bciService.ftDevice.purge((byte) (D2xxManager.FT_PURGE_TX | D2xxManager.FT_PURGE_RX)); //MAY NEED THIS
+        if (bciService.ftDevice != null) {
+            bciService.ftDevice.setLatencyTimer((byte) 16);
+        }
+        bciService.byteSource.purge(); //MAY NEED THIS
 //        String writeData = "v";//writeText.getText().toString(); //MAY NEED THIS
         byte[] OutData = writeData.getBytes();
-        Log.w("PROCESS_DATA:", "OutData 0:" +OutData);
-        Log.w("PROCESS_DATA:", "OutData 1:" + Arrays.toString(OutData));
-        bciService.ftDevice.write(OutData, writeData.length());
+        if (Trace.VERBOSE) {
+            Log.d(TAG, "OutData: " + Arrays.toString(OutData));
+        }
+        bciService.flightRecorder.recordWrite(OutData, OutData.length);
+        bciService.byteSource.write(OutData, writeData.length());
 
-        if (!bciService.ftDevice.isOpen()) {
+        if (!bciService.byteSource.isOpen()) {
             Log.e("j2xx", "SendMessage: device not open");
         }
     }
@@ -13,6 +13,7 @@ import android.hardware.usb.UsbAccessory;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
+import android.os.Debug;
 import android.os.IBinder;
 import android.util.Log;
 import android.widget.Toast;
@@ -25,8 +26,10 @@ import com.ftdi.j2xx.FT_Device; // provides APIs for the host to communicate and
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Objects;
+import java.util.UUID;
 import java.util.concurrent.TimeoutException;
 
 import static com.michael.bci.RabbitmqConnection.CloseConnection;
@@ -56,6 +59,9 @@ public class BciService extends Service {
     public BciSender.SenderThread mSenderThread;
     private static D2xxManager ftD2xx = null;
     public FT_Device ftDevice = null;
+    /* What the receiver reads from and the sender writes to - the FTDI dongle, or SyntheticCyton when
+     * the service is started with SIMULATE_EXTRA so the pipeline runs without any hardware */
+    public ByteSource byteSource = null;
 
     public static final long SLEEP = 200;
     public static final int VENDOR_ID = 1027;
@@ -68,12 +74,66 @@ public class BciService extends Service {
     short mFlowControl = D2xxManager.FT_FLOW_NONE;
 
     public volatile boolean receiverThreadRunning;
+    /* Set by BciPublisher, onDestroy waits for it to flush and get its confirms before closing the journal */
+    public Thread publisherThread;
+    /* What the receiver thread does when the publisher thread falls behind, see SampleRing.OverflowPolicy.
+     * SPILL hands the overflow to overflowSpill, the journal unless set otherwise, or drops the oldest
+     * sample when there is no journal */
+    public SampleRing.OverflowPolicy overflowPolicy = SampleRing.OverflowPolicy.SPILL;
+    public SampleRing.Spill overflowSpill;
+    /* Store-and-forward journal for samples the broker could not take, 4MB segments capped at 64MB in total */
+    public SampleJournal journal;
+    public static final int JOURNAL_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int JOURNAL_MAX_SEGMENTS = 16;
+    /* Publisher confirms on the EEG channel - at most maxInFlightBatches unconfirmed batches, and the
+     * publisher gives up on the broker when it has not confirmed anything for confirmTimeoutMs */
+    public boolean publisherConfirms = true;
+    public int maxInFlightBatches = 32;
+    public long confirmTimeoutMs = 2000;
+    /* Loss counters for every pipeline stage, published on the "health" routing key every healthIntervalMs */
+    public final StreamHealth health = new StreamHealth();
+    public long healthIntervalMs = 5000;
+    /* Per stage latency histograms of the hot path, published on the "metrics" routing key every metricsIntervalMs, see PipelineMetrics */
+    public final PipelineMetrics metrics = new PipelineMetrics();
+    public long metricsIntervalMs = 10_000;
+    /* Answer clock pings from consumers on the "ping" routing key, so they can measure delivery latency, see ClockPong */
+    public boolean answerClockPings = true;
+    /* The last minute or so of raw USB reads, commands and pipeline events (250Hz Cyton is ~8KB/s), dumped to
+     * files/flight on sync loss, on an exception or when the DUMP_FLIGHT_RECORDER intent is broadcast */
+    public final FlightRecorder flightRecorder = new FlightRecorder(FLIGHT_RECORDER_SIZE);
+    public static final int FLIGHT_RECORDER_SIZE = 512 * 1024;
+    /* Journaled samples are replayed at up to 4x the live 250Hz rate once the broker is back */
+    public long backfillSamplesPerSecond = 1000;
+    /* Identifies this recording session in the headers of every published batch */
+    public final String sessionId = UUID.randomUUID().toString();
+    /* EEG samples are published in batches, sent when any of these limits is reached, see BatchPublisher */
+    public int batchMaxSamples = 50;
+    public int batchMaxBytes = 16 * 1024;
+    public long batchMaxLingerMs = 200;
+    /* On-device filtering before publish, see BciPublisher.StreamMode and BiquadFilterBank. notchHz is the
+     * mains frequency (60 in the Americas), highPassHz and lowPassHz band-pass the EEG, 0 leaves a filter out */
+    public BciPublisher.StreamMode streamMode = BciPublisher.StreamMode.RAW;
+    public double notchHz = 50;
+    public double highPassHz = 1.0;
+    public double lowPassHz = 45.0;
+    /* Band power features (BandPowerExtractor) on the "features" routing key, a featureWindowMs window every featureHopMs */
+    public boolean publishFeatures = false;
+    public long featureWindowMs = 1000;
+    public long featureHopMs = 250;
+    /* Decimated copies of the EEG, e.g. {2, 4} adds 125Hz on "decimated_2" and 62.5Hz on "decimated_4", see PolyphaseDecimator */
+    public int[] decimationFactors = {};
+    /* Message body format for EEG batches - JSON for existing consumers, or BinarySampleCodec / DeltaSampleCodec (about half the binary size again) to save bandwidth */
+    public SampleCodec publishCodec = new JsonSampleCodec();
+    /* How the receiver thread waits for USB data, see ReadStrategy. Backoff is tuned to the 250Hz sample interval */
+    public ReadStrategy readStrategy = new ReadStrategy.Backoff(Debug::threadCpuTimeNanos, OpenBci.SAMPLE_INTERVAL_NANOS);
 
     /* Define the Custom Action Intents for BroadcastReceiver */
     final static String DATA_RECEIVED_INTENT = "bci.intent.action.DATA_RECEIVED";
     final static String DATA_EXTRA = "bci.intent.extra.DATA";
     final static String SEND_COMMAND = "bci.intent.action.SEND_COMMAND";
     final static String COMMAND_EXTRA = "bci.intent.extra.COMMAND_EXTRA";
+    final static String SIMULATE_EXTRA = "bci.intent.extra.SIMULATE";
+    final static String DUMP_FLIGHT_RECORDER = "bci.intent.action.DUMP_FLIGHT_RECORDER";
 
     public D2xxManager.DriverParameters mDriverParameters;
 
@@ -96,6 +156,7 @@ public class BciService extends Service {
         IntentFilter filter = new IntentFilter();
         filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
         filter.addAction(SEND_COMMAND);
+        filter.addAction(DUMP_FLIGHT_RECORDER);
         registerReceiver(mReceiver, filter);
     }
 
@@ -125,6 +186,46 @@ public class BciService extends Service {
 //            Log.i(TAG, "Service already running.");
 //            return Service.START_REDELIVER_INTENT;
 //        }
+        if (intent.getBooleanExtra(SIMULATE_EXTRA, false)) {
+            /* No dongle - generate a 250Hz Cyton stream, started and stopped by the usual 'b' and 's' commands */
+            byteSource = new SyntheticCyton(OpenBci.SAMPLE_RATE, SampleBlock.CHANNELS);
+            Log.i(TAG, "USB: Simulating the board with " + byteSource);
+        } else if (!openFtdiDevice(intent)) {
+            stopSelf();
+            return Service.START_REDELIVER_INTENT;
+        }
+
+        mIsRunning = true;
+        Toast.makeText(getBaseContext(), getString(R.string.receiving), Toast.LENGTH_SHORT).show();
+
+        /* Open the journal before the receiver starts, so nothing is lost if the broker is unreachable */
+        if (journal == null) {
+            try {
+                journal = new SampleJournal(new File(getFilesDir(), "journal"), sessionId, JOURNAL_SEGMENT_SIZE, JOURNAL_MAX_SEGMENTS);
+                Log.i(TAG, "RMQ: " + journal);
+            } catch (IOException e) {
+                Log.e(TAG, "RMQ: Could not open the journal, samples will be dropped while the broker is down", e);
+            }
+        }
+        if (overflowSpill == null) {
+            overflowSpill = journal;
+        }
+        flightRecorder.setDirectory(new File(getFilesDir(), "flight"));
+
+        /* Start the sender thread to send command to OpenBCI Board */
+        new BciSender().startSenderThread(this);
+
+        /* Start the receiver thread to get data from OpenBCI Board */
+        new BciReceiver().startReceiverThread(this);
+
+        //Here
+
+//        return Service.START_REDELIVER_INTENT;
+        return Service.START_STICKY;
+    }
+
+    /* Open and configure the FTDI dongle passed in the intent, returns false if it could not be opened */
+    private boolean openFtdiDevice(Intent intent) {
         /* obtain the UsbDevice that represents the attached device from the intent-filter set in AndroidManifest.xml */
         UsbDevice mUsbDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
         Log.i(TAG, "obtain the UsbDevice");
@@ -151,8 +252,7 @@ public class BciService extends Service {
 
         if (ftDevice == null || !ftDevice.isOpen()) {
             Log.e(TAG, "USB: Opening ftDevice Failed");
-            stopSelf();
-            return Service.START_REDELIVER_INTENT;
+            return false;
         }
 
         /* reset to UART mode for 232 devices */
@@ -182,7 +282,6 @@ public class BciService extends Service {
         ftDevice.restartInTask();
 
 
-        mIsRunning = true;
         mDriverParameters = new D2xxManager.DriverParameters();
 
         /* Get some logging output to see what is going on */
@@ -196,18 +295,8 @@ public class BciService extends Service {
         Log.d(TAG, "USB: LATENCY_TIMER: " + ftDevice.getLatencyTimer()); //Retrieves the current latency timer value from the device
         Log.i(TAG, "USB: Receiving data!");
 
-        Toast.makeText(getBaseContext(), getString(R.string.receiving), Toast.LENGTH_SHORT).show();
-
-        /* Start the sender thread to send command to OpenBCI Board */
-        new BciSender().startSenderThread(this);
-
-        /* Start the receiver thread to get data from OpenBCI Board */
-        new BciReceiver().startReceiverThread(this);
-
-        //Here
-
-//        return Service.START_REDELIVER_INTENT;
-        return Service.START_STICKY;
+        byteSource = new FtdiByteSource(ftDevice);
+        return true;
     }
 
     /*
@@ -249,6 +338,10 @@ public class BciService extends Service {
                  * obj	= Object: Value to dataToSend assigned to the returned Message.obj field. This value may be null */
                 mSenderThread.mHandler.obtainMessage(10, dataToSend).sendToTarget();
             }
+
+            if (Objects.equals(intent.getAction(), DUMP_FLIGHT_RECORDER)) {
+                flightRecorder.requestDump("on_demand", true);
+            }
         }
     };
 
@@ -272,11 +365,24 @@ public class BciService extends Service {
         Log.i(TAG, "onDestroy()");
         super.onDestroy();
 
-        ftDevice.purge(D2xxManager.FT_PURGE_RX);
+        if (byteSource != null) {
+            byteSource.purge();
+        }
         receiverThreadRunning = false;
 
         try {
             Thread.sleep(SLEEP);
+            /* The publisher sends its last batches and waits for their confirms, twice confirmTimeoutMs at most,
+             * and journals whatever fails - so the journal and the connection must outlive it */
+            if (publisherThread != null) {
+                publisherThread.join(2 * confirmTimeoutMs + SLEEP);
+                if (publisherThread.isAlive()) {
+                    Log.w(TAG, "Publisher thread still running, interrupting it");
+                    publisherThread.interrupt();
+                    publisherThread.join(SLEEP);
+                }
+                publisherThread = null;
+            }
         } catch (InterruptedException e) {
             // ignore
         }
@@ -289,6 +395,10 @@ public class BciService extends Service {
             }
             ftDevice = null;
         }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
         try {
             CloseConnection();
             Log.d(TAG, "RMQ: Close Connection onDestroy");
@@ -0,0 +1,84 @@
+package com.michael.bci;
+
+/*
+ * Michael McMahon
+ * BinarySampleCodec packs a batch of samples into a compact binary body instead of JSON text, which is
+ * roughly ten times smaller than the JSON for the same samples. All values are big-endian.
+ *
+ * Header, 8 bytes
+ *   0-1  magic 'E' 'G'
+ *   2    schema version (1)
+ *   3    channel format, 0 = 24-bit raw ADS1299 counts, 1 = float32 micro volts
+ *   4    channels per sample (8)
+ *   5    reserved (0)
+ *   6-7  samples in the batch
+ * Per sample
+ *   u8 sample number, int64 unix timestamp in milliseconds, then one value per channel
+ */
+final class BinarySampleCodec implements SampleCodec {
+
+    static final String CONTENT_TYPE = "application/x-bci-eeg";
+    static final byte MAGIC_0 = 'E';
+    static final byte MAGIC_1 = 'G';
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    enum Format {
+        /* Counts as sent by the Cyton, 3 bytes per channel - consumers apply the OpenBci scale factor */
+        RAW_COUNTS(0),
+        /* Scaled micro volts as float32, 4 bytes per channel */
+        MICRO_VOLTS(1);
+
+        final byte id;
+
+        Format(int id) {
+            this.id = (byte) id;
+        }
+    }
+
+    /* The header always starts the body, so end() can patch the sample count in at a fixed offset */
+    private static final int COUNT_POSITION = 6;
+
+    private final Format format;
+
+    BinarySampleCodec(Format format) {
+        this.format = format;
+    }
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void begin(MessageBuffer out) {
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(VERSION);
+        out.put(format.id);
+        out.put((byte) SampleBlock.CHANNELS);
+        out.put((byte) 0);
+        out.putShort(0);
+    }
+
+    @Override
+    public void append(MessageBuffer out, SampleBlock samples, int slot, int index) {
+        out.put((byte) samples.sampleNumber[slot]);
+        out.putLong(samples.timestamp[slot]);
+        int base = SampleBlock.offset(slot);
+        if (format == Format.RAW_COUNTS) {
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                out.putInt24(samples.counts[base + ch]);
+            }
+        } else {
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                out.putFloat(samples.microVolts[base + ch]);
+            }
+        }
+    }
+
+    @Override
+    public void end(MessageBuffer out, int sampleCount) {
+        out.putShort(COUNT_POSITION, sampleCount);
+    }
+}
@@ -0,0 +1,193 @@
+package com.michael.bci;
+
+import java.util.Arrays;
+
+/*
+ * Michael McMahon
+ * BiquadFilterBank filters every EEG channel through the same cascade of second order IIR sections,
+ * e.g. a mains notch followed by a high-pass and a low-pass that together band-pass the EEG. Sections
+ * are described by their type, frequency and Q, and the coefficients (Audio EQ Cookbook, R. Bristow-Johnson)
+ * are only worked out again when setSampleRate() is given a different rate. Filter state for every
+ * section and channel is kept between blocks in primitive arrays, so a stream split across many reads
+ * is filtered exactly as if it arrived in one piece and process() never allocates.
+ * Sections run in transposed direct form II in double precision, which keeps a 1Hz high-pass at 250Hz
+ * stable. Not thread safe, the publisher thread owns it.
+ */
+final class BiquadFilterBank {
+
+    enum Type { NOTCH, HIGH_PASS, LOW_PASS }
+
+    /* Q of a second order Butterworth section, and a narrow notch that leaves 45Hz and 55Hz alone */
+    static final double BUTTERWORTH_Q = Math.sqrt(0.5);
+    static final double NOTCH_Q = 30;
+
+    private static final int MAX_SECTIONS = 8;
+
+    private final int channels;
+    private final Type[] types = new Type[MAX_SECTIONS];
+    private final double[] frequencies = new double[MAX_SECTIONS];
+    private final double[] qs = new double[MAX_SECTIONS];
+    private int sections;
+    private double sampleRate;
+
+    /* b0, b1, b2, a1, a2 for each section, normalised so a0 = 1 */
+    private final double[] coefficients = new double[MAX_SECTIONS * 5];
+    /* Two state variables per section per channel */
+    private final double[] state;
+
+    BiquadFilterBank(int channels) {
+        this.channels = channels;
+        state = new double[MAX_SECTIONS * channels * 2];
+    }
+
+    /* The usual EEG chain: mains notch, then high-pass and low-pass. A frequency of 0 leaves that section out */
+    static BiquadFilterBank eeg(double sampleRate, double notchHz, double highPassHz, double lowPassHz) {
+        BiquadFilterBank bank = new BiquadFilterBank(SampleBlock.CHANNELS);
+        if (notchHz > 0) {
+            bank.add(Type.NOTCH, notchHz, NOTCH_Q);
+        }
+        if (highPassHz > 0 && lowPassHz > 0) {
+            bank.addBandPass(highPassHz, lowPassHz);
+        } else if (highPassHz > 0) {
+            bank.add(Type.HIGH_PASS, highPassHz, BUTTERWORTH_Q);
+        } else if (lowPassHz > 0) {
+            bank.add(Type.LOW_PASS, lowPassHz, BUTTERWORTH_Q);
+        }
+        bank.setSampleRate(sampleRate);
+        return bank;
+    }
+
+    /* Append a section to the cascade, takes effect from the next setSampleRate() */
+    BiquadFilterBank add(Type type, double frequency, double q) {
+        if (sections == MAX_SECTIONS) {
+            throw new IllegalStateException("At most " + MAX_SECTIONS + " filter sections");
+        }
+        types[sections] = type;
+        frequencies[sections] = frequency;
+        qs[sections] = q;
+        sections++;
+        sampleRate = 0;
+        return this;
+    }
+
+    /* Band-pass from lowHz to highHz as a Butterworth high-pass followed by a Butterworth low-pass */
+    BiquadFilterBank addBandPass(double lowHz, double highHz) {
+        return add(Type.HIGH_PASS, lowHz, BUTTERWORTH_Q).add(Type.LOW_PASS, highHz, BUTTERWORTH_Q);
+    }
+
+    int sections() {
+        return sections;
+    }
+
+    double sampleRate() {
+        return sampleRate;
+    }
+
+    /* Work out the coefficients for sampleRate, unless they already are. A new rate also clears the filter state */
+    void setSampleRate(double sampleRate) {
+        if (sampleRate == this.sampleRate) {
+            return;
+        }
+        this.sampleRate = sampleRate;
+        for (int s = 0; s < sections; s++) {
+            computeCoefficients(s);
+        }
+        reset();
+    }
+
+    /* Forget the filter history, e.g. after a gap in the samples */
+    void reset() {
+        Arrays.fill(state, 0);
+    }
+
+    private void computeCoefficients(int s) {
+        int c = s * 5;
+        if (frequencies[s] <= 0 || frequencies[s] >= sampleRate / 2) {
+            /* Outside what this rate can represent, pass the signal through untouched */
+            coefficients[c] = 1;
+            coefficients[c + 1] = 0;
+            coefficients[c + 2] = 0;
+            coefficients[c + 3] = 0;
+            coefficients[c + 4] = 0;
+            return;
+        }
+        double w0 = 2 * Math.PI * frequencies[s] / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * qs[s]);
+        double b0, b1, b2;
+        switch (types[s]) {
+            case NOTCH:
+                b0 = 1;
+                b1 = -2 * cos;
+                b2 = 1;
+                break;
+            case HIGH_PASS:
+                b0 = (1 + cos) / 2;
+                b1 = -(1 + cos);
+                b2 = (1 + cos) / 2;
+                break;
+            default:
+                b0 = (1 - cos) / 2;
+                b1 = 1 - cos;
+                b2 = (1 - cos) / 2;
+                break;
+        }
+        double a0 = 1 + alpha;
+        coefficients[c] = b0 / a0;
+        coefficients[c + 1] = b1 / a0;
+        coefficients[c + 2] = b2 / a0;
+        coefficients[c + 3] = -2 * cos / a0;
+        coefficients[c + 4] = (1 - alpha) / a0;
+    }
+
+    /* Filter the micro volt values of every sample in in, writing them to out, which may be the same block.
+     * Sample numbers and timestamps are copied across, and counts are set to match the filtered values */
+    void process(SampleBlock in, SampleBlock out) {
+        if (in != out) {
+            for (int slot = 0; slot < in.size; slot++) {
+                out.set(slot, in, slot);
+            }
+            out.size = in.size;
+        }
+        float[] values = out.microVolts;
+        int end = SampleBlock.offset(out.size);
+        for (int ch = 0; ch < channels; ch++) {
+            for (int s = 0; s < sections; s++) {
+                int c = s * 5;
+                double b0 = coefficients[c];
+                double b1 = coefficients[c + 1];
+                double b2 = coefficients[c + 2];
+                double a1 = coefficients[c + 3];
+                double a2 = coefficients[c + 4];
+                int z = (s * channels + ch) * 2;
+                double z1 = state[z];
+                double z2 = state[z + 1];
+                for (int i = ch; i < end; i += SampleBlock.CHANNELS) {
+                    double x = values[i];
+                    double y = b0 * x + z1;
+                    z1 = b1 * x - a1 * y + z2;
+                    z2 = b2 * x - a2 * y;
+                    values[i] = (float) y;
+                }
+                state[z] = z1;
+                state[z + 1] = z2;
+            }
+            for (int i = ch; i < end; i += SampleBlock.CHANNELS) {
+                out.counts[i] = OpenBci.convertMicroVoltsToCounts(values[i]);
+            }
+        }
+    }
+
+    /* Short description of the cascade for message headers, e.g. "notch50.0,hp1.0,lp45.0" */
+    String describe() {
+        StringBuilder text = new StringBuilder();
+        for (int s = 0; s < sections; s++) {
+            if (s > 0) {
+                text.append(',');
+            }
+            text.append(types[s] == Type.NOTCH ? "notch" : types[s] == Type.HIGH_PASS ? "hp" : "lp");
+            text.append(frequencies[s]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,29 @@
+package com.michael.bci;
+
+/*
+ * ByteSource is the serial byte stream the receiver and sender threads talk to. It has the few
+ * FT_Device calls they use, so the pipeline can run from the FTDI dongle, from SyntheticCyton or from
+ * a ReplayByteSource without any USB hardware. The methods follow the FT_Device ones of the same name.
+ */
+interface ByteSource {
+
+    /* Bytes waiting in the Rx buffer, or a negative number on error or once the source has closed */
+    int getQueueStatus();
+
+    /* Read up to length bytes that are already waiting, returns the number read */
+    int read(byte[] data, int length);
+
+    /* Wait up to timeoutMillis for length bytes, returns the number read, which may be fewer */
+    int read(byte[] data, int length, long timeoutMillis);
+
+    /* Send length bytes to the board, returns the number written */
+    int write(byte[] data, int length);
+
+    /* True if the Rx buffer filled up and incoming data was held back or lost since the last read */
+    boolean readBufferFull();
+
+    /* Discard everything waiting in the Rx buffer */
+    void purge();
+
+    boolean isOpen();
+}
@@ -0,0 +1,92 @@
+package com.michael.bci;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Michael McMahon
+ * ClockPong answers the clock pings a consumer sends through the broker, so the consumer can work out
+ * the offset between its clock and the phone's and turn the capture_ts headers into delivery latency.
+ * A ping arrives on the "ping" routing key with a reply_to queue and the consumer's send time in the
+ * ping_ts header. The pong goes straight back to that queue through the default exchange, with ping_ts
+ * echoed and the phone's time when the ping arrived and the pong left, as in NTP. The consumer then has
+ * all four times and takes the offset from the pings with the shortest round trip.
+ * Pings are answered on the connection thread as they arrive, nothing waits on the publisher thread.
+ * The publisher thread polls it on every pass to open the ping channel, and to open it again every
+ * REOPEN_NANOS while it is closed, e.g. after the broker went away.
+ */
+final class ClockPong {
+
+    static final String QUEUE_NAME = "bci_ping";
+    static final String ROUTING_KEY = "ping";
+    static final String HEADER_PING_TS = "ping_ts";
+    static final String HEADER_RECEIVED_TS = "received_ts";
+    static final String HEADER_SENT_TS = "sent_ts";
+    /* How often a closed ping channel is opened again */
+    static final long REOPEN_NANOS = 5_000_000_000L;
+
+    private volatile Channel channel;
+    private long reopenNanos;
+
+    boolean isOpen() {
+        Channel current = channel;
+        return current != null && current.isOpen();
+    }
+
+    /* Open the ping queue on the shared connection and start answering pings */
+    void open() throws IOException, TimeoutException {
+        close();
+        Channel opened = RabbitmqConnection.openChannel(QUEUE_NAME, ROUTING_KEY);
+        try {
+            opened.basicConsume(QUEUE_NAME, true, (consumerTag, ping) -> answer(opened, ping), consumerTag -> { });
+        } catch (IOException e) {
+            RabbitmqConnection.closeChannel(opened);
+            throw e;
+        }
+        channel = opened;
+    }
+
+    private static void answer(Channel channel, Delivery ping) throws IOException {
+        long received = System.currentTimeMillis();
+        AMQP.BasicProperties properties = ping.getProperties();
+        Map<String, Object> pingHeaders = properties.getHeaders();
+        if (properties.getReplyTo() == null || pingHeaders == null || !pingHeaders.containsKey(HEADER_PING_TS)) {
+            return;
+        }
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(HEADER_PING_TS, pingHeaders.get(HEADER_PING_TS));
+        headers.put(HEADER_RECEIVED_TS, received);
+        headers.put(HEADER_SENT_TS, System.currentTimeMillis());
+        AMQP.BasicProperties pong = new AMQP.BasicProperties.Builder()
+                .correlationId(properties.getCorrelationId())
+                .headers(headers)
+                .build();
+        channel.basicPublish("", properties.getReplyTo(), pong, new byte[0]);
+    }
+
+    /* Start answering pings, and start again if the ping channel has closed */
+    void poll() {
+        long now = System.nanoTime();
+        if (isOpen() || (reopenNanos != 0 && now - reopenNanos < 0)) {
+            return;
+        }
+        reopenNanos = now + REOPEN_NANOS;
+        try {
+            open();
+        } catch (IOException | TimeoutException | ShutdownSignalException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void close() {
+        RabbitmqConnection.closeChannel(channel);
+        channel = null;
+    }
+}
@@ -0,0 +1,208 @@
+package com.michael.bci;
+
+import com.rabbitmq.client.ConfirmListener;
+
+/*
+ * Michael McMahon
+ * ConfirmTracker follows the messages published on a channel in confirm mode until the broker acks or
+ * nacks them. The outstanding delivery tags are kept in a ring of longs, in ascending order because a
+ * channel hands them out in sequence, so a confirm with multiple=true just releases everything from the
+ * head up to its tag and a single confirm is found with a binary search. The ring holds at most
+ * maxInFlight messages; awaitCapacity() makes the publishing thread wait when it is full, which slows
+ * the publisher down to what the broker confirms instead of letting unconfirmed data pile up.
+ *
+ * Confirms arrive on the connection's thread, so publishing never waits on them. The listener is called
+ * on that thread while the tracker is locked, and must not publish or wait on the tracker itself.
+ */
+final class ConfirmTracker<T> implements ConfirmListener {
+
+    interface Listener<T> {
+        /* The broker has taken responsibility for item */
+        void acked(T item);
+
+        /* The broker refused item, or the channel closed before it was confirmed */
+        void nacked(T item);
+    }
+
+    private final Listener<T> listener;
+    private final long[] tags;
+    private final Object[] items;
+    /* Single confirms can arrive for a tag behind the head, those slots wait here until the head reaches them */
+    private final boolean[] confirmed;
+    private int head;
+    private int size;
+
+    private long ackCount;
+    private long nackCount;
+
+    ConfirmTracker(int maxInFlight, Listener<T> listener) {
+        this.listener = listener;
+        tags = new long[maxInFlight];
+        items = new Object[maxInFlight];
+        confirmed = new boolean[maxInFlight];
+    }
+
+    /* Wait up to timeoutMillis for room for one more message, returns false if there still is none */
+    synchronized boolean awaitCapacity(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (size == tags.length) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /* Wait up to timeoutMillis for every message in flight to be confirmed, e.g. before closing the channel */
+    synchronized boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (size > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /* Track item under the delivery tag the channel will give it. Call before basicPublish, so an early confirm is not missed */
+    synchronized void add(long tag, T item) {
+        if (size == tags.length) {
+            throw new IllegalStateException("More than " + tags.length + " messages in flight");
+        }
+        int index = index(size++);
+        tags[index] = tag;
+        items[index] = item;
+        confirmed[index] = false;
+    }
+
+    /* Stop tracking tag without calling the listener, for a basicPublish that threw */
+    synchronized void cancel(long tag) {
+        if (size > 0 && tags[index(size - 1)] == tag) {
+            items[index(--size)] = null;
+            notifyAll();
+        }
+    }
+
+    synchronized int inFlight() {
+        return size;
+    }
+
+    synchronized long ackCount() {
+        return ackCount;
+    }
+
+    synchronized long nackCount() {
+        return nackCount;
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        resolve(deliveryTag, multiple, true);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        resolve(deliveryTag, multiple, false);
+    }
+
+    /* The channel is gone and its confirms will never come - treat everything in flight as nacked */
+    synchronized void failAll() {
+        while (size > 0) {
+            release(false);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "confirms inFlight=" + size + " acked=" + ackCount + " nacked=" + nackCount;
+    }
+
+    private synchronized void resolve(long deliveryTag, boolean multiple, boolean ack) {
+        if (multiple) {
+            while (size > 0 && tags[head] <= deliveryTag) {
+                release(ack);
+            }
+        } else {
+            int i = find(deliveryTag);
+            if (i < 0) {
+                return;
+            }
+            int index = index(i);
+            if (i > 0) {
+                /* Report it now, and drop the slot once everything in front of it is confirmed too */
+                @SuppressWarnings("unchecked")
+                T item = (T) items[index];
+                items[index] = null;
+                confirmed[index] = true;
+                count(ack);
+                notifyItem(item, ack);
+            } else {
+                release(ack);
+            }
+        }
+        while (size > 0 && confirmed[head]) {
+            items[head] = null;
+            head = index(1);
+            size--;
+        }
+        notifyAll();
+    }
+
+    /* Remove the head entry and report it, unless it was already reported by a single confirm */
+    private void release(boolean ack) {
+        @SuppressWarnings("unchecked")
+        T item = (T) items[head];
+        boolean reported = confirmed[head];
+        items[head] = null;
+        head = index(1);
+        size--;
+        if (!reported) {
+            count(ack);
+            notifyItem(item, ack);
+        }
+    }
+
+    private void count(boolean ack) {
+        if (ack) {
+            ackCount++;
+        } else {
+            nackCount++;
+        }
+    }
+
+    private void notifyItem(T item, boolean ack) {
+        if (ack) {
+            listener.acked(item);
+        } else {
+            listener.nacked(item);
+        }
+    }
+
+    /* Position of deliveryTag counted from the head, or -1 */
+    private int find(long deliveryTag) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long tag = tags[index(mid)];
+            if (tag < deliveryTag) {
+                low = mid + 1;
+            } else if (tag > deliveryTag) {
+                high = mid - 1;
+            } else {
+                return confirmed[index(mid)] ? -1 : mid;
+            }
+        }
+        return -1;
+    }
+
+    private int index(int offset) {
+        int index = head + offset;
+        return index >= tags.length ? index - tags.length : index;
+    }
+}
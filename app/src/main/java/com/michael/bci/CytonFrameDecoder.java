@@ -0,0 +1,188 @@
+package com.michael.bci;
+
+/*
+ * Michael McMahon
+ * CytonFrameDecoder is a streaming decoder for the 33 byte packets sent by the OpenBCI Cyton Board.
+ * Bytes read from the FTDI driver are appended to a reusable ring buffer and each complete packet is
+ * decoded by offset straight into the preallocated slots of a SampleBlock, so nothing is allocated
+ * per sample. A packet split across two reads simply stays in the ring until the rest of it arrives.
+ * Every index is checked against the bytes actually buffered, so the decoder never reads past the data.
+ * The decoder counts the bytes it had to skip to find a packet boundary, the packets rejected for their
+ * footer and the bytes lost when the ring overflowed, so parsing losses can be told apart from USB ones.
+ * see https://docs.openbci.com/docs/02Cyton/CytonDataFormat
+ */
+final class CytonFrameDecoder {
+
+    /* One byte header 0xA0, sample number, 24 bytes EEG, 6 bytes aux and a 0xCX footer */
+    static final int FRAME_SIZE = 33;
+    static final byte START_BYTE = (byte)0xA0;
+    /* The low nibble of the footer carries the aux data format, so only the high nibble is fixed */
+    static final byte END_BYTE = (byte)0xC0;
+    /* Default ring size, a few FTDI transfers worth of packets */
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private final byte[] ring;
+    private final int mask;
+    /* Running byte positions, head is the next byte to write and tail the next byte to decode */
+    private long head;
+    private long tail;
+    /* A packet that wraps around the end of the ring is copied here so it can be decoded by offset */
+    private final byte[] frame = new byte[FRAME_SIZE];
+    private boolean synced;
+
+    /* Loss counters, only touched by the thread calling feed() and decode() */
+    private long resyncBytes;
+    private long badFooters;
+    private long overflowBytes;
+    private long syncLosses;
+
+    CytonFrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /* capacity must be a power of two and hold at least two packets */
+    CytonFrameDecoder(int capacity) {
+        if (Integer.bitCount(capacity) != 1 || capacity < 2 * FRAME_SIZE) {
+            throw new IllegalArgumentException("capacity must be a power of two >= " + 2 * FRAME_SIZE);
+        }
+        ring = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /* Number of buffered bytes that have not been decoded yet */
+    int available() {
+        return (int) (head - tail);
+    }
+
+    /* True once a packet boundary has been confirmed, false again after any framing error */
+    boolean isSynced() {
+        return synced;
+    }
+
+    /* Bytes skipped while looking for a packet boundary */
+    long resyncBytes() {
+        return resyncBytes;
+    }
+
+    /* Packets that started with START_BYTE but did not end with a 0xCX footer */
+    long badFooters() {
+        return badFooters;
+    }
+
+    /* Undecoded bytes overwritten because the ring was full */
+    long overflowBytes() {
+        return overflowBytes;
+    }
+
+    /* Times the decoder lost packet sync after having it */
+    long syncLosses() {
+        return syncLosses;
+    }
+
+    /*
+    Append length bytes from data to the ring. If the ring cannot hold them the oldest undecoded
+    bytes are overwritten, as the newest data is the most useful to keep streaming.
+     */
+    void feed(byte[] data, int offset, int length) {
+        if (length > ring.length) {
+            overflowBytes += length - ring.length;
+            offset += length - ring.length;
+            length = ring.length;
+        }
+        int overflow = available() + length - ring.length;
+        if (overflow > 0) {
+            tail += overflow;
+            overflowBytes += overflow;
+            loseSync();
+        }
+        int start = (int) (head & mask);
+        int first = Math.min(length, ring.length - start);
+        System.arraycopy(data, offset, ring, start, first);
+        System.arraycopy(data, offset + first, ring, 0, length - first);
+        head += length;
+    }
+
+    /*
+    Decode as many complete packets as fit into out, appending from out.size. Each decoded sample is
+    stamped with timestamp. Returns the number of samples decoded, 0 when more bytes are needed.
+     */
+    int decode(SampleBlock out, long timestamp) {
+        int decoded = 0;
+        while (out.size < out.capacity) {
+            int available = available();
+            if (available < FRAME_SIZE) {
+                break;
+            }
+            if (byteAt(0) != START_BYTE || !isFooter(byteAt(FRAME_SIZE - 1))) {
+                if (synced && byteAt(0) == START_BYTE) {
+                    badFooters++;
+                }
+                /* Not on a packet boundary - slide forward one byte and look again */
+                tail++;
+                resyncBytes++;
+                loseSync();
+                continue;
+            }
+            if (!synced) {
+                /* EEG bytes can look like a header, so confirm the next packet starts where expected */
+                if (available < FRAME_SIZE + 1) {
+                    break;
+                }
+                if (byteAt(FRAME_SIZE) != START_BYTE) {
+                    tail++;
+                    resyncBytes++;
+                    continue;
+                }
+                synced = true;
+            }
+            decodeFrame(out, timestamp);
+            tail += FRAME_SIZE;
+            decoded++;
+        }
+        return decoded;
+    }
+
+    /* Drop everything buffered, e.g. after the board has been reset */
+    void reset() {
+        tail = head;
+        synced = false;
+    }
+
+    private void loseSync() {
+        if (synced) {
+            synced = false;
+            syncLosses++;
+        }
+    }
+
+    private void decodeFrame(SampleBlock out, long timestamp) {
+        int start = (int) (tail & mask);
+        byte[] source = ring;
+        if (start + FRAME_SIZE > ring.length) {
+            int first = ring.length - start;
+            System.arraycopy(ring, start, frame, 0, first);
+            System.arraycopy(ring, 0, frame, first, FRAME_SIZE - first);
+            source = frame;
+            start = 0;
+        }
+
+        int slot = out.size++;
+        int base = SampleBlock.offset(slot);
+        out.sampleNumber[slot] = source[start + 1] & 0xFF;
+        out.timestamp[slot] = timestamp;
+        /* Bytes 3-26: 8 channels of 24-bit EEG data */
+        for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+            int counts = OpenBci.interpret24bitAsInt32(source, start + 2 + ch * 3);
+            out.counts[base + ch] = counts;
+            out.microVolts[base + ch] = OpenBci.convertCountsToMicroVolts(counts);
+        }
+    }
+
+    private byte byteAt(int index) {
+        return ring[(int) ((tail + index) & mask)];
+    }
+
+    private static boolean isFooter(byte b) {
+        return (b & 0xF0) == (END_BYTE & 0xF0);
+    }
+}
@@ -0,0 +1,34 @@
+package com.michael.bci;
+
+/*
+ * Michael McMahon
+ * DecimatedStream publishes a PolyphaseDecimator copy of the main stream at 1/factor of the sample rate
+ * on "decimated_<factor>", one for every BciService.decimationFactors entry.
+ */
+final class DecimatedStream extends DerivedSampleStream {
+
+    static final String QUEUE_NAME = "bci_decimated_";
+    static final String ROUTING_KEY = "decimated_";
+
+    private final PolyphaseDecimator decimator;
+    private final SampleBlock decimated;
+
+    /* filter describes the filter chain the main stream has been through, null if it is raw */
+    DecimatedStream(BciService bciService, int factor, String filter, int blockSize) {
+        super(bciService, QUEUE_NAME + factor, ROUTING_KEY + factor);
+        decimator = new PolyphaseDecimator(OpenBci.SAMPLE_RATE, SampleBlock.CHANNELS, factor);
+        decimated = new SampleBlock(decimator.maxOutput(blockSize));
+        publisher.setStreamHeader(BatchPublisher.HEADER_DECIMATION, factor);
+        publisher.setStreamHeader(BatchPublisher.HEADER_SAMPLE_RATE, (double) OpenBci.SAMPLE_RATE / factor);
+        if (filter != null) {
+            publisher.setStreamHeader(BatchPublisher.HEADER_FILTER, filter);
+        }
+    }
+
+    @Override
+    public void process(SampleBlock raw, SampleBlock published) {
+        if (decimator.process(published, decimated) > 0) {
+            publish(decimated);
+        }
+    }
+}
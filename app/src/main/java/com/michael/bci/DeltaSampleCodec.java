@@ -0,0 +1,112 @@
+package com.michael.bci;
+
+/*
+ * Michael McMahon
+ * DeltaSampleCodec is a lossless compressed form of the binary batch for the 4G uplink. Counts from
+ * consecutive samples are highly correlated, so each channel's raw 24-bit count is sent as the error
+ * of a prediction from the samples before it in the batch. The error is zig-zag mapped so small
+ * negative numbers stay small, then written as a varint (7 bits per byte, low bits first, top bit set
+ * on every byte but the last). Timestamps are sent the same way as the difference to the previous one.
+ * The first sample of a batch is sent in full, so every batch decodes on its own. All fixed width
+ * values are big-endian.
+ *
+ * Header, 8 bytes
+ *   0-1  magic 'E' 'D'
+ *   2    schema version (1)
+ *   3    predictor, 0 = previous sample (delta), 1 = linear extrapolation from the previous two
+ *   4    channels per sample (8)
+ *   5    reserved (0)
+ *   6-7  samples in the batch
+ * First sample
+ *   u8 sample number, int64 unix timestamp in milliseconds, then one varint per channel of the zig-zag count
+ * Every other sample
+ *   u8 sample number, varint of the zig-zag timestamp difference, then one varint per channel of the
+ *   zig-zag prediction error
+ */
+final class DeltaSampleCodec implements SampleCodec {
+
+    static final String CONTENT_TYPE = "application/x-bci-eeg-delta";
+    static final byte MAGIC_0 = 'E';
+    static final byte MAGIC_1 = 'D';
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    enum Predictor {
+        /* Predict the previous count, send the first-order difference */
+        DELTA(0),
+        /* Predict 2 * previous - the one before, send the second-order difference */
+        LINEAR(1);
+
+        final byte id;
+
+        Predictor(int id) {
+            this.id = (byte) id;
+        }
+    }
+
+    /* The header always starts the body, so end() can patch the sample count in at a fixed offset */
+    private static final int COUNT_POSITION = 6;
+
+    private final Predictor predictor;
+
+    DeltaSampleCodec(Predictor predictor) {
+        this.predictor = predictor;
+    }
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void begin(MessageBuffer out) {
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(VERSION);
+        out.put(predictor.id);
+        out.put((byte) SampleBlock.CHANNELS);
+        out.put((byte) 0);
+        out.putShort(0);
+    }
+
+    @Override
+    public void append(MessageBuffer out, SampleBlock samples, int slot, int index) {
+        out.put((byte) samples.sampleNumber[slot]);
+        int base = SampleBlock.offset(slot);
+        if (index == 0) {
+            out.putLong(samples.timestamp[slot]);
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                out.putVarint(zigZag(samples.counts[base + ch]));
+            }
+            return;
+        }
+        /* The samples before this one in the batch are in the slots before it */
+        out.putVarint(zigZag(samples.timestamp[slot] - samples.timestamp[slot - 1]));
+        int previous = SampleBlock.offset(slot - 1);
+        if (predictor == Predictor.LINEAR && index > 1) {
+            int before = SampleBlock.offset(slot - 2);
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                long prediction = 2L * samples.counts[previous + ch] - samples.counts[before + ch];
+                out.putVarint(zigZag(samples.counts[base + ch] - prediction));
+            }
+        } else {
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                out.putVarint(zigZag((long) samples.counts[base + ch] - samples.counts[previous + ch]));
+            }
+        }
+    }
+
+    @Override
+    public void end(MessageBuffer out, int sampleCount) {
+        out.putShort(COUNT_POSITION, sampleCount);
+    }
+
+    /* 0, -1, 1, -2, 2... to 0, 1, 2, 3, 4... */
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,60 @@
+package com.michael.bci;
+
+import java.io.IOException;
+
+/*
+ * Michael McMahon
+ * DerivedSampleStream is a best effort copy of the EEG on its own queue and routing key, batched and
+ * encoded like the main stream by a BatchPublisher but sent through a StreamPublisher, so without a
+ * journal or confirms. FilteredStream and DecimatedStream work out what goes in it.
+ */
+abstract class DerivedSampleStream implements PublisherStage {
+
+    private final StreamPublisher stream;
+    final BatchPublisher publisher;
+
+    DerivedSampleStream(BciService bciService, String queueName, String routingKey) {
+        stream = new StreamPublisher(queueName, routingKey, bciService.health);
+        publisher = new BatchPublisher(stream, bciService.publishCodec, bciService.sessionId, null,
+                bciService.batchMaxSamples, bciService.batchMaxBytes, bciService.batchMaxLingerMs);
+    }
+
+    /* Add samples to the open batch, which is sent once it is full */
+    void publish(SampleBlock samples) {
+        try {
+            for (int slot = 0; slot < samples.size; slot++) {
+                publisher.add(samples, slot);
+            }
+        } catch (IOException e) {
+            /* StreamPublisher drops and counts failed messages itself */
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long nanosUntilDue(long maxNanos) {
+        return publisher.nanosUntilDue(maxNanos);
+    }
+
+    /* Send a partly filled batch once it has lingered long enough */
+    @Override
+    public void poll() {
+        if (publisher.isDue()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        stream.close();
+    }
+
+    private void flush() {
+        try {
+            publisher.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.michael.bci;
+
+import com.rabbitmq.client.AMQP;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Michael McMahon
+ * FeatureStream adds the raw samples to the BandPowerExtractor window and publishes the band powers on
+ * the "features" routing key every hop, a few times a second, when publishFeatures is on. Best effort
+ * like the derived sample streams.
+ */
+final class FeatureStream implements PublisherStage {
+
+    static final String QUEUE_NAME = "bci_features";
+    static final String ROUTING_KEY = "features";
+    static final String HEADER_BANDS = "bands";
+
+    private final BandPowerExtractor bandPower;
+    private final StreamPublisher stream;
+    /* Headers every feature message carries, the latency headers are added per message */
+    private final Map<String, Object> headers = new HashMap<>();
+    private final MessageBuffer body;
+    private long sequence;
+
+    FeatureStream(BciService bciService) {
+        bandPower = BandPowerExtractor.eeg(OpenBci.SAMPLE_RATE, bciService.featureWindowMs, bciService.featureHopMs);
+        stream = new StreamPublisher(QUEUE_NAME, ROUTING_KEY, bciService.health);
+        body = new MessageBuffer(BandPowerExtractor.HEADER_SIZE + 4 * SampleBlock.CHANNELS * bandPower.bands());
+        headers.put(BatchPublisher.HEADER_SESSION_ID, bciService.sessionId);
+        headers.put(HEADER_BANDS, bandPower.describeBands());
+    }
+
+    @Override
+    public void process(SampleBlock raw, SampleBlock published) {
+        for (int slot = 0; slot < raw.size; slot++) {
+            if (bandPower.add(raw, slot)) {
+                bandPower.compute();
+                body.clear();
+                bandPower.encode(body);
+                Map<String, Object> messageHeaders = new HashMap<>(headers);
+                messageHeaders.put(BatchPublisher.HEADER_SEQ, ++sequence);
+                messageHeaders.put(BatchPublisher.HEADER_CAPTURE_TS, bandPower.newestTimestamp());
+                messageHeaders.put(BatchPublisher.HEADER_PUBLISH_TS, System.currentTimeMillis());
+                AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                        .contentType(BandPowerExtractor.CONTENT_TYPE)
+                        .headers(messageHeaders)
+                        .build();
+                stream.publish(properties, body.toByteArray());
+            }
+        }
+    }
+
+    /* Features only come from new samples */
+    @Override
+    public long nanosUntilDue(long maxNanos) {
+        return maxNanos;
+    }
+
+    @Override
+    public void poll() {
+    }
+
+    @Override
+    public void close() {
+        stream.close();
+    }
+}
@@ -0,0 +1,29 @@
+package com.michael.bci;
+
+/*
+ * Michael McMahon
+ * FilteredStream publishes the samples run through a BiquadFilterBank on the "filtered" routing key,
+ * next to the raw samples on the main stream, in StreamMode.BOTH.
+ */
+final class FilteredStream extends DerivedSampleStream {
+
+    static final String QUEUE_NAME = "bci_filtered";
+    static final String ROUTING_KEY = "filtered";
+
+    private final BiquadFilterBank filterBank;
+    private final SampleBlock filtered;
+
+    FilteredStream(BciService bciService, BiquadFilterBank filterBank, int blockSize) {
+        super(bciService, QUEUE_NAME, ROUTING_KEY);
+        this.filterBank = filterBank;
+        filtered = new SampleBlock(blockSize);
+        publisher.setStreamHeader(BatchPublisher.HEADER_FILTER, filterBank.describe());
+    }
+
+    @Override
+    public void process(SampleBlock raw, SampleBlock published) {
+        filtered.clear();
+        filterBank.process(raw, filtered);
+        publish(filtered);
+    }
+}
@@ -0,0 +1,250 @@
+package com.michael.bci;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * Michael McMahon
+ * FlightRecorder keeps the last stretch of raw USB reads, commands sent to the board and pipeline events
+ * in a fixed size ring, so a field problem can be diagnosed from what actually happened without logging
+ * every read. Once the ring is full the oldest records are overwritten, whole records at a time. Nothing
+ * is allocated while recording. On sync loss, an exception or on demand the ring is dumped to a file in
+ * the flight directory, keeping the newest MAX_DUMPS files. Recording is synchronized; the receiver
+ * thread records every read, other threads only the odd event.
+ *
+ * Dump file, big-endian
+ *   0-1   magic 'F' 'R'
+ *   2     schema version (1)
+ *   3     reserved (0)
+ *   4-7   bytes of records that follow
+ *   8-15  unix time in milliseconds of the dump
+ *   16-23 System.nanoTime() of the dump, to turn record times into wall clock times
+ * then records, oldest first
+ *   u8 type, u16 payload length, int64 System.nanoTime() of the record, then the payload
+ *   READ  - the bytes read from the board
+ *   WRITE - the bytes sent to the board
+ *   EVENT - u8 event code and two int64 values, see the event codes below
+ */
+final class FlightRecorder {
+
+    public final static String TAG = "BCI_FLIGHT";
+    static final byte MAGIC_0 = 'F';
+    static final byte MAGIC_1 = 'R';
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 11;
+
+    /* Record types */
+    static final int READ = 1;
+    static final int WRITE = 2;
+    static final int EVENT = 3;
+
+    /* Event codes and what their two values hold */
+    static final int SYNC_LOST = 1;         // sync losses so far, bytes skipped so far
+    static final int SAMPLES_LOST = 2;      // samples lost in this read, samples lost so far
+    static final int RING_FULL = 3;         // samples not queued in this read, ring size
+    static final int READ_ERROR = 4;        // driver return code, 0
+    static final int PUBLISH_FAILED = 5;    // samples in the failed block, publish failures so far
+    static final int BATCH_NACKED = 6;      // samples in the batch, first journal sequence
+    static final int EXCEPTION = 7;         // thread id, 0
+
+    /* Keep at most this many dump files, deleting the oldest */
+    static final int MAX_DUMPS = 8;
+    /* Automatic dumps, e.g. on repeated sync losses, are at most this often. On demand dumps always go */
+    static final long MIN_DUMP_INTERVAL_NANOS = 60_000_000_000L;
+    /* How long a dying thread waits for its dump to be written */
+    private static final long DUMP_WAIT_MILLIS = 1000;
+
+    private final byte[] ring;
+    private final int mask;
+    /* Running byte positions, head is where the next record goes and tail is the oldest record */
+    private long head;
+    private long tail;
+
+    private volatile File directory;
+    private long lastDumpNanos;
+    private boolean dumped;
+
+    /* capacity must be a power of two */
+    FlightRecorder(int capacity) {
+        if (Integer.bitCount(capacity) != 1 || capacity < 1024) {
+            throw new IllegalArgumentException("capacity must be a power of two >= 1024");
+        }
+        ring = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /* Where dumps are written, nothing is dumped until this is set */
+    void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /* Record the first length bytes of data as read from the board */
+    void recordRead(byte[] data, int length) {
+        recordBytes(READ, data, length);
+    }
+
+    /* Record the first length bytes of data as sent to the board */
+    void recordWrite(byte[] data, int length) {
+        recordBytes(WRITE, data, length);
+    }
+
+    synchronized void recordEvent(int code, long value1, long value2) {
+        begin(EVENT, 17);
+        putByte(code);
+        putLong(value1);
+        putLong(value2);
+    }
+
+    private synchronized void recordBytes(int type, byte[] data, int length) {
+        /* A read bigger than a quarter of the ring would push out most of the history, keep its start */
+        int kept = Math.min(length, Math.min(0xFFFF, ring.length / 4));
+        begin(type, kept);
+        int position = (int) (head & mask);
+        int first = Math.min(kept, ring.length - position);
+        System.arraycopy(data, 0, ring, position, first);
+        System.arraycopy(data, first, ring, 0, kept - first);
+        head += kept;
+    }
+
+    /* Make room for a record, dropping the oldest whole records, and write its header */
+    private void begin(int type, int payloadLength) {
+        int size = RECORD_HEADER_SIZE + payloadLength;
+        while (ring.length - (head - tail) < size) {
+            int oldLength = ((ring[(int) ((tail + 1) & mask)] & 0xFF) << 8) | (ring[(int) ((tail + 2) & mask)] & 0xFF);
+            tail += RECORD_HEADER_SIZE + oldLength;
+        }
+        putByte(type);
+        putByte(payloadLength >>> 8);
+        putByte(payloadLength);
+        putLong(System.nanoTime());
+    }
+
+    private void putByte(int value) {
+        ring[(int) (head++ & mask)] = (byte) value;
+    }
+
+    private void putLong(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            putByte((int) (value >>> shift));
+        }
+    }
+
+    /* Copy of every record in the ring, oldest first */
+    synchronized byte[] snapshot() {
+        int length = (int) (head - tail);
+        byte[] copy = new byte[length];
+        int position = (int) (tail & mask);
+        int first = Math.min(length, ring.length - position);
+        System.arraycopy(ring, position, copy, 0, first);
+        System.arraycopy(ring, 0, copy, first, length - first);
+        return copy;
+    }
+
+    /* Write a dump of the ring as it is now to out */
+    void writeTo(OutputStream out) throws IOException {
+        writeDump(out, snapshot(), System.currentTimeMillis(), System.nanoTime());
+    }
+
+    private static void writeDump(OutputStream out, byte[] records, long dumpMillis, long dumpNanos) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(MAGIC_0);
+        data.writeByte(MAGIC_1);
+        data.writeByte(VERSION);
+        data.writeByte(0);
+        data.writeInt(records.length);
+        data.writeLong(dumpMillis);
+        data.writeLong(dumpNanos);
+        data.write(records);
+        data.flush();
+    }
+
+    /*
+    Dump the ring to a new file in the flight directory, named after the time and reason. The ring is
+    copied straight away and written on its own thread, so the caller never waits on storage. Unless
+    onDemand, dumps closer together than MIN_DUMP_INTERVAL_NANOS are skipped. Returns the thread writing
+    the dump, or null if it was skipped.
+     */
+    Thread requestDump(String reason, boolean onDemand) {
+        File dir = directory;
+        if (dir == null) {
+            return null;
+        }
+        byte[] records;
+        long dumpNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (!onDemand && dumped && now - lastDumpNanos < MIN_DUMP_INTERVAL_NANOS) {
+                return null;
+            }
+            dumped = true;
+            lastDumpNanos = now;
+            records = snapshot();
+            dumpNanos = now;
+        }
+        long dumpMillis = System.currentTimeMillis();
+        Thread writer = new Thread("flight-recorder") {
+            public void run() {
+                File file = new File(dir, "flight-" + dumpMillis + "-" + reason + ".bin");
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    Log.w(TAG, "Could not create " + dir);
+                    return;
+                }
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                    writeDump(out, records, dumpMillis, dumpNanos);
+                    Log.i(TAG, "Flight recorder dumped to " + file + ", " + records.length + " bytes");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                deleteOldDumps(dir);
+            }
+        };
+        writer.start();
+        return writer;
+    }
+
+    /*
+    Dump the ring if thread dies from an exception, before the default handler takes the app down.
+    Call before the thread is started.
+     */
+    void watch(Thread thread) {
+        thread.setUncaughtExceptionHandler((t, e) -> {
+            recordEvent(EXCEPTION, t.getId(), 0);
+            Thread writer = requestDump(t.getName() + "_exception", true);
+            if (writer != null) {
+                try {
+                    writer.join(DUMP_WAIT_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Thread.UncaughtExceptionHandler next = Thread.getDefaultUncaughtExceptionHandler();
+            if (next != null) {
+                next.uncaughtException(t, e);
+            } else {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private static void deleteOldDumps(File dir) {
+        File[] dumps = dir.listFiles((d, name) -> name.startsWith("flight-") && name.endsWith(".bin"));
+        if (dumps == null || dumps.length <= MAX_DUMPS) {
+            return;
+        }
+        /* The names start with the dump time, so the oldest sort first */
+        Arrays.sort(dumps, (a, b) -> a.getName().compareTo(b.getName()));
+        for (int i = 0; i < dumps.length - MAX_DUMPS; i++) {
+            if (!dumps[i].delete()) {
+                Log.w(TAG, "Could not delete " + dumps[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.michael.bci;
+
+/*
+ * FloatFormatter writes a float as ASCII decimal straight into a byte array, producing exactly the
+ * characters Float.toString() does without creating a String. Every EEG value in micro volts lies
+ * between 0.01 (one count at gain 24 is 0.0224uV) and 10^7, where Float.toString() uses plain
+ * notation and prints the fewest digits that still read back as the same float. Those digits are
+ * found with exact long arithmetic on the float's mantissa and exponent. Anything outside that
+ * range falls back to Float.toString() itself.
+ */
+final class FloatFormatter {
+
+    /* Longest output, e.g. "-1.17549435E-38" */
+    static final int MAX_LENGTH = 16;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L,
+            100_000_000L, 1_000_000_000L, 10_000_000_000L
+    };
+    /* A float never needs more than 9 significant digits to read back exactly */
+    private static final int MAX_DIGITS = 9;
+    /* Decimal exponents of the fast path range [10^-2, 10^7) */
+    private static final int MIN_EXPONENT = -2;
+    private static final int MAX_EXPONENT = 6;
+
+    private FloatFormatter() {
+    }
+
+    /* Write value at position in dst, which needs MAX_LENGTH bytes of room. Returns the position after the last byte */
+    static int format(float value, byte[] dst, int position) {
+        int bits = Float.floatToRawIntBits(value);
+        if ((bits & 0x7F800000) == 0x7F800000) {
+            /* NaN and infinity */
+            return fallback(value, dst, position);
+        }
+        int start = position;
+        if (bits < 0) {
+            dst[position++] = '-';
+            bits &= 0x7FFFFFFF;
+        }
+        if (bits == 0) {
+            dst[position] = '0';
+            dst[position + 1] = '.';
+            dst[position + 2] = '0';
+            return position + 3;
+        }
+
+        /* value = mantissa * 2^exponent, looked at in quarter units so both neighbour midpoints are whole numbers */
+        int biasedExponent = bits >>> 23;
+        long mantissa = (bits & 0x7FFFFF) | 0x800000;
+        int shift = 150 + 2 - biasedExponent;
+        if (biasedExponent == 0 || shift > 35 || shift < 2) {
+            return fallback(value, dst, start);
+        }
+        long scaled = mantissa << 2;
+        if (scaled * 100 < 1L << shift || scaled >= POWERS_OF_TEN[MAX_EXPONENT + 1] << shift) {
+            return fallback(value, dst, start);
+        }
+        /* Every decimal between low and high reads back as this float, the ends only when the mantissa is even */
+        long low = mantissa == 0x800000 ? scaled - 1 : scaled - 2;
+        long high = scaled + 2;
+        boolean inclusive = (mantissa & 1) == 0;
+
+        int exponent = MAX_EXPONENT;
+        while (exponent > MIN_EXPONENT && !atLeastPowerOfTen(scaled, shift, exponent)) {
+            exponent--;
+        }
+
+        /* Try 1, 2, 3... significant digits and keep the first decimal that lies between the neighbours */
+        for (int digits = 1; ; digits++) {
+            int decimalExponent = exponent - digits + 1;
+            /* value / 10^decimalExponent = (scaled * a) / b */
+            long a = decimalExponent < 0 ? POWERS_OF_TEN[-decimalExponent] : 1L;
+            long b = decimalExponent < 0 ? 1L << shift : POWERS_OF_TEN[decimalExponent] << shift;
+            long target = scaled * a;
+            long nearest = (target + (b >> 1)) / b;
+            if ((target + (b >> 1)) % b == 0 && (nearest & 1) == 1) {
+                /* Exactly half way, round to even like Float.toString() */
+                nearest--;
+            }
+            long other = nearest * b < target ? nearest + 1 : nearest - 1;
+            long chosen = within(nearest * b, low * a, high * a, inclusive) ? nearest
+                    : within(other * b, low * a, high * a, inclusive) ? other
+                    : -1;
+            if (chosen >= 0 || digits == MAX_DIGITS) {
+                return writeDecimal(chosen >= 0 ? chosen : nearest, decimalExponent, dst, position);
+            }
+        }
+    }
+
+    /* value >= 10^exponent, where value = scaled / 2^shift */
+    private static boolean atLeastPowerOfTen(long scaled, int shift, int exponent) {
+        if (exponent < 0) {
+            return scaled * POWERS_OF_TEN[-exponent] >= 1L << shift;
+        }
+        return scaled >= POWERS_OF_TEN[exponent] << shift;
+    }
+
+    private static boolean within(long value, long low, long high, boolean inclusive) {
+        return inclusive ? value >= low && value <= high : value > low && value < high;
+    }
+
+    /* Write significand * 10^decimalExponent in plain notation with at least one digit after the point */
+    private static int writeDecimal(long significand, int decimalExponent, byte[] dst, int position) {
+        while (significand % 10 == 0) {
+            significand /= 10;
+            decimalExponent++;
+        }
+        int digitCount = 1;
+        while (digitCount < POWERS_OF_TEN.length && significand >= POWERS_OF_TEN[digitCount]) {
+            digitCount++;
+        }
+        int integerDigits = digitCount + decimalExponent;
+
+        if (decimalExponent >= 0) {
+            position = writeDigits(significand, digitCount, dst, position);
+            for (int i = 0; i < decimalExponent; i++) {
+                dst[position++] = '0';
+            }
+            dst[position] = '.';
+            dst[position + 1] = '0';
+            return position + 2;
+        }
+        if (integerDigits > 0) {
+            long divisor = POWERS_OF_TEN[-decimalExponent];
+            position = writeDigits(significand / divisor, integerDigits, dst, position);
+            dst[position++] = '.';
+            return writeDigits(significand % divisor, -decimalExponent, dst, position);
+        }
+        dst[position++] = '0';
+        dst[position++] = '.';
+        for (int i = integerDigits; i < 0; i++) {
+            dst[position++] = '0';
+        }
+        return writeDigits(significand, digitCount, dst, position);
+    }
+
+    /* Write exactly count digits of value, with leading zeros */
+    private static int writeDigits(long value, int count, byte[] dst, int position) {
+        for (int i = position + count - 1; i >= position; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + count;
+    }
+
+    private static int fallback(float value, byte[] dst, int position) {
+        String text = Float.toString(value);
+        for (int i = 0; i < text.length(); i++) {
+            dst[position++] = (byte) text.charAt(i);
+        }
+        return position;
+    }
+}
@@ -0,0 +1,49 @@
+package com.michael.bci;
+
+import com.ftdi.j2xx.D2xxManager;
+import com.ftdi.j2xx.FT_Device;
+
+/* FtdiByteSource reads and writes the OpenBCI dongle through the FTDI D2XX driver */
+final class FtdiByteSource implements ByteSource {
+
+    private final FT_Device device;
+
+    FtdiByteSource(FT_Device device) {
+        this.device = device;
+    }
+
+    @Override
+    public int getQueueStatus() {
+        return device.getQueueStatus();
+    }
+
+    @Override
+    public int read(byte[] data, int length) {
+        return device.read(data, length);
+    }
+
+    @Override
+    public int read(byte[] data, int length, long timeoutMillis) {
+        return device.read(data, length, timeoutMillis);
+    }
+
+    @Override
+    public int write(byte[] data, int length) {
+        return device.write(data, length);
+    }
+
+    @Override
+    public boolean readBufferFull() {
+        return device.readBufferFull();
+    }
+
+    @Override
+    public void purge() {
+        device.purge((byte) (D2xxManager.FT_PURGE_TX | D2xxManager.FT_PURGE_RX));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return device.isOpen();
+    }
+}
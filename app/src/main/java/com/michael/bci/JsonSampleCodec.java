@@ -0,0 +1,82 @@
+package com.michael.bci;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ * JsonSampleCodec encodes a batch as a JSON array of the per-sample objects the app has always sent:
+ * SN, ch1-ch8 in micro volts, UnixTS and a formatted TS. Existing JSON consumers keep working with it.
+ * The objects used to be built as a LinkedHashMap and serialised with JSONValue.toJSONString(), now
+ * they are written straight into the MessageBuffer from cached key fragments, with FloatFormatter for
+ * the channel values, so no maps or Strings are created per sample. The bytes are the same as
+ * json-simple produced: keys in the same order, no whitespace and floats as Float.toString() prints them.
+ */
+final class JsonSampleCodec implements SampleCodec {
+
+    static final String CONTENT_TYPE = "application/json";
+
+    /* Key fragments, each with the separator before it */
+    private static final byte[] SN_KEY = ascii("{\"SN\":");
+    private static final byte[][] CHANNEL_KEYS = new byte[SampleBlock.CHANNELS][];
+    private static final byte[] UNIX_TS_KEY = ascii(",\"UnixTS\":");
+    private static final byte[] TS_KEY = ascii(",\"TS\":\"");
+    private static final byte[] OBJECT_END = ascii("\"}");
+    /* json-simple writes NaN and infinite numbers as null */
+    private static final byte[] NULL = ascii("null");
+
+    static {
+        for (int ch = 0; ch < CHANNEL_KEYS.length; ch++) {
+            CHANNEL_KEYS[ch] = ascii(",\"ch" + (ch + 1) + "\":");
+        }
+    }
+
+    /* Only used from the publisher thread, so one formatter can be shared by every sample */
+    private final TimestampFormatter timestampFormatter = new TimestampFormatter();
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void begin(MessageBuffer out) {
+        out.put((byte) '[');
+    }
+
+    @Override
+    public void append(MessageBuffer out, SampleBlock samples, int slot, int index) {
+        if (index > 0) {
+            out.put((byte) ',');
+        }
+        long timestamp = samples.timestamp[slot];
+        int base = SampleBlock.offset(slot);
+
+        out.put(SN_KEY);
+        out.putDecimal(samples.sampleNumber[slot]);
+        //Bytes 3-26: Data value for EEG channels 1-8, already converted to MicroVolts by the decoder
+        for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+            out.put(CHANNEL_KEYS[ch]);
+            float microVolts = samples.microVolts[base + ch];
+            if (Float.isNaN(microVolts) || Float.isInfinite(microVolts)) {
+                out.put(NULL);
+            } else {
+                out.putDecimal(microVolts);
+            }
+        }
+        /* The accelerometer and OpenBCI GUI fields (accelX-Z, other1-7, analog1-3) have never been sent */
+        out.put(UNIX_TS_KEY);
+        out.putDecimal(timestamp / 1000L); // Unix Timestamp
+        out.put(TS_KEY);
+        /* Formatted Timestamp - digits, dashes, colons and a space, none of which JSON escapes */
+        out.putUtf8(timestampFormatter.chars(), 0, timestampFormatter.formatTo(timestamp));
+        out.put(OBJECT_END);
+    }
+
+    @Override
+    public void end(MessageBuffer out, int sampleCount) {
+        out.put((byte) ']');
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,136 @@
+package com.michael.bci;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Michael McMahon
+ * LatencyHistogram records durations in nanoseconds into a fixed set of log-bucketed counters, the same
+ * layout as an HDR histogram: values below SUB_BUCKETS get a bucket each, and every power of two above
+ * that is split into SUB_BUCKETS linear buckets, so a percentile is never off by more than 1/SUB_BUCKETS
+ * (6.25%) of the value. The whole range of a long fits in BUCKETS counters, allocated once.
+ *
+ * record() is lock-free and can be called from any thread, e.g. the AMQP connection thread for confirms.
+ * One reader thread calls snapshot() to take the counts recorded since its last snapshot, then reads the
+ * percentiles, count, mean and max of that interval. Writers never wait on the reader or on each other.
+ */
+final class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /* Values up to 2^63 - 1, the top bucket holds bit 62 */
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    /* Largest value since the last snapshot */
+    private final AtomicLong max = new AtomicLong();
+
+    /* Reader side, the cumulative counts at the last snapshot and the counts of the interval since */
+    private final long[] previous = new long[BUCKETS];
+    private final long[] interval = new long[BUCKETS];
+    private long previousTotal;
+    private long previousSum;
+    private long intervalCount;
+    private long intervalSum;
+    private long intervalMax;
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /* Add one duration, negative values count as 0 */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /* Values recorded since the histogram was created */
+    long totalCount() {
+        return total.get();
+    }
+
+    /*
+    Take the values recorded since the last snapshot as the current interval. A value recorded while the
+    snapshot is taken may land in this interval or the next, but is never lost or counted twice.
+     */
+    void snapshot() {
+        intervalMax = max.getAndSet(0);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long cumulative = counts.get(i);
+            interval[i] = cumulative - previous[i];
+            previous[i] = cumulative;
+            count += interval[i];
+        }
+        intervalCount = count;
+        long totalNow = total.get();
+        long sumNow = sum.get();
+        /* The sum may be a few values ahead of the buckets, scale it to the values the buckets hold */
+        long sumCount = totalNow - previousTotal;
+        intervalSum = sumCount == 0 ? 0 : (long) ((double) (sumNow - previousSum) * count / sumCount);
+        previousTotal = totalNow;
+        previousSum = sumNow;
+    }
+
+    long count() {
+        return intervalCount;
+    }
+
+    long mean() {
+        return intervalCount == 0 ? 0 : intervalSum / intervalCount;
+    }
+
+    long max() {
+        return intervalMax;
+    }
+
+    /* Value at or below which fraction (0-1) of the interval's values fall, 0 when the interval is empty */
+    long percentile(double fraction) {
+        if (intervalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * intervalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += interval[i];
+            if (seen >= rank) {
+                /* The top of the bucket, but never above the largest value actually seen */
+                return intervalMax > 0 ? Math.min(highestValue(i), intervalMax) : highestValue(i);
+            }
+        }
+        return intervalMax;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+    }
+
+    static long highestValue(int bucket) {
+        return bucket + 1 == BUCKETS ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+    }
+}
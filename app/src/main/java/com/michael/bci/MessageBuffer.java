@@ -0,0 +1,153 @@
+package com.michael.bci;
+
+import java.util.Arrays;
+
+/*
+ * MessageBuffer is a growable byte array that message bodies are encoded into. It is allocated once
+ * per publisher and reused for every message; multi-byte values are written big-endian (network order).
+ */
+final class MessageBuffer {
+
+    private byte[] bytes;
+    private int length;
+
+    MessageBuffer(int initialCapacity) {
+        bytes = new byte[initialCapacity];
+    }
+
+    int length() {
+        return length;
+    }
+
+    /* Backing array, valid up to length() - callers must not keep it across writes */
+    byte[] array() {
+        return bytes;
+    }
+
+    /* Drop everything written after length, e.g. to undo a sample that did not fit */
+    void truncate(int length) {
+        this.length = length;
+    }
+
+    void clear() {
+        length = 0;
+    }
+
+    /* Make room for extra more bytes and return the position they start at */
+    int reserve(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+        int position = length;
+        length += extra;
+        return position;
+    }
+
+    void put(byte b) {
+        /* reserve() may replace bytes, so it has to run before the array is read */
+        int position = reserve(1);
+        bytes[position] = b;
+    }
+
+    void put(byte[] src) {
+        put(src, 0, src.length);
+    }
+
+    void put(byte[] src, int offset, int count) {
+        int position = reserve(count);
+        System.arraycopy(src, offset, bytes, position, count);
+    }
+
+    void putShort(int value) {
+        putShort(reserve(2), value);
+    }
+
+    /* Overwrite 2 bytes at position, e.g. to patch a count into a header once it is known */
+    void putShort(int position, int value) {
+        bytes[position] = (byte) (value >> 8);
+        bytes[position + 1] = (byte) value;
+    }
+
+    /* 24-bit two's complement, the native ADS1299 sample format */
+    void putInt24(int value) {
+        int position = reserve(3);
+        bytes[position] = (byte) (value >> 16);
+        bytes[position + 1] = (byte) (value >> 8);
+        bytes[position + 2] = (byte) value;
+    }
+
+    void putInt(int value) {
+        int position = reserve(4);
+        bytes[position] = (byte) (value >> 24);
+        bytes[position + 1] = (byte) (value >> 16);
+        bytes[position + 2] = (byte) (value >> 8);
+        bytes[position + 3] = (byte) value;
+    }
+
+    void putLong(long value) {
+        putInt((int) (value >> 32));
+        putInt((int) value);
+    }
+
+    void putFloat(float value) {
+        putInt(Float.floatToIntBits(value));
+    }
+
+    /* Unsigned LEB128 varint, 7 bits per byte with the low bits first and the top bit set on all but the last byte */
+    void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        put((byte) value);
+    }
+
+    /* ASCII decimal, as in Long.toString(value) */
+    void putDecimal(long value) {
+        if (value < 0) {
+            put((byte) '-');
+        } else {
+            /* Work with negative numbers so Long.MIN_VALUE needs no special case */
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int position = reserve(digits);
+        for (int i = position + digits - 1; i >= position; i--) {
+            bytes[i] = (byte) ('0' - value % 10);
+            value /= 10;
+        }
+    }
+
+    /* ASCII decimal, as in Float.toString(value) */
+    void putDecimal(float value) {
+        int position = reserve(FloatFormatter.MAX_LENGTH);
+        truncate(FloatFormatter.format(value, bytes, position));
+    }
+
+    /* UTF-8 encoding of count chars, which must not contain surrogate pairs */
+    void putUtf8(char[] chars, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                put((byte) c);
+            } else if (c < 0x800) {
+                int position = reserve(2);
+                bytes[position] = (byte) (0xC0 | c >> 6);
+                bytes[position + 1] = (byte) (0x80 | c & 0x3F);
+            } else {
+                int position = reserve(3);
+                bytes[position] = (byte) (0xE0 | c >> 12);
+                bytes[position + 1] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[position + 2] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    /* Copy of the written bytes, as basicPublish needs an exactly sized array */
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+}
@@ -0,0 +1,55 @@
+package com.michael.bci;
+
+import com.rabbitmq.client.AMQP;
+
+/*
+ * Michael McMahon
+ * MetricsStream publishes the PipelineMetrics latency histograms on the "metrics" routing key once
+ * every metricsIntervalMs, best effort like the derived streams. Only added when PipelineMetrics.ENABLED.
+ */
+final class MetricsStream implements PublisherStage {
+
+    static final String QUEUE_NAME = "bci_metrics";
+    static final String ROUTING_KEY = "metrics";
+
+    private final PipelineMetrics metrics;
+    private final String sessionId;
+    private final StreamPublisher stream;
+    private final AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+            .contentType(JsonSampleCodec.CONTENT_TYPE)
+            .build();
+    private final long intervalNanos;
+    private long nextNanos;
+
+    MetricsStream(BciService bciService) {
+        metrics = bciService.metrics;
+        sessionId = bciService.sessionId;
+        stream = new StreamPublisher(QUEUE_NAME, ROUTING_KEY, bciService.health);
+        intervalNanos = bciService.metricsIntervalMs * 1_000_000L;
+        nextNanos = System.nanoTime() + intervalNanos;
+    }
+
+    @Override
+    public void process(SampleBlock raw, SampleBlock published) {
+    }
+
+    @Override
+    public long nanosUntilDue(long maxNanos) {
+        return Math.max(0, Math.min(maxNanos, nextNanos - System.nanoTime()));
+    }
+
+    @Override
+    public void poll() {
+        long now = System.nanoTime();
+        if (now - nextNanos < 0) {
+            return;
+        }
+        nextNanos = now + intervalNanos;
+        stream.publish(properties, metrics.toJson(sessionId));
+    }
+
+    @Override
+    public void close() {
+        stream.close();
+    }
+}
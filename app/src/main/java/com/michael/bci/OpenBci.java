@@ -27,6 +27,10 @@ class OpenBci {
      */
     public static final float scale_fac_accel_G_per_count = 0.002f / ((float)Math.pow(2,4));
 
+    /* Default Cyton sample rate, one 33 byte packet every 4ms */
+    static final int SAMPLE_RATE = 250;
+    static final long SAMPLE_INTERVAL_NANOS = 1_000_000_000L / SAMPLE_RATE;
+
 
 
 
@@ -35,11 +39,19 @@ class OpenBci {
     for the ADS1299 chip, processing code converts this into a standard 32-bit signed integer.
     this function is passed a 3 byte array
      */
-    private static int interpret24bitAsInt32(byte[] byteArray) {
+    static int interpret24bitAsInt32(byte[] byteArray) {
+        return interpret24bitAsInt32(byteArray, 0);
+    }
+
+    /*
+    Same conversion reading the 3 bytes in place at offset, so the receiver can decode a whole
+    packet without copying each channel out into its own array
+     */
+    static int interpret24bitAsInt32(byte[] buffer, int offset) {
         int newInt = (
-                ((0xFF & byteArray[0]) << 16) |
-                ((0xFF & byteArray[1]) << 8) |
-                 (0xFF & byteArray[2])
+                ((0xFF & buffer[offset]) << 16) |
+                ((0xFF & buffer[offset + 1]) << 8) |
+                 (0xFF & buffer[offset + 2])
         );
         if ((newInt & 0x00800000) > 0) {
             newInt |= 0xFF000000;
@@ -55,9 +67,14 @@ class OpenBci {
     this function is passed a 2 byte array
      */
     public static int interpret16bitAsInt32(byte[] byteArray) {
+        return interpret16bitAsInt32(byteArray, 0);
+    }
+
+    /* Same conversion reading the 2 bytes in place at offset */
+    static int interpret16bitAsInt32(byte[] buffer, int offset) {
         int newInt = (
-                ((0xFF & byteArray[0]) << 8) |
-                        (0xFF & byteArray[1])
+                ((0xFF & buffer[offset]) << 8) |
+                        (0xFF & buffer[offset + 1])
         );
         if ((newInt & 0x00008000) > 0) {
             newInt |= 0xFFFF0000;
@@ -69,12 +86,28 @@ class OpenBci {
 
     /* Apply the scale factor to the EEG "counts" */
     public static float convertByteToMicroVolts(byte[] byteArray){
-        return scale_fac_uVolts_per_count * interpret24bitAsInt32(byteArray);
+        return convertCountsToMicroVolts(interpret24bitAsInt32(byteArray, 0));
+    }
+
+    /* Apply the scale factor to the EEG "counts" held at offset in a larger buffer */
+    static float convertByteToMicroVolts(byte[] buffer, int offset){
+        return convertCountsToMicroVolts(interpret24bitAsInt32(buffer, offset));
+    }
+
+    /* Apply the scale factor to counts that have already been converted to int32 */
+    static float convertCountsToMicroVolts(int counts){
+        return scale_fac_uVolts_per_count * counts;
+    }
+
+    /* Inverse of convertCountsToMicroVolts, clamped to the 24-bit range of the ADS1299 */
+    static int convertMicroVoltsToCounts(double microVolts){
+        long counts = Math.round(microVolts / scale_fac_uVolts_per_count);
+        return (int) Math.max(-0x800000, Math.min(0x7FFFFF, counts));
     }
 
     /* Apply the scale factor to Accelerometer */
     public static float convertAccelData(byte[] byteArray){
-        return scale_fac_accel_G_per_count * interpret16bitAsInt32(byteArray);
+        return scale_fac_accel_G_per_count * interpret16bitAsInt32(byteArray, 0);
     }
 
 }
@@ -0,0 +1,56 @@
+package com.michael.bci;
+
+import org.json.simple.JSONValue;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+
+/*
+ * Michael McMahon
+ * PipelineMetrics times the hot path from the USB read to the broker confirm, one LatencyHistogram per
+ * stage, so the time a sample spends on the phone can be split up:
+ *  usb_read - the ReadStrategy wait and FTDI read that returned bytes
+ *  decode   - decoding, stamping and queueing every packet of one read
+ *  encode   - the codec appending one sample to the open batch
+ *  publish  - the basicPublish of one batch, including waiting for room in the confirm window
+ *  confirm  - from the basicPublish of a batch to the broker's ack
+ * The publisher sends a snapshot of every stage (count, mean, p50, p99, p99.9 and max in nanoseconds, for
+ * the interval since the last message) on the "metrics" routing key every metricsIntervalMs.
+ *
+ * Every call site is wrapped in if (PipelineMetrics.ENABLED), a compile time constant, so with ENABLED
+ * false the compiler drops the System.nanoTime() calls and recording altogether.
+ */
+final class PipelineMetrics {
+
+    /* Set to false to build the app without any timing on the hot path */
+    static final boolean ENABLED = true;
+
+    final LatencyHistogram usbRead = new LatencyHistogram("usb_read");
+    final LatencyHistogram decode = new LatencyHistogram("decode");
+    final LatencyHistogram encode = new LatencyHistogram("encode");
+    final LatencyHistogram publish = new LatencyHistogram("publish");
+    final LatencyHistogram confirm = new LatencyHistogram("confirm");
+
+    private final LatencyHistogram[] stages = {usbRead, decode, encode, publish, confirm};
+
+    /* Snapshot every stage and build the metrics message body. Only called from the publisher thread */
+    byte[] toJson(String sessionId) {
+        LinkedHashMap<String, Serializable> obj = new LinkedHashMap<>();
+        obj.put("UnixTS", System.currentTimeMillis());
+        obj.put("session_id", sessionId);
+        for (LatencyHistogram stage : stages) {
+            stage.snapshot();
+            LinkedHashMap<String, Long> values = new LinkedHashMap<>();
+            values.put("count", stage.count());
+            values.put("total", stage.totalCount());
+            values.put("mean_ns", stage.mean());
+            values.put("p50_ns", stage.percentile(0.5));
+            values.put("p99_ns", stage.percentile(0.99));
+            values.put("p999_ns", stage.percentile(0.999));
+            values.put("max_ns", stage.max());
+            obj.put(stage.name(), values);
+        }
+        return JSONValue.toJSONString(obj).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,132 @@
+package com.michael.bci;
+
+import java.util.Arrays;
+
+/*
+ * Michael McMahon
+ * PolyphaseDecimator low-pass filters the EEG and keeps every factor-th sample, e.g. 250Hz down to 125Hz
+ * or 62.5Hz for subscribers that don't need the full rate. The anti-alias filter is a Blackman windowed
+ * sinc with TAPS_PER_PHASE * factor + 1 taps and its cutoff at 80% of the new Nyquist frequency. It is
+ * split into factor polyphase sub-filters, each fed every factor-th input sample, so the filter only does
+ * the multiplies for the samples it keeps and never computes an output that would be thrown away.
+ * Delay lines and the input phase carry over from one block to the next, so a stream split across any
+ * number of reads is decimated exactly as if it arrived in one piece, with no allocation per block.
+ * The filter delays the signal by TAPS_PER_PHASE * factor / 2 input samples, which is taken off the
+ * sample index, sample number and timestamp of every output so they line up with the raw stream.
+ * Not thread safe, the publisher thread owns it.
+ */
+final class PolyphaseDecimator {
+
+    static final int TAPS_PER_PHASE = 32;
+    /* Cutoff as a fraction of the decimated Nyquist frequency, leaving room for the transition band */
+    private static final double CUTOFF = 0.8;
+
+    private final int factor;
+    private final int channels;
+    /* Sub-filter length, the filter is padded with zeros to factor * phaseLength taps */
+    private final int phaseLength;
+    /* coefficients[p * phaseLength + j] = h[p + factor * j] */
+    private final double[] coefficients;
+    /* For each channel and phase a delay line of phaseLength, written twice so the dot product never wraps */
+    private final double[] delay;
+    private int delayPosition;
+    /* Input samples until the next output, counting down to 0 */
+    private int phase;
+    private final int delaySamples;
+    private final double delayMillis;
+
+    PolyphaseDecimator(double sampleRate, int channels, int factor) {
+        if (factor < 2) {
+            throw new IllegalArgumentException("Decimation factor " + factor + " is not 2 or more");
+        }
+        this.factor = factor;
+        this.channels = channels;
+        int taps = TAPS_PER_PHASE * factor + 1;
+        phaseLength = (taps + factor - 1) / factor;
+
+        double[] h = new double[phaseLength * factor];
+        double cutoff = CUTOFF * 0.5 / factor;
+        double middle = (taps - 1) / 2.0;
+        double sum = 0;
+        for (int k = 0; k < taps; k++) {
+            double t = k - middle;
+            double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double blackman = 0.42 - 0.5 * Math.cos(2 * Math.PI * k / (taps - 1)) + 0.08 * Math.cos(4 * Math.PI * k / (taps - 1));
+            h[k] = sinc * blackman;
+            sum += h[k];
+        }
+        coefficients = new double[h.length];
+        for (int p = 0; p < factor; p++) {
+            for (int j = 0; j < phaseLength; j++) {
+                /* Unity gain at DC */
+                coefficients[p * phaseLength + j] = h[p + factor * j] / sum;
+            }
+        }
+        delay = new double[channels * factor * phaseLength * 2];
+        delaySamples = (int) middle;
+        delayMillis = delaySamples * 1000.0 / sampleRate;
+    }
+
+    int factor() {
+        return factor;
+    }
+
+    /* Input samples the output lags behind */
+    int delaySamples() {
+        return delaySamples;
+    }
+
+    /* Samples out needs room for when in holds inSamples */
+    int maxOutput(int inSamples) {
+        return (inSamples + factor - 1) / factor;
+    }
+
+    void reset() {
+        Arrays.fill(delay, 0);
+        delayPosition = 0;
+        phase = 0;
+    }
+
+    /* Decimate the samples in in and put the outputs in out, which is cleared first. Returns the number of outputs */
+    int process(SampleBlock in, SampleBlock out) {
+        out.clear();
+        for (int slot = 0; slot < in.size; slot++) {
+            /* Input iM - p goes to sub-filter p, the output for iM is due when p reaches 0 */
+            int p = phase;
+            int base = SampleBlock.offset(slot);
+            for (int ch = 0; ch < channels; ch++) {
+                int line = ((ch * factor) + p) * phaseLength * 2;
+                delay[line + delayPosition] = in.microVolts[base + ch];
+                delay[line + delayPosition + phaseLength] = in.microVolts[base + ch];
+            }
+            if (p == 0) {
+                output(in, slot, out);
+            }
+            phase = p == 0 ? factor - 1 : p - 1;
+        }
+        return out.size;
+    }
+
+    private void output(SampleBlock in, int slot, SampleBlock out) {
+        int outSlot = out.size++;
+        int outBase = SampleBlock.offset(outSlot);
+        for (int ch = 0; ch < channels; ch++) {
+            double sum = 0;
+            for (int p = 0; p < factor; p++) {
+                int line = ((ch * factor) + p) * phaseLength * 2 + delayPosition;
+                int c = p * phaseLength;
+                /* The newest sample of the line is at delayPosition + phaseLength, j counts back in time */
+                for (int j = 0; j < phaseLength; j++) {
+                    sum += coefficients[c + j] * delay[line + phaseLength - j];
+                }
+            }
+            out.microVolts[outBase + ch] = (float) sum;
+            out.counts[outBase + ch] = OpenBci.convertMicroVoltsToCounts(sum);
+        }
+        out.sampleIndex[outSlot] = in.sampleIndex[slot] - delaySamples;
+        out.sampleNumber[outSlot] = (in.sampleNumber[slot] - delaySamples) & 0xFF;
+        out.timestamp[outSlot] = in.timestamp[slot] - Math.round(delayMillis);
+        /* Every line has now had its sample for this output, move all of them on one place */
+        delayPosition = delayPosition + 1 == phaseLength ? 0 : delayPosition + 1;
+    }
+}
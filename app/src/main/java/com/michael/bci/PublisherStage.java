@@ -0,0 +1,26 @@
+package com.michael.bci;
+
+/*
+ * Michael McMahon
+ * PublisherStage is one of the best effort streams the BciPublisher thread runs next to the main EEG stream:
+ * the filtered and decimated copies, the band power features and the latency metrics. The publisher loop
+ * hands every stage each block it drains from the ring, gives each a chance to send whatever has come due on
+ * every pass, and closes them in turn when the service stops. A stage never throws back at the publisher
+ * thread and never touches the journal or the confirms of the main stream.
+ * Only used from the publisher thread.
+ */
+interface PublisherStage {
+
+    /* A block drained from the ring, raw as decoded and as the main stream publishes it, which is
+     * the filtered block in StreamMode.FILTERED and the raw one otherwise */
+    void process(SampleBlock raw, SampleBlock published);
+
+    /* How long the publisher may park before this stage has something to send, at most maxNanos */
+    long nanosUntilDue(long maxNanos);
+
+    /* Called on every pass of the publisher loop, send whatever has come due */
+    void poll();
+
+    /* The service is stopping, send what is left and close the channel */
+    void close();
+}
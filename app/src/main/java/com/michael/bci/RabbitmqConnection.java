@@ -2,16 +2,32 @@ package com.michael.bci;
 
 import android.util.Log;
 
+import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.RecoveryDelayHandler;
+import com.rabbitmq.client.ShutdownSignalException;
 
 import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
 
-/* RabbitMQ connection detaile */
+/* RabbitMQ connection details, and the one connection to the broker shared by every stream.
+ * The EEG publisher and the activity service each open their own channel on it with openChannel(),
+ * so activity labels are never queued behind EEG batches on the same channel. The client library
+ * recovers the connection, its channels and the declared exchange, queues and bindings by itself when
+ * the network drops, waiting a jittered, growing delay between attempts, so an error no longer costs a
+ * full TCP and AMQP handshake. The first connection is not covered by that, so getConnection() applies
+ * the same backoff itself. */
 public class RabbitmqConnection {
     public final static String TAG = "RMQ";
+    public static final String EXCHANGE_NAME = "exchange_1"; //RabbitMQ Exchange Name
+    /* Reconnect backoff, doubling from MIN_BACKOFF_MS up to MAX_BACKOFF_MS */
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30_000;
+
     private static Connection connection;
+    private static final ConnectGate connectGate = new ConnectGate();
 
     /* Method for connection details to RabbitMQ Broker */
     public static ConnectionFactory getConnectionFactory() throws IOException, TimeoutException {
@@ -21,46 +37,132 @@ public class RabbitmqConnection {
         factory.setPassword("password"); //RabbitMQ Password
         factory.setVirtualHost("/"); //RabbitMQ Virtual Host
         factory.setPort(5672); //RabbitMQ Message Broker Port
+        factory.setAutomaticRecoveryEnabled(true); //Reconnect and reopen channels after a network failure
+        factory.setTopologyRecoveryEnabled(true); //Declare the exchange, queues and bindings again after reconnecting
+        factory.setRecoveryDelayHandler(new JitteredBackoff());
+        factory.setRequestedHeartbeat(15); //Notice a dead 4G link within about 30 seconds
         Log.d(TAG, "RMQ: Returned RMQ Connection Details");
         return factory;
     }
 
-    /* Create RabbitMQ Connection to the Broker */
-    /*
-    public static Connection getConnection() throws IOException, TimeoutException {
-        // Only create the connection if it doesn't already exist
+    /* Return the shared connection to the Broker, creating it if it doesn't already exist */
+    public static synchronized Connection getConnection() throws IOException, TimeoutException {
+        // Once created the connection recovers by itself, so it is kept even while it is down
         if (connection == null)
         {
+            long now = System.currentTimeMillis();
+            long wait = connectGate.waitMillis(now);
+            if (wait > 0) {
+                throw new IOException("RMQ: Broker unreachable, next attempt in " + wait + "ms");
+            }
             try
             {
-                ConnectionFactory factory = RabbitmqConnection.getConnectionFactory();
-                connection =  factory.newConnection();
+                connection = getConnectionFactory().newConnection("bci");
+                connectGate.succeeded();
+                Log.d(TAG, "RMQ: Open shared Connection " + connection);
             }
-            catch(Exception e)
+            catch(IOException | TimeoutException e)
             {
-                // Clean up
-                if (connection != null)
-                {
-                    connection.close();
-                    connection = null;
-                }
+                connectGate.failed(now);
                 throw e;
             }
         }
-        Log.d(TAG, "RMQ: Open Connection for EEG" +connection);
         return connection;
     }
+
+    /*
+    Open a channel on the shared connection and declare the exchange and a queue bound to routingKey.
+    The declarations are recorded by the client and repeated when the connection recovers.
      */
+    public static Channel openChannel(String queueName, String routingKey) throws IOException, TimeoutException {
+        Channel channel = null;
+        try
+        {
+            channel = getConnection().createChannel();
+            if (channel == null) {
+                throw new IOException("RMQ: No free channel on the shared connection");
+            }
+            channel.exchangeDeclare(EXCHANGE_NAME, "direct", true);
+            channel.queueDeclare(queueName, false, false, false, null);
+            channel.queueBind(queueName, EXCHANGE_NAME, routingKey);
+            Log.d(TAG, "RMQ: Open Channel for " + queueName + " " + channel);
+            return channel;
+        }
+        catch(IOException | ShutdownSignalException e)
+        {
+            // Clean up
+            closeChannel(channel);
+            // The connection is down and recovering - report it like any other I/O failure
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /* Drop a channel without waiting for the broker, which may be unreachable. The shared connection stays open */
+    public static void closeChannel(Channel channel) {
+        if (channel != null)
+        {
+            try {
+                channel.abort();
+            } catch (IOException | ShutdownSignalException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-    // Cleanup the channel and leave it in an uninitialized state
-    public static void CloseConnection() throws IOException, TimeoutException {
+    // Cleanup the shared connection and leave it in an uninitialized state
+    public static synchronized void CloseConnection() throws IOException, TimeoutException {
         // Only close the connection if it already exists
         if (connection != null)
         {
-            connection.close();
+            Connection closing = connection;
             connection = null;
-            Log.d(TAG, "RMQ: Close Connection for EEG");
+            closing.close();
+            Log.d(TAG, "RMQ: Close shared Connection");
         }
     }
 
+    /* Recovery delay of MIN_BACKOFF_MS doubling per attempt up to MAX_BACKOFF_MS, with the upper half
+     * randomised so phones that lost the broker together do not all reconnect at the same moment */
+    static final class JitteredBackoff implements RecoveryDelayHandler {
+
+        @Override
+        public long getDelay(int recoveryAttempts) {
+            return delay(recoveryAttempts);
+        }
+
+        static long delay(int attempts) {
+            long ceiling = ceiling(attempts);
+            return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        }
+
+        /* Longest delay after this many attempts */
+        static long ceiling(int attempts) {
+            long ceiling = MIN_BACKOFF_MS << Math.min(Math.max(attempts - 1, 0), 16);
+            return Math.min(ceiling, MAX_BACKOFF_MS);
+        }
+    }
+
+    /* Holds off connecting again after the first connection failed, with the JitteredBackoff delays */
+    static final class ConnectGate {
+        private int failedAttempts;
+        private long nextAttemptMillis;
+
+        /* How long until the next attempt is allowed, 0 if it is now */
+        long waitMillis(long now) {
+            return Math.max(0, nextAttemptMillis - now);
+        }
+
+        void failed(long now) {
+            nextAttemptMillis = now + JitteredBackoff.delay(++failedAttempts);
+        }
+
+        void succeeded() {
+            failedAttempts = 0;
+            nextAttemptMillis = 0;
+        }
+
+        int failedAttempts() {
+            return failedAttempts;
+        }
+    }
 }
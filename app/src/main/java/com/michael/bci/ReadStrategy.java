@@ -0,0 +1,186 @@
+package com.michael.bci;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/*
+ * Michael McMahon
+ * ReadStrategy decides how the receiver thread waits for bytes from the ByteSource Rx buffer.
+ * Spinning on getQueueStatus() keeps a whole core busy even when the board is not streaming, so each
+ * policy trades a little read latency for CPU in a different way:
+ *  Blocking  - hand the wait to the driver with read(data, length, timeout)
+ *  Backoff   - spin briefly, then park for doubling intervals capped at one sample interval
+ *  Threshold - sleep for as long as the expected byte rate needs to fill a byte-count threshold
+ * Every policy records the thread CPU time and read latency it costs, see toString(), so the right one
+ * can be picked for 250Hz Cyton or for higher rate configurations.
+ */
+abstract class ReadStrategy {
+
+    /* Longest a single read() waits before returning 0, so the receiver can check it should still run */
+    static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /* Thread CPU time clock - Debug::threadCpuTimeNanos on the phone */
+    private final LongSupplier cpuClock;
+
+    private long calls;
+    private long reads;
+    private long bytes;
+    private long wallNanos;
+    private long cpuNanos;
+    private long latencyNanos;
+    private long maxLatencyNanos;
+
+    ReadStrategy(LongSupplier cpuClock) {
+        this.cpuClock = cpuClock;
+    }
+
+    /*
+    Wait for data using this policy and read up to maxLength bytes into buffer. Returns the number
+    of bytes read, 0 if nothing arrived within MAX_WAIT_NANOS, or a negative number on driver error.
+    An error comes back at once, so it is only returned once MAX_WAIT_NANOS have passed, otherwise a
+    driver stuck in an error state would have the receiver spinning on it.
+     */
+    final int read(ByteSource device, byte[] buffer, int maxLength) {
+        long start = System.nanoTime();
+        long cpuStart = cpuClock.getAsLong();
+        int bytesRead = await(device, buffer, maxLength);
+        if (bytesRead < 0) {
+            long remaining;
+            while ((remaining = start + MAX_WAIT_NANOS - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        calls++;
+        wallNanos += elapsed;
+        cpuNanos += cpuClock.getAsLong() - cpuStart;
+        if (bytesRead > 0) {
+            reads++;
+            bytes += bytesRead;
+            latencyNanos += elapsed;
+            maxLatencyNanos = Math.max(maxLatencyNanos, elapsed);
+        }
+        return bytesRead;
+    }
+
+    protected abstract int await(ByteSource device, byte[] buffer, int maxLength);
+
+    /* Read whatever the driver already holds, without waiting */
+    static int readAvailable(ByteSource device, byte[] buffer, int maxLength) {
+        int available = device.getQueueStatus();
+        if (available <= 0) {
+            return available;
+        }
+        return device.read(buffer, Math.min(available, maxLength));
+    }
+
+    /* Share of one core used while waiting and reading, 0-1 */
+    double cpuLoad() {
+        return wallNanos == 0 ? 0 : (double) cpuNanos / wallNanos;
+    }
+
+    /* Average time from starting to wait until bytes were returned */
+    long averageLatencyNanos() {
+        return reads == 0 ? 0 : latencyNanos / reads;
+    }
+
+    long maxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    void resetStats() {
+        calls = reads = bytes = wallNanos = cpuNanos = latencyNanos = maxLatencyNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s calls=%d reads=%d bytes=%d cpu=%.1f%% latency avg=%dus max=%dus",
+                getClass().getSimpleName(), calls, reads, bytes, cpuLoad() * 100,
+                averageLatencyNanos() / 1000, maxLatencyNanos / 1000);
+    }
+
+    /* Let the driver block in read() until a packet worth of bytes has arrived or timeoutMillis passes */
+    static final class Blocking extends ReadStrategy {
+        private final long timeoutMillis;
+
+        Blocking(LongSupplier cpuClock, long timeoutMillis) {
+            super(cpuClock);
+            this.timeoutMillis = Math.min(timeoutMillis, TimeUnit.NANOSECONDS.toMillis(MAX_WAIT_NANOS));
+        }
+
+        @Override
+        protected int await(ByteSource device, byte[] buffer, int maxLength) {
+            int available = device.getQueueStatus();
+            if (available < 0) {
+                return available;
+            }
+            int wanted = Math.min(maxLength, Math.max(available, CytonFrameDecoder.FRAME_SIZE));
+            return device.read(buffer, wanted, timeoutMillis);
+        }
+    }
+
+    /* Spin for a few polls, then park for doubling intervals up to the expected sample interval */
+    static final class Backoff extends ReadStrategy {
+        private static final int SPIN_POLLS = 64;
+        private static final long MIN_PARK_NANOS = 50_000L;
+        private final long maxParkNanos;
+
+        Backoff(LongSupplier cpuClock, long sampleIntervalNanos) {
+            super(cpuClock);
+            this.maxParkNanos = Math.max(MIN_PARK_NANOS, sampleIntervalNanos);
+        }
+
+        @Override
+        protected int await(ByteSource device, byte[] buffer, int maxLength) {
+            long deadline = System.nanoTime() + MAX_WAIT_NANOS;
+            long park = MIN_PARK_NANOS;
+            int polls = 0;
+            while (true) {
+                int bytesRead = readAvailable(device, buffer, maxLength);
+                if (bytesRead != 0 || System.nanoTime() >= deadline) {
+                    return bytesRead;
+                }
+                if (++polls > SPIN_POLLS) {
+                    LockSupport.parkNanos(park);
+                    park = Math.min(park * 2, maxParkNanos);
+                }
+            }
+        }
+    }
+
+    /* Sleep until the driver should hold thresholdBytes at the expected byte rate, then read them all */
+    static final class Threshold extends ReadStrategy {
+        private static final long MIN_PARK_NANOS = 100_000L;
+        private final int thresholdBytes;
+        private final long byteIntervalNanos;
+
+        Threshold(LongSupplier cpuClock, int thresholdBytes, long byteIntervalNanos) {
+            super(cpuClock);
+            this.thresholdBytes = thresholdBytes;
+            this.byteIntervalNanos = byteIntervalNanos;
+        }
+
+        @Override
+        protected int await(ByteSource device, byte[] buffer, int maxLength) {
+            long deadline = System.nanoTime() + MAX_WAIT_NANOS;
+            while (true) {
+                int available = device.getQueueStatus();
+                if (available < 0) {
+                    return available;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (available >= thresholdBytes || (available > 0 && remaining <= 0)) {
+                    return device.read(buffer, Math.min(available, maxLength));
+                }
+                if (remaining <= 0) {
+                    return 0;
+                }
+                long fill = (long) (thresholdBytes - available) * byteIntervalNanos;
+                LockSupport.parkNanos(Math.min(remaining, Math.max(MIN_PARK_NANOS, fill)));
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.michael.bci;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/*
+ * ReplayByteSource plays back a capture of the raw bytes received from the dongle, so a recorded
+ * session, including its framing errors, can be run through the pipeline again. The bytes are released
+ * at bytesPerSecond from the first read, 8250 for a 250Hz Cyton stream, or as fast as they are read
+ * when bytesPerSecond is 0. Commands written to it are ignored. Once the capture is used up it reports
+ * itself closed and getQueueStatus() returns -1, which stops the receiver thread.
+ */
+final class ReplayByteSource implements ByteSource {
+
+    private final InputStream in;
+    private final double bytesPerSecond;
+    private final LongSupplier nanoClock;
+    private final byte[] buffer = new byte[8192];
+    private int bufferStart;
+    private int bufferEnd;
+    private boolean endOfStream;
+
+    private long startNanos = -1;
+    private long bytesRead;
+
+    ReplayByteSource(InputStream in, double bytesPerSecond, LongSupplier nanoClock) {
+        this.in = in;
+        this.bytesPerSecond = bytesPerSecond;
+        this.nanoClock = nanoClock;
+    }
+
+    static ReplayByteSource open(File capture, double bytesPerSecond) throws IOException {
+        return new ReplayByteSource(new BufferedInputStream(new FileInputStream(capture)), bytesPerSecond, System::nanoTime);
+    }
+
+    @Override
+    public synchronized int getQueueStatus() {
+        if (!fill() || !isOpen()) {
+            return -1;
+        }
+        return (int) Math.min(bufferEnd - bufferStart, released() - bytesRead);
+    }
+
+    @Override
+    public synchronized int read(byte[] data, int length) {
+        int count = Math.min(length, getQueueStatus());
+        if (count <= 0) {
+            return 0;
+        }
+        System.arraycopy(buffer, bufferStart, data, 0, count);
+        bufferStart += count;
+        bytesRead += count;
+        return count;
+    }
+
+    @Override
+    public int read(byte[] data, int length, long timeoutMillis) {
+        long deadline = nanoClock.getAsLong() + timeoutMillis * 1_000_000L;
+        while (true) {
+            long remaining = deadline - nanoClock.getAsLong();
+            synchronized (this) {
+                int available = getQueueStatus();
+                if (available >= Math.min(length, bufferEnd - bufferStart) || remaining <= 0 || !isOpen()) {
+                    return read(data, length);
+                }
+            }
+            LockSupport.parkNanos(Math.min(remaining, 1_000_000L));
+        }
+    }
+
+    @Override
+    public int write(byte[] data, int length) {
+        return length;
+    }
+
+    @Override
+    public boolean readBufferFull() {
+        return false;
+    }
+
+    @Override
+    public synchronized void purge() {
+        /* Skip whatever has been released but not read yet */
+        while (fill() && bufferEnd > bufferStart && released() > bytesRead) {
+            int count = (int) Math.min(bufferEnd - bufferStart, released() - bytesRead);
+            bufferStart += count;
+            bytesRead += count;
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !endOfStream || bufferStart < bufferEnd;
+    }
+
+    /* Refill the buffer once it has been read, returns false on a read error */
+    private boolean fill() {
+        if (startNanos < 0) {
+            startNanos = nanoClock.getAsLong();
+        }
+        if (bufferStart < bufferEnd || endOfStream) {
+            return true;
+        }
+        try {
+            int count = in.read(buffer);
+            bufferStart = 0;
+            bufferEnd = Math.max(count, 0);
+            if (count < 0) {
+                endOfStream = true;
+                in.close();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /* Bytes the pacing allows to have been read by now */
+    private long released() {
+        if (bytesPerSecond <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) ((nanoClock.getAsLong() - startNanos) * bytesPerSecond / 1e9);
+    }
+}
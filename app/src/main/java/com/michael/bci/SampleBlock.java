@@ -0,0 +1,58 @@
+package com.michael.bci;
+
+/*
+ * SampleBlock is a fixed size block of decoded Cyton samples held in preallocated primitive arrays.
+ * Channel values for a sample live side by side, so the values for sample "slot" start at
+ * offset(slot) in counts/microVolts. Blocks are allocated once and reused for every read, which
+ * keeps the receiver hot path free of per-sample objects.
+ */
+final class SampleBlock {
+
+    /* The Cyton board streams 8 EEG channels per packet */
+    static final int CHANNELS = 8;
+
+    final int capacity;
+    /* Number of slots currently holding samples */
+    int size;
+
+    final int[] sampleNumber;
+    /* Sample number unwrapped by SampleClock into a count of samples since streaming started */
+    final long[] sampleIndex;
+    /* Unix time in milliseconds the sample was taken, from SampleClock */
+    final long[] timestamp;
+    /* Raw 24-bit ADS1299 counts sign extended to int32 */
+    final int[] counts;
+    /* Counts scaled to micro volts by OpenBci */
+    final float[] microVolts;
+
+    SampleBlock(int capacity) {
+        this.capacity = capacity;
+        sampleNumber = new int[capacity];
+        sampleIndex = new long[capacity];
+        timestamp = new long[capacity];
+        counts = new int[capacity * CHANNELS];
+        microVolts = new float[capacity * CHANNELS];
+    }
+
+    /* Index of the first channel value for the sample in slot */
+    static int offset(int slot) {
+        return slot * CHANNELS;
+    }
+
+    /* Copy the sample in srcSlot of src into slot of this block */
+    void set(int slot, SampleBlock src, int srcSlot) {
+        sampleNumber[slot] = src.sampleNumber[srcSlot];
+        sampleIndex[slot] = src.sampleIndex[srcSlot];
+        timestamp[slot] = src.timestamp[srcSlot];
+        System.arraycopy(src.counts, offset(srcSlot), counts, offset(slot), CHANNELS);
+        System.arraycopy(src.microVolts, offset(srcSlot), microVolts, offset(slot), CHANNELS);
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
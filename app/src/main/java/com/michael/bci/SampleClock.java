@@ -0,0 +1,212 @@
+package com.michael.bci;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/*
+ * Michael McMahon
+ * SampleClock timestamps samples from the board's own sample counter instead of the time they were read.
+ * The FTDI hands packets over in bursts, so the read time of a sample is late by anything from 0 to
+ * tens of milliseconds, while the board samples at a steady 250Hz. SampleClock unwraps the 8-bit sample
+ * number (SN) into a 64-bit sample index and timestamps every sample as
+ *     anchor + (index - anchorIndex) * period
+ * on the monotonic clock, converted to unix time with an offset captured when the clock is anchored.
+ *
+ * The read time of a burst can only be later than the time its last sample was taken, so the clock
+ * tracks the lower envelope of (read time - predicted time). Once per window the anchor is pulled
+ * towards the smallest error seen, and the period is moved towards the slope between the least
+ * delayed reads of consecutive windows, which follows the board crystal and the phone clock drifting
+ * apart. A sample predicted after its own read time pulls the anchor back straight away.
+ */
+final class SampleClock {
+
+    /* How often the anchor and period are corrected */
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+    /* Share of the measured error and drift applied per window, smooths out the odd late window */
+    private static final double ANCHOR_GAIN = 0.5;
+    private static final double PERIOD_GAIN = 0.25;
+    /* Board crystal tolerance the period is allowed to drift within */
+    private static final double MAX_PERIOD_ERROR = 0.02;
+    /* A pause or error this large starts the clock again from the read time */
+    private static final long RESET_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double nominalPeriodNanos;
+    private final LongSupplier monotonicNanos;
+    private final LongSupplier wallMillis;
+
+    private boolean anchored;
+    private int lastSampleNumber;
+    private long lastReadNanos;
+    /* Unwrapped index of the last sample stamped */
+    private long index;
+
+    private long anchorIndex;
+    private double anchorNanos;
+    private double periodNanos;
+    /* Unix time in nanos minus monotonic nanos, fixed from one reset to the next so the timestamps never jump */
+    private long wallOffsetNanos;
+
+    private long windowStartNanos;
+    private double windowMinError;
+    /* Least delayed read of this window and of the last one, as read time and sample index */
+    private long windowMinRead;
+    private long windowMinIndex;
+    private long lastMinRead;
+    private long lastMinIndex;
+
+    private long lostSamples;
+    private long gaps;
+    private long resets;
+
+    SampleClock(double sampleRate) {
+        this(sampleRate, System::nanoTime, System::currentTimeMillis);
+    }
+
+    SampleClock(double sampleRate, LongSupplier monotonicNanos, LongSupplier wallMillis) {
+        this.nominalPeriodNanos = 1e9 / sampleRate;
+        this.monotonicNanos = monotonicNanos;
+        this.wallMillis = wallMillis;
+        periodNanos = nominalPeriodNanos;
+    }
+
+    /*
+    Unwrap the sample numbers of the samples in block and overwrite their timestamps with sample clock
+    times. Call once per read, straight after the samples have been decoded.
+     */
+    void stamp(SampleBlock block) {
+        if (block.size == 0) {
+            return;
+        }
+        long readNanos = monotonicNanos.getAsLong();
+        for (int slot = 0; slot < block.size; slot++) {
+            int sampleNumber = block.sampleNumber[slot] & 0xFF;
+            if (!anchored) {
+                index = 0;
+            } else {
+                int delta = (sampleNumber - lastSampleNumber) & 0xFF;
+                if (delta == 0) {
+                    delta = 256;
+                }
+                if (slot == 0) {
+                    delta = unwrapGap(delta, readNanos);
+                }
+                if (delta > 1) {
+                    lostSamples += delta - 1;
+                    gaps++;
+                }
+                index += delta;
+            }
+            lastSampleNumber = sampleNumber;
+            block.sampleIndex[slot] = index;
+            if (!anchored) {
+                reset(readNanos);
+            }
+        }
+        track(readNanos);
+        lastReadNanos = readNanos;
+
+        for (int slot = 0; slot < block.size; slot++) {
+            block.timestamp[slot] = toUnixMillis(nanosAt(block.sampleIndex[slot]));
+        }
+    }
+
+    /* Monotonic time the sample with this index was taken */
+    double nanosAt(long sampleIndex) {
+        return anchorNanos + (sampleIndex - anchorIndex) * periodNanos;
+    }
+
+    long toUnixMillis(double monotonic) {
+        return Math.floorDiv((long) monotonic + wallOffsetNanos, 1_000_000L);
+    }
+
+    /* Estimated board sample rate */
+    double sampleRate() {
+        return 1e9 / periodNanos;
+    }
+
+    /* Samples missing from the sample numbers since the clock started */
+    long lostSamples() {
+        return lostSamples;
+    }
+
+    /* Number of breaks in the sample numbers, each losing one or more samples */
+    long gaps() {
+        return gaps;
+    }
+
+    /* Start over at the next sample, e.g. after the board has been stopped and started again */
+    void restart() {
+        anchored = false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "clock index=%d rate=%.4fHz lost=%d resets=%d",
+                index, sampleRate(), lostSamples, resets);
+    }
+
+    /*
+    The 8-bit sample number cannot tell a gap of n samples from one of n + 256. When the time since
+    the last read says more than half a wrap went by, add the whole wraps the read time accounts for.
+     */
+    private int unwrapGap(int delta, long readNanos) {
+        double elapsed = (readNanos - lastReadNanos) / periodNanos;
+        if (elapsed - delta > 128) {
+            delta += 256 * (int) Math.round((elapsed - delta) / 256);
+        }
+        return delta;
+    }
+
+    private void reset(long readNanos) {
+        anchored = true;
+        anchorIndex = index;
+        anchorNanos = readNanos;
+        wallOffsetNanos = wallMillis.getAsLong() * 1_000_000L - readNanos;
+        windowStartNanos = readNanos;
+        windowMinError = Double.MAX_VALUE;
+        lastMinIndex = -1;
+        resets++;
+    }
+
+    /* Follow the lower envelope of the read time error, readNanos is when the sample at index was read */
+    private void track(long readNanos) {
+        double error = readNanos - nanosAt(index);
+        if (error < 0) {
+            /* Read before it was taken - the clock is running ahead, pull it back now */
+            if (-error > RESET_NANOS) {
+                reset(readNanos);
+                return;
+            }
+            anchorNanos += error;
+            error = 0;
+        } else if (error > RESET_NANOS && readNanos - lastReadNanos > RESET_NANOS) {
+            /* The board was paused or restarted without the sample numbers showing it */
+            reset(readNanos);
+            return;
+        }
+        if (error < windowMinError) {
+            windowMinError = error;
+            windowMinRead = readNanos;
+            windowMinIndex = index;
+        }
+
+        if (readNanos - windowStartNanos < WINDOW_NANOS) {
+            return;
+        }
+        /* Re-anchor at the current sample so a period change does not move earlier timestamps */
+        anchorNanos = nanosAt(index) + windowMinError * ANCHOR_GAIN;
+        anchorIndex = index;
+        if (lastMinIndex >= 0 && windowMinIndex > lastMinIndex) {
+            /* The least delayed reads are the closest to when their samples were taken, so their slope is the period */
+            double measured = (double) (windowMinRead - lastMinRead) / (windowMinIndex - lastMinIndex);
+            periodNanos += (measured - periodNanos) * PERIOD_GAIN;
+            periodNanos = Math.max(nominalPeriodNanos * (1 - MAX_PERIOD_ERROR),
+                    Math.min(nominalPeriodNanos * (1 + MAX_PERIOD_ERROR), periodNanos));
+        }
+        lastMinRead = windowMinRead;
+        lastMinIndex = windowMinIndex;
+        windowStartNanos = readNanos;
+        windowMinError = Double.MAX_VALUE;
+    }
+}
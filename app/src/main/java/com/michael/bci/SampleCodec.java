@@ -0,0 +1,21 @@
+package com.michael.bci;
+
+/*
+ * SampleCodec encodes a batch of EEG samples into a message body. BatchPublisher calls begin() when
+ * a batch is opened, append() for every sample and end() just before publishing, and sends
+ * contentType() as the AMQP content-type property so consumers can tell which format they received.
+ * begin() is always called on an empty buffer, and codecs keep no per-batch state, so one codec can
+ * encode several buffers at once.
+ */
+interface SampleCodec {
+
+    String contentType();
+
+    void begin(MessageBuffer out);
+
+    /* index is the position of the sample in the batch, starting at 0. samples holds the batch itself,
+     * so for index > 0 the samples before this one in the batch are in the slots before slot */
+    void append(MessageBuffer out, SampleBlock samples, int slot, int index);
+
+    void end(MessageBuffer out, int sampleCount);
+}
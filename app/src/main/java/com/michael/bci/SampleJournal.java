@@ -0,0 +1,446 @@
+package com.michael.bci;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Michael McMahon
+ * SampleJournal is an append-only store-and-forward journal on local storage, so EEG is not lost
+ * while the RabbitMQ broker is unreachable or the publisher is behind. Samples are written to fixed
+ * size memory-mapped segment files and numbered with a journal sequence. Once a journaled sample has
+ * been published its sequence is confirmed and saved in a checkpoint file, and segments holding only
+ * confirmed samples are deleted. After a restart the journal picks up from the checkpoint, so the
+ * backfill resumes without duplicates or gaps.
+ *
+ * Segment file "<first sequence>.jnl"
+ *   64 byte header: magic "BCIJ", version, record size, session id length and bytes
+ *   fixed size records: int sample number, long timestamp, long sample index, 8 int counts, long sequence
+ * The sequence is written last, so a record cut short by a crash is ignored on recovery.
+ *
+ * Replayed batches are confirmed by the broker out of order, so acked ranges are kept until every
+ * sample before them is confirmed too, and a nacked range is queued to be read again on its own -
+ * the batches around it that were acked are not replayed a second time.
+ *
+ * All methods are synchronized as the receiver thread spills into the journal while the publisher
+ * thread journals failed batches and replays.
+ */
+final class SampleJournal implements SampleRing.Spill {
+
+    private static final int MAGIC = 0x4243494A; // "BCIJ"
+    private static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 4 + 8 + 8 + 4 * SampleBlock.CHANNELS + 8;
+    private static final int COUNTS_OFFSET = 20;
+    private static final int SEQUENCE_OFFSET = RECORD_SIZE - 8;
+    private static final String SEGMENT_SUFFIX = ".jnl";
+    private static final String CHECKPOINT_NAME = "checkpoint";
+
+    private static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        final long firstSequence;
+        final String sessionId;
+        final int capacity;
+        int count;
+
+        Segment(File file, MappedByteBuffer buffer, long firstSequence, String sessionId, int capacity) {
+            this.file = file;
+            this.buffer = buffer;
+            this.firstSequence = firstSequence;
+            this.sessionId = sessionId;
+            this.capacity = capacity;
+        }
+
+        long endSequence() {
+            return firstSequence + count;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final String sessionId;
+    private final RandomAccessFile checkpoint;
+    /* Oldest segment first, the last one is appended to */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private long nextSequence = 1;
+    /* Last sequence known to be published */
+    private long confirmed;
+    /* Next sequence to hand out for replay, between confirmed + 1 and nextSequence */
+    private long readSequence;
+    /* Replayed ranges the broker acked, first to last sequence, that are not contiguous with confirmed yet */
+    private final TreeMap<Long, Long> acked = new TreeMap<>();
+    /* Replayed ranges the broker nacked, {first, last} sequence, read again before anything new */
+    private final ArrayDeque<long[]> retries = new ArrayDeque<>();
+    /* Sequence of the first sample the last read() copied */
+    private long firstRead;
+    /* Samples lost because the size cap deleted segments before they were replayed */
+    private long discarded;
+    private boolean closed;
+
+    /*
+    Open or recover the journal in directory. New samples are stamped with sessionId. The journal
+    keeps at most maxSegments segment files of segmentSize bytes, dropping the oldest beyond that.
+     */
+    SampleJournal(File directory, String sessionId, int segmentSize, int maxSegments) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.sessionId = sessionId;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(2, maxSegments);
+
+        checkpoint = new RandomAccessFile(new File(directory, CHECKPOINT_NAME), "rwd");
+        if (checkpoint.length() >= 8) {
+            confirmed = checkpoint.readLong();
+        }
+        recover();
+        readSequence = replayStart();
+        deleteConfirmedSegments();
+    }
+
+    /* Journal a sample that did not fit in the SampleRing */
+    @Override
+    public void spill(SampleBlock samples, int slot) {
+        append(samples, slot);
+    }
+
+    /* Journal every sample in block */
+    synchronized void append(SampleBlock block) {
+        for (int slot = 0; slot < block.size; slot++) {
+            append(block, slot);
+        }
+    }
+
+    synchronized void append(SampleBlock samples, int slot) {
+        if (closed) {
+            return;
+        }
+        try {
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.count == segment.capacity || !sessionId.equals(segment.sessionId)) {
+                segment = newSegment();
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            int position = HEADER_SIZE + segment.count * RECORD_SIZE;
+            buffer.putInt(position, samples.sampleNumber[slot]);
+            buffer.putLong(position + 4, samples.timestamp[slot]);
+            buffer.putLong(position + 12, samples.sampleIndex[slot]);
+            int base = SampleBlock.offset(slot);
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                buffer.putInt(position + COUNTS_OFFSET + ch * 4, samples.counts[base + ch]);
+            }
+            buffer.putLong(position + SEQUENCE_OFFSET, nextSequence++);
+            segment.count++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Number of journaled samples not yet handed out for replay */
+    synchronized long pending() {
+        long pending = nextSequence - readSequence;
+        for (long[] range : retries) {
+            pending += Math.max(0, range[1] - Math.max(range[0], confirmed + 1) + 1);
+        }
+        /* After a rewind, acked ranges ahead of the cursor are skipped */
+        for (Map.Entry<Long, Long> range : acked.tailMap(readSequence).entrySet()) {
+            pending -= range.getValue() - range.getKey() + 1;
+        }
+        return pending;
+    }
+
+    synchronized long discarded() {
+        return discarded;
+    }
+
+    /* Sequence of the next sample read() will return */
+    synchronized long readSequence() {
+        return readSequence;
+    }
+
+    /* Sequence of the first sample the last read() returned, its samples run on from there */
+    synchronized long firstReadSequence() {
+        return firstRead;
+    }
+
+    /*
+    Copy journaled samples into out, oldest first, starting with any range that was nacked and then at
+    the replay cursor. A read never crosses into another session, so the whole block can be published
+    with one session id, which is returned, and its sequences run on from firstReadSequence() without a
+    gap. Returns null when nothing is pending.
+     */
+    synchronized String read(SampleBlock out) {
+        if (closed) {
+            return null;
+        }
+        while (!retries.isEmpty()) {
+            long[] range = retries.peekFirst();
+            int before = out.size;
+            String session = copy(Math.max(range[0], confirmed + 1), range[1], out);
+            if (session == null) {
+                retries.removeFirst();
+                continue;
+            }
+            range[0] = firstRead + out.size - before;
+            if (range[0] > range[1]) {
+                retries.removeFirst();
+            }
+            return session;
+        }
+        /* Skip whatever was acked already, and stop short of the next acked range */
+        Map.Entry<Long, Long> skip;
+        while ((skip = acked.floorEntry(readSequence)) != null && skip.getValue() >= readSequence) {
+            readSequence = skip.getValue() + 1;
+        }
+        Long nextAcked = acked.higherKey(readSequence);
+        int before = out.size;
+        String session = copy(readSequence, nextAcked == null ? Long.MAX_VALUE : nextAcked - 1, out);
+        if (session != null) {
+            readSequence = firstRead + out.size - before;
+        }
+        return session;
+    }
+
+    /* Copy samples from sequence from up to last, within one segment, returns its session or null if there are none */
+    private String copy(long from, long last, SampleBlock out) {
+        for (Segment segment : segments) {
+            if (from >= segment.endSequence()) {
+                continue;
+            }
+            /* Skip any gap left by a segment that was dropped or could not be recovered */
+            from = Math.max(from, segment.firstSequence);
+            if (from > last) {
+                return null;
+            }
+            firstRead = from;
+            int index = (int) (from - segment.firstSequence);
+            int end = (int) Math.min(segment.count, last - segment.firstSequence + 1);
+            while (index < end && out.size < out.capacity) {
+                int position = HEADER_SIZE + index * RECORD_SIZE;
+                int slot = out.size++;
+                int base = SampleBlock.offset(slot);
+                out.sampleNumber[slot] = segment.buffer.getInt(position);
+                out.timestamp[slot] = segment.buffer.getLong(position + 4);
+                out.sampleIndex[slot] = segment.buffer.getLong(position + 12);
+                for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                    int counts = segment.buffer.getInt(position + COUNTS_OFFSET + ch * 4);
+                    out.counts[base + ch] = counts;
+                    out.microVolts[base + ch] = OpenBci.convertCountsToMicroVolts(counts);
+                }
+                index++;
+            }
+            return segment.sessionId;
+        }
+        return null;
+    }
+
+    /* Everything up to and including sequence has been published - save the checkpoint and free segments */
+    synchronized void confirm(long sequence) {
+        if (closed || sequence <= confirmed) {
+            return;
+        }
+        confirmed = sequence;
+        writeCheckpoint();
+        deleteConfirmedSegments();
+    }
+
+    /*
+    The replayed samples first to last were acked. Confirms can come back out of order, so the range is
+    kept until everything journaled before it is confirmed or acked too, and then confirmed along with
+    every acked range that follows on from it. Returns true if that moved the checkpoint.
+     */
+    synchronized boolean confirm(long first, long last) {
+        if (closed || last <= confirmed) {
+            return false;
+        }
+        acked.put(first, last);
+        long before = confirmed;
+        Map.Entry<Long, Long> range;
+        while ((range = acked.firstEntry()) != null && range.getKey() <= replayStart()) {
+            acked.pollFirstEntry();
+            confirmed = Math.max(confirmed, range.getValue());
+        }
+        if (confirmed == before) {
+            return false;
+        }
+        writeCheckpoint();
+        deleteConfirmedSegments();
+        return true;
+    }
+
+    /* The replayed samples first to last were nacked or could not be sent - read just those again next */
+    synchronized void retry(long first, long last) {
+        if (!closed && last > confirmed) {
+            retries.addLast(new long[]{first, last});
+        }
+    }
+
+    /* Read every sample that is not confirmed or acked again, e.g. when nothing is known about the batches in flight */
+    synchronized void rewind() {
+        retries.clear();
+        readSequence = replayStart();
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        try {
+            checkpoint.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "journal segments=%d pending=%d confirmed=%d acked=%d retries=%d discarded=%d",
+                segments.size(), pending(), confirmed, acked.size(), retries.size(), discarded);
+    }
+
+    private Segment newSegment() throws IOException {
+        Segment last = segments.peekLast();
+        if (last != null) {
+            last.buffer.force();
+        }
+        /* Size cap - drop the oldest segment, and count any of its samples that were never published */
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.removeFirst();
+            long lost = oldest.endSequence() - Math.max(confirmed + 1, oldest.firstSequence);
+            if (lost > 0) {
+                discarded += lost;
+                confirmed = oldest.endSequence() - 1;
+                writeCheckpoint();
+            }
+            readSequence = Math.max(readSequence, oldest.endSequence());
+            delete(oldest);
+        }
+
+        File file = new File(directory, String.format(Locale.US, "%020d%s", nextSequence, SEGMENT_SUFFIX));
+        MappedByteBuffer buffer = map(file);
+        byte[] session = sessionId.getBytes(StandardCharsets.US_ASCII);
+        int sessionLength = Math.min(session.length, HEADER_SIZE - 14);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, RECORD_SIZE);
+        buffer.putShort(12, (short) sessionLength);
+        for (int i = 0; i < sessionLength; i++) {
+            buffer.put(14 + i, session[i]);
+        }
+        Segment segment = new Segment(file, buffer, nextSequence, sessionId, (segmentSize - HEADER_SIZE) / RECORD_SIZE);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /* Map the existing segments back in and count the complete records in each */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        List<Segment> recovered = new ArrayList<>();
+        for (File file : files) {
+            long firstSequence;
+            try {
+                firstSequence = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            MappedByteBuffer buffer = map(file);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE) {
+                delete(file);
+                continue;
+            }
+            byte[] session = new byte[Math.min(buffer.getShort(12), HEADER_SIZE - 14)];
+            for (int i = 0; i < session.length; i++) {
+                session[i] = buffer.get(14 + i);
+            }
+            Segment segment = new Segment(file, buffer, firstSequence,
+                    new String(session, StandardCharsets.US_ASCII), (segmentSize - HEADER_SIZE) / RECORD_SIZE);
+            int capacity = Math.min(segment.capacity, (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE));
+            while (segment.count < capacity
+                    && buffer.getLong(HEADER_SIZE + segment.count * RECORD_SIZE + SEQUENCE_OFFSET) == firstSequence + segment.count) {
+                segment.count++;
+            }
+            if (segment.count == 0) {
+                delete(file);
+                continue;
+            }
+            recovered.add(segment);
+        }
+        for (Segment segment : recovered) {
+            segments.addLast(segment);
+            nextSequence = Math.max(nextSequence, segment.endSequence());
+        }
+        nextSequence = Math.max(nextSequence, confirmed + 1);
+    }
+
+    /* Oldest journaled sequence that is not confirmed yet, skipping any gap between segments */
+    private long replayStart() {
+        for (Segment segment : segments) {
+            if (segment.endSequence() > confirmed + 1) {
+                return Math.max(confirmed + 1, segment.firstSequence);
+            }
+        }
+        return Math.max(confirmed + 1, nextSequence);
+    }
+
+    private void deleteConfirmedSegments() {
+        Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            /* Keep the segment currently appended to */
+            if (segment.endSequence() - 1 > confirmed || segment == segments.peekLast() && segment.count < segment.capacity) {
+                break;
+            }
+            iterator.remove();
+            delete(segment);
+        }
+    }
+
+    private void writeCheckpoint() {
+        try {
+            checkpoint.seek(0);
+            checkpoint.writeLong(confirmed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            /* The mapping stays valid after the file is closed */
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private static void delete(Segment segment) {
+        delete(segment.file);
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.michael.bci;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Michael McMahon
+ * SampleRing is a bounded single-producer/single-consumer ring of preallocated sample slots joining
+ * the USB reader stage to the AMQP publisher stage. The reader copies decoded samples in with offer()
+ * and the publisher copies them out with drainTo(), so neither side allocates or takes a lock.
+ * What happens when the publisher falls behind and the ring is full is set by the OverflowPolicy.
+ */
+final class SampleRing {
+
+    enum OverflowPolicy {
+        /* Reader waits for the publisher to free a slot - no loss, but USB draining can stall */
+        BLOCK,
+        /* Oldest queued sample is discarded to make room - USB draining never waits */
+        DROP_OLDEST,
+        /* Sample is handed to the Spill handler instead of being queued */
+        SPILL
+    }
+
+    /* Receives samples that did not fit in the ring when using OverflowPolicy.SPILL */
+    interface Spill {
+        void spill(SampleBlock samples, int slot);
+    }
+
+    /* How long the reader parks between checks for a free slot with OverflowPolicy.BLOCK */
+    private static final long BLOCK_PARK_NANOS = 100_000L;
+
+    private final SampleBlock slots;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final Spill spill;
+
+    /* head is only written by the producer. tail is written by the consumer, and also by the
+     * producer when dropping the oldest sample, so both sides advance it with compareAndSet */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Thread waitingConsumer;
+    private volatile boolean closed;
+
+    /* Overflow counters, only written by the producer */
+    private volatile long dropped;
+    private volatile long spilled;
+
+    /* capacity must be a power of two, spill is required for OverflowPolicy.SPILL */
+    SampleRing(int capacity, OverflowPolicy policy, Spill spill) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        if (policy == OverflowPolicy.SPILL && spill == null) {
+            throw new IllegalArgumentException("SPILL policy needs a Spill handler");
+        }
+        slots = new SampleBlock(capacity);
+        mask = capacity - 1;
+        this.policy = policy;
+        this.spill = spill;
+    }
+
+    int capacity() {
+        return slots.capacity;
+    }
+
+    int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    long dropped() {
+        return dropped;
+    }
+
+    long spilled() {
+        return spilled;
+    }
+
+    /*
+    Producer side. Copy the sample in slot of src into the ring, applying the overflow policy when the
+    ring is full. Returns false if the sample was not queued (spilled, or the ring has been closed).
+     */
+    boolean offer(SampleBlock src, int slot) {
+        long h = head.get();
+        while (h - tail.get() >= slots.capacity) {
+            if (closed) {
+                return false;
+            }
+            switch (policy) {
+                case BLOCK:
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    break;
+                case DROP_OLDEST:
+                    long t = tail.get();
+                    if (h - t >= slots.capacity && tail.compareAndSet(t, t + 1)) {
+                        dropped++;
+                    }
+                    break;
+                case SPILL:
+                    spill.spill(src, slot);
+                    spilled++;
+                    return false;
+            }
+        }
+        slots.set((int) (h & mask), src, slot);
+        head.lazySet(h + 1);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /*
+    Consumer side. Copy as many queued samples as fit into out, appending from out.size, and return
+    how many were taken. Slots are read before the tail is moved, so if the producer dropped one of
+    them in the meantime the compareAndSet fails and the copy is simply redone from the new tail.
+     */
+    int drainTo(SampleBlock out) {
+        while (true) {
+            long t = tail.get();
+            int n = (int) Math.min(head.get() - t, out.capacity - out.size);
+            if (n <= 0) {
+                return 0;
+            }
+            for (int i = 0; i < n; i++) {
+                out.set(out.size + i, slots, (int) ((t + i) & mask));
+            }
+            if (tail.compareAndSet(t, t + n)) {
+                out.size += n;
+                return n;
+            }
+        }
+    }
+
+    /* Consumer side. Park until a sample is offered, the ring is closed or timeoutNanos has passed */
+    void awaitSamples(long timeoutNanos) {
+        waitingConsumer = Thread.currentThread();
+        if (size() == 0 && !closed) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        waitingConsumer = null;
+    }
+
+    /* Release a blocked producer or a waiting consumer, e.g. when the service is stopped */
+    void close() {
+        closed = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
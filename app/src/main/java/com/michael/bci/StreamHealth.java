@@ -0,0 +1,90 @@
+package com.michael.bci;
+
+import org.json.simple.JSONValue;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+
+/*
+ * Michael McMahon
+ * StreamHealth collects the loss counters of every pipeline stage so the publisher can send them in one
+ * compact health message, on its own routing key, every few seconds. Together they show whether data
+ * is lost at USB (Rx buffer full), parsing (resync, bad footers, sample number gaps) or publishing
+ * (ring overflow, journal, nacks). Every counter is cumulative since the service started; consumers
+ * take the difference between two messages.
+ *
+ * The receiver thread is the only writer of the USB and parsing counters and the publisher thread of
+ * the publish counters. The receiver fields are volatile so the publisher always reads whole values.
+ */
+final class StreamHealth {
+
+    /* Written by the receiver thread */
+    volatile long usbReads;
+    volatile long usbBytes;
+    volatile long usbRxFull;
+    volatile long resyncBytes;
+    volatile long badFooters;
+    volatile long decoderOverflowBytes;
+    volatile long syncLosses;
+    volatile long samplesDecoded;
+    volatile long samplesLost;
+    volatile long sampleGaps;
+
+    /* Written by the publisher thread */
+    long batchesPublished;
+    long publishFailures;
+    /* Best effort derived streams, see StreamPublisher */
+    long derivedPublished;
+    long derivedDropped;
+
+    /* Copy the parsing counters from the decoder and the sample clock, called by the receiver after each read */
+    void updateParsing(CytonFrameDecoder decoder, SampleClock clock) {
+        resyncBytes = decoder.resyncBytes();
+        badFooters = decoder.badFooters();
+        decoderOverflowBytes = decoder.overflowBytes();
+        syncLosses = decoder.syncLosses();
+        samplesLost = clock.lostSamples();
+        sampleGaps = clock.gaps();
+    }
+
+    /*
+    Health message body, built on the publisher thread. journal and confirms may be null when they are
+    not in use.
+     */
+    byte[] toJson(String sessionId, SampleRing ring, SampleJournal journal, ConfirmTracker<?> confirms) {
+        LinkedHashMap<String, Serializable> obj = new LinkedHashMap<>();
+        obj.put("UnixTS", System.currentTimeMillis());
+        obj.put("session_id", sessionId);
+        /* USB */
+        obj.put("usb_reads", usbReads);
+        obj.put("usb_bytes", usbBytes);
+        obj.put("usb_rx_full", usbRxFull);
+        /* Parsing */
+        obj.put("resync_bytes", resyncBytes);
+        obj.put("bad_footers", badFooters);
+        obj.put("decoder_overflow_bytes", decoderOverflowBytes);
+        obj.put("sync_losses", syncLosses);
+        obj.put("samples_decoded", samplesDecoded);
+        obj.put("samples_lost", samplesLost);
+        obj.put("sample_gaps", sampleGaps);
+        /* Publishing */
+        obj.put("ring_size", ring.size());
+        obj.put("ring_dropped", ring.dropped());
+        obj.put("ring_spilled", ring.spilled());
+        obj.put("batches_published", batchesPublished);
+        obj.put("publish_failures", publishFailures);
+        obj.put("derived_published", derivedPublished);
+        obj.put("derived_dropped", derivedDropped);
+        if (journal != null) {
+            obj.put("journal_pending", journal.pending());
+            obj.put("journal_discarded", journal.discarded());
+        }
+        if (confirms != null) {
+            obj.put("confirms_in_flight", confirms.inFlight());
+            obj.put("confirms_acked", confirms.ackCount());
+            obj.put("confirms_nacked", confirms.nackCount());
+        }
+        return JSONValue.toJSONString(obj).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package com.michael.bci;
+
+import android.util.Log;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Michael McMahon
+ * StreamPublisher publishes a derived stream, e.g. filtered EEG, on its own queue and routing key of
+ * the shared RabbitMQ connection. Derived streams can always be worked out again from the raw samples,
+ * so unlike the main EEG stream they are best effort: no confirms and no journal. A message that cannot
+ * be published is dropped and counted in StreamHealth rather than thrown back at the publisher thread,
+ * and the stream waits RETRY_NANOS before it tries the broker again. Only used from the publisher thread.
+ */
+final class StreamPublisher implements BatchPublisher.Sender {
+
+    public final static String TAG = "BCI_STREAM";
+    /* After a failed publish messages are dropped for this long before the broker is tried again */
+    static final long RETRY_NANOS = 5_000_000_000L;
+
+    private final String queueName;
+    private final String routingKey;
+    private final StreamHealth health;
+    private Channel channel;
+    private long retryNanos;
+
+    StreamPublisher(String queueName, String routingKey, StreamHealth health) {
+        this.queueName = queueName;
+        this.routingKey = routingKey;
+        this.health = health;
+    }
+
+    String routingKey() {
+        return routingKey;
+    }
+
+    @Override
+    public void send(AMQP.BasicProperties properties, byte[] body, SampleBlock samples, long journalSequence) {
+        publish(properties, body);
+    }
+
+    /* Publish one message, or drop it while the broker is down. Returns false if the message was dropped */
+    boolean publish(AMQP.BasicProperties properties, byte[] body) {
+        if (retryNanos != 0 && System.nanoTime() - retryNanos < 0) {
+            health.derivedDropped++;
+            return false;
+        }
+        try {
+            if (channel == null) {
+                channel = RabbitmqConnection.openChannel(queueName, routingKey);
+            }
+            channel.basicPublish(RabbitmqConnection.EXCHANGE_NAME, routingKey, properties, body);
+            health.derivedPublished++;
+            retryNanos = 0;
+            return true;
+        } catch (IOException | TimeoutException | ShutdownSignalException e) {
+            health.derivedDropped++;
+            retryNanos = System.nanoTime() + RETRY_NANOS;
+            close();
+            Log.w(TAG, "RMQ: Dropped " + routingKey + " message, " + e);
+            return false;
+        }
+    }
+
+    // Drop the channel so it is re-opened on the next publish
+    void close() {
+        RabbitmqConnection.closeChannel(channel);
+        channel = null;
+    }
+}
@@ -0,0 +1,200 @@
+package com.michael.bci;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/*
+ * Michael McMahon
+ * SyntheticCyton stands in for the OpenBCI dongle so the receive and publish pipeline can run without
+ * any hardware, at 250Hz or at much higher rates for load testing. Like the Cyton it starts streaming
+ * when it is sent 'b' and stops on 's'. Packets are generated in real time from the sample rate, each
+ * channel carrying a sine wave plus gaussian noise, into a bounded Rx buffer like the FTDI driver's:
+ * when the reader falls behind and the buffer is full, new packets are lost and readBufferFull() is set.
+ *
+ * The fields below can be changed before streaming starts to make the stream harder to parse:
+ * splitFrames returns a random part of the waiting bytes from each read, so packets arrive split across
+ * reads, and dropByteProbability drops single bytes from the stream.
+ */
+final class SyntheticCyton implements ByteSource {
+
+    /* Size of the simulated Rx buffer */
+    static final int RX_BUFFER_SIZE = 64 * 1024;
+
+    double signalMicroVolts = 20;
+    double signalHz = 10;
+    double noiseMicroVolts = 5;
+    boolean splitFrames;
+    double dropByteProbability;
+
+    private final double sampleRate;
+    private final int channels;
+    private final LongSupplier nanoClock;
+    private final Random random;
+
+    private final byte[] rx = new byte[RX_BUFFER_SIZE];
+    private int rxHead;
+    private int rxSize;
+    private boolean rxFull;
+    private final byte[] frame = new byte[CytonFrameDecoder.FRAME_SIZE];
+
+    private boolean streaming;
+    private long startNanos;
+    private long samplesGenerated;
+    private long samplesLost;
+    private long bytesDropped;
+
+    /* channels is the number of channels carrying a signal, at most 8, the others read 0 */
+    SyntheticCyton(double sampleRate, int channels) {
+        this(sampleRate, channels, System::nanoTime, new Random());
+    }
+
+    SyntheticCyton(double sampleRate, int channels, LongSupplier nanoClock, Random random) {
+        this.sampleRate = sampleRate;
+        this.channels = Math.min(channels, SampleBlock.CHANNELS);
+        this.nanoClock = nanoClock;
+        this.random = random;
+    }
+
+    @Override
+    public synchronized int getQueueStatus() {
+        generate();
+        return rxSize;
+    }
+
+    @Override
+    public synchronized int read(byte[] data, int length) {
+        generate();
+        int count = Math.min(length, rxSize);
+        if (splitFrames && count > 1) {
+            count = 1 + random.nextInt(count);
+        }
+        int start = (rxHead - rxSize + rx.length) % rx.length;
+        int first = Math.min(count, rx.length - start);
+        System.arraycopy(rx, start, data, 0, first);
+        System.arraycopy(rx, 0, data, first, count - first);
+        rxSize -= count;
+        rxFull = false;
+        return count;
+    }
+
+    @Override
+    public int read(byte[] data, int length, long timeoutMillis) {
+        long deadline = nanoClock.getAsLong() + timeoutMillis * 1_000_000L;
+        while (true) {
+            long remaining = deadline - nanoClock.getAsLong();
+            synchronized (this) {
+                generate();
+                if (rxSize >= length || remaining <= 0) {
+                    return read(data, length);
+                }
+            }
+            /* Sleep until enough packets should have been generated, or out the timeout when not streaming */
+            long wait = !streaming ? remaining
+                    : (long) ((length - rxSize) / (double) CytonFrameDecoder.FRAME_SIZE * 1e9 / sampleRate);
+            LockSupport.parkNanos(Math.max(10_000L, Math.min(remaining, wait)));
+        }
+    }
+
+    @Override
+    public synchronized int write(byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] == 'b' && !streaming) {
+                streaming = true;
+                startNanos = nanoClock.getAsLong();
+                samplesGenerated = 0;
+            } else if (data[i] == 's') {
+                generate();
+                streaming = false;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized boolean readBufferFull() {
+        generate();
+        return rxFull;
+    }
+
+    @Override
+    public synchronized void purge() {
+        rxSize = 0;
+        rxFull = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    /* Samples that did not fit in the Rx buffer */
+    synchronized long samplesLost() {
+        return samplesLost;
+    }
+
+    synchronized long bytesDropped() {
+        return bytesDropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "SyntheticCyton %.0fHz channels=%d generated=%d lost=%d dropped bytes=%d",
+                sampleRate, channels, samplesGenerated, samplesLost, bytesDropped);
+    }
+
+    /* Add every packet due by now to the Rx buffer */
+    private void generate() {
+        if (!streaming) {
+            return;
+        }
+        long due = (long) ((nanoClock.getAsLong() - startNanos) * sampleRate / 1e9);
+        /* No point building packets that cannot fit, the board just keeps counting them */
+        long maxFrames = RX_BUFFER_SIZE / CytonFrameDecoder.FRAME_SIZE + 1;
+        if (due - samplesGenerated > maxFrames) {
+            rxFull = true;
+            samplesLost += due - maxFrames - samplesGenerated;
+            samplesGenerated = due - maxFrames;
+        }
+        while (samplesGenerated < due) {
+            buildFrame(samplesGenerated++);
+            if (rx.length - rxSize < frame.length) {
+                rxFull = true;
+                samplesLost++;
+                continue;
+            }
+            for (byte b : frame) {
+                if (dropByteProbability > 0 && random.nextDouble() < dropByteProbability) {
+                    bytesDropped++;
+                    continue;
+                }
+                rx[rxHead] = b;
+                rxHead = (rxHead + 1) % rx.length;
+                rxSize++;
+            }
+        }
+    }
+
+    private void buildFrame(long sample) {
+        frame[0] = CytonFrameDecoder.START_BYTE;
+        frame[1] = (byte) sample;
+        double t = sample / sampleRate;
+        for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+            int counts = 0;
+            if (ch < channels) {
+                double microVolts = signalMicroVolts * Math.sin(2 * Math.PI * signalHz * t + ch * Math.PI / 4)
+                        + noiseMicroVolts * random.nextGaussian();
+                counts = OpenBci.convertMicroVoltsToCounts(microVolts);
+            }
+            frame[2 + ch * 3] = (byte) (counts >> 16);
+            frame[3 + ch * 3] = (byte) (counts >> 8);
+            frame[4 + ch * 3] = (byte) counts;
+        }
+        /* Aux data left at 0, standard accelerometer footer */
+        for (int i = 26; i < 32; i++) {
+            frame[i] = 0;
+        }
+        frame[32] = CytonFrameDecoder.END_BYTE;
+    }
+}
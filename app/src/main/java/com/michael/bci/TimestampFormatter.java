@@ -0,0 +1,44 @@
+package com.michael.bci;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/*
+ * TimestampFormatter formats unix millisecond timestamps as "yyyy-MM-dd HH:mm:ss.SSS" in the phone's
+ * time zone, the TS field consumers have always received. 250 samples a second share the same second,
+ * so the date and time up to the seconds are only formatted by SimpleDateFormat when the second changes
+ * and the milliseconds are patched into a cached character array. Not thread safe, one per thread.
+ */
+final class TimestampFormatter {
+
+    private static final int MILLIS_POSITION = 20;
+
+    private final SimpleDateFormat secondsFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.");
+    private final Date date = new Date();
+    private final char[] chars = new char[MILLIS_POSITION + 3];
+    private long cachedSecond = Long.MIN_VALUE;
+
+    String format(long unixMillis) {
+        return new String(chars, 0, formatTo(unixMillis));
+    }
+
+    /* Format into the array returned by chars(), returns the number of characters */
+    int formatTo(long unixMillis) {
+        long second = Math.floorDiv(unixMillis, 1000L);
+        if (second != cachedSecond) {
+            date.setTime(second * 1000L);
+            secondsFormat.format(date).getChars(0, MILLIS_POSITION, chars, 0);
+            cachedSecond = second;
+        }
+        int millis = (int) Math.floorMod(unixMillis, 1000L);
+        chars[MILLIS_POSITION] = (char) ('0' + millis / 100);
+        chars[MILLIS_POSITION + 1] = (char) ('0' + millis / 10 % 10);
+        chars[MILLIS_POSITION + 2] = (char) ('0' + millis % 10);
+        return chars.length;
+    }
+
+    /* Characters written by the last formatTo(), only valid until the next call */
+    char[] chars() {
+        return chars;
+    }
+}
@@ -0,0 +1,59 @@
+package com.michael.bci;
+
+import java.util.function.LongSupplier;
+
+/*
+ * Michael McMahon
+ * Trace keeps debug logging off the hot path. Per read and per sample log lines are wrapped in
+ * if (Trace.VERBOSE), a compile time constant, so release builds carry neither the Log call nor the
+ * string building and driver queries that feed it. Warnings that can fire on every read or sample, e.g.
+ * lost sync or a full ring, go through a Limiter so a burst of them costs one log line per interval.
+ * What actually happened on the wire is kept in the FlightRecorder instead, for when it is needed.
+ */
+final class Trace {
+
+    /* Set to true for a debug build that logs every USB read and published batch */
+    static final boolean VERBOSE = false;
+
+    private Trace() {
+    }
+
+    /*
+    Lets one event through per interval and counts the ones it held back, so the next log line can say
+    how many were skipped. Each Limiter belongs to one thread.
+     */
+    static final class Limiter {
+        private final LongSupplier clock;
+        private final long intervalNanos;
+        private long nextNanos;
+        private long suppressed;
+
+        Limiter(long intervalMillis) {
+            this(System::nanoTime, intervalMillis);
+        }
+
+        Limiter(LongSupplier clock, long intervalMillis) {
+            this.clock = clock;
+            this.intervalNanos = intervalMillis * 1_000_000L;
+            nextNanos = clock.getAsLong();
+        }
+
+        /* True when this event should be logged, false when it is one too many for the interval */
+        boolean allow() {
+            long now = clock.getAsLong();
+            if (now - nextNanos < 0) {
+                suppressed++;
+                return false;
+            }
+            nextNanos = now + intervalNanos;
+            return true;
+        }
+
+        /* Events held back since the last one let through, and start counting again */
+        long takeSuppressed() {
+            long count = suppressed;
+            suppressed = 0;
+            return count;
+        }
+    }
+}
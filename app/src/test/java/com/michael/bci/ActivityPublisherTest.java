@@ -0,0 +1,135 @@
+package com.michael.bci;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for publishing activity messages through a channel that fails.
+ */
+public class ActivityPublisherTest {
+
+    /* Bodies the fake channel published, and what it does on the next basicPublish */
+    private final List<String> published = new ArrayList<>();
+    private boolean publishFails;
+    private ConfirmListener confirmListener;
+    private long nextTag = 1;
+
+    /* A channel that only knows the calls ActivityPublisher makes */
+    private Channel channel() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getNextPublishSeqNo":
+                            return nextTag;
+                        case "basicPublish":
+                            if (publishFails) {
+                                throw new IOException("publish failed");
+                            }
+                            published.add(new String((byte[]) args[args.length - 1], StandardCharsets.UTF_8));
+                            nextTag++;
+                            return null;
+                        case "addConfirmListener":
+                            confirmListener = (ConfirmListener) args[0];
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static ActivityPublisher.ActivityMessage message(String body, long sequence) {
+        return new ActivityPublisher.ActivityMessage(body.getBytes(StandardCharsets.UTF_8), sequence, 1000L + sequence);
+    }
+
+    @Test
+    public void channelThatCannotOpenKeepsMessages() throws Exception {
+        ActivityPublisher publisher = new ActivityPublisher("exchange", "white", 4, 10, 8);
+        publisher.queue(message("a", 1));
+        try {
+            publisher.flush(() -> {
+                throw new IOException("broker unreachable");
+            });
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(1, publisher.pending());
+
+        publisher.queue(message("b", 2));
+        Channel channel = channel();
+        publisher.confirmSelect(channel);
+        publisher.flush(() -> channel);
+        assertEquals(0, publisher.pending());
+        assertEquals("[a, b]", published.toString());
+    }
+
+    @Test
+    public void confirmTimeoutKeepsMessages() throws Exception {
+        ActivityPublisher publisher = new ActivityPublisher("exchange", "white", 1, 10, 8);
+        Channel channel = channel();
+        publisher.confirmSelect(channel);
+        publisher.queue(message("a", 1));
+        publisher.queue(message("b", 2));
+        try {
+            publisher.flush(() -> channel);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals("[a]", published.toString());
+        assertEquals(1, publisher.pending());
+
+        confirmListener.handleAck(1, false);
+        publisher.flush(() -> channel);
+        assertEquals("[a, b]", published.toString());
+        assertEquals(0, publisher.pending());
+    }
+
+    @Test
+    public void failedPublishAndNackAreRetriedInOrder() throws Exception {
+        ActivityPublisher publisher = new ActivityPublisher("exchange", "white", 4, 10, 8);
+        Channel channel = channel();
+        publisher.confirmSelect(channel);
+        publisher.queue(message("a", 1));
+        publishFails = true;
+        try {
+            publisher.flush(() -> channel);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(1, publisher.pending());
+        assertEquals(0, publisher.inFlight());
+
+        publishFails = false;
+        publisher.flush(() -> channel);
+        confirmListener.handleNack(1, false);
+        assertEquals(1, publisher.pending());
+        publisher.queue(message("b", 2));
+        publisher.flush(() -> channel);
+        assertEquals("[a, a, b]", published.toString());
+
+        /* The channel closing with both in flight puts them back */
+        publisher.channelClosed();
+        assertEquals(2, publisher.pending());
+    }
+
+    @Test
+    public void fullOutboxDropsTheOldest() throws Exception {
+        ActivityPublisher publisher = new ActivityPublisher("exchange", "white", 4, 10, 2);
+        publisher.queue(message("a", 1));
+        publisher.queue(message("b", 2));
+        publisher.queue(message("c", 3));
+        assertEquals(1, publisher.dropped());
+        Channel channel = channel();
+        publisher.flush(() -> channel);
+        assertEquals("[b, c]", published.toString());
+    }
+}
@@ -0,0 +1,81 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the FFT band power features.
+ */
+public class BandPowerExtractorTest {
+
+    private static final double RATE = 250;
+
+    /* Feed seconds of a sine on channel 0 and DC on channel 1, returns the number of feature windows */
+    private static int feed(BandPowerExtractor extractor, double seconds, double frequency, double amplitude) {
+        SampleBlock block = new SampleBlock(1);
+        int windows = 0;
+        for (int i = 0; i < seconds * RATE; i++) {
+            block.clear();
+            block.sampleIndex[0] = i;
+            block.timestamp[0] = 1_600_000_000_000L + i * 4L;
+            block.microVolts[0] = (float) (amplitude * Math.sin(2 * Math.PI * frequency * i / RATE));
+            block.microVolts[1] = 20_000f;
+            block.size = 1;
+            if (extractor.add(block, 0)) {
+                extractor.compute();
+                windows++;
+            }
+        }
+        return windows;
+    }
+
+    @Test
+    public void sinePowerLandsInItsBand() {
+        BandPowerExtractor extractor = BandPowerExtractor.eeg(RATE, 1000, 250);
+        feed(extractor, 2, 10.3, 10);
+        int bands = extractor.bands();
+        /* A sine of amplitude A has a power of A^2 / 2 */
+        assertEquals(50, extractor.powers[2], 2.5);
+        assertTrue(extractor.powers[1] < 1);
+        assertTrue(extractor.powers[3] < 1);
+        /* The electrode offset on channel 1 is removed with the window mean */
+        for (int b = 0; b < bands; b++) {
+            assertEquals(0, extractor.powers[bands + b], 1e-3);
+        }
+
+        feed(extractor, 2, 20, 4);
+        assertEquals(8, extractor.powers[3], 0.5);
+        assertTrue(extractor.powers[2] < 0.5);
+    }
+
+    @Test
+    public void publishesEveryHopOnceTheWindowIsFull() {
+        BandPowerExtractor extractor = BandPowerExtractor.eeg(RATE, 1000, 250);
+        /* First window after 1s, then 4 a second for the other 9s with a 62.5 sample hop */
+        assertEquals(37, feed(extractor, 10, 10, 1));
+    }
+
+    @Test
+    public void encodesTheDocumentedLayout() {
+        BandPowerExtractor extractor = BandPowerExtractor.eeg(RATE, 1000, 250);
+        feed(extractor, 1, 10, 10);
+        MessageBuffer out = new MessageBuffer(16);
+        extractor.encode(out);
+        ByteBuffer body = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(BandPowerExtractor.HEADER_SIZE + 4 * 8 * 5, body.remaining());
+        assertEquals('B', body.get());
+        assertEquals('P', body.get());
+        assertEquals(1, body.get());
+        assertEquals(8, body.get());
+        assertEquals(5, body.get());
+        assertEquals(0, body.get());
+        assertEquals(250, body.getShort());
+        assertEquals(249, body.getLong());
+        assertEquals(1_600_000_000_000L + 249 * 4L, body.getLong());
+        assertEquals(extractor.powers[2], body.getFloat(BandPowerExtractor.HEADER_SIZE + 8), 0f);
+        assertEquals("delta:1.0-4.0,theta:4.0-8.0,alpha:8.0-13.0,beta:13.0-30.0,gamma:30.0-45.0", extractor.describeBands());
+    }
+}
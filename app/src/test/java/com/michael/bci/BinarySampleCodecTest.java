@@ -0,0 +1,99 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the compact binary batch codec.
+ */
+public class BinarySampleCodecTest {
+
+    private static SampleBlock samples(int count, Random random) {
+        SampleBlock block = new SampleBlock(count);
+        for (int slot = 0; slot < count; slot++) {
+            block.sampleNumber[slot] = slot & 0xFF;
+            block.timestamp[slot] = 1_600_000_000_000L + slot * 4L;
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                block.counts[SampleBlock.offset(slot) + ch] = random.nextInt(0x1000000) - 0x800000;
+                block.microVolts[SampleBlock.offset(slot) + ch] = (float) random.nextGaussian() * 100;
+            }
+        }
+        /* Full scale counts and a lost channel */
+        block.counts[SampleBlock.offset(1)] = 0x7FFFFF;
+        block.counts[SampleBlock.offset(2)] = -0x800000;
+        block.microVolts[SampleBlock.offset(3)] = Float.NaN;
+        block.size = count;
+        return block;
+    }
+
+    private static byte[] encode(SampleCodec codec, SampleBlock samples) {
+        MessageBuffer out = new MessageBuffer(16);
+        codec.begin(out);
+        for (int slot = 0; slot < samples.size; slot++) {
+            codec.append(out, samples, slot, slot);
+        }
+        codec.end(out, samples.size);
+        return out.toByteArray();
+    }
+
+    /* Checks the header and returns the buffer at the first sample */
+    private static ByteBuffer header(byte[] body, BinarySampleCodec.Format format, int count) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        assertEquals('E', buffer.get());
+        assertEquals('G', buffer.get());
+        assertEquals(BinarySampleCodec.VERSION, buffer.get());
+        assertEquals(format.id, buffer.get());
+        assertEquals(SampleBlock.CHANNELS, buffer.get());
+        assertEquals(0, buffer.get());
+        assertEquals(count, buffer.getShort() & 0xFFFF);
+        return buffer;
+    }
+
+    @Test
+    public void rawCountsRoundTrip() {
+        SampleBlock block = samples(300, new Random(1));
+        byte[] body = encode(new BinarySampleCodec(BinarySampleCodec.Format.RAW_COUNTS), block);
+        assertEquals(BinarySampleCodec.HEADER_SIZE + block.size * (1 + 8 + 3 * SampleBlock.CHANNELS), body.length);
+        ByteBuffer buffer = header(body, BinarySampleCodec.Format.RAW_COUNTS, block.size);
+        for (int slot = 0; slot < block.size; slot++) {
+            assertEquals(block.sampleNumber[slot], buffer.get() & 0xFF);
+            assertEquals(block.timestamp[slot], buffer.getLong());
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                /* Sign extend the big-endian 24-bit count */
+                int counts = (buffer.get() << 16) | ((buffer.get() & 0xFF) << 8) | (buffer.get() & 0xFF);
+                assertEquals(block.counts[SampleBlock.offset(slot) + ch], counts);
+            }
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void microVoltsRoundTrip() {
+        SampleBlock block = samples(20, new Random(2));
+        byte[] body = encode(new BinarySampleCodec(BinarySampleCodec.Format.MICRO_VOLTS), block);
+        assertEquals(BinarySampleCodec.HEADER_SIZE + block.size * (1 + 8 + 4 * SampleBlock.CHANNELS), body.length);
+        ByteBuffer buffer = header(body, BinarySampleCodec.Format.MICRO_VOLTS, block.size);
+        for (int slot = 0; slot < block.size; slot++) {
+            assertEquals(block.sampleNumber[slot], buffer.get() & 0xFF);
+            assertEquals(block.timestamp[slot], buffer.getLong());
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                assertEquals(Float.floatToIntBits(block.microVolts[SampleBlock.offset(slot) + ch]),
+                        Float.floatToIntBits(buffer.getFloat()));
+            }
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void emptyBatchIsJustTheHeader() {
+        BinarySampleCodec codec = new BinarySampleCodec(BinarySampleCodec.Format.RAW_COUNTS);
+        assertEquals("application/x-bci-eeg", codec.contentType());
+        byte[] body = encode(codec, new SampleBlock(1));
+        assertEquals(BinarySampleCodec.HEADER_SIZE, body.length);
+        header(body, BinarySampleCodec.Format.RAW_COUNTS, 0);
+    }
+}
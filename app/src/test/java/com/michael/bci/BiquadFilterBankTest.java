@@ -0,0 +1,80 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import static com.michael.bci.TestSignals.peak;
+import static com.michael.bci.TestSignals.sine;
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the on-device IIR filter chain.
+ */
+public class BiquadFilterBankTest {
+
+    private static final double RATE = TestSignals.RATE;
+
+    @Test
+    public void notchRemovesMainsAndKeepsAlpha() {
+        BiquadFilterBank bank = BiquadFilterBank.eeg(RATE, 50, 0, 0);
+        SampleBlock mains = sine(2500, 50, 100, 0);
+        bank.process(mains, mains);
+        assertTrue(peak(mains, 0) < 2);
+
+        bank.reset();
+        SampleBlock alpha = sine(2500, 10, 100, 0);
+        bank.process(alpha, alpha);
+        assertEquals(100, peak(alpha, 3), 2);
+    }
+
+    @Test
+    public void bandPassRemovesDriftAndHighFrequencies() {
+        BiquadFilterBank bank = BiquadFilterBank.eeg(RATE, 0, 1, 45);
+        assertEquals(2, bank.sections());
+        SampleBlock offset = sine(2500, 10, 50, 20_000);
+        SampleBlock filtered = new SampleBlock(offset.capacity);
+        bank.process(offset, filtered);
+        assertEquals(50, peak(filtered, 7), 2);
+        /* The raw block is left alone */
+        assertEquals(20_000, offset.microVolts[0], 1e-3);
+        /* Counts follow the filtered values */
+        assertEquals(OpenBci.convertMicroVoltsToCounts(filtered.microVolts[100]), filtered.counts[100]);
+
+        bank.reset();
+        SampleBlock high = sine(2500, 100, 50, 0);
+        bank.process(high, high);
+        assertTrue(peak(high, 0) < 10);
+    }
+
+    @Test
+    public void blocksAreFilteredAsOneContinuousStream() {
+        SampleBlock whole = sine(1000, 7, 80, 300);
+        SampleBlock split = sine(1000, 7, 80, 300);
+        BiquadFilterBank.eeg(RATE, 50, 1, 45).process(whole, whole);
+
+        BiquadFilterBank bank = BiquadFilterBank.eeg(RATE, 50, 1, 45);
+        SampleBlock part = new SampleBlock(33);
+        for (int start = 0; start < split.size; start += part.capacity) {
+            part.clear();
+            for (int slot = start; slot < Math.min(split.size, start + part.capacity); slot++) {
+                part.set(part.size++, split, slot);
+            }
+            bank.process(part, part);
+            for (int slot = 0; slot < part.size; slot++) {
+                split.set(start + slot, part, slot);
+            }
+        }
+        for (int i = 0; i < SampleBlock.offset(whole.size); i++) {
+            assertEquals(whole.microVolts[i], split.microVolts[i], 0f);
+        }
+    }
+
+    @Test
+    public void sectionsAboveNyquistPassThrough() {
+        BiquadFilterBank bank = BiquadFilterBank.eeg(RATE, 0, 0, 200);
+        SampleBlock block = sine(100, 30, 10, 5);
+        float before = block.microVolts[SampleBlock.offset(60) + 2];
+        bank.process(block, block);
+        assertEquals(before, block.microVolts[SampleBlock.offset(60) + 2], 0f);
+        assertEquals("lp200.0", bank.describe());
+    }
+}
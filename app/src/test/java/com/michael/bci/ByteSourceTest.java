@@ -0,0 +1,132 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the hardware-free byte sources.
+ */
+public class ByteSourceTest {
+
+    private long nowNanos;
+
+    /* Read everything waiting from source through a decoder and sample clock, returns the samples decoded */
+    private static long drain(ByteSource source, CytonFrameDecoder decoder, SampleClock clock) {
+        byte[] data = new byte[BciReceiver.TRANSFER_SIZE];
+        SampleBlock block = new SampleBlock(64);
+        long decoded = 0;
+        int bytesRead;
+        while ((bytesRead = source.read(data, data.length)) > 0) {
+            decoder.feed(data, 0, bytesRead);
+            block.clear();
+            while (decoder.decode(block, 0L) > 0) {
+                clock.stamp(block);
+                decoded += block.size;
+                block.clear();
+            }
+        }
+        return decoded;
+    }
+
+    @Test
+    public void syntheticStreamsAtItsSampleRateAfterStart() {
+        SyntheticCyton cyton = new SyntheticCyton(1000, 8, () -> nowNanos, new Random(1));
+        nowNanos = 1_000_000_000L;
+        assertEquals(0, cyton.getQueueStatus());
+        cyton.write(new byte[]{'b'}, 1);
+        nowNanos += 100_000_000L;
+        assertEquals(100 * CytonFrameDecoder.FRAME_SIZE, cyton.getQueueStatus());
+        cyton.write(new byte[]{'s'}, 1);
+        nowNanos += 100_000_000L;
+        assertEquals(100 * CytonFrameDecoder.FRAME_SIZE, cyton.getQueueStatus());
+    }
+
+    @Test
+    public void splitFramesDecodeWithoutLoss() {
+        SyntheticCyton cyton = new SyntheticCyton(1000, 8, () -> nowNanos, new Random(2));
+        cyton.splitFrames = true;
+        cyton.write(new byte[]{'b'}, 1);
+        CytonFrameDecoder decoder = new CytonFrameDecoder();
+        SampleClock clock = new SampleClock(1000, () -> nowNanos, () -> 0L);
+        long decoded = 0;
+        for (int i = 0; i < 200; i++) {
+            nowNanos += 5_000_000L;
+            decoded += drain(cyton, decoder, clock);
+        }
+        /* The last packet waits for the next header before the decoder trusts it */
+        assertTrue(decoded >= 999);
+        assertEquals(0, clock.lostSamples());
+        assertEquals(0, decoder.resyncBytes());
+    }
+
+    @Test
+    public void droppedBytesShowUpAsResyncAndLostSamples() {
+        SyntheticCyton cyton = new SyntheticCyton(250, 8, () -> nowNanos, new Random(3));
+        cyton.dropByteProbability = 0.001;
+        cyton.write(new byte[]{'b'}, 1);
+        CytonFrameDecoder decoder = new CytonFrameDecoder();
+        SampleClock clock = new SampleClock(250, () -> nowNanos, () -> 0L);
+        for (int i = 0; i < 100; i++) {
+            nowNanos += 100_000_000L;
+            drain(cyton, decoder, clock);
+        }
+        assertTrue(cyton.bytesDropped() > 0);
+        assertTrue(decoder.resyncBytes() > 0);
+        assertTrue(clock.lostSamples() > 0);
+    }
+
+    @Test
+    public void fullRxBufferLosesSamples() {
+        SyntheticCyton cyton = new SyntheticCyton(250, 8, () -> nowNanos, new Random(4));
+        cyton.write(new byte[]{'b'}, 1);
+        nowNanos += 60_000_000_000L;
+        assertTrue(cyton.readBufferFull());
+        assertTrue(cyton.samplesLost() > 0);
+        assertTrue(cyton.getQueueStatus() > SyntheticCyton.RX_BUFFER_SIZE - CytonFrameDecoder.FRAME_SIZE);
+    }
+
+    @Test
+    public void replayIsPacedAndEndsClosed() {
+        byte[] capture = new byte[10_000];
+        new Random(5).nextBytes(capture);
+        ReplayByteSource replay = new ReplayByteSource(new ByteArrayInputStream(capture), 1000, () -> nowNanos);
+        assertEquals(0, replay.getQueueStatus());
+        nowNanos += 2_000_000_000L;
+        byte[] data = new byte[4096];
+        assertEquals(2000, replay.read(data, data.length));
+        assertEquals(capture[1999], data[1999]);
+
+        nowNanos += 60_000_000_000L;
+        int total = 2000;
+        int bytesRead;
+        while ((bytesRead = replay.read(data, data.length)) > 0) {
+            total += bytesRead;
+        }
+        assertEquals(capture.length, total);
+        assertFalse(replay.isOpen());
+    }
+
+    @Test
+    public void replayRunsToEndOfStreamThroughReadStrategy() {
+        byte[] capture = new byte[5000];
+        new Random(6).nextBytes(capture);
+        ReplayByteSource replay = new ReplayByteSource(new ByteArrayInputStream(capture), 0, System::nanoTime);
+        ReadStrategy strategy = new ReadStrategy.Backoff(() -> 0L, 4_000_000L);
+        byte[] data = new byte[BciReceiver.TRANSFER_SIZE];
+        int total = 0;
+        int reads = 0;
+        int bytesRead;
+        while ((bytesRead = strategy.read(replay, data, data.length)) >= 0) {
+            total += bytesRead;
+            assertTrue(++reads < 100);
+        }
+        assertEquals(capture.length, total);
+        assertFalse(replay.isOpen());
+        /* Closed for good, the receiver stops rather than polling it again */
+        assertEquals(-1, replay.getQueueStatus());
+    }
+}
@@ -0,0 +1,87 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for publisher confirm tracking.
+ */
+public class ConfirmTrackerTest {
+
+    private final List<String> acked = new ArrayList<>();
+    private final List<String> nacked = new ArrayList<>();
+
+    private ConfirmTracker<String> tracker(int maxInFlight) {
+        return new ConfirmTracker<>(maxInFlight, new ConfirmTracker.Listener<String>() {
+            @Override
+            public void acked(String item) {
+                acked.add(item);
+            }
+
+            @Override
+            public void nacked(String item) {
+                nacked.add(item);
+            }
+        });
+    }
+
+    @Test
+    public void multipleAckReleasesEverythingUpToTag() {
+        ConfirmTracker<String> tracker = tracker(4);
+        tracker.add(1, "a");
+        tracker.add(2, "b");
+        tracker.add(3, "c");
+        tracker.handleAck(2, true);
+        assertEquals(2, acked.size());
+        assertEquals(1, tracker.inFlight());
+        tracker.handleNack(3, true);
+        assertEquals("c", nacked.get(0));
+        assertEquals(0, tracker.inFlight());
+    }
+
+    @Test
+    public void singleConfirmBehindHeadIsReportedOnce() {
+        ConfirmTracker<String> tracker = tracker(4);
+        tracker.add(1, "a");
+        tracker.add(2, "b");
+        tracker.add(3, "c");
+        tracker.handleNack(2, false);
+        assertEquals("b", nacked.get(0));
+        assertEquals(3, tracker.inFlight());
+        tracker.handleAck(3, true);
+        assertEquals(2, acked.size());
+        assertEquals(1, nacked.size());
+        assertEquals(0, tracker.inFlight());
+    }
+
+    @Test
+    public void windowWrapsAndBlocksWhenFull() throws InterruptedException {
+        ConfirmTracker<String> tracker = tracker(2);
+        for (long tag = 1; tag <= 5; tag++) {
+            assertTrue(tracker.awaitCapacity(0));
+            tracker.add(tag, "m" + tag);
+            if (tag % 2 == 0) {
+                tracker.handleAck(tag, true);
+            }
+        }
+        tracker.add(6, "m6");
+        assertFalse(tracker.awaitCapacity(1));
+        tracker.failAll();
+        assertEquals(4, acked.size());
+        assertEquals(2, nacked.size());
+        assertTrue(tracker.awaitCapacity(0));
+    }
+
+    @Test
+    public void cancelDropsLastTagSilently() {
+        ConfirmTracker<String> tracker = tracker(2);
+        tracker.add(7, "a");
+        tracker.cancel(7);
+        tracker.failAll();
+        assertTrue(nacked.isEmpty());
+    }
+}
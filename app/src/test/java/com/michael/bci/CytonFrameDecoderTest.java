@@ -0,0 +1,110 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the streaming Cyton packet decoder.
+ */
+public class CytonFrameDecoderTest {
+
+    private static byte[] frame(int sampleNumber, int counts) {
+        byte[] frame = new byte[CytonFrameDecoder.FRAME_SIZE];
+        frame[0] = CytonFrameDecoder.START_BYTE;
+        frame[1] = (byte) sampleNumber;
+        for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+            int value = counts + ch;
+            frame[2 + ch * 3] = (byte) (value >> 16);
+            frame[3 + ch * 3] = (byte) (value >> 8);
+            frame[4 + ch * 3] = (byte) value;
+        }
+        frame[32] = CytonFrameDecoder.END_BYTE;
+        return frame;
+    }
+
+    private static byte[] stream(int frames) {
+        byte[] data = new byte[frames * CytonFrameDecoder.FRAME_SIZE];
+        for (int i = 0; i < frames; i++) {
+            System.arraycopy(frame(i, -100 * i), 0, data, i * CytonFrameDecoder.FRAME_SIZE, CytonFrameDecoder.FRAME_SIZE);
+        }
+        return data;
+    }
+
+    @Test
+    public void decodesCountsAndMicroVolts() {
+        CytonFrameDecoder decoder = new CytonFrameDecoder();
+        SampleBlock block = new SampleBlock(16);
+        byte[] data = stream(3);
+        decoder.feed(data, 0, data.length);
+
+        assertEquals(3, decoder.decode(block, 42L));
+        assertEquals(1, block.sampleNumber[1]);
+        assertEquals(42L, block.timestamp[1]);
+        assertEquals(-100 + 3, block.counts[SampleBlock.offset(1) + 3]);
+        byte[] raw = {(byte) 0xFF, (byte) 0xFF, (byte) 0x9C};
+        assertEquals(OpenBci.convertByteToMicroVolts(raw), block.microVolts[SampleBlock.offset(1)], 0f);
+        assertTrue(decoder.isSynced());
+        assertEquals(0, decoder.available());
+    }
+
+    @Test
+    public void waitsForNextHeaderBeforeFirstSync() {
+        CytonFrameDecoder decoder = new CytonFrameDecoder();
+        SampleBlock block = new SampleBlock(16);
+        byte[] data = stream(2);
+        decoder.feed(data, 0, CytonFrameDecoder.FRAME_SIZE);
+        assertEquals(0, decoder.decode(block, 0L));
+        decoder.feed(data, CytonFrameDecoder.FRAME_SIZE, CytonFrameDecoder.FRAME_SIZE);
+        assertEquals(2, decoder.decode(block, 0L));
+    }
+
+    @Test
+    public void keepsPacketsSplitAcrossReads() {
+        CytonFrameDecoder decoder = new CytonFrameDecoder(128);
+        SampleBlock block = new SampleBlock(64);
+        byte[] data = stream(40);
+        int decoded = 0;
+        for (int offset = 0; offset < data.length; offset += 7) {
+            decoder.feed(data, offset, Math.min(7, data.length - offset));
+            decoded += decoder.decode(block, 0L);
+        }
+        assertEquals(40, decoded);
+        for (int i = 0; i < decoded; i++) {
+            assertEquals(i, block.sampleNumber[i]);
+        }
+    }
+
+    @Test
+    public void resyncsAfterGarbageWithoutOverrun() {
+        CytonFrameDecoder decoder = new CytonFrameDecoder();
+        SampleBlock block = new SampleBlock(16);
+        byte[] garbage = {CytonFrameDecoder.START_BYTE, 1, 2, CytonFrameDecoder.START_BYTE};
+        byte[] data = stream(4);
+        decoder.feed(garbage, 0, garbage.length);
+        decoder.feed(data, 0, data.length);
+        assertEquals(4, decoder.decode(block, 0L));
+        assertEquals(0, block.sampleNumber[0]);
+
+        /* A short tail that starts like a packet must not be indexed past */
+        CytonFrameDecoder tail = new CytonFrameDecoder();
+        tail.feed(garbage, 0, garbage.length);
+        assertEquals(0, tail.decode(block, 0L));
+    }
+
+    @Test
+    public void countsBadFootersAndResyncBytes() {
+        CytonFrameDecoder decoder = new CytonFrameDecoder();
+        SampleBlock block = new SampleBlock(16);
+        byte[] data = stream(4);
+        /* Corrupt the footer of the third packet */
+        data[3 * CytonFrameDecoder.FRAME_SIZE - 1] = 0x11;
+        decoder.feed(data, 0, data.length);
+        decoder.decode(block, 0L);
+
+        assertEquals(1, decoder.badFooters());
+        assertEquals(1, decoder.syncLosses());
+        assertTrue(decoder.resyncBytes() >= CytonFrameDecoder.FRAME_SIZE);
+        assertEquals(0, decoder.overflowBytes());
+    }
+}
@@ -0,0 +1,160 @@
+package com.michael.bci;
+
+import com.rabbitmq.client.AMQP;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the lossless delta + zig-zag + varint batch codec.
+ */
+public class DeltaSampleCodecTest {
+
+    private static SampleBlock samples(int count, Random random, int stepCounts) {
+        SampleBlock block = new SampleBlock(count);
+        int[] counts = new int[SampleBlock.CHANNELS];
+        for (int slot = 0; slot < count; slot++) {
+            block.sampleNumber[slot] = slot & 0xFF;
+            block.timestamp[slot] = 1_600_000_000_000L + slot * 4L + (slot == 7 ? -20 : 0);
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                counts[ch] = Math.max(-0x800000, Math.min(0x7FFFFF, counts[ch] + random.nextInt(2 * stepCounts + 1) - stepCounts));
+                block.counts[SampleBlock.offset(slot) + ch] = counts[ch];
+            }
+        }
+        /* Full scale swings, the worst case for the predictors */
+        block.counts[SampleBlock.offset(3)] = 0x7FFFFF;
+        block.counts[SampleBlock.offset(4)] = -0x800000;
+        block.counts[SampleBlock.offset(5)] = 0x7FFFFF;
+        block.size = count;
+        return block;
+    }
+
+    private static byte[] encode(SampleCodec codec, SampleBlock samples) {
+        MessageBuffer out = new MessageBuffer(16);
+        codec.begin(out);
+        for (int slot = 0; slot < samples.size; slot++) {
+            codec.append(out, samples, slot, slot);
+        }
+        codec.end(out, samples.size);
+        return out.toByteArray();
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /* Decodes a batch the way the receiver's DeltaSampleDecoder does, into counts and timestamps */
+    private static SampleBlock decode(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        assertEquals('E', buffer.get());
+        assertEquals('D', buffer.get());
+        assertEquals(DeltaSampleCodec.VERSION, buffer.get());
+        int predictor = buffer.get();
+        assertEquals(SampleBlock.CHANNELS, buffer.get());
+        buffer.get();
+        int count = buffer.getShort() & 0xFFFF;
+        SampleBlock block = new SampleBlock(count);
+        for (int i = 0; i < count; i++) {
+            block.sampleNumber[i] = buffer.get() & 0xFF;
+            block.timestamp[i] = i == 0 ? buffer.getLong() : block.timestamp[i - 1] + DeltaSampleCodec.unZigZag(readVarint(buffer));
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                long error = DeltaSampleCodec.unZigZag(readVarint(buffer));
+                int at = SampleBlock.offset(i) + ch;
+                long prediction = i == 0 ? 0
+                        : predictor == 1 && i > 1 ? 2L * block.counts[at - SampleBlock.CHANNELS] - block.counts[at - 2 * SampleBlock.CHANNELS]
+                        : block.counts[at - SampleBlock.CHANNELS];
+                block.counts[at] = (int) (prediction + error);
+            }
+        }
+        block.size = count;
+        assertFalse(buffer.hasRemaining());
+        return block;
+    }
+
+    private static void assertSameSamples(SampleBlock expected, int from, SampleBlock actual) {
+        for (int i = 0; i < actual.size; i++) {
+            assertEquals(expected.sampleNumber[from + i], actual.sampleNumber[i]);
+            assertEquals(expected.timestamp[from + i], actual.timestamp[i]);
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                assertEquals(expected.counts[SampleBlock.offset(from + i) + ch], actual.counts[SampleBlock.offset(i) + ch]);
+            }
+        }
+    }
+
+    @Test
+    public void zigZagKeepsSmallNumbersSmall() {
+        assertEquals(0, DeltaSampleCodec.zigZag(0));
+        assertEquals(1, DeltaSampleCodec.zigZag(-1));
+        assertEquals(2, DeltaSampleCodec.zigZag(1));
+        assertEquals(0x1FFFFFF, DeltaSampleCodec.zigZag(-0x1000000));
+        for (long value : new long[]{0, 1, -1, 0xFFFFFF, -0x1000000, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            assertEquals(value, DeltaSampleCodec.unZigZag(DeltaSampleCodec.zigZag(value)));
+        }
+    }
+
+    @Test
+    public void bothPredictorsAreLossless() {
+        SampleBlock original = samples(200, new Random(3), 2000);
+        for (DeltaSampleCodec.Predictor predictor : DeltaSampleCodec.Predictor.values()) {
+            SampleBlock decoded = decode(encode(new DeltaSampleCodec(predictor), original));
+            assertEquals(original.size, decoded.size);
+            assertSameSamples(original, 0, decoded);
+        }
+    }
+
+    @Test
+    public void smallerThanRawBinaryCounts() {
+        SampleBlock block = new SampleBlock(50);
+        long[] now = {0};
+        SyntheticCyton cyton = new SyntheticCyton(OpenBci.SAMPLE_RATE, SampleBlock.CHANNELS, () -> now[0], new Random(5));
+        cyton.write(new byte[]{'b'}, 1);
+        now[0] = 51 * OpenBci.SAMPLE_INTERVAL_NANOS;
+        byte[] stream = new byte[cyton.getQueueStatus()];
+        CytonFrameDecoder decoder = new CytonFrameDecoder();
+        decoder.feed(stream, 0, cyton.read(stream, stream.length));
+        decoder.decode(block, 1_600_000_000_000L);
+        assertEquals(50, block.size);
+        for (int slot = 0; slot < block.size; slot++) {
+            block.timestamp[slot] = 1_600_000_000_000L + slot * 4L;
+        }
+        int binary = encode(new BinarySampleCodec(BinarySampleCodec.Format.RAW_COUNTS), block).length;
+        int delta = encode(new DeltaSampleCodec(DeltaSampleCodec.Predictor.DELTA), block).length;
+        assertTrue(delta + " vs " + binary, delta * 10 < binary * 6);
+        assertSameSamples(block, 0, decode(encode(new DeltaSampleCodec(DeltaSampleCodec.Predictor.DELTA), block)));
+    }
+
+    @Test
+    public void everyBatchDecodesOnItsOwn() throws Exception {
+        SampleBlock original = samples(300, new Random(9), 50);
+        List<byte[]> bodies = new ArrayList<>();
+        BatchPublisher.Sender sender = (AMQP.BasicProperties properties, byte[] body, SampleBlock batch, long sequence) -> bodies.add(body);
+        /* A byte limit that splits batches part way through, so the first sample of a batch is never the first in a block */
+        BatchPublisher publisher = new BatchPublisher(sender, new DeltaSampleCodec(DeltaSampleCodec.Predictor.LINEAR),
+                "session", null, 50, 400, 1000);
+        for (int slot = 0; slot < original.size; slot++) {
+            publisher.add(original, slot);
+        }
+        publisher.flush();
+        assertTrue(bodies.size() > 6);
+        int from = 0;
+        for (byte[] body : bodies) {
+            SampleBlock decoded = decode(body);
+            assertSameSamples(original, from, decoded);
+            from += decoded.size;
+        }
+        assertEquals(original.size, from);
+    }
+}
@@ -0,0 +1,109 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderTest {
+
+    /* One parsed record of a dump */
+    private static final class Record {
+        int type;
+        long nanos;
+        byte[] payload;
+    }
+
+    @Test
+    public void dumpHoldsRecordsInOrder() throws IOException {
+        FlightRecorder recorder = new FlightRecorder(1024);
+        recorder.recordWrite(new byte[]{'b'}, 1);
+        recorder.recordRead(new byte[]{(byte) 0xA0, 1, 2, 3}, 3);
+        recorder.recordEvent(FlightRecorder.SYNC_LOST, 7, 99);
+
+        List<Record> records = parse(recorder);
+        assertEquals(3, records.size());
+        assertEquals(FlightRecorder.WRITE, records.get(0).type);
+        assertArrayEquals(new byte[]{'b'}, records.get(0).payload);
+        assertEquals(FlightRecorder.READ, records.get(1).type);
+        assertArrayEquals(new byte[]{(byte) 0xA0, 1, 2}, records.get(1).payload);
+        assertEquals(FlightRecorder.EVENT, records.get(2).type);
+        DataInputStream event = new DataInputStream(new ByteArrayInputStream(records.get(2).payload));
+        assertEquals(FlightRecorder.SYNC_LOST, event.readUnsignedByte());
+        assertEquals(7, event.readLong());
+        assertEquals(99, event.readLong());
+        assertTrue(records.get(0).nanos <= records.get(2).nanos);
+    }
+
+    @Test
+    public void fullRingDropsWholeOldestRecords() throws IOException {
+        FlightRecorder recorder = new FlightRecorder(1024);
+        byte[] read = new byte[100];
+        for (int i = 0; i < 50; i++) {
+            read[0] = (byte) i;
+            recorder.recordRead(read, read.length);
+        }
+        List<Record> records = parse(recorder);
+        /* 111 bytes a record, 9 fit in 1024 */
+        assertEquals(9, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(FlightRecorder.READ, records.get(i).type);
+            assertEquals(41 + i, records.get(i).payload[0]);
+        }
+    }
+
+    @Test
+    public void largeReadKeepsItsStart() throws IOException {
+        FlightRecorder recorder = new FlightRecorder(1024);
+        byte[] read = new byte[2000];
+        read[0] = 42;
+        recorder.recordRead(read, read.length);
+        List<Record> records = parse(recorder);
+        assertEquals(1, records.size());
+        assertEquals(256, records.get(0).payload.length);
+        assertEquals(42, records.get(0).payload[0]);
+    }
+
+    @Test
+    public void noDumpWithoutDirectory() {
+        FlightRecorder recorder = new FlightRecorder(1024);
+        recorder.recordEvent(FlightRecorder.EXCEPTION, 1, 0);
+        assertNull(recorder.requestDump("test", true));
+    }
+
+    private static List<Record> parse(FlightRecorder recorder) throws IOException {
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        recorder.writeTo(dump);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(dump.toByteArray()));
+        assertEquals(FlightRecorder.MAGIC_0, in.readByte());
+        assertEquals(FlightRecorder.MAGIC_1, in.readByte());
+        assertEquals(FlightRecorder.VERSION, in.readByte());
+        in.readByte();
+        int length = in.readInt();
+        assertEquals(dump.size() - FlightRecorder.HEADER_SIZE, length);
+        in.readLong();
+        in.readLong();
+        List<Record> records = new ArrayList<>();
+        int read = 0;
+        while (read < length) {
+            Record record = new Record();
+            record.type = in.readUnsignedByte();
+            record.payload = new byte[in.readUnsignedShort()];
+            record.nanos = in.readLong();
+            in.readFully(record.payload);
+            records.add(record);
+            read += FlightRecorder.RECORD_HEADER_SIZE + record.payload.length;
+        }
+        assertEquals(length, read);
+        return records;
+    }
+}
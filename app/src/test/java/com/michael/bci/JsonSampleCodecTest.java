@@ -0,0 +1,104 @@
+package com.michael.bci;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests checking the JSON encoder writes the same bytes json-simple did.
+ */
+public class JsonSampleCodecTest {
+
+    /* The per-sample object exactly as it used to be built before JsonSampleCodec wrote JSON itself */
+    private static String jsonSimple(SampleBlock samples, int slot) {
+        LinkedHashMap<String, Serializable> obj = new LinkedHashMap<>();
+        long timestamp = samples.timestamp[slot];
+        obj.put("SN", samples.sampleNumber[slot]);
+        for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+            obj.put("ch" + (ch + 1), samples.microVolts[SampleBlock.offset(slot) + ch]);
+        }
+        obj.put("UnixTS", timestamp / 1000L);
+        obj.put("TS", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(timestamp)));
+        return JSONValue.toJSONString(obj);
+    }
+
+    private static String encode(SampleCodec codec, SampleBlock samples) {
+        MessageBuffer out = new MessageBuffer(16);
+        codec.begin(out);
+        for (int slot = 0; slot < samples.size; slot++) {
+            codec.append(out, samples, slot, slot);
+        }
+        codec.end(out, samples.size);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void matchesJsonSimpleByteForByte() {
+        Random random = new Random(7);
+        SampleBlock samples = new SampleBlock(200);
+        for (int slot = 0; slot < samples.capacity; slot++) {
+            samples.sampleNumber[slot] = slot & 0xFF;
+            samples.timestamp[slot] = 1_600_000_000_000L + slot * 4L + random.nextInt(1000);
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                /* Mostly small signals, with some full scale and zero values */
+                int counts = slot % 10 == 0 ? 0 : slot % 10 == 1 ? -0x800000 : slot % 10 == 2 ? 0x7FFFFF
+                        : random.nextInt(0x10000) - 0x8000;
+                samples.microVolts[SampleBlock.offset(slot) + ch] = OpenBci.convertCountsToMicroVolts(counts);
+            }
+            samples.size++;
+        }
+        samples.microVolts[5] = Float.NaN;
+
+        StringBuilder expected = new StringBuilder("[");
+        for (int slot = 0; slot < samples.size; slot++) {
+            expected.append(slot > 0 ? "," : "").append(jsonSimple(samples, slot));
+        }
+        expected.append(']');
+        assertEquals(expected.toString(), encode(new JsonSampleCodec(), samples));
+    }
+
+    @Test
+    public void formatsEveryCountLikeFloatToString() {
+        byte[] text = new byte[FloatFormatter.MAX_LENGTH];
+        for (int counts = -0x800000; counts <= 0x7FFFFF; counts += 3) {
+            float microVolts = OpenBci.convertCountsToMicroVolts(counts);
+            int length = FloatFormatter.format(microVolts, text, 0);
+            assertEquals(Float.toString(microVolts), new String(text, 0, length, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void formatsAnyFloatLikeFloatToString() {
+        byte[] text = new byte[FloatFormatter.MAX_LENGTH];
+        Random random = new Random(11);
+        float[] edges = {0f, -0f, 0.01f, 9999999f, 1e7f, 1e-3f, Float.MIN_VALUE, Float.MAX_VALUE,
+                Float.NaN, Float.NEGATIVE_INFINITY, 100f, 0.1f, 123.456f};
+        for (float value : edges) {
+            int length = FloatFormatter.format(value, text, 0);
+            assertEquals(Float.toString(value), new String(text, 0, length, StandardCharsets.US_ASCII));
+        }
+        for (int i = 0; i < 1_000_000; i++) {
+            float value = Float.intBitsToFloat(random.nextInt());
+            int length = FloatFormatter.format(value, text, 0);
+            assertEquals(Float.toString(value), new String(text, 0, length, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void writesLongsLikeLongToString() {
+        long[] values = {0, 1, -1, 9, 10, -10, 255, 1_600_000_000L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            MessageBuffer out = new MessageBuffer(1);
+            out.putDecimal(value);
+            assertEquals(Long.toString(value), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueInOrder() {
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long low = LatencyHistogram.lowestValue(bucket);
+            long high = LatencyHistogram.highestValue(bucket);
+            assertEquals(bucket, LatencyHistogram.bucket(low));
+            assertEquals(bucket, LatencyHistogram.bucket(high));
+            if (bucket + 1 < LatencyHistogram.BUCKETS) {
+                assertEquals(high + 1, LatencyHistogram.lowestValue(bucket + 1));
+            }
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        /* 1..100000ns, so p50 is 50000 and p99 is 99000 */
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+        histogram.snapshot();
+        assertEquals(100_000, histogram.count());
+        assertEquals(100_000, histogram.max());
+        assertEquals(50_000, histogram.mean());
+        assertNear(50_000, histogram.percentile(0.5));
+        assertNear(99_000, histogram.percentile(0.99));
+        assertNear(99_900, histogram.percentile(0.999));
+        assertEquals(100_000, histogram.percentile(1.0));
+    }
+
+    @Test
+    public void snapshotCoversOnlyTheInterval() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(1_000_000);
+        histogram.snapshot();
+        assertEquals(1, histogram.count());
+
+        for (int i = 0; i < 10; i++) {
+            histogram.record(100);
+        }
+        histogram.snapshot();
+        assertEquals(10, histogram.count());
+        assertEquals(11, histogram.totalCount());
+        assertEquals(100, histogram.max());
+        assertEquals(100, histogram.mean());
+        assertNear(100, histogram.percentile(0.999));
+
+        histogram.snapshot();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.5));
+    }
+
+    @Test
+    public void concurrentRecordsAreNotLost() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            long seed = t;
+            writers[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(random.nextInt(1_000_000));
+                }
+            });
+            writers[t].start();
+        }
+        long seen = 0;
+        while (isAlive(writers)) {
+            histogram.snapshot();
+            seen += histogram.count();
+        }
+        histogram.snapshot();
+        seen += histogram.count();
+        assertEquals(400_000, seen);
+        assertEquals(400_000, histogram.totalCount());
+    }
+
+    private static boolean isAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / LatencyHistogram.SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,75 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import static com.michael.bci.TestSignals.peak;
+import static com.michael.bci.TestSignals.sine;
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the polyphase FIR decimator.
+ */
+public class PolyphaseDecimatorTest {
+
+    private static final double RATE = TestSignals.RATE;
+
+    private static SampleBlock decimate(PolyphaseDecimator decimator, SampleBlock in) {
+        SampleBlock out = new SampleBlock(decimator.maxOutput(in.size));
+        decimator.process(in, out);
+        return out;
+    }
+
+    @Test
+    public void keepsEveryFactorthSampleAndAlignsItsTime() {
+        PolyphaseDecimator decimator = new PolyphaseDecimator(RATE, SampleBlock.CHANNELS, 2);
+        SampleBlock out = decimate(decimator, sine(1000, 0, 0, 100));
+        assertEquals(500, out.size);
+        assertEquals(32, decimator.delaySamples());
+        /* Output m is input 2m, moved back by the filter delay */
+        assertEquals(200 - 32, out.sampleIndex[100]);
+        assertEquals(1_600_000_000_000L + 200 * 4L - 32 * 4L, out.timestamp[100]);
+        assertEquals((200 - 32) & 0xFF, out.sampleNumber[100]);
+        /* Unity gain at DC once the filter has filled */
+        assertEquals(100, out.microVolts[SampleBlock.offset(400) + 5], 1e-3);
+        assertEquals(OpenBci.convertMicroVoltsToCounts(100), out.counts[SampleBlock.offset(400) + 5]);
+    }
+
+    @Test
+    public void passesTheEegAndRemovesWhatWouldAlias() {
+        for (int factor : new int[]{2, 4}) {
+            double nyquist = RATE / factor / 2;
+            PolyphaseDecimator pass = new PolyphaseDecimator(RATE, SampleBlock.CHANNELS, factor);
+            assertEquals(50, peak(decimate(pass, sine(4000, nyquist * 0.5, 50, 0)), 1), 1);
+
+            /* Just above the new Nyquist would fold back into the EEG band */
+            PolyphaseDecimator stop = new PolyphaseDecimator(RATE, SampleBlock.CHANNELS, factor);
+            assertTrue(peak(decimate(stop, sine(4000, nyquist * 1.2, 50, 0)), 1) < 0.5);
+        }
+    }
+
+    @Test
+    public void blocksAreDecimatedAsOneContinuousStream() {
+        SampleBlock input = sine(1001, 9, 40, -250);
+        SampleBlock whole = decimate(new PolyphaseDecimator(RATE, SampleBlock.CHANNELS, 3), input);
+
+        PolyphaseDecimator decimator = new PolyphaseDecimator(RATE, SampleBlock.CHANNELS, 3);
+        SampleBlock part = new SampleBlock(31);
+        SampleBlock out = new SampleBlock(decimator.maxOutput(part.capacity));
+        int outputs = 0;
+        for (int start = 0; start < input.size; start += part.capacity) {
+            part.clear();
+            for (int slot = start; slot < Math.min(input.size, start + part.capacity); slot++) {
+                part.set(part.size++, input, slot);
+            }
+            decimator.process(part, out);
+            for (int slot = 0; slot < out.size; slot++, outputs++) {
+                assertEquals(whole.sampleIndex[outputs], out.sampleIndex[slot]);
+                for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                    assertEquals(whole.microVolts[SampleBlock.offset(outputs) + ch], out.microVolts[SampleBlock.offset(slot) + ch], 0f);
+                }
+            }
+        }
+        assertEquals(whole.size, outputs);
+        assertEquals(334, outputs);
+    }
+}
@@ -0,0 +1,62 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the reconnect backoff, no broker needed.
+ */
+public class RabbitmqConnectionTest {
+
+    @Test
+    public void backoffDoublesUpToTheMaximum() {
+        long[] expected = {500, 500, 1000, 2000, 4000, 8000, 16000, 30000, 30000};
+        for (int attempts = 0; attempts < expected.length; attempts++) {
+            assertEquals(expected[attempts], RabbitmqConnection.JitteredBackoff.ceiling(attempts));
+        }
+        assertEquals(30000, RabbitmqConnection.JitteredBackoff.ceiling(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void delayIsJitteredInTheUpperHalf() {
+        RabbitmqConnection.JitteredBackoff backoff = new RabbitmqConnection.JitteredBackoff();
+        for (int attempts = 1; attempts <= 12; attempts++) {
+            long ceiling = RabbitmqConnection.JitteredBackoff.ceiling(attempts);
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < 200; i++) {
+                long delay = backoff.getDelay(attempts);
+                assertTrue(attempts + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            /* Phones that lost the broker together spread out */
+            assertTrue(max > min);
+        }
+    }
+
+    @Test
+    public void gateHoldsOffAttemptsUntilTheBackoffHasPassed() {
+        RabbitmqConnection.ConnectGate gate = new RabbitmqConnection.ConnectGate();
+        long now = 1_000_000L;
+        assertEquals(0, gate.waitMillis(now));
+
+        gate.failed(now);
+        long wait = gate.waitMillis(now);
+        assertTrue(wait >= 250 && wait <= 500);
+        assertEquals(wait - 100, gate.waitMillis(now + 100));
+        assertEquals(0, gate.waitMillis(now + wait));
+
+        for (int i = 0; i < 10; i++) {
+            now += 60_000;
+            gate.failed(now);
+        }
+        assertEquals(11, gate.failedAttempts());
+        assertTrue(gate.waitMillis(now) >= 15_000);
+
+        gate.succeeded();
+        assertEquals(0, gate.failedAttempts());
+        assertEquals(0, gate.waitMillis(now));
+    }
+}
@@ -0,0 +1,119 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the receiver read strategies, run against the hardware-free byte sources.
+ */
+public class ReadStrategyTest {
+
+    private static final LongSupplier NO_CPU_CLOCK = () -> 0L;
+    private static final int THRESHOLD_BYTES = 10 * CytonFrameDecoder.FRAME_SIZE;
+    private static final long BYTE_INTERVAL_NANOS = 1_000_000_000L / (250 * CytonFrameDecoder.FRAME_SIZE);
+
+    /* Counts how often the strategy asks the source, and can play a driver stuck in an error state */
+    private static final class CountingSource implements ByteSource {
+        private final ByteSource source;
+        boolean error;
+        int polls;
+
+        CountingSource(ByteSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public int getQueueStatus() {
+            polls++;
+            return error ? -1 : source.getQueueStatus();
+        }
+
+        @Override
+        public int read(byte[] data, int length) {
+            return error ? -1 : source.read(data, length);
+        }
+
+        @Override
+        public int read(byte[] data, int length, long timeoutMillis) {
+            polls++;
+            return error ? -1 : source.read(data, length, timeoutMillis);
+        }
+
+        @Override
+        public int write(byte[] data, int length) {
+            return source.write(data, length);
+        }
+
+        @Override
+        public boolean readBufferFull() {
+            return source.readBufferFull();
+        }
+
+        @Override
+        public void purge() {
+            source.purge();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return source.isOpen();
+        }
+    }
+
+    private static ReadStrategy[] strategies() {
+        return new ReadStrategy[]{
+                new ReadStrategy.Blocking(NO_CPU_CLOCK, 4),
+                new ReadStrategy.Backoff(NO_CPU_CLOCK, 4_000_000L),
+                new ReadStrategy.Threshold(NO_CPU_CLOCK, THRESHOLD_BYTES, BYTE_INTERVAL_NANOS)};
+    }
+
+    @Test
+    public void idleSourceParksInsteadOfSpinning() {
+        byte[] data = new byte[BciReceiver.TRANSFER_SIZE];
+        for (ReadStrategy strategy : strategies()) {
+            CountingSource source = new CountingSource(new SyntheticCyton(250, 8));
+            long start = System.nanoTime();
+            assertEquals(0, strategy.read(source, data, data.length));
+            long elapsed = System.nanoTime() - start;
+            if (strategy instanceof ReadStrategy.Blocking) {
+                assertTrue(strategy.toString(), elapsed >= 4_000_000L);
+                assertEquals(2, source.polls);
+            } else {
+                assertTrue(strategy.toString(), elapsed >= ReadStrategy.MAX_WAIT_NANOS);
+                assertTrue(strategy + " polls=" + source.polls, source.polls < 200);
+            }
+        }
+    }
+
+    @Test
+    public void thresholdWaitsForThresholdBytes() {
+        SyntheticCyton cyton = new SyntheticCyton(250, 8);
+        CountingSource source = new CountingSource(cyton);
+        ReadStrategy strategy = new ReadStrategy.Threshold(NO_CPU_CLOCK, THRESHOLD_BYTES, BYTE_INTERVAL_NANOS);
+        byte[] data = new byte[BciReceiver.TRANSFER_SIZE];
+        cyton.write(new byte[]{'b'}, 1);
+        int bytesRead = strategy.read(source, data, data.length);
+        assertTrue("read " + bytesRead, bytesRead >= THRESHOLD_BYTES);
+        assertEquals(0, bytesRead % CytonFrameDecoder.FRAME_SIZE);
+        /* One poll to size the sleep and one once it should be done, a few more if the sleep ends early */
+        assertTrue("polls=" + source.polls, source.polls < 10);
+        assertTrue(strategy.averageLatencyNanos() > 0);
+    }
+
+    @Test
+    public void driverErrorIsReturnedAfterTheMaximumWait() {
+        byte[] data = new byte[BciReceiver.TRANSFER_SIZE];
+        for (ReadStrategy strategy : strategies()) {
+            CountingSource source = new CountingSource(new SyntheticCyton(250, 8));
+            source.error = true;
+            long start = System.nanoTime();
+            assertTrue(strategy.read(source, data, data.length) < 0);
+            assertTrue(strategy.toString(), System.nanoTime() - start >= ReadStrategy.MAX_WAIT_NANOS);
+            assertEquals(strategy.toString(), 1, source.polls);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for sample clock timestamp reconstruction.
+ */
+public class SampleClockTest {
+
+    private long nowNanos;
+
+    private SampleClock clock(double rate) {
+        return new SampleClock(rate, () -> nowNanos, () -> 1_600_000_000_000L);
+    }
+
+    private static SampleBlock sampleNumbers(int... numbers) {
+        SampleBlock block = new SampleBlock(numbers.length);
+        for (int i = 0; i < numbers.length; i++) {
+            block.sampleNumber[i] = numbers[i];
+        }
+        block.size = numbers.length;
+        return block;
+    }
+
+    @Test
+    public void unwrapsSampleNumbersAcrossTheWrap() {
+        SampleClock clock = clock(250);
+        SampleBlock block = sampleNumbers(254, 255, 0, 1, 3);
+        clock.stamp(block);
+        assertEquals(0, block.sampleIndex[0]);
+        assertEquals(2, block.sampleIndex[2]);
+        assertEquals(5, block.sampleIndex[4]);
+        assertEquals(1, clock.lostSamples());
+        /* Samples are 4ms apart however they were read */
+        assertEquals(block.timestamp[0] + 8, block.timestamp[2]);
+    }
+
+    @Test
+    public void readTimeResolvesWholeLostWraps() {
+        SampleClock clock = clock(250);
+        clock.stamp(sampleNumbers(10));
+        /* 2 seconds later the board is at sample 510, which wraps back to SN 254 */
+        nowNanos += 2_000_000_000L;
+        SampleBlock block = sampleNumbers(254);
+        clock.stamp(block);
+        assertEquals(500, block.sampleIndex[0]);
+    }
+
+    @Test
+    public void followsBoardRunningFastDespiteReadJitter() {
+        double boardRate = 251.0;
+        SampleClock clock = clock(250);
+        Random random = new Random(42);
+        int sampleNumber = 0;
+        long taken = 0;
+        SampleBlock block = new SampleBlock(16);
+        /* Two minutes of 16 sample bursts, each read up to 20ms late */
+        for (int burst = 0; burst < 1900; burst++) {
+            block.clear();
+            for (int i = 0; i < 16; i++) {
+                block.sampleNumber[block.size++] = sampleNumber++ & 0xFF;
+                taken++;
+            }
+            long lastTakenNanos = (long) ((taken - 1) * 1e9 / boardRate);
+            nowNanos = lastTakenNanos + (long) (random.nextDouble() * 20_000_000L);
+            clock.stamp(block);
+        }
+        assertEquals(boardRate, clock.sampleRate(), 0.1);
+        /* The last sample is stamped close to when it was really taken, not when it was read */
+        double takenNanos = (taken - 1) * 1e9 / boardRate;
+        assertEquals(takenNanos, clock.nanosAt(taken - 1), 5_000_000);
+    }
+
+    @Test
+    public void formatterMatchesSimpleDateFormat() {
+        SimpleDateFormat reference = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        TimestampFormatter formatter = new TimestampFormatter();
+        for (long millis = 1_600_000_000_000L - 1500; millis < 1_600_000_000_000L + 1500; millis += 7) {
+            assertEquals(reference.format(new Date(millis)), formatter.format(millis));
+        }
+    }
+}
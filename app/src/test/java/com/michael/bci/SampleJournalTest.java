@@ -0,0 +1,154 @@
+package com.michael.bci;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the store-and-forward sample journal.
+ */
+public class SampleJournalTest {
+
+    private static final int SEGMENT_SIZE = SampleJournal.HEADER_SIZE + 4 * SampleJournal.RECORD_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SampleBlock numbered(int first, int count) {
+        SampleBlock block = new SampleBlock(count);
+        for (int i = 0; i < count; i++) {
+            block.sampleNumber[i] = first + i;
+            block.timestamp[i] = 1000L + first + i;
+            block.counts[SampleBlock.offset(i) + 7] = -(first + i);
+        }
+        block.size = count;
+        return block;
+    }
+
+    @Test
+    public void replaysInOrderAcrossSegments() throws IOException {
+        SampleJournal journal = new SampleJournal(folder.getRoot(), "s1", SEGMENT_SIZE, 8);
+        journal.append(numbered(0, 10));
+        assertEquals(10, journal.pending());
+
+        SampleBlock out = new SampleBlock(16);
+        assertEquals("s1", journal.read(out));
+        /* A read stops at the end of a segment */
+        assertEquals(4, out.size);
+        while (journal.pending() > 0) {
+            journal.read(out);
+        }
+        assertEquals(10, out.size);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, out.sampleNumber[i]);
+            assertEquals(1000L + i, out.timestamp[i]);
+            assertEquals(-i, out.counts[SampleBlock.offset(i) + 7]);
+        }
+        journal.close();
+    }
+
+    @Test
+    public void resumesFromCheckpointAfterRestart() throws IOException {
+        File dir = folder.getRoot();
+        SampleJournal journal = new SampleJournal(dir, "s1", SEGMENT_SIZE, 8);
+        journal.append(numbered(0, 6));
+        SampleBlock out = new SampleBlock(4);
+        journal.read(out);
+        journal.confirm(journal.readSequence() - 1);
+        journal.close();
+
+        journal = new SampleJournal(dir, "s2", SEGMENT_SIZE, 8);
+        assertEquals(2, journal.pending());
+        out.clear();
+        assertEquals("s1", journal.read(out));
+        assertEquals(4, out.sampleNumber[0]);
+        assertEquals(5, out.sampleNumber[1]);
+        journal.close();
+    }
+
+    @Test
+    public void rewindReplaysUnconfirmedSamples() throws IOException {
+        SampleJournal journal = new SampleJournal(folder.getRoot(), "s1", SEGMENT_SIZE, 8);
+        journal.append(numbered(0, 3));
+        SampleBlock out = new SampleBlock(4);
+        journal.read(out);
+        assertEquals(0, journal.pending());
+        journal.rewind();
+        assertEquals(3, journal.pending());
+        journal.close();
+    }
+
+    @Test
+    public void outOfOrderConfirmsReplayOnlyTheNackedBatch() throws IOException {
+        File dir = folder.getRoot();
+        SampleJournal journal = new SampleJournal(dir, "s1", SEGMENT_SIZE, 8);
+        journal.append(numbered(0, 12));
+        SampleBlock out = new SampleBlock(4);
+        long[] first = new long[3];
+        for (int batch = 0; batch < 3; batch++) {
+            out.clear();
+            journal.read(out);
+            first[batch] = journal.firstReadSequence();
+            assertEquals(4 * batch, out.sampleNumber[0]);
+        }
+        assertEquals(0, journal.pending());
+
+        /* The first batch is nacked after the last one is acked and before the middle one is */
+        assertFalse(journal.confirm(first[2], first[2] + 3));
+        journal.retry(first[0], first[0] + 3);
+        assertFalse(journal.confirm(first[1], first[1] + 3));
+        assertEquals(4, journal.pending());
+
+        out.clear();
+        assertEquals("s1", journal.read(out));
+        assertEquals(first[0], journal.firstReadSequence());
+        assertEquals(4, out.size);
+        assertEquals(0, out.sampleNumber[0]);
+        assertEquals(3, out.sampleNumber[3]);
+        assertEquals(0, journal.pending());
+        out.clear();
+        assertNull(journal.read(out));
+
+        /* Once the replayed batch is acked everything is confirmed in one go */
+        assertTrue(journal.confirm(first[0], first[0] + 3));
+        journal.close();
+        journal = new SampleJournal(dir, "s1", SEGMENT_SIZE, 8);
+        assertEquals(0, journal.pending());
+        journal.close();
+    }
+
+    @Test
+    public void rewindSkipsAckedBatches() throws IOException {
+        SampleJournal journal = new SampleJournal(folder.getRoot(), "s1", SEGMENT_SIZE, 8);
+        journal.append(numbered(0, 8));
+        SampleBlock out = new SampleBlock(4);
+        journal.read(out);
+        out.clear();
+        journal.read(out);
+        journal.confirm(journal.firstReadSequence(), journal.firstReadSequence() + 3);
+        journal.rewind();
+        assertEquals(4, journal.pending());
+        out.clear();
+        journal.read(out);
+        assertEquals(4, out.size);
+        assertEquals(0, out.sampleNumber[0]);
+        assertEquals(0, journal.pending());
+        journal.close();
+    }
+
+    @Test
+    public void sizeCapDiscardsOldestSegment() throws IOException {
+        SampleJournal journal = new SampleJournal(folder.getRoot(), "s1", SEGMENT_SIZE, 2);
+        journal.append(numbered(0, 12));
+        assertEquals(4, journal.discarded());
+        SampleBlock out = new SampleBlock(4);
+        journal.read(out);
+        assertEquals(4, out.sampleNumber[0]);
+        journal.close();
+    }
+}
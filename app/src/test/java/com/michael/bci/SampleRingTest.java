@@ -0,0 +1,74 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the single-producer/single-consumer sample ring.
+ */
+public class SampleRingTest {
+
+    private static SampleBlock numbered(int count) {
+        SampleBlock block = new SampleBlock(count);
+        for (int i = 0; i < count; i++) {
+            block.sampleNumber[i] = i;
+            block.counts[SampleBlock.offset(i)] = i;
+        }
+        block.size = count;
+        return block;
+    }
+
+    @Test
+    public void dropOldestKeepsNewestSamples() {
+        SampleRing ring = new SampleRing(4, SampleRing.OverflowPolicy.DROP_OLDEST, null);
+        SampleBlock in = numbered(6);
+        for (int i = 0; i < in.size; i++) {
+            assertTrue(ring.offer(in, i));
+        }
+        assertEquals(2, ring.dropped());
+
+        SampleBlock out = new SampleBlock(8);
+        assertEquals(4, ring.drainTo(out));
+        assertEquals(2, out.sampleNumber[0]);
+        assertEquals(5, out.counts[SampleBlock.offset(3)]);
+    }
+
+    @Test
+    public void spillReceivesOverflow() {
+        int[] spilled = new int[1];
+        SampleRing ring = new SampleRing(2, SampleRing.OverflowPolicy.SPILL, (samples, slot) -> spilled[0]++);
+        SampleBlock in = numbered(3);
+        assertTrue(ring.offer(in, 0));
+        assertTrue(ring.offer(in, 1));
+        assertFalse(ring.offer(in, 2));
+        assertEquals(1, spilled[0]);
+    }
+
+    @Test
+    public void blockingProducerHandsOverEverySampleInOrder() throws InterruptedException {
+        SampleRing ring = new SampleRing(8, SampleRing.OverflowPolicy.BLOCK, null);
+        int total = 100_000;
+        Thread producer = new Thread(() -> {
+            SampleBlock one = new SampleBlock(1);
+            for (int i = 0; i < total; i++) {
+                one.sampleNumber[0] = i;
+                ring.offer(one, 0);
+            }
+        });
+        producer.start();
+
+        SampleBlock out = new SampleBlock(16);
+        int expected = 0;
+        while (expected < total) {
+            out.clear();
+            if (ring.drainTo(out) == 0) {
+                ring.awaitSamples(1_000_000L);
+            }
+            for (int i = 0; i < out.size; i++) {
+                assertEquals(expected++, out.sampleNumber[i]);
+            }
+        }
+        producer.join();
+    }
+}
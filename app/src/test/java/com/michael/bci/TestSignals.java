@@ -0,0 +1,37 @@
+package com.michael.bci;
+
+/**
+ * Test signals shared by the filter and decimator tests.
+ */
+final class TestSignals {
+
+    static final double RATE = 250;
+
+    private TestSignals() {
+    }
+
+    /* count samples of a sine of frequency Hz on every channel, plus offset, at RATE with 4ms timestamps */
+    static SampleBlock sine(int count, double frequency, double amplitude, double offset) {
+        SampleBlock block = new SampleBlock(count);
+        for (int slot = 0; slot < count; slot++) {
+            block.sampleNumber[slot] = slot & 0xFF;
+            block.sampleIndex[slot] = slot;
+            block.timestamp[slot] = 1_600_000_000_000L + slot * 4L;
+            for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+                block.microVolts[SampleBlock.offset(slot) + ch] =
+                        (float) (offset + amplitude * Math.sin(2 * Math.PI * frequency * slot / RATE));
+            }
+        }
+        block.size = count;
+        return block;
+    }
+
+    /* Largest absolute value on channel ch over the last half of the block, once a filter has settled */
+    static double peak(SampleBlock block, int ch) {
+        double peak = 0;
+        for (int slot = block.size / 2; slot < block.size; slot++) {
+            peak = Math.max(peak, Math.abs(block.microVolts[SampleBlock.offset(slot) + ch]));
+        }
+        return peak;
+    }
+}
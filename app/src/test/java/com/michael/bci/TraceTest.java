@@ -0,0 +1,26 @@
+package com.michael.bci;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceTest {
+
+    @Test
+    public void limiterLetsOneEventThroughPerInterval() {
+        long[] now = {1_000_000_000L};
+        Trace.Limiter limiter = new Trace.Limiter(() -> now[0], 100);
+        assertTrue(limiter.allow());
+        assertFalse(limiter.allow());
+        now[0] += 99_000_000L;
+        assertFalse(limiter.allow());
+        assertEquals(2, limiter.takeSuppressed());
+        assertEquals(0, limiter.takeSuppressed());
+        now[0] += 1_000_000L;
+        assertTrue(limiter.allow());
+        assertFalse(limiter.allow());
+        assertEquals(1, limiter.takeSuppressed());
+    }
+}
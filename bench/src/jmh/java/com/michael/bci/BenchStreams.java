@@ -0,0 +1,34 @@
+package com.michael.bci;
+
+import java.util.Random;
+
+/* Pre-generated Cyton byte streams for the benchmarks, so generating them is not part of the measurement */
+final class BenchStreams {
+
+    private BenchStreams() {
+    }
+
+    /* samples packets of a 250Hz stream, with each byte dropped with dropByteProbability */
+    static byte[] cyton(int samples, double dropByteProbability, long seed) {
+        long[] now = {0};
+        SyntheticCyton cyton = new SyntheticCyton(OpenBci.SAMPLE_RATE, SampleBlock.CHANNELS, () -> now[0], new Random(seed));
+        cyton.dropByteProbability = dropByteProbability;
+        cyton.write(new byte[]{'b'}, 1);
+        now[0] = (long) (samples * 1e9 / OpenBci.SAMPLE_RATE) + 1;
+        byte[] stream = new byte[cyton.getQueueStatus()];
+        int length = cyton.read(stream, stream.length);
+        return length == stream.length ? stream : java.util.Arrays.copyOf(stream, length);
+    }
+
+    /* A block of decoded samples with stamped sample numbers, indexes and timestamps */
+    static SampleBlock samples(int count) {
+        byte[] stream = cyton(count + 1, 0, 1);
+        CytonFrameDecoder decoder = new CytonFrameDecoder(8192 * 4);
+        decoder.feed(stream, 0, stream.length);
+        SampleBlock block = new SampleBlock(count);
+        decoder.decode(block, 0L);
+        SampleClock clock = new SampleClock(OpenBci.SAMPLE_RATE, () -> 0L, () -> 1_600_000_000_000L);
+        clock.stamp(block);
+        return block;
+    }
+}
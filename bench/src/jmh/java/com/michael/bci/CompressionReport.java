@@ -0,0 +1,107 @@
+package com.michael.bci;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * Prints the bytes per sample, compression ratio and encode time per sample of every SampleCodec, for
+ * simulated streams and for any captures of raw dongle bytes given as arguments (./gradlew
+ * :bench:compressionReport -Pcaptures=session1.bin,session2.bin). Samples are encoded in 50 sample
+ * batches like the publisher does. The timing is a plain warmed-up loop, good enough to compare
+ * codecs; EncodingBenchmark gives the JMH figures.
+ */
+public final class CompressionReport {
+
+    private static final String[] CODECS = {"json", "binary-counts", "delta", "delta-linear"};
+    private static final int BATCH = 50;
+
+    private CompressionReport() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        report("synthetic 20uV 10Hz + 5uV noise", simulated(20, 5));
+        report("synthetic 10uV 10Hz + 1uV noise", simulated(10, 1));
+        for (String capture : args) {
+            report(capture, decode(Files.readAllBytes(new File(capture).toPath())));
+        }
+    }
+
+    /* One minute of a 250Hz stream from SyntheticCyton */
+    private static SampleBlock simulated(double signalMicroVolts, double noiseMicroVolts) {
+        long[] now = {0};
+        SyntheticCyton cyton = new SyntheticCyton(OpenBci.SAMPLE_RATE, SampleBlock.CHANNELS, () -> now[0], new Random(1));
+        cyton.signalMicroVolts = signalMicroVolts;
+        cyton.noiseMicroVolts = noiseMicroVolts;
+        cyton.write(new byte[]{'b'}, 1);
+        byte[] stream = new byte[0];
+        byte[] read = new byte[SyntheticCyton.RX_BUFFER_SIZE];
+        for (int second = 1; second <= 60; second++) {
+            now[0] = second * 1_000_000_000L;
+            int length = cyton.read(read, read.length);
+            byte[] longer = java.util.Arrays.copyOf(stream, stream.length + length);
+            System.arraycopy(read, 0, longer, stream.length, length);
+            stream = longer;
+        }
+        return decode(stream);
+    }
+
+    private static SampleBlock decode(byte[] stream) {
+        CytonFrameDecoder decoder = new CytonFrameDecoder(Integer.highestOneBit(stream.length + 66) << 1);
+        decoder.feed(stream, 0, stream.length);
+        SampleBlock samples = new SampleBlock(stream.length / CytonFrameDecoder.FRAME_SIZE + 1);
+        decoder.decode(samples, 0L);
+        new SampleClock(OpenBci.SAMPLE_RATE, () -> 0L, () -> 1_600_000_000_000L).stamp(samples);
+        return samples;
+    }
+
+    private static void report(String name, SampleBlock samples) {
+        System.out.println(name + ", " + samples.size + " samples");
+        long jsonBytes = 0;
+        long binaryBytes = 0;
+        for (String codecName : CODECS) {
+            SampleCodec codec = EncodingBenchmark.codec(codecName);
+            long bytes = encodeAll(codec, samples);
+            /* Warm up, then time */
+            for (int i = 0; i < 20; i++) {
+                encodeAll(codec, samples);
+            }
+            int rounds = 50;
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                encodeAll(codec, samples);
+            }
+            double nanosPerSample = (System.nanoTime() - start) / (double) rounds / samples.size;
+            if (codecName.equals("json")) {
+                jsonBytes = bytes;
+            } else if (codecName.equals("binary-counts")) {
+                binaryBytes = bytes;
+            }
+            String binaryRatio = binaryBytes == 0 ? "" : String.format(Locale.ROOT, "%5.2fx binary", binaryBytes / (double) bytes);
+            System.out.println(String.format(Locale.ROOT, "  %-14s %7.2f bytes/sample  %7.1f ns/sample  %6.2fx json  %s",
+                    codecName, bytes / (double) samples.size, nanosPerSample, jsonBytes / (double) bytes, binaryRatio));
+        }
+    }
+
+    /* Encode every sample in BATCH sample batches, returns the total body bytes */
+    private static long encodeAll(SampleCodec codec, SampleBlock samples) {
+        MessageBuffer body = new MessageBuffer(16 * 1024);
+        SampleBlock batch = new SampleBlock(BATCH);
+        long bytes = 0;
+        for (int first = 0; first < samples.size; first += BATCH) {
+            body.clear();
+            batch.clear();
+            codec.begin(body);
+            for (int slot = first; slot < Math.min(samples.size, first + BATCH); slot++) {
+                batch.set(batch.size, samples, slot);
+                codec.append(body, batch, batch.size, batch.size);
+                batch.size++;
+            }
+            codec.end(body, batch.size);
+            bytes += body.length();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,52 @@
+package com.michael.bci;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Converting the 8 channels of one packet to micro volts, the way the receiver used to with a copied
+ * 3 byte array per channel against reading them by offset from the packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConversionBenchmark {
+
+    private byte[] frame;
+
+    @Setup
+    public void setup() {
+        frame = Arrays.copyOf(BenchStreams.cyton(2, 0, 1), CytonFrameDecoder.FRAME_SIZE);
+    }
+
+    @Benchmark
+    public void copyOfRange(Blackhole blackhole) {
+        for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+            int start = 2 + ch * 3;
+            blackhole.consume(OpenBci.convertByteToMicroVolts(Arrays.copyOfRange(frame, start, start + 3)));
+        }
+    }
+
+    @Benchmark
+    public void byOffset(Blackhole blackhole) {
+        for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+            blackhole.consume(OpenBci.convertByteToMicroVolts(frame, 2 + ch * 3));
+        }
+    }
+
+    @Benchmark
+    public void countsByOffset(Blackhole blackhole) {
+        for (int ch = 0; ch < SampleBlock.CHANNELS; ch++) {
+            blackhole.consume(OpenBci.interpret24bitAsInt32(frame, 2 + ch * 3));
+        }
+    }
+}
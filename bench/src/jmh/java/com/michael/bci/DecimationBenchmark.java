@@ -0,0 +1,75 @@
+package com.michael.bci;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * One second of EEG published raw (factor 1) against decimated by PolyphaseDecimator first, in the
+ * 64 sample blocks the publisher thread drains from the ring. The decimated runs pay for the FIR
+ * filter but encode and publish a half or a quarter of the samples. Scores are per input sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecimationBenchmark {
+
+    private static final int SAMPLES = 256;
+    private static final int DRAIN_SIZE = 64;
+
+    @Param({"1", "2", "4"})
+    public int factor;
+
+    @Param({"json", "binary-counts"})
+    public String codecName;
+
+    private SampleBlock[] blocks;
+    private PolyphaseDecimator decimator;
+    private SampleBlock decimated;
+    private BatchPublisher publisher;
+    private final PublishBenchmark.StandInBroker broker = new PublishBenchmark.StandInBroker();
+
+    @Setup
+    public void setup() {
+        SampleBlock samples = BenchStreams.samples(SAMPLES);
+        blocks = new SampleBlock[SAMPLES / DRAIN_SIZE];
+        for (int b = 0; b < blocks.length; b++) {
+            blocks[b] = new SampleBlock(DRAIN_SIZE);
+            for (int slot = 0; slot < DRAIN_SIZE; slot++) {
+                blocks[b].set(blocks[b].size++, samples, b * DRAIN_SIZE + slot);
+            }
+        }
+        if (factor > 1) {
+            decimator = new PolyphaseDecimator(OpenBci.SAMPLE_RATE, SampleBlock.CHANNELS, factor);
+            decimated = new SampleBlock(decimator.maxOutput(DRAIN_SIZE));
+        }
+        publisher = new BatchPublisher(broker, EncodingBenchmark.codec(codecName), "bench-session", null,
+                50, 16 * 1024, 200);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long publishSecond() throws IOException {
+        for (SampleBlock block : blocks) {
+            SampleBlock published = block;
+            if (decimator != null) {
+                decimator.process(block, decimated);
+                published = decimated;
+            }
+            for (int slot = 0; slot < published.size; slot++) {
+                publisher.add(published, slot);
+            }
+        }
+        publisher.flush();
+        return broker.bytes;
+    }
+}
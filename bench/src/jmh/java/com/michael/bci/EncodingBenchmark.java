@@ -0,0 +1,61 @@
+package com.michael.bci;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Encoding one 50 sample batch, the default batch size, with each SampleCodec. Compare the bytes per
+ * sample reported by bodyLength with the allocation rate from the gc profiler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodingBenchmark {
+
+    @Param({"json", "binary-counts", "binary-microvolts", "delta", "delta-linear"})
+    public String codecName;
+
+    private SampleCodec codec;
+    private SampleBlock samples;
+    private final MessageBuffer body = new MessageBuffer(16 * 1024);
+
+    @Setup
+    public void setup() {
+        codec = codec(codecName);
+        samples = BenchStreams.samples(50);
+    }
+
+    static SampleCodec codec(String name) {
+        switch (name) {
+            case "binary-counts":
+                return new BinarySampleCodec(BinarySampleCodec.Format.RAW_COUNTS);
+            case "binary-microvolts":
+                return new BinarySampleCodec(BinarySampleCodec.Format.MICRO_VOLTS);
+            case "delta":
+                return new DeltaSampleCodec(DeltaSampleCodec.Predictor.DELTA);
+            case "delta-linear":
+                return new DeltaSampleCodec(DeltaSampleCodec.Predictor.LINEAR);
+            default:
+                return new JsonSampleCodec();
+        }
+    }
+
+    @Benchmark
+    public int encodeBatch() {
+        body.clear();
+        codec.begin(body);
+        for (int slot = 0; slot < samples.size; slot++) {
+            codec.append(body, samples, slot, slot);
+        }
+        codec.end(body, samples.size);
+        return body.length();
+    }
+}
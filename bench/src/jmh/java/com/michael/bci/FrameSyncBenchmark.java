@@ -0,0 +1,55 @@
+package com.michael.bci;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Feeding the decoder one FTDI transfer at a time and decoding every packet in it, over a clean stream
+ * and over streams with dropped bytes that force it to resync. One operation is one transfer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameSyncBenchmark {
+
+    /* BciReceiver.TRANSFER_SIZE, 16 packets per read */
+    private static final int TRANSFER_SIZE = 528;
+
+    @Param({"0", "0.001", "0.01"})
+    public double dropByteProbability;
+
+    private byte[] stream;
+    private int position;
+    private final CytonFrameDecoder decoder = new CytonFrameDecoder();
+    private final SampleBlock samples = new SampleBlock(TRANSFER_SIZE / CytonFrameDecoder.FRAME_SIZE);
+
+    @Setup
+    public void setup() {
+        stream = BenchStreams.cyton(25_000, dropByteProbability, 7);
+    }
+
+    @Benchmark
+    public int decodeTransfer() {
+        int length = Math.min(TRANSFER_SIZE, stream.length - position);
+        decoder.feed(stream, position, length);
+        position += length;
+        if (position == stream.length) {
+            position = 0;
+        }
+        int decoded = 0;
+        samples.clear();
+        while (decoder.decode(samples, 0L) > 0) {
+            decoded += samples.size;
+            samples.clear();
+        }
+        return decoded;
+    }
+}
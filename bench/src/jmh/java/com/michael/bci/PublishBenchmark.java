@@ -0,0 +1,97 @@
+package com.michael.bci;
+
+import com.rabbitmq.client.AMQP;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Publishing one second of EEG, 250 samples, through BatchPublisher one sample per message against
+ * batches of 50. The broker stand-in writes each message the way a basicPublish would hand it to the
+ * socket, a method frame, a header frame with the properties and the body, so the per-message cost
+ * that batching saves is part of the measurement. timed adds the PipelineMetrics encode and publish
+ * timing, to show what the instrumentation costs per sample. Scores are per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PublishBenchmark {
+
+    private static final int SAMPLES = 250;
+
+    @Param({"1", "50"})
+    public int batchMaxSamples;
+
+    @Param({"json", "binary-counts"})
+    public String codecName;
+
+    @Param({"false", "true"})
+    public boolean timed;
+
+    private SampleBlock samples;
+    private BatchPublisher publisher;
+    private final StandInBroker broker = new StandInBroker();
+
+    @Setup
+    public void setup() {
+        samples = BenchStreams.samples(SAMPLES);
+        publisher = new BatchPublisher(broker, EncodingBenchmark.codec(codecName), "bench-session", null,
+                batchMaxSamples, 16 * 1024, 200);
+        if (timed) {
+            publisher.setMetrics(new PipelineMetrics());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long publishSecond() throws IOException {
+        for (int slot = 0; slot < samples.size; slot++) {
+            publisher.add(samples, slot);
+        }
+        publisher.flush();
+        return broker.bytes;
+    }
+
+    /* Serialises every message into a reused buffer instead of a socket */
+    static final class StandInBroker implements BatchPublisher.Sender {
+        private final ByteArrayOutputStream socket = new ByteArrayOutputStream(64 * 1024);
+        private final DataOutputStream out = new DataOutputStream(socket);
+        long bytes;
+
+        @Override
+        public void send(AMQP.BasicProperties properties, byte[] body, SampleBlock samples, long journalSequence) throws IOException {
+            socket.reset();
+            /* Method frame: basic.publish with exchange and routing key */
+            out.writeByte(1);
+            out.writeShort(1);
+            out.writeUTF("exchange_1");
+            out.writeUTF("black");
+            /* Header frame: content type and headers table */
+            out.writeByte(2);
+            out.writeLong(body.length);
+            out.writeUTF(properties.getContentType());
+            for (Map.Entry<String, Object> header : properties.getHeaders().entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeUTF(String.valueOf(header.getValue()));
+            }
+            /* Body frame */
+            out.writeByte(3);
+            out.write(body);
+            out.writeByte(0xCE);
+            bytes += socket.size();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package android.util;
+
+/*
+ * No-op stand-in for the Android Log class, so app classes that log can be compiled and benchmarked
+ * on a plain JVM. Only the methods the benchmarked classes use are here.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+}